@@ -9,6 +9,7 @@ repositories {
 dependencies {
     testImplementation(libs.junit)
     implementation(libs.guava)
+    implementation(libs.asm)
 }
 
 java {
@@ -0,0 +1,201 @@
+package lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import lox.analysis.Resolver;
+import lox.ast.Stmt;
+import lox.jit.JitCompiler;
+import lox.optimizer.ConstantFolder;
+import lox.optimizer.Inliner;
+import lox.parser.Parser;
+import lox.parser.Parser.ParseError;
+import lox.scanner.MappedReader;
+import lox.scanner.Scanner;
+
+/**
+ * Compiles a Lox script ahead of time into a jar that runs it with
+ * {@code java -jar}, without scanning, parsing or resolving it again.
+ * <br/>
+ * The jar holds the compiled program and the runtime classes it refers to, the
+ * native functions, {@link lox.interpreter.InterpreterUtil#stringify} and the
+ * error reporting of {@link lox.aot.CompiledProgram}.
+ */
+public class Jloxc {
+    private static final String USAGE = "Usage: jloxc [-o output.jar] script";
+    private static final String MAIN_CLASS = "Main";
+    /** Prefix of the classes the compiled program may refer to */
+    private static final String RUNTIME_PACKAGES = "lox/";
+
+    public static void main(String[] args) throws IOException {
+        String script = null;
+        String output = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length)
+                output = args[++i];
+            else if (args[i].startsWith("-") || script != null)
+                usage();
+            else
+                script = args[i];
+        }
+        if (script == null)
+            usage();
+        if (output == null)
+            output = script.replaceFirst("\\.lox$", "") + ".jar";
+
+        List<Stmt> program;
+        try (Reader reader = MappedReader.open(Paths.get(script), Charset.defaultCharset())) {
+            program = parse(new Scanner(reader));
+        }
+        if (program == null || Lox.hadError)
+            System.exit(65);
+
+        writeJar(Paths.get(output), JitCompiler.compileProgram(program, MAIN_CLASS));
+    }
+
+    private static void usage() {
+        System.out.println(USAGE);
+        System.exit(64);
+    }
+
+    /**
+     * Runs the same passes as {@link Lox} before running a script.
+     *
+     * @return The resolved program, or null if it failed to parse
+     */
+    private static List<Stmt> parse(Scanner scanner) {
+        try {
+            List<Stmt> parsed = new Parser(scanner).parse();
+            if (Lox.hadError)
+                return null;
+
+            new Resolver().resolveProgram(parsed);
+            if (Lox.hadError)
+                return null;
+
+            List<Stmt> program = new ConstantFolder().fold(new Inliner().inline(parsed));
+            new Resolver().resolveProgram(program);
+            return program;
+        } catch (ParseError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the program's classes and every runtime class they refer to,
+     * directly or through other runtime classes.
+     */
+    private static void writeJar(Path path, Map<String, byte[]> program) throws IOException {
+        Map<String, byte[]> classes = new LinkedHashMap<>(program);
+        Deque<String> pending = new ArrayDeque<>(program.keySet());
+        while (!pending.isEmpty()) {
+            for (String name : referencedClasses(classes.get(pending.pop()))) {
+                if (name.startsWith(RUNTIME_PACKAGES) && !classes.containsKey(name)) {
+                    classes.put(name, readClass(name));
+                    pending.push(name);
+                }
+            }
+        }
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, MAIN_CLASS);
+        try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(path), manifest)) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                jar.putNextEntry(new JarEntry(entry.getKey() + ".class"));
+                jar.write(entry.getValue());
+                jar.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * @return The internal names of the classes a class extends, creates, casts
+     *         to or whose members it uses. Classes that only appear in
+     *         signatures or stack map frames are never loaded for the program.
+     */
+    private static Set<String> referencedClasses(byte[] bytes) {
+        Set<String> names = new HashSet<>();
+        MethodVisitor method = new MethodVisitor(Opcodes.ASM9) {
+            @Override
+            public void visitTypeInsn(int opcode, String type) {
+                names.add(type);
+            }
+
+            @Override
+            public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+                names.add(owner);
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String descriptor,
+                    boolean is_interface) {
+                names.add(owner);
+            }
+
+            @Override
+            public void visitLdcInsn(Object value) {
+                if (value instanceof Type && ((Type) value).getSort() == Type.OBJECT)
+                    names.add(((Type) value).getInternalName());
+            }
+
+            @Override
+            public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+                if (type != null)
+                    names.add(type);
+            }
+        };
+
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public void visit(int version, int access, String name, String signature, String superclass,
+                    String[] interfaces) {
+                if (superclass != null)
+                    names.add(superclass);
+                names.addAll(List.of(interfaces));
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                    String[] exceptions) {
+                return method;
+            }
+        }, ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
+
+        Set<String> classes = new HashSet<>();
+        for (String name : names)
+            classes.add(name.replaceAll("^\\[+L|;$", ""));
+        return classes;
+    }
+
+    private static byte[] readClass(String name) throws IOException {
+        try (InputStream input = Jloxc.class.getClassLoader().getResourceAsStream(name + ".class")) {
+            if (input == null)
+                throw new IOException("Missing runtime class " + name);
+            return input.readAllBytes();
+        }
+    }
+}
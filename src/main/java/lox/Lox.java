@@ -4,48 +4,110 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.Reader;
 import java.lang.System.Logger;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 
 import lox.analysis.Resolver;
+import lox.analysis.TypeInference;
 import lox.ast.AstPrinter;
 import lox.ast.Stmt;
 import lox.interpreter.Interpreter;
 import lox.interpreter.RuntimeError;
+import lox.ir.IrBuilder;
+import lox.ir.IrFunction;
+import lox.ir.IrInterpreter;
+import lox.ir.IrPrinter;
+import lox.ir.Optimizer;
+import lox.nodes.NodeCompiler;
+import lox.optimizer.ConstantFolder;
+import lox.optimizer.Inliner;
 import lox.parser.Parser;
 import lox.parser.Parser.ParseError;
 import lox.scanner.Location;
+import lox.scanner.MappedReader;
 import lox.scanner.Scanner;
+import lox.scanner.SymbolTable;
+import lox.vm.Compiler;
+import lox.vm.VM;
 
 public class Lox {
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
     private static final Logger logger = System.getLogger(Lox.class.getName());
+    private static final String USAGE = "Usage: jlox [--engine=tree|vm|nodes|ir] [--no-fold] [--no-inline] [--no-jit] [--dump-ir] [--max-call-depth=N] [script]";
     private static Interpreter interpreter;
     private static Resolver resolver;
+    /** Names of the scanned tokens, shared by the lines of the REPL */
+    private static SymbolTable symbols;
+    /** Execution engine used for scripts, the REPL always uses the interpreter */
+    private static String engine = "tree";
+    /** Whether constant expressions are folded in scripts */
+    private static boolean is_folding = true;
+    /** Whether calls of small functions are inlined in scripts */
+    private static boolean is_inlining = true;
+    /** Whether the optimized IR is printed instead of running the script */
+    private static boolean is_dumping_ir = false;
+    /** Calls that may be active at once in the vm engine */
+    private static int max_call_depth = VM.DEFAULT_MAX_CALL_DEPTH;
 
     public static void main(String[] args) throws IOException {
         interpreter = new Interpreter();
-        resolver = new Resolver(interpreter);
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        resolver = new Resolver();
+        symbols = new SymbolTable();
+
+        String script = null;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+                if (!engine.equals("tree") && !engine.equals("vm") && !engine.equals("nodes")
+                        && !engine.equals("ir"))
+                    usage();
+            } else if (arg.equals("--no-fold")) {
+                is_folding = false;
+            } else if (arg.equals("--no-inline")) {
+                is_inlining = false;
+            } else if (arg.equals("--no-jit")) {
+                interpreter.is_jit_enabled = false;
+            } else if (arg.equals("--dump-ir")) {
+                is_dumping_ir = true;
+            } else if (arg.startsWith("--max-call-depth=")) {
+                try {
+                    max_call_depth = Integer.parseInt(arg.substring("--max-call-depth=".length()));
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+                if (max_call_depth < 1)
+                    usage();
+            } else if (arg.startsWith("--") || script != null) {
+                usage();
+            } else {
+                script = arg;
+            }
+        }
+
+        if (script != null) {
+            runFile(script);
         } else {
             runPrompt();
         }
     }
 
+    private static void usage() {
+        System.out.println(USAGE);
+        System.exit(64);
+    }
+
     /**
      * Reads from a file and runs the interpreter against the text in the file.
      */
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        logger.log(Logger.Level.INFO, () -> "Running " + path);
+        try (Reader reader = MappedReader.open(Paths.get(path), Charset.defaultCharset())) {
+            run(new Scanner(reader, symbols));
+        }
 
         if (hadError)
             System.exit(65);
@@ -83,29 +145,64 @@ public class Lox {
      * @param source Lox code to run
      */
     private static void run(String source) {
-        logger.log(Logger.Level.INFO, "Running source:\n" + source);
-
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        logger.log(Logger.Level.DEBUG, "Tokens:" + tokens);
+        logger.log(Logger.Level.INFO, () -> "Running source:\n" + source);
+        run(new Scanner(source, symbols));
+    }
 
+    /**
+     * Runs the interpreter against the tokens of the scanner, which are parsed
+     * as they are scanned.
+     */
+    private static void run(Scanner scanner) {
         try {
-
-            Parser parser = new Parser(tokens);
-            List<Stmt> result = parser.parse();
+            Parser parser = new Parser(scanner);
+            List<Stmt> parsed = parser.parse();
             if (hadError)
                 return;
 
+            // The program as written is resolved, so the optimizations below
+            // don't change which programs are accepted
+            List<Stmt> statements = parsed;
             if (interpreter.is_repl)
-                resolver.resolve(result);
+                resolver.resolve(statements);
             else
-                resolver.resolveProgram(result);
+                resolver.resolveProgram(statements);
+            if (hadError)
+                return;
+
+            if (!interpreter.is_repl) {
+                // Warnings are about the program as written, not as optimized
+                new TypeInference().infer(statements);
+                if (is_inlining)
+                    statements = new Inliner().inline(statements);
+                if (is_folding)
+                    statements = new ConstantFolder().fold(statements);
+                if (is_inlining || is_folding) {
+                    resolver.resolveProgram(statements);
+                    new TypeInference().annotate(statements);
+                }
+            }
+            List<Stmt> result = statements;
 
-            logger.log(Logger.Level.DEBUG, "AST:\n" + new AstPrinter().print(result));
+            logger.log(Logger.Level.DEBUG, () -> "AST:\n" + new AstPrinter().print(result));
 
-            interpreter.interpret(result);
+            if (!interpreter.is_repl && (is_dumping_ir || engine.equals("ir"))) {
+                IrFunction program = new Optimizer().optimize(new IrBuilder().build(result));
+                if (is_dumping_ir)
+                    System.out.print(new IrPrinter().print(program));
+                else
+                    new IrInterpreter().interpret(program);
+            } else if (interpreter.is_repl || engine.equals("tree"))
+                interpreter.interpret(result);
+            else if (engine.equals("vm"))
+                new VM(max_call_depth).interpret(new Compiler().compile(result));
+            else
+                new NodeCompiler().compile(result).interpret();
         } catch (ParseError e) {
             logger.log(Logger.Level.INFO, "Parser encountered an error:\n" + e.getMessage());
+        } catch (StackOverflowError e) {
+            // Only the vm engine keeps Lox calls off the Java stack
+            runtimeError(new RuntimeError("Stack overflow."));
         }
     }
 
@@ -137,6 +234,18 @@ public class Lox {
         }
     }
 
+    /**
+     * Reports a problem that doesn't stop the program from running, along with
+     * the offending token.
+     * 
+     * @param token   The token that caused the problem
+     * @param message The message to report
+     */
+    public static void warning(Token token, String message) {
+        System.err.println(String.format("[line: %d, col: %d] Warning at '%s': %s", token.loc.line(),
+                token.loc.col(), token.lexeme, message));
+    }
+
     private static void report(Location loc, String where,
             String message) {
         System.err.println(String.format("[line: %d, col: %d] Error %s: %s", loc.line(), loc.col(), where, message));
@@ -11,12 +11,22 @@ public class Token {
     public final String lexeme;
     public final Object literal;
     public final Location loc;
+    /**
+     * Id of the name of identifiers and keywords in the
+     * {@link lox.scanner.SymbolTable} of the scanner, -1 for other tokens
+     */
+    public final int symbol;
 
     public Token(TokenType type, String lexeme, Object literal, Location loc) {
+        this(type, lexeme, literal, loc, -1);
+    }
+
+    public Token(TokenType type, String lexeme, Object literal, Location loc, int symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.loc = loc;
+        this.symbol = symbol;
     }
 
     public String toString() {
@@ -1,8 +1,8 @@
 package lox.analysis;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Stack;
 
 import lox.Lox;
@@ -11,26 +11,76 @@ import lox.ast.Expr;
 import lox.ast.Expr.*;
 import lox.ast.Stmt;
 import lox.ast.Stmt.*;
-import lox.interpreter.Interpreter;
+import lox.interpreter.NativeFunction;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public class ResolverVariable {
         public boolean is_resolved;
         public final int index;
-
-        public ResolverVariable(boolean is_resolved, int index) {
-            this.is_resolved = is_resolved;
+        /** Index of the declaring scope in {@link #scopes} */
+        final int scope;
+        final int symbol;
+        /** The declaration of the same symbol this one shadows */
+        final ResolverVariable shadowed;
+        /** The declaration before this one in the same scope */
+        final ResolverVariable previous;
+
+        ResolverVariable(int index, int scope, int symbol, ResolverVariable shadowed, ResolverVariable previous) {
+            this.is_resolved = false;
             this.index = index;
+            this.scope = scope;
+            this.symbol = symbol;
+            this.shadowed = shadowed;
+            this.previous = previous;
         }
     }
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, ResolverVariable>> scopes = new Stack<>();
+    /**
+     * A scope that gets a frame of its own at runtime, with one slot for every
+     * declaration in it.
+     */
+    private static class Scope {
+        /** The last declaration in the scope, the others are linked from it */
+        ResolverVariable last = null;
+        /** Redeclaring a name takes a new slot */
+        int slot_count = 0;
+        /** Number of functions enclosing the scope, 0 at the top level */
+        final int level;
+        /** The for loop declaring the scope's first variable, while its counter may be counting */
+        For counting_loop = null;
+
+        Scope(int level) {
+            this.level = level;
+        }
+    }
 
-    public Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    /**
+     * The variables of enclosing functions a function uses, which its closures
+     * capture. Each one is captured from a frame of the directly enclosing
+     * function, by depth from where the function is declared and slot, or is
+     * an upvalue of the enclosing function, with depth -1 and its index as slot.
+     */
+    private static class Upvalues {
+        /** Index of the function's scope in {@link #scopes} */
+        final int scope;
+        final List<Integer> depths = new ArrayList<>();
+        final List<Integer> slots = new ArrayList<>();
+
+        Upvalues(int scope) {
+            this.scope = scope;
+        }
     }
 
+    private final Stack<Scope> scopes = new Stack<>();
+    /**
+     * The innermost declaration of every symbol by its id, names are looked up
+     * by symbol instead of through a map per scope. The tokens resolved must
+     * come from scanners sharing a {@link lox.scanner.SymbolTable}.
+     */
+    private ResolverVariable[] declarations = new ResolverVariable[256];
+    /** Upvalues of the functions enclosing the current statement, innermost last */
+    private final List<Upvalues> functions = new ArrayList<>();
+
     public void resolveProgram(List<Stmt> statements) {
         beginScope();
         resolve(statements);
@@ -50,60 +100,145 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expression.accept(this);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i, scopes.get(i).get(name.lexeme).index);
-                return;
-            }
+    /**
+     * @return The number of scopes between the current one and the one that
+     *         declares {@code name}, or -1 if it is not declared in any scope
+     */
+    private int resolveDepth(Token name) {
+        ResolverVariable variable = lookup(name);
+        return variable == null ? -1 : scopes.size() - 1 - variable.scope;
+    }
+
+    private int resolveSlot(Token name) {
+        return lookup(name).index;
+    }
+
+    /** @return The innermost declaration of {@code name}, or null */
+    private ResolverVariable lookup(Token name) {
+        return name.symbol < declarations.length ? declarations[name.symbol] : null;
+    }
+
+    /**
+     * Identifiers not declared in any scope can only be native functions.
+     * 
+     * @return The global slot of the native function called {@code name}
+     */
+    private int resolveGlobal(Token name) {
+        int slot = NativeFunction.lookup(name.lexeme);
+        if (slot == -1)
+            Lox.error(name, "Unknown identifier.");
+        return slot;
+    }
+
+    /**
+     * @return The index of the upvalue through which the current function
+     *         reaches slot {@code slot} of the scope at {@code scope} in
+     *         {@link #scopes}, or -1 if the scope is the function's own
+     */
+    private int resolveUpvalue(int scope, int slot) {
+        return resolveUpvalue(functions.size(), scope, slot);
+    }
+
+    private int resolveUpvalue(int level, int scope, int slot) {
+        int declaring_level = scopes.get(scope).level;
+        if (declaring_level == level)
+            return -1;
+
+        Upvalues upvalues = functions.get(level - 1);
+        int depth = -1;
+        int index;
+        if (declaring_level == level - 1) {
+            depth = upvalues.scope - 1 - scope;
+            index = slot;
+        } else {
+            index = resolveUpvalue(level - 1, scope, slot);
         }
+
+        for (int i = 0; i < upvalues.depths.size(); i++) {
+            if (upvalues.depths.get(i) == depth && upvalues.slots.get(i) == index)
+                return i;
+        }
+        upvalues.depths.add(depth);
+        upvalues.slots.add(index);
+        return upvalues.depths.size() - 1;
     }
 
     private void resolveFunction(Stmt.Function function) {
+        Upvalues upvalues = new Upvalues(scopes.size());
+        functions.add(upvalues);
         beginScope();
         for (Token param : function.params) {
             declare(param);
             define(param);
         }
         resolve(function.body);
+        function.slot_count = scopes.peek().slot_count;
+        function.upvalue_depths = upvalues.depths.stream().mapToInt(Integer::intValue).toArray();
+        function.upvalue_slots = upvalues.slots.stream().mapToInt(Integer::intValue).toArray();
         endScope();
+        functions.remove(functions.size() - 1);
     }
 
     public void beginScope() {
-        scopes.push(new HashMap<>());
+        scopes.push(new Scope(functions.size()));
     }
 
     public void endScope() {
-        scopes.pop();
+        for (ResolverVariable v = scopes.pop().last; v != null; v = v.previous)
+            declarations[v.symbol] = v.shadowed;
     }
 
-    private void declare(Token name) {
+    /**
+     * @return The slot of the variable in the frame of the current scope
+     */
+    private int declare(Token name) {
         if (scopes.isEmpty())
-            return;
+            return -1;
 
-        Map<String, ResolverVariable> scope = scopes.peek();
-        scope.put(name.lexeme, new ResolverVariable(false, scope.size()));
+        if (name.symbol >= declarations.length)
+            declarations = Arrays.copyOf(declarations, Math.max(name.symbol + 1, declarations.length * 2));
+        Scope scope = scopes.peek();
+        scope.last = new ResolverVariable(scope.slot_count, scopes.size() - 1, name.symbol,
+                declarations[name.symbol], scope.last);
+        declarations[name.symbol] = scope.last;
+        return scope.slot_count++;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty())
             return;
-        Map<String, ResolverVariable> scope = scopes.peek();
-        ResolverVariable v = scope.get(name.lexeme);
-        v.is_resolved = true;
+        lookup(name).is_resolved = true;
+    }
+
+    private static boolean declaresVariables(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Var || statement instanceof Function)
+                return true;
+        }
+        return false;
     }
 
+    /**
+     * Blocks without declarations don't get a scope, they run in the frame of
+     * the enclosing scope and leave {@code slot_count} at 0.
+     */
     @Override
     public Void visitBlockStmt(Block stmt) {
+        if (!declaresVariables(stmt.statements)) {
+            resolve(stmt.statements);
+            return null;
+        }
+
         beginScope();
         resolve(stmt.statements);
+        stmt.slot_count = scopes.peek().slot_count;
         endScope();
         return null;
     }
 
     @Override
     public Void visitVarStmt(Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
 
         if (stmt.initializer != null)
             resolve(stmt.initializer);
@@ -114,25 +249,36 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Variable expr) {
-        if (!scopes.empty()
-                && scopes.peek().containsKey(expr.name.lexeme)
-                && !scopes.peek().get(expr.name.lexeme).is_resolved)
+        ResolverVariable variable = lookup(expr.name);
+        if (variable != null && variable.scope == scopes.size() - 1 && !variable.is_resolved)
             Lox.error(expr.name, "Can't read local variable in its own initializer.");
 
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveDepth(expr.name);
+        expr.slot = expr.depth == -1 ? resolveGlobal(expr.name) : resolveSlot(expr.name);
+        if (expr.depth != -1)
+            expr.upvalue = resolveUpvalue(scopes.size() - 1 - expr.depth, expr.slot);
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.identifier);
+        expr.depth = resolveDepth(expr.identifier);
+        expr.slot = expr.depth == -1 ? resolveGlobal(expr.identifier) : resolveSlot(expr.identifier);
+        if (expr.depth != -1) {
+            Scope scope = scopes.get(scopes.size() - 1 - expr.depth);
+            expr.upvalue = resolveUpvalue(scopes.size() - 1 - expr.depth, expr.slot);
+            // Only the loop's own increment may change its counter
+            For loop = scope.counting_loop;
+            if (loop != null && expr.slot == 0 && expr != loop.increment)
+                loop.is_counting = false;
+        }
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
 
         resolveFunction(stmt);
@@ -158,6 +304,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitReturnStmt(Return stmt) {
         if (stmt.value != null)
             resolve(stmt.value);
+        stmt.is_tail_call = !functions.isEmpty() && stmt.value instanceof Call;
         return null;
     }
 
@@ -174,6 +321,84 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    /**
+     * The initializer's variable gets a scope of its own, shared by all
+     * iterations. A loop is counting if that variable is a counter compared
+     * with {@code <}, {@code <=}, {@code >} or {@code >=} in the condition and
+     * stepped by a number literal in the increment, like {@code i = i + 1}, and
+     * nothing else assigns it.
+     */
+    @Override
+    public Void visitForStmt(For stmt) {
+        if (!(stmt.initializer instanceof Var)) {
+            if (stmt.initializer != null)
+                resolve(stmt.initializer);
+            resolveLoop(stmt);
+            return null;
+        }
+
+        beginScope();
+        resolve(stmt.initializer);
+        scopes.peek().counting_loop = stmt;
+        stmt.is_counting = true;
+        resolveLoop(stmt);
+        stmt.is_counting &= isCounting(stmt);
+        stmt.slot_count = scopes.peek().slot_count;
+        endScope();
+        return null;
+    }
+
+    private void resolveLoop(For stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        if (stmt.increment != null)
+            resolve(stmt.increment);
+    }
+
+    /**
+     * Sets the loop's step if its condition and increment have the shape of a
+     * counting loop.
+     */
+    private static boolean isCounting(For stmt) {
+        if (!(stmt.condition instanceof Binary) || !(stmt.increment instanceof Assign))
+            return false;
+
+        Binary condition = (Binary) stmt.condition;
+        switch (condition.operator.type) {
+            case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL:
+                break;
+            default:
+                return false;
+        }
+
+        Assign increment = (Assign) stmt.increment;
+        if (!isCounter(condition.left) || increment.depth != 0 || increment.slot != 0
+                || !(increment.value instanceof Binary))
+            return false;
+
+        Binary step = (Binary) increment.value;
+        if (!isCounter(step.left) || !(step.right instanceof Literal)
+                || !(((Literal) step.right).value instanceof Double))
+            return false;
+
+        double value = (double) ((Literal) step.right).value;
+        switch (step.operator.type) {
+            case PLUS:
+                stmt.step = value;
+                return true;
+            case MINUS:
+                stmt.step = -value;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Whether {@code expr} reads the variable of the loop's scope */
+    private static boolean isCounter(Expr expr) {
+        return expr instanceof Variable && ((Variable) expr).depth == 0 && ((Variable) expr).slot == 0;
+    }
+
     @Override
     public Void visitBreakStmt(Break stmt) {
         return null;
@@ -0,0 +1,538 @@
+package lox.analysis;
+
+import static lox.interpreter.LoxType.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lox.Lox;
+import lox.Token;
+import lox.TokenType;
+import lox.ast.Expr;
+import lox.ast.Expr.*;
+import lox.ast.Stmt;
+import lox.ast.Stmt.*;
+import lox.interpreter.LoxType;
+
+/**
+ * Flow sensitive type inference over the resolved AST. Every expression is
+ * annotated with the type of the values it evaluates to, {@link LoxType#ANY}
+ * when that is not known, so the interpreter can skip the operand checks of
+ * arithmetic, comparisons and concatenation.
+ * <br/>
+ * Only the locals of the function being analyzed get known types. Parameters,
+ * call results, natives and variables of enclosing functions are any type, and
+ * so are variables assigned by a nested function, since any call can change
+ * them. Operations that fail whenever they are reached are reported as
+ * warnings before the program runs.
+ */
+public class TypeInference implements Expr.Visitor<LoxType>, Stmt.Visitor<Void> {
+    /** Where the statements leaving a loop go */
+    private static class Loop {
+        /** Frames of the function at the loop, frames of its blocks are dropped */
+        final int frame_count;
+        List<LoxType[]> breaks = null;
+        List<LoxType[]> continues = null;
+
+        Loop(int frame_count) {
+            this.frame_count = frame_count;
+        }
+    }
+
+    /**
+     * Scopes of the resolver, identified by their statement, or the list of top
+     * level statements for the program
+     */
+    private final List<Object> scopes = new ArrayList<>();
+    /** Index in {@link #scopes} of the scope of the function being analyzed */
+    private int function_scope = 0;
+    /**
+     * Types of the variables in the frames of the function being analyzed, by
+     * slot, null when the current statement can't be reached. A slot that is
+     * null has not been defined yet.
+     */
+    private List<LoxType[]> state;
+    private List<Loop> loops = new ArrayList<>();
+    /** Slots of every scope that are assigned by functions nested in it */
+    private final Map<Object, Set<Integer>> pinned = new IdentityHashMap<>();
+    private boolean is_pinned_changed;
+    /** Operations certain to fail, by operator */
+    private final Map<Token, String> errors = new LinkedHashMap<>();
+
+    /**
+     * Annotates the expressions of a resolved program and reports the
+     * operations certain to fail as warnings.
+     */
+    public void infer(List<Stmt> program) {
+        annotate(program);
+
+        List<Token> tokens = new ArrayList<>(errors.keySet());
+        tokens.sort(Comparator.comparingInt((Token token) -> token.loc.line()).thenComparingInt(token -> token.loc.col()));
+        for (Token token : tokens)
+            Lox.warning(token, errors.get(token));
+    }
+
+    /**
+     * Annotates the expressions of a resolved program without reporting
+     * anything, for programs rewritten from one already reported on. Finding a
+     * variable assigned by a nested function after its uses were typed runs the
+     * analysis again.
+     */
+    public void annotate(List<Stmt> program) {
+        do {
+            is_pinned_changed = false;
+            errors.clear();
+            scopes.add(program);
+            state = new ArrayList<>();
+            state.add(new LoxType[0]);
+            analyze(program);
+            scopes.clear();
+        } while (is_pinned_changed);
+    }
+
+    /**
+     * Analyzes statements until one of them can't complete normally.
+     */
+    private void analyze(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (state == null)
+                return;
+            statement.accept(this);
+        }
+    }
+
+    private LoxType analyze(Expr expr) {
+        LoxType type = expr.accept(this);
+        expr.type = type;
+        return type;
+    }
+
+    private static LoxType join(LoxType first, LoxType second) {
+        if (first == null || first == second)
+            return second;
+        if (second == null)
+            return first;
+        return ANY;
+    }
+
+    private static List<LoxType[]> join(List<LoxType[]> first, List<LoxType[]> second) {
+        if (first == null)
+            return second;
+        if (second == null)
+            return first;
+
+        List<LoxType[]> joined = new ArrayList<>(first.size());
+        for (int i = 0; i < first.size(); i++) {
+            LoxType[] frame = Arrays.copyOf(first.get(i), Math.max(first.get(i).length, second.get(i).length));
+            for (int slot = 0; slot < second.get(i).length; slot++)
+                frame[slot] = join(frame[slot], second.get(i)[slot]);
+            joined.add(frame);
+        }
+        return joined;
+    }
+
+    private static boolean equals(List<LoxType[]> first, List<LoxType[]> second) {
+        if (first == null || second == null)
+            return first == second;
+        for (int i = 0; i < first.size(); i++) {
+            if (!Arrays.equals(first.get(i), second.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The types of the outermost {@code frame_count} frames
+     */
+    private static List<LoxType[]> copy(List<LoxType[]> state, int frame_count) {
+        if (state == null)
+            return null;
+        List<LoxType[]> copy = new ArrayList<>(frame_count);
+        for (int i = 0; i < frame_count; i++)
+            copy.add(state.get(i).clone());
+        return copy;
+    }
+
+    private List<LoxType[]> copy() {
+        return copy(state, state.size());
+    }
+
+    private boolean isPinned(Object scope, int slot) {
+        Set<Integer> slots = pinned.get(scope);
+        return slots != null && slots.contains(slot);
+    }
+
+    /**
+     * Sets the type of a slot in a frame of the current function.
+     */
+    private void store(int scope, int slot, LoxType type) {
+        int frame = scope - function_scope;
+        if (slot >= state.get(frame).length)
+            state.set(frame, Arrays.copyOf(state.get(frame), slot + 1));
+        state.get(frame)[slot] = isPinned(scopes.get(scope), slot) ? ANY : type;
+    }
+
+    private void define(int slot, LoxType type) {
+        store(scopes.size() - 1, slot, type);
+    }
+
+    /**
+     * Outcome of an operation that fails if an operand has the wrong type.
+     */
+    private void check(Token operator, boolean is_failing, String message) {
+        if (is_failing)
+            errors.put(operator, message);
+        else
+            errors.remove(operator);
+    }
+
+    /**
+     * @return Whether values of {@code type} are never of {@code expected}
+     */
+    private static boolean isNever(LoxType type, LoxType expected) {
+        return type != ANY && type != expected;
+    }
+
+    @Override
+    public Void visitBlockStmt(Block stmt) {
+        if (stmt.slot_count == 0) {
+            analyze(stmt.statements);
+            return null;
+        }
+
+        scopes.add(stmt);
+        state.add(new LoxType[stmt.slot_count]);
+        analyze(stmt.statements);
+        scopes.remove(scopes.size() - 1);
+        if (state != null)
+            state.remove(state.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(If stmt) {
+        analyze(stmt.condition);
+        List<LoxType[]> alternate = copy();
+        stmt.consequent.accept(this);
+        List<LoxType[]> consequent = state;
+        state = alternate;
+        if (stmt.alternate != null)
+            stmt.alternate.accept(this);
+        state = join(consequent, state);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Expression stmt) {
+        analyze(stmt.expression);
+        return null;
+    }
+
+    /**
+     * The body is analyzed with the function, where the declaration is. The
+     * types it sees don't depend on where the function is called from.
+     */
+    @Override
+    public Void visitFunctionStmt(Function stmt) {
+        define(stmt.slot, ANY);
+
+        List<LoxType[]> outer_state = state;
+        List<Loop> outer_loops = loops;
+        int outer_function_scope = function_scope;
+
+        function_scope = scopes.size();
+        scopes.add(stmt);
+        LoxType[] frame = new LoxType[stmt.slot_count];
+        Arrays.fill(frame, 0, stmt.params.size(), ANY);
+        state = new ArrayList<>();
+        state.add(frame);
+        loops = new ArrayList<>();
+        analyze(stmt.body);
+
+        scopes.remove(scopes.size() - 1);
+        state = outer_state;
+        loops = outer_loops;
+        function_scope = outer_function_scope;
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Return stmt) {
+        if (stmt.value != null)
+            analyze(stmt.value);
+        state = null;
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Print stmt) {
+        analyze(stmt.expression);
+        return null;
+    }
+
+    /**
+     * Analyzes the loop until the types at its condition include those of
+     * every iteration.
+     */
+    @Override
+    public Void visitWhileStmt(While stmt) {
+        Loop loop = new Loop(state.size());
+        loops.add(loop);
+
+        List<LoxType[]> entry = state;
+        for (;;) {
+            loop.breaks = null;
+            loop.continues = null;
+            state = copy(entry, entry.size());
+            analyze(stmt.condition);
+            List<LoxType[]> exit = copy();
+            stmt.body.accept(this);
+
+            List<LoxType[]> next = join(entry, join(state, loop.continues));
+            if (equals(next, entry)) {
+                state = join(exit, loop.breaks);
+                break;
+            }
+            entry = next;
+        }
+
+        loops.remove(loops.size() - 1);
+        return null;
+    }
+
+    /**
+     * Like a while loop, with the increment analyzed where the body and the
+     * continue statements join.
+     */
+    @Override
+    public Void visitForStmt(For stmt) {
+        if (stmt.slot_count != 0) {
+            scopes.add(stmt);
+            state.add(new LoxType[stmt.slot_count]);
+        }
+        if (stmt.initializer != null)
+            stmt.initializer.accept(this);
+
+        Loop loop = new Loop(state.size());
+        loops.add(loop);
+
+        List<LoxType[]> entry = state;
+        for (;;) {
+            loop.breaks = null;
+            loop.continues = null;
+            state = copy(entry, entry.size());
+            analyze(stmt.condition);
+            List<LoxType[]> exit = copy();
+            stmt.body.accept(this);
+            state = join(state, loop.continues);
+            if (state != null && stmt.increment != null)
+                analyze(stmt.increment);
+
+            List<LoxType[]> next = join(entry, state);
+            if (equals(next, entry)) {
+                state = join(exit, loop.breaks);
+                break;
+            }
+            entry = next;
+        }
+
+        loops.remove(loops.size() - 1);
+        if (stmt.slot_count != 0) {
+            scopes.remove(scopes.size() - 1);
+            if (state != null)
+                state.remove(state.size() - 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Break stmt) {
+        if (!loops.isEmpty()) {
+            Loop loop = loops.get(loops.size() - 1);
+            loop.breaks = join(loop.breaks, copy(state, loop.frame_count));
+        }
+        state = null;
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Continue stmt) {
+        if (!loops.isEmpty()) {
+            Loop loop = loops.get(loops.size() - 1);
+            loop.continues = join(loop.continues, copy(state, loop.frame_count));
+        }
+        state = null;
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Var stmt) {
+        define(stmt.slot, stmt.initializer == null ? NIL : analyze(stmt.initializer));
+        return null;
+    }
+
+    @Override
+    public LoxType visitAssignExpr(Assign expr) {
+        LoxType type = analyze(expr.value);
+        if (expr.depth == -1)
+            return type;
+
+        int scope = scopes.size() - 1 - expr.depth;
+        if (scope >= function_scope)
+            store(scope, expr.slot, type);
+        else if (pinned.computeIfAbsent(scopes.get(scope), key -> new HashSet<>()).add(expr.slot))
+            is_pinned_changed = true;
+        return type;
+    }
+
+    @Override
+    public LoxType visitVariableExpr(Variable expr) {
+        int frame = scopes.size() - 1 - expr.depth - function_scope;
+        if (expr.depth == -1 || frame < 0)
+            return ANY;
+
+        LoxType[] types = state.get(frame);
+        if (expr.slot >= types.length || types[expr.slot] == null)
+            return ANY;
+        return types[expr.slot];
+    }
+
+    @Override
+    public LoxType visitTernaryExpr(Ternary expr) {
+        analyze(expr.condition);
+        List<LoxType[]> alternate_state = copy();
+        LoxType consequent = analyze(expr.consequent);
+        List<LoxType[]> consequent_state = state;
+        state = alternate_state;
+        LoxType alternate = analyze(expr.alternate);
+        state = join(consequent_state, state);
+        return join(consequent, alternate);
+    }
+
+    @Override
+    public LoxType visitBinaryExpr(Binary expr) {
+        LoxType left = analyze(expr.left);
+        LoxType right = analyze(expr.right);
+        switch (expr.operator.type) {
+            case MINUS:
+            case SLASH:
+            case STAR:
+                check(expr.operator, isNever(left, NUMBER) || isNever(right, NUMBER), "Operand must be a number.");
+                return NUMBER;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                check(expr.operator, isNever(left, NUMBER) || isNever(right, NUMBER), "Operand must be a number.");
+                return BOOLEAN;
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return BOOLEAN;
+            case PLUS:
+                return additionType(expr.operator, left, right);
+            case COMMA:
+                return right;
+            default:
+                return ANY;
+        }
+    }
+
+    /**
+     * Numbers add up to a number, anything else involving a string is a string
+     * or fails.
+     */
+    private LoxType additionType(Token operator, LoxType left, LoxType right) {
+        check(operator, isNever(left, NUMBER) && isNever(left, STRING) || isNever(right, NUMBER) && isNever(right, STRING),
+                "Operands must be two numbers or two strings.");
+        if (left == NUMBER && right == NUMBER)
+            return NUMBER;
+        if (left == STRING || right == STRING)
+            return STRING;
+        return ANY;
+    }
+
+    @Override
+    public LoxType visitCallExpr(Call expr) {
+        LoxType callee = analyze(expr.callee);
+        for (Expr argument : expr.arguments)
+            analyze(argument);
+        // Functions are not among the known types
+        check(expr.paren, callee != ANY, "Can only call functions and classes.");
+        return ANY;
+    }
+
+    @Override
+    public LoxType visitArrayAccessExpr(ArrayAccess expr) {
+        LoxType array = analyze(expr.array);
+        LoxType index = analyze(expr.index);
+        if (isNever(array, ARRAY))
+            check(expr.square, true, "Expression is not indexable.");
+        else
+            check(expr.square, isNever(index, NUMBER), "Array index must be a number.");
+        return ANY;
+    }
+
+    /**
+     * Either operand may be the value, or false, and the right one doesn't
+     * always run.
+     */
+    @Override
+    public LoxType visitLogicalExpr(Logical expr) {
+        LoxType left = analyze(expr.left);
+        List<LoxType[]> skipped = copy();
+        LoxType right = analyze(expr.right);
+        state = join(skipped, state);
+
+        LoxType type = join(right, BOOLEAN);
+        return expr.operator.type == TokenType.OR ? join(left, type) : type;
+    }
+
+    @Override
+    public LoxType visitGroupingExpr(Grouping expr) {
+        return analyze(expr.expression);
+    }
+
+    @Override
+    public LoxType visitLiteralExpr(Literal expr) {
+        if (expr.value == null)
+            return NIL;
+        if (expr.value instanceof Double)
+            return NUMBER;
+        if (expr.value instanceof String)
+            return STRING;
+        return expr.value instanceof Boolean ? BOOLEAN : ANY;
+    }
+
+    @Override
+    public LoxType visitTemplateLiteralExpr(TemplateLiteral expr) {
+        return analyze(expr.expression);
+    }
+
+    @Override
+    public LoxType visitTemplateStringExpr(TemplateString expr) {
+        for (Expr template : expr.templates)
+            analyze(template);
+        return STRING;
+    }
+
+    @Override
+    public LoxType visitUnaryExpr(Unary expr) {
+        LoxType right = analyze(expr.right);
+        switch (expr.operator.type) {
+            case MINUS:
+                check(expr.operator, isNever(right, NUMBER), "Operand must be a number.");
+                return NUMBER;
+            case BANG:
+                return BOOLEAN;
+            default:
+                return ANY;
+        }
+    }
+}
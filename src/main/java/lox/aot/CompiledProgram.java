@@ -0,0 +1,35 @@
+package lox.aot;
+
+import lox.interpreter.NativeFunction;
+import lox.interpreter.RuntimeError;
+
+/**
+ * A program compiled ahead of time by {@link lox.Jloxc}. Its main class runs
+ * it without the scanner, parser, resolver or interpreter.
+ */
+public abstract class CompiledProgram {
+    /** Native functions, indexed by the global slots the resolver assigned */
+    public static final Object[] globals = NativeFunction.createAll();
+
+    /**
+     * Runs the top level of the program. Takes no interpreter, so the launcher
+     * doesn't load the interpreter looking up the main class's methods.
+     */
+    public abstract Object run();
+
+    /**
+     * Runs {@code program}, reporting runtime errors like {@link lox.Lox} does.
+     */
+    public static void launch(CompiledProgram program) {
+        try {
+            program.run();
+        } catch (RuntimeError error) {
+            if (error.token == null)
+                System.err.println(error.getMessage());
+            else
+                System.err.println(String.format("%s\n[line: %d, col: %d]", error.getMessage(),
+                        error.token.loc.line(), error.token.loc.col()));
+            System.exit(70);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package lox.aot;
+
+import lox.interpreter.Environment;
+import lox.interpreter.Interpreter;
+import lox.interpreter.LoxCallable;
+import lox.jit.CompiledFunction;
+import lox.jit.TailCall;
+
+/**
+ * A function of a program compiled ahead of time, the compiled body together
+ * with the environment it was declared in.
+ */
+public final class LoxClosure extends LoxCallable {
+    private final CompiledFunction code;
+    private final Environment closure;
+    private final String name;
+
+    public LoxClosure(CompiledFunction code, Environment closure, int arity, String name) {
+        super(arity);
+        this.code = code;
+        this.closure = closure;
+        this.name = name;
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return finish(code.invoke0(interpreter, closure));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object argument) {
+        return finish(code.invoke1(interpreter, closure, argument));
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object first, Object second) {
+        return finish(code.invoke2(interpreter, closure, first, second));
+    }
+
+    @Override
+    public Object callN(Interpreter interpreter, Object[] arguments) {
+        return finish(code.invokeN(interpreter, closure, arguments));
+    }
+
+    @Override
+    public Object tailCall(Interpreter interpreter, Object[] arguments) {
+        return new TailCall(this, arguments);
+    }
+
+    /**
+     * Makes the tail calls returned by the body in a loop, so tail recursion
+     * doesn't grow the Java stack.
+     */
+    private static Object finish(Object result) {
+        while (result instanceof TailCall) {
+            LoxClosure function = (LoxClosure) ((TailCall) result).function();
+            result = function.code.invokeN(null, function.closure, ((TailCall) result).arguments());
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<fn %s>", name);
+    }
+}
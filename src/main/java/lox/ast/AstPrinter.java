@@ -19,6 +19,7 @@ import lox.ast.Stmt.Block;
 import lox.ast.Stmt.Break;
 import lox.ast.Stmt.Continue;
 import lox.ast.Stmt.Expression;
+import lox.ast.Stmt.For;
 import lox.ast.Stmt.Function;
 import lox.ast.Stmt.If;
 import lox.ast.Stmt.Print;
@@ -65,7 +66,7 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 
     @Override
     public String visitLiteralExpr(Literal expr) {
-        return tree(expr == null ? "nil" : expr.value.toString());
+        return tree(expr.value == null ? "nil" : expr.value.toString());
     }
 
     @Override
@@ -147,6 +148,18 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         return s;
     }
 
+    @Override
+    public String visitForStmt(For stmt) {
+        String s = tree("for", stmt.condition, stmt.increment) + '\n';
+        depth += 1;
+        if (stmt.initializer != null)
+            s += print(stmt.initializer) + '\n';
+        s += print(stmt.body);
+        depth -= 1;
+
+        return s;
+    }
+
     @Override
     public String visitCallExpr(Call expr) {
         List<Expr> exprs = new ArrayList<>();
@@ -3,9 +3,14 @@ package lox.ast;
 import java.util.List;
 
 import lox.Token;
+import lox.interpreter.LoxType;
 
 public abstract class Expr {
   private static final AstPrinter PRINTER = new AstPrinter();
+
+  // Set after parsing
+  public LoxType type = LoxType.ANY;
+
   public interface Visitor<R> {
     R visitAssignExpr(Assign expr);
     R visitTernaryExpr(Ternary expr);
@@ -33,6 +38,11 @@ public abstract class Expr {
 
     public final Token identifier;
     public final Expr value;
+
+    // Set after parsing
+    public int depth = -1;
+    public int slot;
+    public int upvalue = -1;
   }
   public static class Ternary extends Expr {
     public Ternary(Expr condition, Expr consequent, Expr alternate) {
@@ -187,6 +197,11 @@ public abstract class Expr {
     }
 
     public final Token name;
+
+    // Set after parsing
+    public int depth = -1;
+    public int slot;
+    public int upvalue = -1;
   }
 
   public abstract <R> R accept(Visitor<R> visitor);
@@ -14,6 +14,7 @@ public abstract class Stmt {
     R visitReturnStmt(Return stmt);
     R visitPrintStmt(Print stmt);
     R visitWhileStmt(While stmt);
+    R visitForStmt(For stmt);
     R visitBreakStmt(Break stmt);
     R visitContinueStmt(Continue stmt);
     R visitVarStmt(Var stmt);
@@ -29,6 +30,9 @@ public abstract class Stmt {
     }
 
     public final List<Stmt> statements;
+
+    // Set after parsing
+    public int slot_count;
   }
   public static class If extends Stmt {
     public If(Expr condition, Stmt consequent, Stmt alternate) {
@@ -73,6 +77,12 @@ public abstract class Stmt {
     public final Token name;
     public final List<Token> params;
     public final List<Stmt> body;
+
+    // Set after parsing
+    public int slot;
+    public int slot_count;
+    public int[] upvalue_depths;
+    public int[] upvalue_slots;
   }
   public static class Return extends Stmt {
     public Return(Token keyword, Expr value) {
@@ -87,6 +97,9 @@ public abstract class Stmt {
 
     public final Token keyword;
     public final Expr value;
+
+    // Set after parsing
+    public boolean is_tail_call;
   }
   public static class Print extends Stmt {
     public Print(Expr expression) {
@@ -114,6 +127,29 @@ public abstract class Stmt {
     public final Expr condition;
     public final Stmt body;
   }
+  public static class For extends Stmt {
+    public For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+    public final Stmt initializer;
+    public final Expr condition;
+    public final Expr increment;
+    public final Stmt body;
+
+    // Set after parsing
+    public int slot_count;
+    public boolean is_counting;
+    public double step;
+  }
   public static class Break extends Stmt {
     public Break(Token keyword) {
       this.keyword = keyword;
@@ -151,6 +187,9 @@ public abstract class Stmt {
 
     public final Token name;
     public final Expr initializer;
+
+    // Set after parsing
+    public int slot;
   }
 
   public abstract <R> R accept(Visitor<R> visitor);
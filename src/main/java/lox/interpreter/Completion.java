@@ -0,0 +1,20 @@
+package lox.interpreter;
+
+/**
+ * How a statement finished executing. Statements return their completion
+ * instead of throwing, so enclosing loops and function calls can stop early
+ * without unwinding the stack.
+ */
+public enum Completion {
+    NORMAL,
+    BREAK,
+    CONTINUE,
+    /** The value is left in {@link Interpreter#return_value} */
+    RETURN,
+    /**
+     * A return statement of a Lox function call, the callee and arguments are
+     * left in {@link Interpreter#tail_function} and
+     * {@link Interpreter#tail_arguments} for the caller to run in its place.
+     */
+    TAIL_CALL
+}
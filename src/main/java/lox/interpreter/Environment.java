@@ -1,25 +1,76 @@
 package lox.interpreter;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import lox.Token;
 
+/**
+ * A frame of variable slots. Frames are allocated with the slot count the
+ * resolver computed for their scope, only the top level frame grows since the
+ * REPL keeps declaring variables into it.
+ * <br/>
+ * Frames of blocks enclose each other up to the frame of their function call,
+ * which encloses nothing. Variables of enclosing functions are reached through
+ * the {@link Upvalue}s of the function instead.
+ */
 public class Environment {
     private static class Tombstone {
     }
 
     private final static Tombstone TOMBSTONE = new Tombstone();
 
-    final Environment enclosing;
-    private List<Object> values = new ArrayList<>();
+    /** Changes only when a pooled frame is reused, see {@link Interpreter#newFrame} */
+    Environment enclosing;
+    private Object[] values;
+    /** Upvalues of the slots closures captured, by slot */
+    private Upvalue[] upvalues = null;
 
-    Environment() {
-        this.enclosing = null;
+    Environment(int size) {
+        this(null, size);
     }
 
-    Environment(Environment enclosing) {
+    public Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        this.values = new Object[size];
+    }
+
+    /**
+     * Turns a frame that was given back into a new one with at least
+     * {@code size} empty slots.
+     */
+    void reuse(Environment enclosing, int size) {
+        this.enclosing = enclosing;
+        if (values.length < size)
+            values = new Object[size];
+    }
+
+    /**
+     * Drops the values of a frame given back, so it keeps nothing alive. The
+     * values of captured slots move into their upvalues.
+     */
+    void clear() {
+        if (upvalues != null) {
+            for (int slot = 0; slot < upvalues.length; slot++) {
+                if (upvalues[slot] != null)
+                    upvalues[slot].close(values[slot]);
+            }
+            upvalues = null;
+        }
+        enclosing = null;
+        Arrays.fill(values, null);
+    }
+
+    /**
+     * @return The upvalue of a slot, shared by every closure capturing the slot
+     *         while the frame is in use
+     */
+    Upvalue capture(int slot) {
+        if (upvalues == null || slot >= upvalues.length)
+            upvalues = upvalues == null ? new Upvalue[Math.max(values.length, slot + 1)]
+                    : Arrays.copyOf(upvalues, Math.max(values.length, slot + 1));
+        if (upvalues[slot] == null)
+            upvalues[slot] = new Upvalue(this, slot);
+        return upvalues[slot];
     }
 
     Environment ancestor(int depth) {
@@ -31,25 +82,31 @@ public class Environment {
         return environment;
     }
 
-    void define(Object value) {
-        values.add(value);
+    public void define(int index, Object value) {
+        if (index >= values.length) {
+            // Slots skipped by declarations that failed at runtime stay undefined
+            int length = values.length;
+            values = Arrays.copyOf(values, Math.max(index + 1, length * 2));
+            Arrays.fill(values, length, values.length, TOMBSTONE);
+        }
+        values[index] = value;
     }
 
     Object get(Token name, int index) {
-        if (values.size() > index && values.get(index) != TOMBSTONE)
-            return values.get(index);
+        if (index < values.length && values[index] != TOMBSTONE)
+            return values[index];
 
         throw new RuntimeError(name,
                 "Undefined variable '" + name.lexeme + "'.");
     }
 
-    Object getAt(int depth, int index, Token name) {
+    public Object getAt(int depth, int index, Token name) {
         return ancestor(depth).get(name, index);
     }
 
     void assign(Token name, int index, Object value) {
-        if (values.size() > index) {
-            values.set(index, value);
+        if (index < values.length && values[index] != TOMBSTONE) {
+            values[index] = value;
             return;
         }
 
@@ -57,7 +114,7 @@ public class Environment {
                 "Undefined variable '" + name.lexeme + "'.");
     }
 
-    void assignAt(int depth, int index, Token name, Object value) {
+    public void assignAt(int depth, int index, Token name, Object value) {
         ancestor(depth).assign(name, index, value);
     }
 }
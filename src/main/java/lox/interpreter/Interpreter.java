@@ -8,31 +8,50 @@ import lox.ast.Expr.*;
 import static lox.interpreter.InterpreterUtil.*;
 import static lox.interpreter.LoxType.*;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
 import lox.Lox;
 import lox.Token;
 import lox.TokenType;
+import lox.jit.CompiledLoop;
+import lox.jit.JitCompiler;
+import lox.jit.Profile;
+import lox.jit.TailCall;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private record LocalIndex(int depth, int index) {
-    }
-
-    private final Environment global_environment = new Environment();
-    private Environment environment = new Environment(global_environment);
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
+    /**
+     * Native functions, indexed by the global slots the resolver assigned. Read
+     * directly by code compiled by {@link JitCompiler}.
+     */
+    public final Object[] globals = NativeFunction.createAll();
+    Environment environment = new Environment(0);
     int loop_depth = 0;
-    boolean is_break_executed = false;
-    boolean is_contunue_executed = false;
+    /** Value of the last executed return statement */
+    Object return_value = null;
+    LoxFunction tail_function = null;
+    Object[] tail_arguments = null;
     public boolean is_repl = false;
-
-    private Map<Expr, LocalIndex> locals = new HashMap<>();
-
-    public Interpreter() {
-        NativeFunction.registerAll(global_environment);
-    }
+    /** Whether hot functions and loops are compiled by {@link JitCompiler} */
+    public boolean is_jit_enabled = true;
+    /** How hot functions and loops are, and their compiled code */
+    private final Profile.Table profiles = new Profile.Table();
+    /**
+     * The last callee called by each call site, kept here instead of on the AST
+     * so a resolved program can be shared by several interpreters, and the
+     * callees go away with the interpreter.
+     */
+    private final Map<Call, LoxCallable> callees = new IdentityHashMap<>();
+    /**
+     * Upvalues of the function being interpreted, null at the top level. Read
+     * directly by loops compiled by {@link JitCompiler}.
+     */
+    public Upvalue[] upvalues = null;
+    /** Frames of left scopes, reused by the scopes entered next instead of allocating new ones */
+    private Environment[] frame_pool = new Environment[16];
+    private int pooled_count = 0;
 
     /**
      * Loops over statements and interprets them using a tree walking interpreter.
@@ -45,42 +64,71 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 Stmt statement = statements.get(i);
                 if (is_repl && i + 1 == statements.size() && statement instanceof Expression)
                     System.out.println(stringify(evaluate(((Expression) statement).expression)));
-                else
-                    execute(statement);
+                else if (execute(statement) != Completion.NORMAL)
+                    break;
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    void executeBlock(List<Stmt> statements, Environment new_environment) {
+    /**
+     * Executes statements until one of them completes abruptly.
+     * 
+     * @return How the last executed statement completed
+     */
+    Completion executeBlock(List<Stmt> statements, Environment new_environment) {
         Environment previous = environment;
 
         try {
             environment = new_environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
-
-                if (is_break_executed || is_contunue_executed) {
-                    break;
-                }
+                Completion completion = statement.accept(this);
+                if (completion != Completion.NORMAL)
+                    return completion;
             }
+            return Completion.NORMAL;
         } finally {
             environment = previous;
         }
     }
 
-    private Object evaluate(Expr expr) {
-        return expr.accept(this);
+    /**
+     * @return An empty frame for a scope, to be given back with
+     *         {@link #freeFrame} when the scope is left
+     */
+    Environment newFrame(Environment enclosing, int size) {
+        if (pooled_count == 0)
+            return new Environment(enclosing, size);
+
+        Environment frame = frame_pool[--pooled_count];
+        frame_pool[pooled_count] = null;
+        frame.reuse(enclosing, size);
+        return frame;
+    }
+
+    void freeFrame(Environment frame) {
+        frame.clear();
+        if (pooled_count == frame_pool.length)
+            frame_pool = Arrays.copyOf(frame_pool, pooled_count * 2);
+        frame_pool[pooled_count++] = frame;
     }
 
-    public void resolve(Expr expr, int depth, int index) {
-        locals.put(expr, new LocalIndex(depth, index));
+    /**
+     * @return The profile of a function declaration or loop, or null if the JIT
+     *         is disabled
+     */
+    Profile profile(Stmt stmt) {
+        return is_jit_enabled ? profiles.get(stmt) : null;
+    }
+
+    private Object evaluate(Expr expr) {
+        return expr.accept(this);
     }
 
     @Override
@@ -90,64 +138,192 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.alternate);
     }
 
+    /**
+     * Whether {@code expr} always evaluates to a number, or fails with a runtime
+     * error. Such expressions can be evaluated by {@link #evaluateDouble(Expr)}.
+     * Additions are left out since they may concatenate strings, unless
+     * {@link lox.analysis.TypeInference} found both operands to be numbers.
+     */
+    private static boolean isNumeric(Expr expr) {
+        if (expr.type == NUMBER)
+            return true;
+        if (expr instanceof Binary) {
+            TokenType type = ((Binary) expr).operator.type;
+            return type == TokenType.MINUS || type == TokenType.SLASH || type == TokenType.STAR;
+        }
+        if (expr instanceof Literal)
+            return ((Literal) expr).value instanceof Double;
+        if (expr instanceof Unary)
+            return ((Unary) expr).operator.type == TokenType.MINUS;
+        if (expr instanceof Grouping)
+            return isNumeric(((Grouping) expr).expression);
+        return false;
+    }
+
+    /**
+     * Evaluates a numeric expression, see {@link #isNumeric}, passing
+     * intermediate results as primitives so they are never boxed.
+     */
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Binary && ((Binary) expr).operator.type != TokenType.COMMA) {
+            Binary binary = (Binary) expr;
+            double left = evaluateLeftDouble(binary);
+            double right = evaluateDouble(binary.right, binary.operator);
+            switch (binary.operator.type) {
+                case PLUS:
+                    return left + right;
+                case MINUS:
+                    return left - right;
+                case SLASH:
+                    return left / right;
+                case STAR:
+                    return left * right;
+                default:
+                    throw new IllegalStateException("Unexpected numeric operator " + binary.operator.type);
+            }
+        }
+        if (expr instanceof Literal)
+            return (double) ((Literal) expr).value;
+        if (expr instanceof Unary) {
+            Unary unary = (Unary) expr;
+            return -evaluateDouble(unary.right, unary.operator);
+        }
+        if (expr instanceof Grouping)
+            return evaluateDouble(((Grouping) expr).expression);
+        // Typed as a number by the type inference
+        return (double) expr.accept(this);
+    }
+
+    /**
+     * Evaluates an operand that {@code operator} requires to be a number.
+     */
+    private double evaluateDouble(Expr expr, Token operator) {
+        if (isNumeric(expr))
+            return evaluateDouble(expr);
+
+        Object value = expr.accept(this);
+        if (!(value instanceof Double))
+            throw new RuntimeError(operator, "Operand must be a number.");
+        return (double) value;
+    }
+
+    /**
+     * Evaluates the left operand of an operator that requires numbers. Both
+     * operands are evaluated before the operand types are checked, so the right
+     * operand still runs if the left one is not a number.
+     */
+    private double evaluateLeftDouble(Binary expr) {
+        if (isNumeric(expr.left))
+            return evaluateDouble(expr.left);
+
+        Object value = evaluate(expr.left);
+        if (!(value instanceof Double)) {
+            evaluate(expr.right);
+            throw new RuntimeError(expr.operator, "Operand must be a number.");
+        }
+        return (double) value;
+    }
+
+    /**
+     * Operands are evaluated here rather than in helpers, so a call in an
+     * operand, like {@code f(n - 1) + 1}, recurses through as few Java frames
+     * as possible. What is done with their values is left to helpers.
+     */
     @Override
     public Object visitBinaryExpr(Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
         switch (expr.operator.type) {
-            case COMMA:
-                return right;
-            case BANG_EQUAL:
-                return !isEqual(left, right);
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
+            case PLUS:
+                // Each operand is known to be a string or a number, and one of them a string
+                if (expr.type == STRING && isConcatenable(expr.left) && isConcatenable(expr.right))
+                    return stringify(expr.left.accept(this)) + stringify(expr.right.accept(this));
+                break;
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left > (double) right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left >= (double) right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left < (double) right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left <= (double) right;
-            case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (Double) left + (Double) right;
-                }
-
-                if (left instanceof Double && right instanceof String) {
-                    return stringify((Double) left) + (String) right;
-                }
-
-                if (left instanceof String && right instanceof Double) {
-                    return (String) left + stringify((Double) right);
+            case MINUS:
+            case SLASH:
+            case STAR:
+                break;
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                boolean is_equal;
+                if (isNumeric(expr.left) && isNumeric(expr.right)) {
+                    double left = evaluateDouble(expr.left);
+                    // Same semantics as Double.equals
+                    is_equal = Double.compare(left, evaluateDouble(expr.right)) == 0;
+                } else {
+                    Object left = expr.left.accept(this);
+                    is_equal = isEqual(left, expr.right.accept(this));
                 }
+                return expr.operator.type == TokenType.EQUAL_EQUAL ? is_equal : !is_equal;
+            case COMMA:
+                expr.left.accept(this);
+                return expr.right.accept(this);
+            default:
+                return null;
+        }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
-                }
+        if (isNumeric(expr.left) && isNumeric(expr.right)) {
+            double left = evaluateDouble(expr.left);
+            return operate(expr.operator, left, evaluateDouble(expr.right));
+        }
 
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+        // Both operands are evaluated before the operand types are checked
+        Object left = expr.left.accept(this);
+        Object right = expr.right.accept(this);
+        if (left instanceof Double && right instanceof Double)
+            return operate(expr.operator, (double) left, (double) right);
+        return operateOnObjects(expr.operator, left, right);
+    }
 
+    /**
+     * Applies an arithmetic or comparison operator to two numbers.
+     */
+    private static Object operate(Token operator, double left, double right) {
+        switch (operator.type) {
+            case GREATER:
+                return left > right;
+            case GREATER_EQUAL:
+                return left >= right;
+            case LESS:
+                return left < right;
+            case LESS_EQUAL:
+                return left <= right;
+            case PLUS:
+                return left + right;
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
+                return left - right;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left / (double) right;
+                return left / right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
-
+                return left * right;
             default:
-                return null;
+                throw new IllegalStateException("Unexpected numeric operator " + operator.type);
         }
     }
 
+    /**
+     * Applies an arithmetic or comparison operator to operands that are not
+     * both numbers, which only an addition with a string accepts.
+     */
+    private static Object operateOnObjects(Token operator, Object left, Object right) {
+        if (operator.type != TokenType.PLUS)
+            throw new RuntimeError(operator, "Operand must be a number.");
+
+        if (left instanceof Double && right instanceof String)
+            return stringify((Double) left) + (String) right;
+        if (left instanceof String && right instanceof Double)
+            return (String) left + stringify((Double) right);
+        if (left instanceof String && right instanceof String)
+            return (String) left + (String) right;
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    private static boolean isConcatenable(Expr operand) {
+        return operand.type == STRING || operand.type == NUMBER;
+    }
+
     @Override
     public Object visitGroupingExpr(Grouping expr) {
         return evaluate(expr.expression);
@@ -160,11 +336,18 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            if (isNumeric(expr.right))
+                return -evaluateDouble(expr.right);
+
+            Object right = evaluate(expr.right);
+            if (!(right instanceof Double))
+                throw new RuntimeError(expr.operator, "Operand must be a number.");
+            return -(double) right;
+        }
+
         Object right = evaluate(expr.right);
         switch (expr.operator.type) {
-            case MINUS:
-                checkNumberOperands(expr.operator, right);
-                return -(double) right;
             case BANG:
                 return !isTruthy(right);
             default:
@@ -204,131 +387,301 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitExpressionStmt(Expression stmt) {
+    public Completion visitExpressionStmt(Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Print stmt) {
+    public Completion visitPrintStmt(Print stmt) {
         System.out.println(stringify(evaluate(stmt.expression)));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitVarStmt(Var stmt) {
+    public Completion visitVarStmt(Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(value);
-        return null;
-    }
-
-    private Object lookUpVariable(Token name, Expr expr) {
-        LocalIndex localIndex = locals.get(expr);
-        if (localIndex != null) {
-            return environment.getAt(localIndex.depth, localIndex.index, name);
-        } else {
-            return global_environment.get(name, NativeFunction.getIndex(name));
-        }
+        environment.define(stmt.slot, value);
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitVariableExpr(Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        if (expr.upvalue != -1)
+            return upvalues[expr.upvalue].get(expr.name);
+        if (expr.depth != -1)
+            return environment.getAt(expr.depth, expr.slot, expr.name);
+        return globals[expr.slot];
     }
 
     @Override
     public Object visitAssignExpr(Assign expr) {
         Object value = evaluate(expr.value);
 
-        LocalIndex localIndex = locals.get(expr);
-        if (localIndex != null)
-            environment.assignAt(localIndex.depth, localIndex.index, expr.identifier, value);
+        if (expr.upvalue != -1)
+            upvalues[expr.upvalue].set(expr.identifier, value);
+        else if (expr.depth != -1)
+            environment.assignAt(expr.depth, expr.slot, expr.identifier, value);
         else
-            global_environment.assign(expr.identifier, NativeFunction.getIndex(expr.identifier), value);
+            globals[expr.slot] = value;
 
         return value;
     }
 
     @Override
-    public Void visitBlockStmt(Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Block stmt) {
+        if (stmt.slot_count == 0)
+            return executeBlock(stmt.statements, environment);
+
+        Environment frame = newFrame(environment, stmt.slot_count);
+        Completion completion = executeBlock(stmt.statements, frame);
+        freeFrame(frame);
+        return completion;
     }
 
     @Override
-    public Void visitIfStmt(If stmt) {
+    public Completion visitIfStmt(If stmt) {
         if (isTruthy(evaluate(stmt.condition)))
-            execute(stmt.consequent);
-        else if (stmt.alternate != null)
-            execute(stmt.alternate);
-        return null;
+            return execute(stmt.consequent);
+        if (stmt.alternate != null)
+            return execute(stmt.alternate);
+        return Completion.NORMAL;
     }
 
+    /**
+     * Counts the iterations of the loop, once it is hot the rest of it runs as
+     * compiled code, and so do later executions of the loop.
+     */
     @Override
-    public Void visitWhileStmt(While stmt) {
+    public Completion visitWhileStmt(While stmt) {
+        Profile profile = profile(stmt);
+        if (profile != null && profile.code instanceof CompiledLoop)
+            return runCompiled((CompiledLoop) profile.code);
+
         loop_depth += 1;
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
-            if (is_break_executed) {
-                is_break_executed = false;
-                break;
+        try {
+            while (isTruthy(evaluate(stmt.condition))) {
+                Completion completion = execute(stmt.body);
+                if (completion == Completion.BREAK)
+                    break;
+                if (completion == Completion.RETURN || completion == Completion.TAIL_CALL)
+                    return completion;
+
+                if (profile != null && profile.code == null
+                        && ++profile.count == JitCompiler.LOOP_THRESHOLD) {
+                    profile.code = JitCompiler.compileLoop(stmt);
+                    if (profile.code instanceof CompiledLoop)
+                        return runCompiled((CompiledLoop) profile.code);
+                }
             }
-            if (is_contunue_executed) {
-                is_contunue_executed = false;
-                continue;
+        } finally {
+            loop_depth -= 1;
+        }
+
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitForStmt(For stmt) {
+        if (stmt.slot_count == 0) {
+            if (stmt.initializer != null)
+                execute(stmt.initializer);
+            return runLoop(stmt);
+        }
+
+        Environment frame = newFrame(environment, stmt.slot_count);
+        Environment previous = environment;
+        Completion completion;
+        try {
+            environment = frame;
+            execute(stmt.initializer);
+            completion = runLoop(stmt);
+        } finally {
+            environment = previous;
+        }
+        freeFrame(frame);
+        return completion;
+    }
+
+    /**
+     * Runs a for loop from its condition, in the frame of its initializer. The
+     * loop is compiled once it is hot, like a while loop.
+     */
+    private Completion runLoop(For stmt) {
+        Profile profile = profile(stmt);
+        if (profile != null && profile.code instanceof CompiledLoop)
+            return runCompiled((CompiledLoop) profile.code);
+
+        loop_depth += 1;
+        try {
+            if (stmt.is_counting && environment.get(((Var) stmt.initializer).name, 0) instanceof Double)
+                return runCounting(stmt, profile);
+
+            while (isTruthy(evaluate(stmt.condition))) {
+                Completion completion = execute(stmt.body);
+                if (completion == Completion.BREAK)
+                    break;
+                if (completion == Completion.RETURN || completion == Completion.TAIL_CALL)
+                    return completion;
+
+                if (stmt.increment != null)
+                    evaluate(stmt.increment);
+                if (profile != null && profile.code == null
+                        && ++profile.count == JitCompiler.LOOP_THRESHOLD) {
+                    profile.code = JitCompiler.compileLoop(stmt);
+                    if (profile.code instanceof CompiledLoop)
+                        return runCompiled((CompiledLoop) profile.code);
+                }
             }
+        } finally {
+            loop_depth -= 1;
         }
-        loop_depth -= 1;
 
-        return null;
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Runs a counting loop, see {@link lox.analysis.Resolver#visitForStmt}, on
+     * a primitive counter. Nothing but the increment assigns the counter, so
+     * its slot is only written for the body to read, and the condition and
+     * increment are not evaluated as expressions.
+     */
+    private Completion runCounting(For stmt, Profile profile) {
+        Binary condition = (Binary) stmt.condition;
+        double counter = (double) environment.get(((Var) stmt.initializer).name, 0);
+        for (;;) {
+            double limit = evaluateDouble(condition.right, condition.operator);
+            boolean is_running = switch (condition.operator.type) {
+                case LESS -> counter < limit;
+                case LESS_EQUAL -> counter <= limit;
+                case GREATER -> counter > limit;
+                default -> counter >= limit;
+            };
+            if (!is_running)
+                return Completion.NORMAL;
+
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK)
+                return Completion.NORMAL;
+            if (completion == Completion.RETURN || completion == Completion.TAIL_CALL)
+                return completion;
+
+            counter += stmt.step;
+            environment.define(0, counter);
+            if (profile != null && profile.code == null
+                    && ++profile.count == JitCompiler.LOOP_THRESHOLD) {
+                profile.code = JitCompiler.compileLoop(stmt);
+                if (profile.code instanceof CompiledLoop)
+                    return runCompiled((CompiledLoop) profile.code);
+            }
+        }
+    }
+
+    /**
+     * Runs a compiled loop from its next test of the condition, in the current
+     * environment.
+     */
+    private Completion runCompiled(CompiledLoop loop) {
+        Object result = loop.run(this, environment);
+        if (result == CompiledLoop.COMPLETED)
+            return Completion.NORMAL;
+
+        if (result instanceof TailCall) {
+            tail_function = (LoxFunction) ((TailCall) result).function();
+            tail_arguments = ((TailCall) result).arguments();
+            return Completion.TAIL_CALL;
+        }
+        return_value = result;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitBreakStmt(Break stmt) {
+    public Completion visitBreakStmt(Break stmt) {
         if (loop_depth == 0) {
             throw new RuntimeError(stmt.keyword, "break not allowed outside of loop.");
         }
-        is_break_executed = true;
-        return null;
+        return Completion.BREAK;
     }
 
     @Override
-    public Void visitContinueStmt(Continue stmt) {
+    public Completion visitContinueStmt(Continue stmt) {
         if (loop_depth == 0) {
             throw new RuntimeError(stmt.keyword, "continue not allowed outside of loop.");
         }
-        is_contunue_executed = true;
-        return null;
+        return Completion.CONTINUE;
     }
 
     @Override
+    /**
+     * Each call site caches the last callee it called, in {@link #callees}.
+     * Seeing it again means it is known to be callable with this number of
+     * arguments, so only the argument types of typed natives are left to check,
+     * and up to two arguments are passed without an argument array.
+     */
     public Object visitCallExpr(Call expr) {
         Object callee = evaluate(expr.callee);
+        if (callee != callees.get(expr)) {
+            LoxCallable function = checkCallable(expr, callee);
+            Object[] arguments = evaluateArguments(expr, function);
+            callees.put(expr, function);
+            return function.callN(this, arguments);
+        }
 
+        LoxCallable function = (LoxCallable) callee;
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return function.call0(this);
+            case 1: {
+                Object argument = evaluate(arguments.get(0));
+                if (function.is_typed)
+                    checkArgument(expr, function, 0, argument);
+                return function.call1(this, argument);
+            }
+            case 2: {
+                Object first = evaluate(arguments.get(0));
+                Object second = evaluate(arguments.get(1));
+                if (function.is_typed) {
+                    checkArgument(expr, function, 0, first);
+                    checkArgument(expr, function, 1, second);
+                }
+                return function.call2(this, first, second);
+            }
+            default:
+                return function.callN(this, evaluateArguments(expr, function));
+        }
+    }
+
+    private LoxCallable checkCallable(Call expr, Object callee) {
         if (!(callee instanceof LoxCallable))
             throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+        return (LoxCallable) callee;
+    }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+    private Object[] evaluateArguments(Call expr, LoxCallable function) {
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
         }
 
-        LoxCallable function = (LoxCallable) callee;
-        if (arguments.size() != function.arity)
+        if (arguments.length != function.arity)
             throw new RuntimeError(expr.paren,
-                    String.format("Expected %d arguments but got %d.", function.arity, arguments.size()));
+                    String.format("Expected %d arguments but got %d.", function.arity, arguments.length));
 
-        for (int i = 0; i < arguments.size(); i++) {
-            if (!matchesType(arguments.get(i), function.argumentTypes[i]))
-                throw new RuntimeError(expr.paren, String.format("Expected %s for argument %d, got %s instead.",
-                        function.argumentTypes[i].name().toLowerCase(), i + 1, getTypeName(arguments.get(i))));
-        }
+        for (int i = 0; i < arguments.length; i++)
+            checkArgument(expr, function, i, arguments[i]);
+
+        return arguments;
+    }
 
-        return function.call(this, arguments);
+    private void checkArgument(Call expr, LoxCallable function, int index, Object argument) {
+        if (!matchesType(argument, function.argumentTypes[index]))
+            throw new RuntimeError(expr.paren, String.format("Expected %s for argument %d, got %s instead.",
+                    function.argumentTypes[index].name().toLowerCase(), index + 1, getTypeName(argument)));
     }
 
     @Override
@@ -350,15 +703,43 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitFunctionStmt(Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment);
-        environment.define(function);
-        return null;
+    public Completion visitFunctionStmt(Function stmt) {
+        LoxFunction function = new LoxFunction(stmt, capture(stmt), profile(stmt));
+        environment.define(stmt.slot, function);
+        return Completion.NORMAL;
+    }
+
+    /**
+     * @return The upvalues of a function declared in the current environment,
+     *         the ones the resolver found it uses
+     */
+    private Upvalue[] capture(Function stmt) {
+        Upvalue[] captured = new Upvalue[stmt.upvalue_depths.length];
+        for (int i = 0; i < captured.length; i++) {
+            int depth = stmt.upvalue_depths[i];
+            int slot = stmt.upvalue_slots[i];
+            captured[i] = depth == -1 ? upvalues[slot] : environment.ancestor(depth).capture(slot);
+        }
+        return captured;
     }
 
     @Override
-    public Void visitReturnStmt(lox.ast.Stmt.Return stmt) {
-        Object value = stmt.value == null ? null : evaluate(stmt.value);
-        throw new lox.interpreter.Return(value);
+    public Completion visitReturnStmt(Return stmt) {
+        if (stmt.is_tail_call) {
+            Call call = (Call) stmt.value;
+            LoxCallable function = checkCallable(call, evaluate(call.callee));
+            Object[] arguments = evaluateArguments(call, function);
+            if (function instanceof LoxFunction) {
+                tail_function = (LoxFunction) function;
+                tail_arguments = arguments;
+                return Completion.TAIL_CALL;
+            }
+
+            return_value = function.callN(this, arguments);
+            return Completion.RETURN;
+        }
+
+        return_value = stmt.value == null ? null : stmt.value.accept(this);
+        return Completion.RETURN;
     }
 }
@@ -5,7 +5,7 @@ import java.util.Arrays;
 import lox.Token;
 
 public class InterpreterUtil {
-    static boolean isTruthy(Object object) {
+    public static boolean isTruthy(Object object) {
         if (object == null)
             return false;
         if (object instanceof Boolean)
@@ -13,7 +13,7 @@ public class InterpreterUtil {
         return true;
     }
 
-    static boolean isEqual(Object a, Object b) {
+    public static boolean isEqual(Object a, Object b) {
         if (a == null && b == null)
             return true;
         if (a == null)
@@ -22,7 +22,7 @@ public class InterpreterUtil {
         return a.equals(b);
     }
 
-    static void checkNumberOperands(Token operator, Object... operand) {
+    public static void checkNumberOperands(Token operator, Object... operand) {
         for (Object object : operand) {
             if (!(object instanceof Double)) {
                 throw new RuntimeError(operator, "Operand must be a number.");
@@ -48,19 +48,19 @@ public class InterpreterUtil {
         return object.toString();
     }
 
-    static boolean matchesType(Object val, LoxType type) {
+    public static boolean matchesType(Object val, LoxType type) {
         return switch (type) {
             case NUMBER -> val instanceof Double;
             case STRING -> val instanceof String;
             case ARRAY -> val instanceof Object[];
             case BOOLEAN -> val instanceof Boolean;
-            case ANY -> val instanceof Object;
+            case ANY -> true;
             case NIL -> val == null;
             default -> false;
         };
     }
 
-    static String getTypeName(Object value) {
+    public static String getTypeName(Object value) {
         if (value == null)
             return "nil";
         if (value instanceof Double)
@@ -1,26 +1,67 @@
 package lox.interpreter;
 
 import java.util.Collections;
-import java.util.List;
 
-abstract class LoxCallable {
-    final int arity;
-    final LoxType[] argumentTypes;
+/**
+ * Something that can be called from Lox. Callers check the arity and the
+ * argument types, then use the entry point for the number of arguments, so
+ * calls with up to two arguments don't need an argument array.
+ * <br/>
+ * The fixed arity entry points default to {@link #callN}, which defaults to
+ * dispatching to them. Subclasses override either the entry point for their
+ * arity, or {@link #callN}.
+ */
+public abstract class LoxCallable {
+    public final int arity;
+    public final LoxType[] argumentTypes;
+    /** Whether any argument type is not {@link LoxType#ANY} and has to be checked */
+    public final boolean is_typed;
 
-    LoxCallable() {
+    public LoxCallable() {
         this(0, new LoxType[0]);
     }
 
-    LoxCallable(int arity) {
-        this.arity = arity;
-        argumentTypes = new LoxType[arity];
-        Collections.nCopies(arity, LoxType.ANY).toArray(argumentTypes);
+    public LoxCallable(int arity) {
+        this(arity, Collections.nCopies(arity, LoxType.ANY).toArray(new LoxType[arity]));
     }
 
-    LoxCallable(int arity, LoxType[] argumentTypes) {
+    public LoxCallable(int arity, LoxType[] argumentTypes) {
         this.arity = arity;
         this.argumentTypes = argumentTypes;
+
+        boolean is_typed = false;
+        for (LoxType type : argumentTypes)
+            is_typed |= type != LoxType.ANY;
+        this.is_typed = is_typed;
+    }
+
+    public Object call0(Interpreter interpreter) {
+        return callN(interpreter, new Object[0]);
+    }
+
+    public Object call1(Interpreter interpreter, Object argument) {
+        return callN(interpreter, new Object[] { argument });
     }
 
-    abstract Object call(Interpreter interpreter, List<Object> arguments);
+    public Object call2(Interpreter interpreter, Object first, Object second) {
+        return callN(interpreter, new Object[] { first, second });
+    }
+
+    public Object callN(Interpreter interpreter, Object[] arguments) {
+        return switch (arguments.length) {
+            case 0 -> call0(interpreter);
+            case 1 -> call1(interpreter, arguments[0]);
+            case 2 -> call2(interpreter, arguments[0], arguments[1]);
+            default -> throw new IllegalStateException("No entry point for " + arguments.length + " arguments");
+        };
+    }
+
+    /**
+     * Makes a checked call in tail position of compiled code. Lox functions
+     * return a {@link lox.jit.TailCall} instead, which their caller makes once
+     * the calling function has returned.
+     */
+    public Object tailCall(Interpreter interpreter, Object[] arguments) {
+        return callN(interpreter, arguments);
+    }
 }
@@ -1,38 +1,174 @@
 package lox.interpreter;
 
-import java.util.List;
-
 import lox.ast.Stmt;
+import lox.jit.CompiledFunction;
+import lox.jit.JitCompiler;
+import lox.jit.Profile;
+import lox.jit.TailCall;
 
 public class LoxFunction extends LoxCallable {
     private final Stmt.Function declaration;
-    private final Environment environment;
+    /** The variables of enclosing functions the body uses */
+    private final Upvalue[] upvalues;
+    /** Shared by the closures of the declaration, null if the JIT is disabled */
+    private final Profile profile;
 
-    LoxFunction(Stmt.Function declaration, Environment declarationEnvironment) {
+    LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, Profile profile) {
         super(declaration.params.size());
         this.declaration = declaration;
-        this.environment = declarationEnvironment;
+        this.upvalues = upvalues;
+        this.profile = profile;
+    }
+
+    /**
+     * Counts the calls of the function's declaration, once it is hot its body is
+     * compiled.
+     * 
+     * @return The compiled body, or null if the body is interpreted
+     */
+    private CompiledFunction compiled() {
+        if (profile == null)
+            return null;
+        Object code = profile.code;
+        if (code instanceof CompiledFunction)
+            return (CompiledFunction) code;
+
+        if (code == null && ++profile.count == JitCompiler.CALL_THRESHOLD)
+            profile.code = JitCompiler.compileFunction(declaration);
+        return null;
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        CompiledFunction code = compiled();
+        if (code != null)
+            return finish(interpreter, code.invoke0(interpreter, upvalues));
+        return run(interpreter, this, newFrame(interpreter));
     }
 
     @Override
-    Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment extended_environment = new Environment(environment);
-        for (int i = 0; i < argumentTypes.length; i++) {
+    public Object call1(Interpreter interpreter, Object argument) {
+        CompiledFunction code = compiled();
+        if (code != null)
+            return finish(interpreter, code.invoke1(interpreter, upvalues, argument));
+
+        Environment frame = newFrame(interpreter);
+        frame.define(0, argument);
+        return run(interpreter, this, frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object first, Object second) {
+        CompiledFunction code = compiled();
+        if (code != null)
+            return finish(interpreter, code.invoke2(interpreter, upvalues, first, second));
+
+        Environment frame = newFrame(interpreter);
+        frame.define(0, first);
+        frame.define(1, second);
+        return run(interpreter, this, frame);
+    }
+
+    @Override
+    public Object tailCall(Interpreter interpreter, Object[] arguments) {
+        return new TailCall(this, arguments);
+    }
+
+    @Override
+    public Object callN(Interpreter interpreter, Object[] arguments) {
+        CompiledFunction code = compiled();
+        if (code != null)
+            return finish(interpreter, code.invokeN(interpreter, upvalues, arguments));
+        return run(interpreter, this, bind(interpreter, arguments));
+    }
+
+    private Environment newFrame(Interpreter interpreter) {
+        return interpreter.newFrame(null, declaration.slot_count);
+    }
+
+    private Environment bind(Interpreter interpreter, Object[] arguments) {
+        Environment frame = newFrame(interpreter);
+        for (int i = 0; i < arguments.length; i++) {
             /**
              * The index of each argument should correspond to the order they appear in the
              * function parameters. See
              * {@link lox.analysis.Resolver#resolveFunction(Stmt.Function)}
              */
-            extended_environment.define(arguments.get(i));
+            frame.define(i, arguments[i]);
         }
+        return frame;
+    }
 
+    /**
+     * Runs {@code function} in {@code frame}, which holds the arguments. A tail
+     * call in the body is not made from within the body, it replaces the current
+     * function and frame and the loop runs the callee next, so tail recursion
+     * doesn't grow the Java stack. Compiled callees are run by the loop too.
+     * The body is run here rather than by {@link Interpreter#executeBlock}, to
+     * keep the Java frames of a call few.
+     */
+    private static Object run(Interpreter interpreter, LoxFunction function, Environment frame) {
+        // Loops of the caller don't extend into the function body
+        int loop_depth = interpreter.loop_depth;
+        Upvalue[] upvalues = interpreter.upvalues;
+        Environment environment = interpreter.environment;
+        interpreter.loop_depth = 0;
         try {
-            interpreter.executeBlock(declaration.body, extended_environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+            for (;;) {
+                interpreter.upvalues = function.upvalues;
+                interpreter.environment = frame;
+                Completion completion = Completion.NORMAL;
+                for (Stmt statement : function.declaration.body) {
+                    completion = statement.accept(interpreter);
+                    if (completion != Completion.NORMAL)
+                        break;
+                }
+                interpreter.environment = environment;
+                interpreter.freeFrame(frame);
+                if (completion == Completion.RETURN) {
+                    Object value = interpreter.return_value;
+                    interpreter.return_value = null;
+                    return value;
+                } else if (completion != Completion.TAIL_CALL) {
+                    return null;
+                }
+
+                function = interpreter.tail_function;
+                Object[] arguments = interpreter.tail_arguments;
+                interpreter.tail_function = null;
+                interpreter.tail_arguments = null;
+
+                CompiledFunction code;
+                while ((code = function.compiled()) != null) {
+                    Object result = code.invokeN(interpreter, function.upvalues, arguments);
+                    if (!(result instanceof TailCall))
+                        return result;
+                    function = (LoxFunction) ((TailCall) result).function();
+                    arguments = ((TailCall) result).arguments();
+                }
+                frame = function.bind(interpreter, arguments);
+            }
+        } finally {
+            interpreter.loop_depth = loop_depth;
+            interpreter.upvalues = upvalues;
+            interpreter.environment = environment;
         }
+    }
 
-        return null;
+    /**
+     * Makes the tail calls returned by compiled code, until one of the callees
+     * is interpreted, which {@link #run} takes over.
+     */
+    private static Object finish(Interpreter interpreter, Object result) {
+        while (result instanceof TailCall) {
+            LoxFunction function = (LoxFunction) ((TailCall) result).function();
+            Object[] arguments = ((TailCall) result).arguments();
+            CompiledFunction code = function.compiled();
+            if (code == null)
+                return run(interpreter, function, function.bind(interpreter, arguments));
+            result = code.invokeN(interpreter, function.upvalues, arguments);
+        }
+        return result;
     }
 
     @Override
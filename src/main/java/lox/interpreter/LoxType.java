@@ -1,6 +1,6 @@
 package lox.interpreter;
 
-enum LoxType {
+public enum LoxType {
     NUMBER,
     STRING,
     BOOLEAN,
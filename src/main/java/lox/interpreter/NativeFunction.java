@@ -5,10 +5,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
-import lox.Token;
 
 import static lox.interpreter.LoxType.*;
 
@@ -16,38 +14,42 @@ import static lox.interpreter.LoxType.*;
  * Registry for all native functions available in the Lox interpreter.
  */
 public class NativeFunction {
-    private static int index = 0;
+    private static final String[] NAMES = { "clock", "arrayLength", "floor", "stringSplit", "stringToNumber",
+            "read" };
     private static Map<String, Integer> index_map = new HashMap<>();
 
-    /**
-     * Registers all native functions into the provided environment.
-     * 
-     * @param environment The global environment to register functions into
-     */
-    public static void registerAll(Environment environment) {
-        register(environment, "clock", new ClockFunction());
-        register(environment, "arrayLength", new ArrayLengthFunction());
-        register(environment, "floor", new FloorFunction());
-        register(environment, "stringSplit", new StringSplitFunction());
-        register(environment, "stringToNumber", new StringToNumberFunction());
-        register(environment, "read", new ReadFunction());
+    static {
+        for (int i = 0; i < NAMES.length; i++)
+            index_map.put(NAMES[i], i);
     }
 
-    public static int getIndex(Token name) {
-        if (index_map.containsKey(name.lexeme))
-            return index_map.get(name.lexeme);
-
-        throw new RuntimeError(name, "Unknown identifier.");
+    /**
+     * Creates a fresh instance of every native function, ordered by their global
+     * slot, see {@link #lookup}. The array is an {@code Object[]} because it is
+     * used as the globals, which scripts may assign any value to.
+     */
+    public static Object[] createAll() {
+        return new Object[] {
+                new ClockFunction(),
+                new ArrayLengthFunction(),
+                new FloorFunction(),
+                new StringSplitFunction(),
+                new StringToNumberFunction(),
+                new ReadFunction(),
+        };
     }
 
-    private static void register(Environment environment, String name, LoxCallable function) {
-        index_map.put(name, index++);
-        environment.define(function);
+    /**
+     * @return The global slot of the native function called {@code name}, or -1
+     *         if there is no such function
+     */
+    public static int lookup(String name) {
+        return index_map.getOrDefault(name, -1);
     }
 
     private static class ClockFunction extends LoxCallable {
         @Override
-        public Object call(Interpreter interpreter, List<Object> arguments) {
+        public Object call0(Interpreter interpreter) {
             return (double) System.currentTimeMillis() / 1000.0;
         }
 
@@ -63,8 +65,8 @@ public class NativeFunction {
         }
 
         @Override
-        public Object call(Interpreter interpreter, List<Object> arguments) {
-            return (double) ((Object[]) arguments.get(0)).length;
+        public Object call1(Interpreter interpreter, Object array) {
+            return (double) ((Object[]) array).length;
         }
 
         @Override
@@ -79,8 +81,8 @@ public class NativeFunction {
         }
 
         @Override
-        public Object call(Interpreter interpreter, List<Object> arguments) {
-            return Math.floor((Double) arguments.get(0));
+        public Object call1(Interpreter interpreter, Object number) {
+            return Math.floor((Double) number);
         }
 
         @Override
@@ -95,8 +97,8 @@ public class NativeFunction {
         }
 
         @Override
-        public Object call(Interpreter interpreter, List<Object> arguments) {
-            return ((String) arguments.get(0)).split((String) arguments.get(1));
+        public Object call2(Interpreter interpreter, Object string, Object separator) {
+            return ((String) string).split((String) separator);
         }
 
         @Override
@@ -111,11 +113,11 @@ public class NativeFunction {
         }
 
         @Override
-        public Object call(Interpreter interpreter, List<Object> arguments) {
+        public Object call1(Interpreter interpreter, Object string) {
             try {
-                return Double.valueOf((String) arguments.get(0));
+                return Double.valueOf((String) string);
             } catch (NumberFormatException e) {
-                throw new RuntimeError("Cannot convert '" + arguments.get(0) + "' to number.");
+                throw new RuntimeError("Cannot convert '" + string + "' to number.");
             }
         }
 
@@ -131,12 +133,12 @@ public class NativeFunction {
         }
 
         @Override
-        public Object call(Interpreter interpreter, List<Object> arguments) {
-            Path filePath = Paths.get((String) arguments.get(0));
+        public Object call1(Interpreter interpreter, Object path) {
+            Path filePath = Paths.get((String) path);
             try {
                 return Files.readString(filePath);
             } catch (IOException e) {
-                throw new RuntimeError("Could not open file " + arguments.get(0));
+                throw new RuntimeError("Could not open file " + path);
             }
         }
 
@@ -0,0 +1,42 @@
+package lox.interpreter;
+
+import lox.Token;
+
+/**
+ * A variable captured by closures. While its scope runs the variable stays in
+ * the scope's frame and the upvalue refers to it there, once the scope is left
+ * the value moves into the upvalue. Closures so keep the variables they use
+ * alive, not the frames that declared them.
+ */
+public final class Upvalue {
+    /** The frame holding the variable, null once it was closed */
+    private Environment frame;
+    private final int slot;
+    private Object value;
+
+    Upvalue(Environment frame, int slot) {
+        this.frame = frame;
+        this.slot = slot;
+    }
+
+    public Object get(Token name) {
+        if (frame != null)
+            return frame.get(name, slot);
+        return value;
+    }
+
+    public void set(Token name, Object value) {
+        if (frame != null)
+            frame.assign(name, slot, value);
+        else
+            this.value = value;
+    }
+
+    /**
+     * Detaches the upvalue from its frame, which is about to be reused.
+     */
+    void close(Object value) {
+        this.value = value;
+        frame = null;
+    }
+}
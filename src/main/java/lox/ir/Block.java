@@ -0,0 +1,70 @@
+package lox.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A basic block, phis first and a terminator last once it is complete.
+ */
+final class Block {
+    final int id;
+    final List<Instruction> instructions = new ArrayList<>();
+    /** Blocks that go to this one, phi operands are in the same order */
+    final List<Block> predecessors = new ArrayList<>();
+
+    /*
+     * Filled in by IrFunction.prepare
+     */
+    Instruction[] code;
+    int phi_count;
+
+    Block(int id) {
+        this.id = id;
+    }
+
+    boolean isTerminated() {
+        return !instructions.isEmpty() && instructions.get(instructions.size() - 1).op.is_terminator;
+    }
+
+    Instruction terminator() {
+        return instructions.get(instructions.size() - 1);
+    }
+
+    Block[] successors() {
+        Instruction terminator = terminator();
+        return terminator.targets == null ? new Block[0] : terminator.targets;
+    }
+
+    int phiCount() {
+        int count = 0;
+        while (count < instructions.size() && instructions.get(count).isPhi())
+            count++;
+        return count;
+    }
+
+    void append(Instruction instruction) {
+        instruction.block = this;
+        instructions.add(instruction);
+    }
+
+    /**
+     * Adds an instruction right before the terminator.
+     */
+    void insertBeforeTerminator(Instruction instruction) {
+        instruction.block = this;
+        instructions.add(instructions.size() - 1, instruction);
+    }
+
+    /**
+     * Removes the predecessor at {@code index} and the operands it gave the
+     * phis.
+     */
+    void removePredecessor(int index) {
+        predecessors.remove(index);
+        for (Instruction phi : instructions) {
+            if (!phi.isPhi())
+                break;
+            phi.removeOperand(index);
+        }
+    }
+}
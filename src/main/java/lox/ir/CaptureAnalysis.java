@@ -0,0 +1,237 @@
+package lox.ir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lox.ast.Expr;
+import lox.ast.Expr.*;
+import lox.ast.Stmt;
+import lox.ast.Stmt.*;
+
+/**
+ * Finds the variables that are used by functions nested in the one declaring
+ * them. Those have to outlive the call that declares them, so they are kept in
+ * environments, all other variables become SSA values.
+ * <br/>
+ * Scopes are the same as in {@link lox.analysis.Resolver}: the program, every
+ * function and every block that declares variables. They are identified by
+ * their statement, or the list of top level statements for the program.
+ */
+final class CaptureAnalysis implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Map<Object, Set<Integer>> captured = new IdentityHashMap<>();
+    private final List<Object> scopes = new ArrayList<>();
+    /** Number of functions enclosing each scope */
+    private final List<Integer> function_depths = new ArrayList<>();
+    private int function_depth = 0;
+
+    /**
+     * @return The captured slots of every scope that has any
+     */
+    static Map<Object, Set<Integer>> analyze(List<Stmt> program) {
+        CaptureAnalysis analysis = new CaptureAnalysis();
+        analysis.beginScope(program);
+        analysis.analyzeAll(program);
+        return analysis.captured;
+    }
+
+    private void analyzeAll(List<Stmt> statements) {
+        for (Stmt statement : statements)
+            statement.accept(this);
+    }
+
+    private void analyze(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void beginScope(Object scope) {
+        scopes.add(scope);
+        function_depths.add(function_depth);
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+        function_depths.remove(function_depths.size() - 1);
+    }
+
+    private void reference(int depth, int slot) {
+        if (depth == -1)
+            return;
+        int index = scopes.size() - 1 - depth;
+        if (function_depths.get(index) != function_depth)
+            captured.computeIfAbsent(scopes.get(index), scope -> new HashSet<>()).add(slot);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.slot_count == 0) {
+            analyzeAll(stmt.statements);
+            return null;
+        }
+
+        beginScope(stmt);
+        analyzeAll(stmt.statements);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(If stmt) {
+        analyze(stmt.condition);
+        stmt.consequent.accept(this);
+        if (stmt.alternate != null)
+            stmt.alternate.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Expression stmt) {
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Function stmt) {
+        function_depth += 1;
+        beginScope(stmt);
+        analyzeAll(stmt.body);
+        endScope();
+        function_depth -= 1;
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Return stmt) {
+        if (stmt.value != null)
+            analyze(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Print stmt) {
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(While stmt) {
+        analyze(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(For stmt) {
+        if (stmt.slot_count != 0)
+            beginScope(stmt);
+        if (stmt.initializer != null)
+            stmt.initializer.accept(this);
+        analyze(stmt.condition);
+        if (stmt.increment != null)
+            analyze(stmt.increment);
+        stmt.body.accept(this);
+        if (stmt.slot_count != 0)
+            endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Break stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Continue stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Var stmt) {
+        if (stmt.initializer != null)
+            analyze(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Assign expr) {
+        analyze(expr.value);
+        reference(expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Ternary expr) {
+        analyze(expr.condition);
+        analyze(expr.consequent);
+        analyze(expr.alternate);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Binary expr) {
+        analyze(expr.left);
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Call expr) {
+        analyze(expr.callee);
+        for (Expr argument : expr.arguments)
+            analyze(argument);
+        return null;
+    }
+
+    @Override
+    public Void visitArrayAccessExpr(ArrayAccess expr) {
+        analyze(expr.array);
+        analyze(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Logical expr) {
+        analyze(expr.left);
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Grouping expr) {
+        analyze(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitTemplateLiteralExpr(TemplateLiteral expr) {
+        analyze(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitTemplateStringExpr(TemplateString expr) {
+        for (Expr template : expr.templates)
+            analyze(template);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Unary expr) {
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Variable expr) {
+        reference(expr.depth, expr.slot);
+        return null;
+    }
+}
@@ -0,0 +1,187 @@
+package lox.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes the type checks of values that can't fail them, the checks
+ * {@link lox.interpreter.InterpreterUtil#checkNumberOperands} makes in the
+ * interpreter.
+ * <br/>
+ * A value that passed a check has the checked type everywhere the check
+ * dominates, so uses there read the checked value instead. Then the type of
+ * every value is inferred from the operations, optimistically through phis so
+ * loop variables that only ever hold numbers are numbers. Checks of values of
+ * the right type are removed, additions of numbers become
+ * {@link Op#NUMBER_ADD} and logical results that are booleans already are
+ * used as they are.
+ */
+final class CheckElimination {
+    /** A lattice from none, for values not seen yet, to any type */
+    private enum Type {
+        NONE, NUMBER, BOOLEAN, ARRAY, CALLABLE, ANY;
+
+        Type meet(Type other) {
+            if (this == NONE)
+                return other;
+            if (other == NONE || other == this)
+                return this;
+            return ANY;
+        }
+    }
+
+    static void run(IrFunction function) {
+        Dominators dominators = new Dominators(function);
+        propagateChecks(dominators);
+        Type[] types = inferTypes(function, dominators);
+
+        Map<Instruction, Instruction> replacements = new HashMap<>();
+        for (Block block : function.blocks) {
+            for (Iterator<Instruction> iterator = block.instructions.iterator(); iterator.hasNext();) {
+                Instruction instruction = iterator.next();
+                Type type = instruction.operands.length > 0 ? types[instruction.operands[0].id] : null;
+                boolean is_redundant = switch (instruction.op) {
+                    case CHECK_NUMBER -> type == Type.NUMBER;
+                    case CHECK_ARRAY -> type == Type.ARRAY;
+                    case CHECK_CALLABLE -> type == Type.CALLABLE;
+                    case OR_FALSE -> type == Type.BOOLEAN;
+                    default -> false;
+                };
+                if (is_redundant) {
+                    replacements.put(instruction, instruction.operands[0]);
+                    iterator.remove();
+                } else if (instruction.op == Op.ADD && type == Type.NUMBER
+                        && types[instruction.operands[1].id] == Type.NUMBER) {
+                    instruction.op = Op.NUMBER_ADD;
+                }
+            }
+        }
+        function.replaceUses(replacements);
+    }
+
+    private static boolean isCheck(Instruction instruction) {
+        return instruction.op == Op.CHECK_NUMBER || instruction.op == Op.CHECK_ARRAY
+                || instruction.op == Op.CHECK_CALLABLE;
+    }
+
+    /**
+     * Makes the uses dominated by a check of a value use the checked value. The
+     * use of a phi operand is at the end of its predecessor.
+     */
+    private static void propagateChecks(Dominators dominators) {
+        Map<Instruction, Instruction> checked = new HashMap<>();
+        Map<Block, List<Instruction>> added = new HashMap<>();
+        dominators.walk(new Dominators.TreeVisitor() {
+            @Override
+            public void enter(Block block) {
+                List<Instruction> values = new ArrayList<>();
+                for (Instruction instruction : block.instructions) {
+                    if (!instruction.isPhi())
+                        replaceOperands(instruction.operands, checked);
+
+                    if (isCheck(instruction) && !checked.containsKey(instruction.operands[0])) {
+                        checked.put(instruction.operands[0], instruction);
+                        values.add(instruction.operands[0]);
+                    }
+                }
+
+                for (Block successor : block.successors()) {
+                    int index = successor.predecessors.indexOf(block);
+                    for (Instruction phi : successor.instructions) {
+                        if (!phi.isPhi())
+                            break;
+                        Instruction check = checked.get(phi.operands[index]);
+                        if (check != null)
+                            phi.operands[index] = check;
+                    }
+                }
+                added.put(block, values);
+            }
+
+            @Override
+            public void exit(Block block) {
+                for (Instruction value : added.remove(block))
+                    checked.remove(value);
+            }
+        });
+    }
+
+    private static void replaceOperands(Instruction[] operands, Map<Instruction, Instruction> checked) {
+        for (int i = 0; i < operands.length; i++) {
+            Instruction check = checked.get(operands[i]);
+            if (check != null)
+                operands[i] = check;
+        }
+    }
+
+    /**
+     * @return The type of every value, by id
+     */
+    private static Type[] inferTypes(IrFunction function, Dominators dominators) {
+        Type[] types = new Type[function.idCount()];
+        Arrays.fill(types, Type.NONE);
+        boolean is_changed = true;
+        while (is_changed) {
+            is_changed = false;
+            for (Block block : dominators.order) {
+                for (Instruction instruction : block.instructions) {
+                    Type type = typeOf(instruction, types);
+                    if (type != types[instruction.id]) {
+                        types[instruction.id] = type;
+                        is_changed = true;
+                    }
+                }
+            }
+        }
+        return types;
+    }
+
+    private static Type typeOf(Instruction instruction, Type[] types) {
+        switch (instruction.op) {
+            case CONSTANT:
+                if (instruction.constant instanceof Double)
+                    return Type.NUMBER;
+                return instruction.constant instanceof Boolean ? Type.BOOLEAN : Type.ANY;
+            case PHI: {
+                Type type = Type.NONE;
+                for (Instruction operand : instruction.operands)
+                    type = type.meet(types[operand.id]);
+                return type;
+            }
+            case ADD: {
+                Type type = types[instruction.operands[0].id].meet(types[instruction.operands[1].id]);
+                return type == Type.NONE || type == Type.NUMBER ? type : Type.ANY;
+            }
+            case OR_FALSE: {
+                Type type = types[instruction.operands[0].id];
+                return type == Type.NONE || type == Type.BOOLEAN ? type : Type.ANY;
+            }
+            case CHECK_NUMBER:
+            case NEGATE:
+            case NUMBER_ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+                return Type.NUMBER;
+            case NOT:
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+            case EQUAL:
+            case NOT_EQUAL:
+                return Type.BOOLEAN;
+            case CHECK_ARRAY:
+                return Type.ARRAY;
+            case CHECK_CALLABLE:
+            case FUNCTION:
+                return Type.CALLABLE;
+            default:
+                return Type.ANY;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package lox.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dominator based value numbering. A pure instruction computing the same
+ * operation on the same operands as one that dominates it is replaced by the
+ * dominating one, whose value is available wherever the later one runs. That
+ * includes checks, a value that passed a check passes it again.
+ */
+final class CommonSubexpressions {
+    static void run(IrFunction function) {
+        Map<List<Object>, Instruction> available = new HashMap<>();
+        Map<Block, List<List<Object>>> added = new HashMap<>();
+        Map<Instruction, Instruction> replacements = new HashMap<>();
+
+        new Dominators(function).walk(new Dominators.TreeVisitor() {
+            @Override
+            public void enter(Block block) {
+                List<List<Object>> keys = new ArrayList<>();
+                for (Iterator<Instruction> iterator = block.instructions.iterator(); iterator.hasNext();) {
+                    Instruction instruction = iterator.next();
+                    if (!instruction.op.is_pure)
+                        continue;
+
+                    List<Object> key = key(instruction, replacements);
+                    Instruction existing = available.get(key);
+                    if (existing != null) {
+                        replacements.put(instruction, existing);
+                        iterator.remove();
+                    } else {
+                        available.put(key, instruction);
+                        keys.add(key);
+                    }
+                }
+                added.put(block, keys);
+            }
+
+            @Override
+            public void exit(Block block) {
+                for (List<Object> key : added.remove(block))
+                    available.remove(key);
+            }
+        });
+        function.replaceUses(replacements);
+    }
+
+    /**
+     * @return The operation, constant and operands, with the operands that
+     *         were already replaced resolved. Constants of different types are
+     *         never equal.
+     */
+    private static List<Object> key(Instruction instruction, Map<Instruction, Instruction> replacements) {
+        Object[] key = new Object[instruction.operands.length + 3];
+        key[0] = instruction.op;
+        key[1] = instruction.constant;
+        key[2] = instruction.constant == null ? null : instruction.constant.getClass();
+        for (int i = 0; i < instruction.operands.length; i++)
+            key[i + 3] = IrFunction.resolve(replacements, instruction.operands[i]);
+        return Arrays.asList(key);
+    }
+}
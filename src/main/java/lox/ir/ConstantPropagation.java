@@ -0,0 +1,272 @@
+package lox.ir;
+
+import static lox.interpreter.InterpreterUtil.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lox.interpreter.RuntimeError;
+import lox.jit.JitRuntime;
+
+/**
+ * Sparse conditional constant propagation, "Constant Propagation with
+ * Conditional Branches" (Wegman and Zadeck). Every value starts out unknown and
+ * is lowered to a constant, or to varying once it may have more than one value.
+ * Only edges found to be taken are followed, so a branch on a constant leaves
+ * the other side unvisited and phis ignore the values it would bring.
+ * <br/>
+ * Values found to be constant are replaced by constants, branches on constants
+ * become jumps and blocks that are never reached are removed. Unlike
+ * {@link lox.optimizer.ConstantFolder} this sees through local variables.
+ */
+final class ConstantPropagation {
+    private static final Object UNKNOWN = new Object();
+    private static final Object VARYING = new Object();
+    /** The constant nil, since null can't be told apart from a missing value */
+    private static final Object NIL = new Object();
+
+    private final IrFunction function;
+    private final Object[] values;
+    private final Set<Block> reachable = new HashSet<>();
+    /** Edges found to be taken, see {@link #edge} */
+    private final Set<Long> taken = new HashSet<>();
+    private final Map<Instruction, List<Instruction>> users = new HashMap<>();
+    private final Deque<Block> blocks = new ArrayDeque<>();
+    private final Deque<Instruction> instructions = new ArrayDeque<>();
+
+    private ConstantPropagation(IrFunction function) {
+        this.function = function;
+        this.values = new Object[function.idCount()];
+        Arrays.fill(values, UNKNOWN);
+    }
+
+    static void run(IrFunction function) {
+        ConstantPropagation propagation = new ConstantPropagation(function);
+        propagation.propagate();
+        propagation.rewrite();
+    }
+
+    private void propagate() {
+        for (Block block : function.blocks) {
+            for (Instruction instruction : block.instructions) {
+                for (Instruction operand : instruction.operands)
+                    users.computeIfAbsent(operand, key -> new ArrayList<>()).add(instruction);
+            }
+        }
+
+        reachable.add(function.entry());
+        blocks.add(function.entry());
+        while (!blocks.isEmpty() || !instructions.isEmpty()) {
+            while (!blocks.isEmpty()) {
+                for (Instruction instruction : blocks.poll().instructions)
+                    visit(instruction);
+            }
+            while (!instructions.isEmpty()) {
+                Instruction instruction = instructions.poll();
+                if (reachable.contains(instruction.block))
+                    visit(instruction);
+            }
+        }
+    }
+
+    private static long edge(Block from, Block to) {
+        return ((long) from.id << 32) | to.id;
+    }
+
+    private void take(Block from, Block to) {
+        if (!taken.add(edge(from, to)))
+            return;
+        if (reachable.add(to)) {
+            blocks.add(to);
+            return;
+        }
+
+        // Only the phis can see a new edge into a block that was visited before
+        for (Instruction instruction : to.instructions) {
+            if (!instruction.isPhi())
+                break;
+            visit(instruction);
+        }
+    }
+
+    private void visit(Instruction instruction) {
+        if (instruction.op == Op.JUMP) {
+            take(instruction.block, instruction.targets[0]);
+        } else if (instruction.op == Op.BRANCH) {
+            Object condition = values[instruction.operands[0].id];
+            if (condition == VARYING) {
+                take(instruction.block, instruction.targets[0]);
+                take(instruction.block, instruction.targets[1]);
+            } else if (condition != UNKNOWN) {
+                take(instruction.block, instruction.targets[isTruthy(unwrap(condition)) ? 0 : 1]);
+            }
+        } else if (!instruction.op.is_terminator) {
+            Object value = evaluate(instruction);
+            if (!isSame(value, values[instruction.id])) {
+                values[instruction.id] = value;
+                instructions.addAll(users.getOrDefault(instruction, List.of()));
+            }
+        }
+    }
+
+    private Object evaluate(Instruction instruction) {
+        if (instruction.isPhi()) {
+            Object value = UNKNOWN;
+            List<Block> predecessors = instruction.block.predecessors;
+            for (int i = 0; i < predecessors.size(); i++) {
+                if (taken.contains(edge(predecessors.get(i), instruction.block)))
+                    value = meet(value, values[instruction.operands[i].id]);
+            }
+            return value;
+        }
+        if (instruction.isConstant())
+            return wrap(instruction.constant);
+        if (!instruction.op.is_pure)
+            return VARYING;
+
+        Object[] operands = new Object[instruction.operands.length];
+        boolean is_varying = false;
+        for (int i = 0; i < operands.length; i++) {
+            Object value = values[instruction.operands[i].id];
+            if (value == UNKNOWN)
+                return UNKNOWN;
+            is_varying |= value == VARYING;
+            operands[i] = unwrap(value);
+        }
+        return is_varying ? VARYING : wrap(fold(instruction.op, operands));
+    }
+
+    private static Object meet(Object first, Object second) {
+        if (first == UNKNOWN)
+            return second;
+        if (second == UNKNOWN)
+            return first;
+        return isSame(first, second) ? first : VARYING;
+    }
+
+    /**
+     * Constants are the same if they are equal values of the same type, which
+     * tells 0 and -0 apart.
+     */
+    private static boolean isSame(Object first, Object second) {
+        if (first == second)
+            return true;
+        return first != null && second != null && first.getClass() == second.getClass() && first.equals(second);
+    }
+
+    private static Object wrap(Object value) {
+        return value == null ? NIL : value;
+    }
+
+    private static Object unwrap(Object value) {
+        return value == NIL ? null : value;
+    }
+
+    /**
+     * Evaluates a pure operation like {@link IrInterpreter} does.
+     *
+     * @return The value, or {@link #VARYING} if it fails at runtime or can not
+     *         be a constant
+     */
+    private static Object fold(Op op, Object[] operands) {
+        if (op == Op.TEMPLATE) {
+            StringBuilder builder = new StringBuilder();
+            for (Object operand : operands)
+                builder.append(stringify(operand));
+            return builder.toString();
+        }
+
+        Object left = operands.length > 0 ? operands[0] : null;
+        Object right = operands.length > 1 ? operands[1] : null;
+        switch (op) {
+            case CHECK_NUMBER:
+                return left instanceof Double ? left : VARYING;
+            case NOT:
+                return !isTruthy(left);
+            case OR_FALSE:
+                return isTruthy(left) ? left : false;
+            case ADD:
+                try {
+                    return JitRuntime.add(left, right, null);
+                } catch (RuntimeError error) {
+                    return VARYING;
+                }
+            case EQUAL:
+                return isEqual(left, right);
+            case NOT_EQUAL:
+                return !isEqual(left, right);
+            default:
+                break;
+        }
+
+        if (!(left instanceof Double) || operands.length > 1 && !(right instanceof Double))
+            return VARYING;
+        double first = (double) left;
+        double second = operands.length > 1 ? (double) right : 0;
+        return switch (op) {
+            case NEGATE -> -first;
+            case NUMBER_ADD -> first + second;
+            case SUBTRACT -> first - second;
+            case MULTIPLY -> first * second;
+            case DIVIDE -> first / second;
+            case LESS -> first < second;
+            case LESS_EQUAL -> first <= second;
+            case GREATER -> first > second;
+            case GREATER_EQUAL -> first >= second;
+            default -> VARYING;
+        };
+    }
+
+    private void rewrite() {
+        Map<Instruction, Instruction> replacements = new HashMap<>();
+        for (Block block : function.blocks) {
+            if (!reachable.contains(block))
+                continue;
+
+            List<Instruction> instructions = new ArrayList<>();
+            int phi_count = 0;
+            for (Instruction instruction : block.instructions) {
+                Object value = values[instruction.id];
+                if (instruction.op.is_terminator || instruction.isConstant() || value == UNKNOWN
+                        || value == VARYING) {
+                    if (instruction.isPhi())
+                        instructions.add(phi_count++, instruction);
+                    else
+                        instructions.add(instruction);
+                    continue;
+                }
+
+                Instruction constant = function.newInstruction(Op.CONSTANT);
+                constant.constant = unwrap(value);
+                constant.block = block;
+                instructions.add(constant);
+                replacements.put(instruction, constant);
+            }
+            block.instructions.clear();
+            block.instructions.addAll(instructions);
+
+            Instruction terminator = block.terminator();
+            Object condition = terminator.op == Op.BRANCH ? values[terminator.operands[0].id] : VARYING;
+            if (condition != VARYING && condition != UNKNOWN) {
+                boolean is_truthy = isTruthy(unwrap(condition));
+                Block target = terminator.targets[is_truthy ? 0 : 1];
+                Block skipped = terminator.targets[is_truthy ? 1 : 0];
+                skipped.removePredecessor(skipped.predecessors.indexOf(block));
+                terminator.op = Op.JUMP;
+                terminator.operands = new Instruction[0];
+                terminator.targets = new Block[] { target };
+            }
+        }
+
+        function.removeUnreachableBlocks();
+        function.replaceUses(replacements);
+        function.removeTrivialPhis();
+    }
+}
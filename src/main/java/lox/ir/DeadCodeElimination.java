@@ -0,0 +1,75 @@
+package lox.ir;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Removes instructions whose values are never used and that neither fail nor
+ * have effects, then merges blocks that only jump to a block nothing else
+ * jumps to.
+ */
+final class DeadCodeElimination {
+    static void run(IrFunction function) {
+        Set<Instruction> live = new HashSet<>();
+        Deque<Instruction> pending = new ArrayDeque<>();
+        for (Block block : function.blocks) {
+            for (Instruction instruction : block.instructions) {
+                if (!instruction.op.isRemovable() && live.add(instruction))
+                    pending.push(instruction);
+            }
+        }
+        while (!pending.isEmpty()) {
+            for (Instruction operand : pending.pop().operands) {
+                if (live.add(operand))
+                    pending.push(operand);
+            }
+        }
+        for (Block block : function.blocks)
+            block.instructions.removeIf(instruction -> !live.contains(instruction));
+
+        mergeBlocks(function);
+    }
+
+    private static void mergeBlocks(IrFunction function) {
+        // Phis of a block with one predecessor have one operand
+        Map<Instruction, Instruction> replacements = new HashMap<>();
+        Set<Block> merged = new HashSet<>();
+        for (Block block : function.blocks) {
+            if (merged.contains(block))
+                continue;
+
+            Block successor;
+            while ((successor = onlySuccessor(function, block)) != null) {
+                block.instructions.remove(block.instructions.size() - 1);
+                for (Instruction instruction : successor.instructions) {
+                    if (instruction.isPhi())
+                        replacements.put(instruction, instruction.operands[0]);
+                    else
+                        block.append(instruction);
+                }
+                for (Block next : block.successors())
+                    next.predecessors.set(next.predecessors.indexOf(successor), block);
+                merged.add(successor);
+            }
+        }
+        function.blocks.removeIf(merged::contains);
+        function.replaceUses(replacements);
+    }
+
+    /**
+     * @return The block {@code block} jumps to, if it can be appended to it
+     */
+    private static Block onlySuccessor(IrFunction function, Block block) {
+        Instruction terminator = block.terminator();
+        if (terminator.op != Op.JUMP)
+            return null;
+        Block successor = terminator.targets[0];
+        if (successor == block || successor == function.entry() || successor.predecessors.size() != 1)
+            return null;
+        return successor;
+    }
+}
@@ -0,0 +1,141 @@
+package lox.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The dominator tree of a function, computed with the iterative algorithm of
+ * "A Simple, Fast Dominance Algorithm" (Cooper, Harvey and Kennedy). A block
+ * dominates another if every path from the entry to the other goes through it.
+ */
+final class Dominators {
+    /** Reachable blocks in reverse postorder, the entry first */
+    final List<Block> order = new ArrayList<>();
+    private final Map<Block, Integer> indices = new HashMap<>();
+    private final int[] immediate;
+    private final Map<Block, List<Block>> children = new HashMap<>();
+
+    interface TreeVisitor {
+        void enter(Block block);
+
+        void exit(Block block);
+    }
+
+    Dominators(IrFunction function) {
+        postorder(function.entry());
+        Collections.reverse(order);
+        for (int i = 0; i < order.size(); i++)
+            indices.put(order.get(i), i);
+
+        immediate = new int[order.size()];
+        Arrays.fill(immediate, -1);
+        immediate[0] = 0;
+        boolean is_changed = true;
+        while (is_changed) {
+            is_changed = false;
+            for (int i = 1; i < order.size(); i++) {
+                int dominator = -1;
+                for (Block predecessor : order.get(i).predecessors) {
+                    Integer index = indices.get(predecessor);
+                    if (index == null || immediate[index] == -1)
+                        continue;
+                    dominator = dominator == -1 ? index : intersect(dominator, index);
+                }
+                if (immediate[i] != dominator) {
+                    immediate[i] = dominator;
+                    is_changed = true;
+                }
+            }
+        }
+
+        for (int i = 1; i < order.size(); i++)
+            children.computeIfAbsent(order.get(immediate[i]), block -> new ArrayList<>()).add(order.get(i));
+    }
+
+    private void postorder(Block entry) {
+        Set<Block> visited = new HashSet<>();
+        Deque<Block> blocks = new ArrayDeque<>();
+        Deque<Integer> next_successor = new ArrayDeque<>();
+        visited.add(entry);
+        blocks.push(entry);
+        next_successor.push(0);
+        while (!blocks.isEmpty()) {
+            Block block = blocks.peek();
+            int index = next_successor.pop();
+            Block[] successors = block.successors();
+            if (index == successors.length) {
+                order.add(blocks.pop());
+                continue;
+            }
+
+            next_successor.push(index + 1);
+            if (visited.add(successors[index])) {
+                blocks.push(successors[index]);
+                next_successor.push(0);
+            }
+        }
+    }
+
+    private int intersect(int first, int second) {
+        while (first != second) {
+            while (first > second)
+                first = immediate[first];
+            while (second > first)
+                second = immediate[second];
+        }
+        return first;
+    }
+
+    boolean isReachable(Block block) {
+        return indices.containsKey(block);
+    }
+
+    /**
+     * @return Whether {@code dominator} dominates {@code block}, which also
+     *         holds if they are the same block
+     */
+    boolean dominates(Block dominator, Block block) {
+        int target = indices.get(dominator);
+        int index = indices.get(block);
+        while (index > target)
+            index = immediate[index];
+        return index == target;
+    }
+
+    /**
+     * @return The blocks immediately dominated by {@code block}
+     */
+    List<Block> children(Block block) {
+        return children.getOrDefault(block, List.of());
+    }
+
+    /**
+     * Visits the dominator tree depth first, without recursing since the tree
+     * can be as deep as the function is long.
+     */
+    void walk(TreeVisitor visitor) {
+        Set<Block> entered = new HashSet<>();
+        Deque<Block> pending = new ArrayDeque<>();
+        pending.push(order.get(0));
+        while (!pending.isEmpty()) {
+            Block block = pending.peek();
+            if (!entered.add(block)) {
+                visitor.exit(pending.pop());
+                continue;
+            }
+
+            visitor.enter(block);
+            List<Block> children = children(block);
+            for (int i = children.size() - 1; i >= 0; i--)
+                pending.push(children.get(i));
+        }
+    }
+}
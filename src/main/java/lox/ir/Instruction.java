@@ -0,0 +1,92 @@
+package lox.ir;
+
+import java.util.Arrays;
+
+import lox.Token;
+
+/**
+ * An instruction of a {@link Block}, which is also the SSA value it defines.
+ * Operands are other instructions, the meaning of the remaining fields depends
+ * on the {@link Op}.
+ */
+final class Instruction {
+    Op op;
+    Instruction[] operands;
+    /** Constant value, function of {@link Op#FUNCTION} or message of {@link Op#THROW} */
+    Object constant;
+    /** Token runtime errors are reported at, or the name of a variable */
+    Token token;
+    int slot;
+    int depth;
+    /** Successors of a {@link Op#JUMP} or {@link Op#BRANCH} */
+    Block[] targets;
+    Block block;
+    /** Unique in the function, the register of the value once it is prepared to run */
+    int id;
+
+    /*
+     * Filled in by IrFunction.prepare
+     */
+    int[] arguments;
+    /** Phi moves for each target */
+    Transfer[] transfers;
+
+    Instruction(int id, Op op, Instruction... operands) {
+        this.id = id;
+        this.op = op;
+        this.operands = operands;
+    }
+
+    boolean isPhi() {
+        return op == Op.PHI;
+    }
+
+    boolean isConstant() {
+        return op == Op.CONSTANT;
+    }
+
+    void addOperand(Instruction operand) {
+        operands = Arrays.copyOf(operands, operands.length + 1);
+        operands[operands.length - 1] = operand;
+    }
+
+    void removeOperand(int index) {
+        Instruction[] remaining = new Instruction[operands.length - 1];
+        System.arraycopy(operands, 0, remaining, 0, index);
+        System.arraycopy(operands, index + 1, remaining, index, remaining.length - index);
+        operands = remaining;
+    }
+
+    /**
+     * Moves the values flowing along one edge into the phis of its target. The
+     * moves are parallel, a phi reading another phi of the target reads its old
+     * value.
+     */
+    static final class Transfer {
+        final Block target;
+        /** Pairs of destination and source registers */
+        final int[] moves;
+        final boolean is_parallel;
+
+        Transfer(Block target, int[] moves, boolean is_parallel) {
+            this.target = target;
+            this.moves = moves;
+            this.is_parallel = is_parallel;
+        }
+
+        Block run(Object[] registers) {
+            if (!is_parallel) {
+                for (int i = 0; i < moves.length; i += 2)
+                    registers[moves[i]] = registers[moves[i + 1]];
+                return target;
+            }
+
+            Object[] values = new Object[moves.length / 2];
+            for (int i = 0; i < moves.length; i += 2)
+                values[i / 2] = registers[moves[i + 1]];
+            for (int i = 0; i < moves.length; i += 2)
+                registers[moves[i]] = values[i / 2];
+            return target;
+        }
+    }
+}
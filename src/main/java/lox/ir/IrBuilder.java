@@ -0,0 +1,679 @@
+package lox.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lox.Token;
+import lox.TokenType;
+import lox.ast.Expr;
+import lox.ast.Expr.*;
+import lox.ast.Stmt;
+import lox.ast.Stmt.*;
+
+/**
+ * Builds the IR of a resolved program. Variables are turned into SSA values
+ * while the blocks are built, following "Simple and Efficient Construction of
+ * Static Single Assignment Form" (Braun et al.): a read looks for the current
+ * value of the variable in the block, then in its predecessors, and places phis
+ * where they merge different values. Blocks whose predecessors are not all
+ * known yet, like loop headers, get phis that are completed once they are.
+ * <br/>
+ * Variables used by nested functions are kept in environments instead, see
+ * {@link CaptureAnalysis}. Instructions evaluate operands and check them in
+ * the same order as the tree-walking interpreter, so they fail with the same
+ * errors.
+ */
+public class IrBuilder implements Expr.Visitor<Instruction>, Stmt.Visitor<Void> {
+    /** A variable in SSA form, with its value at the end of each block that sets it */
+    private static final class Local {
+        final Map<Block, Instruction> values = new HashMap<>();
+    }
+
+    /** A scope of the resolver */
+    private static final class Scope {
+        final Set<Integer> captured;
+        /** Environment holding the captured slots, if there are any */
+        Instruction environment;
+        final Map<Integer, Local> locals = new HashMap<>();
+
+        Scope(Set<Integer> captured) {
+            this.captured = captured;
+        }
+
+        boolean hasEnvironment() {
+            return !captured.isEmpty();
+        }
+    }
+
+    /** Continue statements go to {@code next}, break statements to {@code exit} */
+    private record Loop(Block next, Block exit) {
+    }
+
+    /** The function being built */
+    private static final class Context {
+        final IrFunction function;
+        /** Index of the function's scope in {@link IrBuilder#scopes} */
+        final int scope_index;
+        Instruction closure;
+        Block current;
+        final Set<Block> sealed = new HashSet<>();
+        /** Phis of unsealed blocks, completed when the block is sealed */
+        final Map<Block, Map<Local, Instruction>> incomplete_phis = new HashMap<>();
+        /** Phis removed while building, and the value that replaces them */
+        final Map<Instruction, Instruction> replaced = new HashMap<>();
+        final Deque<Loop> loops = new ArrayDeque<>();
+
+        Context(IrFunction function, int scope_index) {
+            this.function = function;
+            this.scope_index = scope_index;
+        }
+    }
+
+    private Map<Object, Set<Integer>> captured;
+    private final List<Scope> scopes = new ArrayList<>();
+    private Context context;
+
+    /**
+     * @return The top level statements as a function without parameters, the
+     *         functions they declare are nested in it
+     */
+    public IrFunction build(List<Stmt> statements) {
+        captured = CaptureAnalysis.analyze(statements);
+
+        IrFunction script = new IrFunction("script", 0);
+        beginFunction(script, false);
+        // Every top level declaration takes the next slot of the program's scope
+        int slot_count = 0;
+        for (Stmt statement : statements) {
+            if (statement instanceof Var || statement instanceof Function)
+                slot_count++;
+        }
+        beginScope(statements, slot_count);
+        buildAll(statements);
+        endScope();
+        endFunction();
+        return script;
+    }
+
+    private void buildAll(List<Stmt> statements) {
+        for (Stmt statement : statements)
+            statement.accept(this);
+    }
+
+    private Instruction build(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void beginFunction(IrFunction function, boolean has_closure) {
+        context = new Context(function, scopes.size());
+        context.current = function.newBlock();
+        seal(context.current);
+        if (has_closure)
+            context.closure = emit(Op.CLOSURE);
+    }
+
+    private void endFunction() {
+        if (!context.current.isTerminated())
+            emit(Op.RETURN, constant(null));
+        context.function.replaceUses(context.replaced);
+        context.function.removeTrivialPhis();
+    }
+
+    private void beginScope(Object key, int slot_count) {
+        Scope scope = new Scope(captured.getOrDefault(key, Set.of()));
+        if (scope.hasEnvironment()) {
+            scope.environment = emit(Op.NEW_ENVIRONMENT, environment());
+            scope.environment.slot = slot_count;
+        }
+        scopes.add(scope);
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    /**
+     * @return The innermost environment, which is also the one new functions
+     *         and environments are enclosed by
+     */
+    private Instruction environment() {
+        for (int i = scopes.size() - 1; i >= context.scope_index; i--) {
+            if (scopes.get(i).hasEnvironment())
+                return scopes.get(i).environment;
+        }
+        return context.closure != null ? context.closure : constant(null);
+    }
+
+    /*
+     * Emitting instructions
+     */
+
+    /**
+     * Appends an instruction to the current block. Code after a jump or return
+     * goes to a new block that nothing leads to.
+     */
+    private Instruction emit(Op op, Instruction... operands) {
+        if (context.current.isTerminated()) {
+            context.current = context.function.newBlock();
+            seal(context.current);
+        }
+        Instruction instruction = context.function.newInstruction(op, operands);
+        context.current.append(instruction);
+        return instruction;
+    }
+
+    private Instruction emit(Op op, Token token, Instruction... operands) {
+        Instruction instruction = emit(op, operands);
+        instruction.token = token;
+        return instruction;
+    }
+
+    private Instruction constant(Object value) {
+        Instruction instruction = emit(Op.CONSTANT);
+        instruction.constant = value;
+        return instruction;
+    }
+
+    private void jump(Block target) {
+        emit(Op.JUMP).targets = new Block[] { target };
+        target.predecessors.add(context.current);
+    }
+
+    private void branch(Instruction condition, Block consequent, Block alternate) {
+        emit(Op.BRANCH, condition).targets = new Block[] { consequent, alternate };
+        consequent.predecessors.add(context.current);
+        alternate.predecessors.add(context.current);
+    }
+
+    /**
+     * Continues in {@code block}, whose predecessors are all known.
+     */
+    private void enter(Block block) {
+        seal(block);
+        context.current = block;
+    }
+
+    /*
+     * SSA construction
+     */
+
+    private void write(Local local, Block block, Instruction value) {
+        local.values.put(block, value);
+    }
+
+    private Instruction read(Local local, Block block) {
+        Instruction value = local.values.get(block);
+        if (value != null)
+            return IrFunction.resolve(context.replaced, value);
+
+        if (!context.sealed.contains(block)) {
+            value = phi(block);
+            context.incomplete_phis.computeIfAbsent(block, key -> new HashMap<>()).put(local, value);
+        } else if (block.predecessors.size() == 1) {
+            value = read(local, block.predecessors.get(0));
+        } else if (block.predecessors.isEmpty()) {
+            // Only happens in blocks nothing leads to
+            value = context.function.newInstruction(Op.CONSTANT);
+            block.instructions.add(block.phiCount(), value);
+            value.block = block;
+        } else {
+            value = phi(block);
+            write(local, block, value);
+            value = addPhiOperands(local, value);
+        }
+        write(local, block, value);
+        return value;
+    }
+
+    private Instruction phi(Block block) {
+        Instruction phi = context.function.newInstruction(Op.PHI);
+        phi.block = block;
+        block.instructions.add(block.phiCount(), phi);
+        return phi;
+    }
+
+    private Instruction addPhiOperands(Local local, Instruction phi) {
+        for (Block predecessor : phi.block.predecessors)
+            phi.addOperand(read(local, predecessor));
+        return removeTrivialPhi(phi);
+    }
+
+    /**
+     * @return The only value the phi merges, or the phi if it merges several.
+     *         Phis that become trivial later are removed once the function is
+     *         complete.
+     */
+    private Instruction removeTrivialPhi(Instruction phi) {
+        Instruction same = null;
+        for (Instruction operand : phi.operands) {
+            operand = IrFunction.resolve(context.replaced, operand);
+            if (operand == same || operand == phi)
+                continue;
+            if (same != null)
+                return phi;
+            same = operand;
+        }
+        if (same == null)
+            return phi;
+
+        phi.block.instructions.remove(phi);
+        context.replaced.put(phi, same);
+        return same;
+    }
+
+    private void seal(Block block) {
+        context.sealed.add(block);
+        Map<Local, Instruction> phis = context.incomplete_phis.remove(block);
+        if (phis != null) {
+            for (Map.Entry<Local, Instruction> entry : phis.entrySet())
+                addPhiOperands(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /*
+     * Variables
+     */
+
+    private void declare(int slot, Token name, Instruction value) {
+        Scope scope = scopes.get(scopes.size() - 1);
+        if (scope.captured.contains(slot)) {
+            emit(Op.STORE, name, scope.environment, value).slot = slot;
+            return;
+        }
+
+        Local local = new Local();
+        scope.locals.put(slot, local);
+        write(local, context.current, value);
+    }
+
+    private Instruction readVariable(int depth, int slot, Token name) {
+        int index = scopes.size() - 1 - depth;
+        Scope scope = scopes.get(index);
+        if (!scope.captured.contains(slot))
+            return read(scope.locals.get(slot), context.current);
+
+        Instruction load = emit(Op.LOAD, name, environmentOf(index));
+        load.depth = environmentDepth(index);
+        load.slot = slot;
+        return load;
+    }
+
+    private void assignVariable(int depth, int slot, Token name, Instruction value) {
+        int index = scopes.size() - 1 - depth;
+        Scope scope = scopes.get(index);
+        if (!scope.captured.contains(slot)) {
+            write(scope.locals.get(slot), context.current, value);
+            return;
+        }
+
+        Instruction store = emit(Op.STORE, name, environmentOf(index), value);
+        store.depth = environmentDepth(index);
+        store.slot = slot;
+    }
+
+    /**
+     * @return The environment of the scope at {@code index} if it belongs to the
+     *         current function, otherwise the closure
+     */
+    private Instruction environmentOf(int index) {
+        return index >= context.scope_index ? scopes.get(index).environment : context.closure;
+    }
+
+    /**
+     * @return The number of environments between {@link #environmentOf} and
+     *         the environment of the scope at {@code index}
+     */
+    private int environmentDepth(int index) {
+        int depth = 0;
+        for (int i = index + 1; i < context.scope_index; i++) {
+            if (scopes.get(i).hasEnvironment())
+                depth++;
+        }
+        return depth;
+    }
+
+    /*
+     * Statements
+     */
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.slot_count == 0) {
+            buildAll(stmt.statements);
+            return null;
+        }
+
+        beginScope(stmt, stmt.slot_count);
+        buildAll(stmt.statements);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(If stmt) {
+        Instruction condition = build(stmt.condition);
+        Block consequent = context.function.newBlock();
+        Block alternate = stmt.alternate == null ? null : context.function.newBlock();
+        Block join = context.function.newBlock();
+        branch(condition, consequent, alternate == null ? join : alternate);
+
+        enter(consequent);
+        stmt.consequent.accept(this);
+        if (!context.current.isTerminated())
+            jump(join);
+
+        if (alternate != null) {
+            enter(alternate);
+            stmt.alternate.accept(this);
+            if (!context.current.isTerminated())
+                jump(join);
+        }
+
+        enter(join);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Expression stmt) {
+        build(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Function stmt) {
+        IrFunction function = new IrFunction(stmt.name.lexeme, stmt.params.size());
+        context.function.functions.add(function);
+        Instruction environment = environment();
+
+        Context enclosing = context;
+        beginFunction(function, true);
+        beginScope(stmt, stmt.slot_count);
+        for (int i = 0; i < stmt.params.size(); i++) {
+            Instruction parameter = emit(Op.PARAMETER);
+            parameter.slot = i;
+            declare(i, stmt.params.get(i), parameter);
+        }
+        buildAll(stmt.body);
+        endScope();
+        endFunction();
+        context = enclosing;
+
+        Instruction closure = emit(Op.FUNCTION, stmt.name, environment);
+        closure.constant = function;
+        declare(stmt.slot, stmt.name, closure);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Return stmt) {
+        if (!stmt.is_tail_call) {
+            emit(Op.RETURN, stmt.value == null ? constant(null) : build(stmt.value));
+            return null;
+        }
+
+        Call call = (Call) stmt.value;
+        emit(Op.TAIL_CALL, call.paren, buildCall(call));
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Print stmt) {
+        emit(Op.PRINT, build(stmt.expression));
+        return null;
+    }
+
+    /**
+     * The condition is tested in the loop header, which {@code continue}
+     * statements and the end of the body go back to.
+     */
+    @Override
+    public Void visitWhileStmt(While stmt) {
+        Block header = context.function.newBlock();
+        jump(header);
+        context.current = header;
+
+        Instruction condition = build(stmt.condition);
+        Block body = context.function.newBlock();
+        Block exit = context.function.newBlock();
+        branch(condition, body, exit);
+
+        enter(body);
+        context.loops.push(new Loop(header, exit));
+        stmt.body.accept(this);
+        context.loops.pop();
+        if (!context.current.isTerminated())
+            jump(header);
+
+        seal(header);
+        enter(exit);
+        return null;
+    }
+
+    /**
+     * Like a while loop, with the increment in a block of its own between the
+     * body and the header, which {@code continue} statements go to.
+     */
+    @Override
+    public Void visitForStmt(For stmt) {
+        if (stmt.slot_count != 0)
+            beginScope(stmt, stmt.slot_count);
+        if (stmt.initializer != null)
+            stmt.initializer.accept(this);
+
+        Block header = context.function.newBlock();
+        jump(header);
+        context.current = header;
+
+        Instruction condition = build(stmt.condition);
+        Block body = context.function.newBlock();
+        Block exit = context.function.newBlock();
+        branch(condition, body, exit);
+
+        enter(body);
+        Block next = stmt.increment == null ? header : context.function.newBlock();
+        context.loops.push(new Loop(next, exit));
+        stmt.body.accept(this);
+        context.loops.pop();
+        if (!context.current.isTerminated())
+            jump(next);
+
+        if (next != header && !next.predecessors.isEmpty()) {
+            enter(next);
+            build(stmt.increment);
+            jump(header);
+        }
+
+        seal(header);
+        enter(exit);
+        if (stmt.slot_count != 0)
+            endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Break stmt) {
+        if (context.loops.isEmpty())
+            emit(Op.THROW, stmt.keyword).constant = "break not allowed outside of loop.";
+        else
+            jump(context.loops.peek().exit());
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Continue stmt) {
+        if (context.loops.isEmpty())
+            emit(Op.THROW, stmt.keyword).constant = "continue not allowed outside of loop.";
+        else
+            jump(context.loops.peek().next());
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Var stmt) {
+        Instruction value = stmt.initializer == null ? constant(null) : build(stmt.initializer);
+        declare(stmt.slot, stmt.name, value);
+        return null;
+    }
+
+    /*
+     * Expressions
+     */
+
+    @Override
+    public Instruction visitAssignExpr(Assign expr) {
+        Instruction value = build(expr.value);
+        if (expr.depth == -1)
+            emit(Op.SET_GLOBAL, expr.identifier, value).slot = expr.slot;
+        else
+            assignVariable(expr.depth, expr.slot, expr.identifier, value);
+        return value;
+    }
+
+    @Override
+    public Instruction visitVariableExpr(Variable expr) {
+        if (expr.depth != -1)
+            return readVariable(expr.depth, expr.slot, expr.name);
+
+        Instruction global = emit(Op.GLOBAL, expr.name);
+        global.slot = expr.slot;
+        return global;
+    }
+
+    @Override
+    public Instruction visitTernaryExpr(Ternary expr) {
+        Local result = new Local();
+        Instruction condition = build(expr.condition);
+        Block consequent = context.function.newBlock();
+        Block alternate = context.function.newBlock();
+        Block join = context.function.newBlock();
+        branch(condition, consequent, alternate);
+
+        enter(consequent);
+        write(result, context.current, build(expr.consequent));
+        jump(join);
+
+        enter(alternate);
+        write(result, context.current, build(expr.alternate));
+        jump(join);
+
+        enter(join);
+        return read(result, join);
+    }
+
+    /**
+     * Both operands are evaluated before either is checked to be a number.
+     */
+    @Override
+    public Instruction visitBinaryExpr(Binary expr) {
+        Instruction left = build(expr.left);
+        Instruction right = build(expr.right);
+        Token operator = expr.operator;
+
+        return switch (operator.type) {
+            case COMMA -> right;
+            case PLUS -> emit(Op.ADD, operator, left, right);
+            case BANG_EQUAL -> emit(Op.NOT_EQUAL, left, right);
+            case EQUAL_EQUAL -> emit(Op.EQUAL, left, right);
+            case GREATER -> numeric(Op.GREATER, operator, left, right);
+            case GREATER_EQUAL -> numeric(Op.GREATER_EQUAL, operator, left, right);
+            case LESS -> numeric(Op.LESS, operator, left, right);
+            case LESS_EQUAL -> numeric(Op.LESS_EQUAL, operator, left, right);
+            case MINUS -> numeric(Op.SUBTRACT, operator, left, right);
+            case SLASH -> numeric(Op.DIVIDE, operator, left, right);
+            case STAR -> numeric(Op.MULTIPLY, operator, left, right);
+            default -> throw new IllegalStateException("Unexpected binary operator " + operator.type);
+        };
+    }
+
+    private Instruction numeric(Op op, Token operator, Instruction left, Instruction right) {
+        left = emit(Op.CHECK_NUMBER, operator, left);
+        right = emit(Op.CHECK_NUMBER, operator, right);
+        return emit(op, operator, left, right);
+    }
+
+    /**
+     * @return The callee, checked to be callable, followed by the arguments
+     */
+    private Instruction[] buildCall(Call expr) {
+        Instruction[] operands = new Instruction[expr.arguments.size() + 1];
+        operands[0] = emit(Op.CHECK_CALLABLE, expr.paren, build(expr.callee));
+        for (int i = 0; i < expr.arguments.size(); i++)
+            operands[i + 1] = build(expr.arguments.get(i));
+        return operands;
+    }
+
+    @Override
+    public Instruction visitCallExpr(Call expr) {
+        return emit(Op.CALL, expr.paren, buildCall(expr));
+    }
+
+    @Override
+    public Instruction visitArrayAccessExpr(ArrayAccess expr) {
+        Instruction array = emit(Op.CHECK_ARRAY, expr.square, build(expr.array));
+        return emit(Op.INDEX, expr.square, array, build(expr.index));
+    }
+
+    /**
+     * The right operand is only evaluated when the left one doesn't decide the
+     * value, the result is a phi of the left operand, or false, and the right
+     * one.
+     */
+    @Override
+    public Instruction visitLogicalExpr(Logical expr) {
+        Local result = new Local();
+        Instruction left = build(expr.left);
+        Block right = context.function.newBlock();
+        Block join = context.function.newBlock();
+        if (expr.operator.type == TokenType.OR) {
+            write(result, context.current, left);
+            branch(left, join, right);
+        } else {
+            write(result, context.current, constant(false));
+            branch(left, right, join);
+        }
+
+        enter(right);
+        write(result, context.current, emit(Op.OR_FALSE, build(expr.right)));
+        jump(join);
+
+        enter(join);
+        return read(result, join);
+    }
+
+    @Override
+    public Instruction visitGroupingExpr(Grouping expr) {
+        return build(expr.expression);
+    }
+
+    @Override
+    public Instruction visitLiteralExpr(Literal expr) {
+        return constant(expr.value);
+    }
+
+    @Override
+    public Instruction visitTemplateLiteralExpr(TemplateLiteral expr) {
+        return build(expr.expression);
+    }
+
+    @Override
+    public Instruction visitTemplateStringExpr(TemplateString expr) {
+        Instruction[] parts = new Instruction[expr.templates.size()];
+        for (int i = 0; i < parts.length; i++)
+            parts[i] = build(expr.templates.get(i));
+        return emit(Op.TEMPLATE, parts);
+    }
+
+    @Override
+    public Instruction visitUnaryExpr(Unary expr) {
+        Instruction right = build(expr.right);
+        if (expr.operator.type == TokenType.MINUS)
+            return emit(Op.NEGATE, expr.operator, emit(Op.CHECK_NUMBER, expr.operator, right));
+        return emit(Op.NOT, right);
+    }
+}
@@ -0,0 +1,47 @@
+package lox.ir;
+
+import lox.interpreter.Environment;
+import lox.interpreter.Interpreter;
+import lox.interpreter.LoxCallable;
+import lox.jit.TailCall;
+
+/**
+ * A Lox function run by {@link IrInterpreter}, its IR together with the
+ * environment it was declared in.
+ */
+final class IrClosure extends LoxCallable {
+    final IrInterpreter interpreter;
+    final IrFunction function;
+    final Environment closure;
+
+    IrClosure(IrInterpreter interpreter, IrFunction function, Environment closure) {
+        super(function.arity);
+        this.interpreter = interpreter;
+        this.function = function;
+        this.closure = closure;
+    }
+
+    /**
+     * Makes the tail calls returned by the body in a loop, so tail recursion
+     * doesn't grow the Java stack.
+     */
+    @Override
+    public Object callN(Interpreter unused, Object[] arguments) {
+        Object result = interpreter.run(function, closure, arguments);
+        while (result instanceof TailCall) {
+            IrClosure callee = (IrClosure) ((TailCall) result).function();
+            result = interpreter.run(callee.function, callee.closure, ((TailCall) result).arguments());
+        }
+        return result;
+    }
+
+    @Override
+    public Object tailCall(Interpreter unused, Object[] arguments) {
+        return new TailCall(this, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<fn %s>", function.name);
+    }
+}
@@ -0,0 +1,210 @@
+package lox.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lox.ir.Instruction.Transfer;
+
+/**
+ * The control-flow graph of a Lox function, or of the top level statements of a
+ * program, in SSA form. The first block is the entry.
+ */
+public final class IrFunction {
+    final String name;
+    final int arity;
+    final List<Block> blocks = new ArrayList<>();
+    /** Functions declared in the body, not including those nested in them */
+    final List<IrFunction> functions = new ArrayList<>();
+    private int next_block = 0;
+    private int next_id = 0;
+    /** Number of registers a call needs, set by {@link #prepare()} */
+    int register_count = -1;
+
+    IrFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    Block entry() {
+        return blocks.get(0);
+    }
+
+    Block newBlock() {
+        Block block = new Block(next_block++);
+        blocks.add(block);
+        return block;
+    }
+
+    Instruction newInstruction(Op op, Instruction... operands) {
+        return new Instruction(next_id++, op, operands);
+    }
+
+    /**
+     * @return An upper bound of the ids of the instructions
+     */
+    int idCount() {
+        return next_id;
+    }
+
+    /**
+     * Makes every use of a key use its value instead, following chains of
+     * replacements.
+     */
+    void replaceUses(Map<Instruction, Instruction> replacements) {
+        if (replacements.isEmpty())
+            return;
+        for (Block block : blocks) {
+            for (Instruction instruction : block.instructions) {
+                Instruction[] operands = instruction.operands;
+                for (int i = 0; i < operands.length; i++)
+                    operands[i] = resolve(replacements, operands[i]);
+            }
+        }
+    }
+
+    static Instruction resolve(Map<Instruction, Instruction> replacements, Instruction value) {
+        Instruction replacement;
+        while ((replacement = replacements.get(value)) != null)
+            value = replacement;
+        return value;
+    }
+
+    /**
+     * Removes phis that only merge one value, apart from themselves. A phi
+     * without any other value is in a block that never runs, it becomes nil.
+     */
+    void removeTrivialPhis() {
+        boolean is_changed = true;
+        while (is_changed) {
+            is_changed = false;
+            Map<Instruction, Instruction> replacements = new HashMap<>();
+            for (Block block : blocks) {
+                for (int i = 0; i < block.instructions.size(); i++) {
+                    Instruction phi = block.instructions.get(i);
+                    if (!phi.isPhi())
+                        break;
+
+                    Instruction same = null;
+                    boolean is_trivial = true;
+                    for (Instruction operand : phi.operands) {
+                        operand = resolve(replacements, operand);
+                        if (operand == phi || operand == same)
+                            continue;
+                        if (same != null) {
+                            is_trivial = false;
+                            break;
+                        }
+                        same = operand;
+                    }
+                    if (!is_trivial)
+                        continue;
+
+                    block.instructions.remove(i--);
+                    if (same == null) {
+                        phi.op = Op.CONSTANT;
+                        phi.operands = new Instruction[0];
+                        phi.constant = null;
+                        block.instructions.add(block.phiCount(), phi);
+                    } else {
+                        replacements.put(phi, same);
+                    }
+                    is_changed = true;
+                }
+            }
+            replaceUses(replacements);
+        }
+    }
+
+    /**
+     * Removes the blocks the entry doesn't lead to, and their edges into the
+     * remaining blocks.
+     */
+    void removeUnreachableBlocks() {
+        Set<Block> reachable = new HashSet<>();
+        Deque<Block> pending = new ArrayDeque<>();
+        reachable.add(entry());
+        pending.push(entry());
+        while (!pending.isEmpty()) {
+            for (Block successor : pending.pop().successors()) {
+                if (reachable.add(successor))
+                    pending.push(successor);
+            }
+        }
+
+        blocks.removeIf(block -> !reachable.contains(block));
+        for (Block block : blocks) {
+            for (int i = block.predecessors.size() - 1; i >= 0; i--) {
+                if (!reachable.contains(block.predecessors.get(i)))
+                    block.removePredecessor(i);
+            }
+        }
+    }
+
+    /**
+     * Numbers the instructions in block order, so the printed IR reads top to
+     * bottom.
+     */
+    void renumber() {
+        next_id = 0;
+        for (Block block : blocks) {
+            for (Instruction instruction : block.instructions)
+                instruction.id = next_id++;
+        }
+    }
+
+    /**
+     * Lays out the blocks for {@link IrInterpreter}: every value gets the
+     * register of its id, and every edge the moves into the phis of its target.
+     */
+    void prepare() {
+        renumber();
+        register_count = next_id;
+        for (Block block : blocks) {
+            block.code = block.instructions.toArray(new Instruction[0]);
+            block.phi_count = block.phiCount();
+            for (Instruction instruction : block.code) {
+                instruction.arguments = new int[instruction.operands.length];
+                for (int i = 0; i < instruction.operands.length; i++)
+                    instruction.arguments[i] = instruction.operands[i].id;
+            }
+
+            Instruction terminator = block.terminator();
+            if (terminator.targets != null) {
+                terminator.transfers = new Transfer[terminator.targets.length];
+                for (int i = 0; i < terminator.targets.length; i++)
+                    terminator.transfers[i] = transfer(block, terminator.targets[i]);
+            }
+        }
+    }
+
+    private static Transfer transfer(Block from, Block to) {
+        int index = to.predecessors.indexOf(from);
+        int phi_count = to.phiCount();
+        Set<Integer> destinations = new HashSet<>();
+        List<Integer> moves = new ArrayList<>();
+        for (int i = 0; i < phi_count; i++) {
+            Instruction phi = to.instructions.get(i);
+            destinations.add(phi.id);
+            if (phi.operands[index] != phi) {
+                moves.add(phi.id);
+                moves.add(phi.operands[index].id);
+            }
+        }
+
+        boolean is_parallel = false;
+        for (int i = 1; i < moves.size(); i += 2)
+            is_parallel |= destinations.contains(moves.get(i));
+        return new Transfer(to, moves.stream().mapToInt(Integer::intValue).toArray(), is_parallel);
+    }
+
+    @Override
+    public String toString() {
+        return new IrPrinter().print(this);
+    }
+}
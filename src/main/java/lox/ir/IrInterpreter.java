@@ -0,0 +1,194 @@
+package lox.ir;
+
+import static lox.interpreter.InterpreterUtil.*;
+
+import lox.Lox;
+import lox.interpreter.Environment;
+import lox.interpreter.NativeFunction;
+import lox.interpreter.RuntimeError;
+import lox.ir.Instruction.Transfer;
+import lox.jit.JitRuntime;
+
+/**
+ * Runs the IR of a program. Every call gets an array of registers, one for each
+ * instruction of the function, and runs its blocks one instruction after the
+ * other. Leaving a block moves the values of the edge into the phis of the next
+ * block.
+ */
+public class IrInterpreter {
+    private final Object[] globals = NativeFunction.createAll();
+
+    /**
+     * Runs the program, reporting runtime errors the same way the tree-walking
+     * interpreter does.
+     */
+    public void interpret(IrFunction script) {
+        try {
+            run(script, null, new Object[0]);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    /**
+     * @return The value returned by the function, or a
+     *         {@link lox.jit.TailCall} the caller has to make
+     */
+    Object run(IrFunction function, Environment closure, Object[] arguments) {
+        if (function.register_count == -1)
+            function.prepare();
+
+        Object[] registers = new Object[function.register_count];
+        Block block = function.entry();
+        for (;;) {
+            Instruction[] code = block.code;
+            Transfer transfer = null;
+            execute: for (int i = block.phi_count; i < code.length; i++) {
+                Instruction instruction = code[i];
+                int[] operands = instruction.arguments;
+                Object value;
+                switch (instruction.op) {
+                    case CONSTANT:
+                        value = instruction.constant;
+                        break;
+                    case PARAMETER:
+                        value = arguments[instruction.slot];
+                        break;
+                    case CLOSURE:
+                        value = closure;
+                        break;
+                    case GLOBAL:
+                        value = globals[instruction.slot];
+                        break;
+                    case SET_GLOBAL:
+                        globals[instruction.slot] = registers[operands[0]];
+                        continue;
+                    case NEW_ENVIRONMENT:
+                        value = new Environment((Environment) registers[operands[0]], instruction.slot);
+                        break;
+                    case LOAD:
+                        value = ((Environment) registers[operands[0]]).getAt(instruction.depth, instruction.slot,
+                                instruction.token);
+                        break;
+                    case STORE:
+                        ((Environment) registers[operands[0]]).assignAt(instruction.depth, instruction.slot,
+                                instruction.token, registers[operands[1]]);
+                        continue;
+                    case FUNCTION:
+                        value = new IrClosure(this, (IrFunction) instruction.constant,
+                                (Environment) registers[operands[0]]);
+                        break;
+                    case CHECK_NUMBER:
+                        value = registers[operands[0]];
+                        if (!(value instanceof Double))
+                            throw new RuntimeError(instruction.token, "Operand must be a number.");
+                        break;
+                    case CHECK_ARRAY:
+                        value = JitRuntime.checkIndexable(registers[operands[0]], instruction.token);
+                        break;
+                    case CHECK_CALLABLE:
+                        value = JitRuntime.checkCallable(registers[operands[0]], instruction.token);
+                        break;
+                    case NOT:
+                        value = !isTruthy(registers[operands[0]]);
+                        break;
+                    case OR_FALSE:
+                        value = registers[operands[0]];
+                        if (!isTruthy(value))
+                            value = false;
+                        break;
+                    case ADD:
+                        value = JitRuntime.add(registers[operands[0]], registers[operands[1]], instruction.token);
+                        break;
+                    case NEGATE:
+                        value = -(double) registers[operands[0]];
+                        break;
+                    case NUMBER_ADD:
+                        value = (double) registers[operands[0]] + (double) registers[operands[1]];
+                        break;
+                    case SUBTRACT:
+                        value = (double) registers[operands[0]] - (double) registers[operands[1]];
+                        break;
+                    case MULTIPLY:
+                        value = (double) registers[operands[0]] * (double) registers[operands[1]];
+                        break;
+                    case DIVIDE:
+                        value = (double) registers[operands[0]] / (double) registers[operands[1]];
+                        break;
+                    case LESS:
+                        value = (double) registers[operands[0]] < (double) registers[operands[1]];
+                        break;
+                    case LESS_EQUAL:
+                        value = (double) registers[operands[0]] <= (double) registers[operands[1]];
+                        break;
+                    case GREATER:
+                        value = (double) registers[operands[0]] > (double) registers[operands[1]];
+                        break;
+                    case GREATER_EQUAL:
+                        value = (double) registers[operands[0]] >= (double) registers[operands[1]];
+                        break;
+                    case EQUAL:
+                        value = isEqual(registers[operands[0]], registers[operands[1]]);
+                        break;
+                    case NOT_EQUAL:
+                        value = !isEqual(registers[operands[0]], registers[operands[1]]);
+                        break;
+                    case TEMPLATE: {
+                        StringBuilder builder = new StringBuilder();
+                        for (int operand : operands)
+                            builder.append(stringify(registers[operand]));
+                        value = builder.toString();
+                        break;
+                    }
+                    case INDEX:
+                        value = JitRuntime.index(registers[operands[0]], registers[operands[1]], instruction.token);
+                        break;
+                    case CALL:
+                        value = call(registers, operands, instruction);
+                        break;
+                    case PRINT:
+                        JitRuntime.print(registers[operands[0]]);
+                        continue;
+                    case JUMP:
+                        transfer = instruction.transfers[0];
+                        break execute;
+                    case BRANCH:
+                        transfer = instruction.transfers[isTruthy(registers[operands[0]]) ? 0 : 1];
+                        break execute;
+                    case RETURN:
+                        return registers[operands[0]];
+                    case TAIL_CALL:
+                        return JitRuntime.tailCall(null, registers[operands[0]], arguments(registers, operands),
+                                instruction.token);
+                    case THROW:
+                        throw new RuntimeError(instruction.token, (String) instruction.constant);
+                    default:
+                        throw new IllegalStateException("Unexpected instruction " + instruction.op);
+                }
+                registers[instruction.id] = value;
+            }
+            block = transfer.run(registers);
+        }
+    }
+
+    private static Object call(Object[] registers, int[] operands, Instruction instruction) {
+        Object callee = registers[operands[0]];
+        return switch (operands.length) {
+            case 1 -> JitRuntime.call0(null, callee, instruction.token);
+            case 2 -> JitRuntime.call1(null, callee, registers[operands[1]], instruction.token);
+            case 3 -> JitRuntime.call2(null, callee, registers[operands[1]], registers[operands[2]],
+                    instruction.token);
+            default -> JitRuntime.callN(null, callee, arguments(registers, operands), instruction.token);
+        };
+    }
+
+    /**
+     * @return The values of the operands after the callee
+     */
+    private static Object[] arguments(Object[] registers, int[] operands) {
+        Object[] arguments = new Object[operands.length - 1];
+        for (int i = 0; i < arguments.length; i++)
+            arguments[i] = registers[operands[i + 1]];
+        return arguments;
+    }
+}
@@ -0,0 +1,78 @@
+package lox.ir;
+
+import static lox.interpreter.InterpreterUtil.stringify;
+
+import java.util.StringJoiner;
+
+/**
+ * Prints a function and the functions nested in it, one instruction per line.
+ * Values are named by their id, blocks list their predecessors.
+ */
+public class IrPrinter {
+    private final StringBuilder builder = new StringBuilder();
+
+    public String print(IrFunction function) {
+        builder.setLength(0);
+        function.renumber();
+        printFunction(function);
+        return builder.toString();
+    }
+
+    private void printFunction(IrFunction function) {
+        builder.append(String.format("function %s/%d\n", function.name, function.arity));
+        for (Block block : function.blocks) {
+            builder.append("  b").append(block.id).append(':');
+            if (!block.predecessors.isEmpty()) {
+                StringJoiner predecessors = new StringJoiner(", ", " <- ", "");
+                for (Block predecessor : block.predecessors)
+                    predecessors.add("b" + predecessor.id);
+                builder.append(predecessors);
+            }
+            builder.append('\n');
+
+            for (Instruction instruction : block.instructions)
+                builder.append("    ").append(print(instruction)).append('\n');
+        }
+
+        for (IrFunction nested : function.functions) {
+            builder.append('\n');
+            nested.renumber();
+            printFunction(nested);
+        }
+    }
+
+    private String print(Instruction instruction) {
+        StringJoiner line = new StringJoiner(" ");
+        if (!instruction.op.is_terminator && instruction.op != Op.PRINT && instruction.op != Op.STORE
+                && instruction.op != Op.SET_GLOBAL)
+            line.add("v" + instruction.id + " =");
+        line.add(instruction.op.name().toLowerCase());
+
+        for (Instruction operand : instruction.operands)
+            line.add("v" + operand.id);
+        if (instruction.targets != null) {
+            for (Block target : instruction.targets)
+                line.add("b" + target.id);
+        }
+
+        switch (instruction.op) {
+            case CONSTANT -> line.add(literal(instruction.constant));
+            case PARAMETER -> line.add(Integer.toString(instruction.slot));
+            case NEW_ENVIRONMENT -> line.add("size " + instruction.slot);
+            case LOAD, STORE -> line.add(String.format("%d:%d %s", instruction.depth, instruction.slot,
+                    instruction.token.lexeme));
+            case GLOBAL, SET_GLOBAL -> line.add(instruction.slot + " " + instruction.token.lexeme);
+            case FUNCTION -> line.add(((IrFunction) instruction.constant).name);
+            case THROW -> line.add(literal(instruction.constant));
+            default -> {
+            }
+        }
+        return line.toString();
+    }
+
+    private static String literal(Object value) {
+        if (value instanceof String)
+            return '"' + (String) value + '"';
+        return stringify(value);
+    }
+}
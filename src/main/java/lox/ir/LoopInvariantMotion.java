@@ -0,0 +1,101 @@
+package lox.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves pure instructions whose operands are all defined outside a loop into
+ * the block before the loop, so they run once instead of every iteration.
+ * <br/>
+ * Instructions that can't fail are moved from anywhere in the loop. Those that
+ * can fail, like checks, only from the loop header ahead of anything else that
+ * can fail or has effects: the header runs whenever the loop is entered, so
+ * they would have failed at the same point anyway.
+ */
+final class LoopInvariantMotion {
+    static void run(IrFunction function) {
+        Dominators dominators = new Dominators(function);
+
+        // A loop is the header and the blocks that reach a back edge to it
+        Map<Block, Set<Block>> loops = new LinkedHashMap<>();
+        for (Block block : dominators.order) {
+            for (Block successor : block.successors()) {
+                if (!dominators.dominates(successor, block))
+                    continue;
+
+                Set<Block> body = loops.computeIfAbsent(successor, header -> new HashSet<>(Set.of(header)));
+                Deque<Block> pending = new ArrayDeque<>();
+                pending.push(block);
+                while (!pending.isEmpty()) {
+                    Block member = pending.pop();
+                    if (body.add(member))
+                        member.predecessors.forEach(pending::push);
+                }
+            }
+        }
+
+        // Inner loops first, what they move out can then leave the outer loop
+        List<Map.Entry<Block, Set<Block>>> ordered = new ArrayList<>(loops.entrySet());
+        ordered.sort((first, second) -> first.getValue().size() - second.getValue().size());
+        for (Map.Entry<Block, Set<Block>> loop : ordered)
+            hoist(loop.getKey(), loop.getValue(), dominators);
+    }
+
+    private static void hoist(Block header, Set<Block> body, Dominators dominators) {
+        Block preheader = null;
+        for (Block predecessor : header.predecessors) {
+            if (body.contains(predecessor))
+                continue;
+            if (preheader != null)
+                return;
+            preheader = predecessor;
+        }
+        if (preheader == null || preheader.successors().length != 1)
+            return;
+
+        for (Block block : dominators.order) {
+            if (!body.contains(block))
+                continue;
+
+            for (Iterator<Instruction> iterator = block.instructions.iterator(); iterator.hasNext();) {
+                Instruction instruction = iterator.next();
+                if (!instruction.op.is_pure || !isInvariant(instruction, body))
+                    continue;
+                if (instruction.op.can_throw && (block != header || !isFirstToThrow(instruction)))
+                    continue;
+
+                iterator.remove();
+                preheader.insertBeforeTerminator(instruction);
+            }
+        }
+    }
+
+    private static boolean isInvariant(Instruction instruction, Set<Block> body) {
+        for (Instruction operand : instruction.operands) {
+            if (body.contains(operand.block))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether only phis and instructions without effects that can't
+     *         fail run before {@code instruction} in its block
+     */
+    private static boolean isFirstToThrow(Instruction instruction) {
+        for (Instruction previous : instruction.block.instructions) {
+            if (previous == instruction)
+                return true;
+            if (!previous.isPhi() && !previous.op.isRemovable())
+                return false;
+        }
+        return true;
+    }
+}
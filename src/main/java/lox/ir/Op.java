@@ -0,0 +1,102 @@
+package lox.ir;
+
+/**
+ * Operations of {@link Instruction}s. The flags tell the optimizer what it may
+ * do with an instruction: pure instructions compute their value only from their
+ * operands, so equal ones can share a value, and instructions that neither
+ * throw nor have effects can be dropped when their value is unused.
+ */
+public enum Op {
+    /** The constant value */
+    CONSTANT(Op.PURE),
+    /** The argument at index {@code slot} */
+    PARAMETER(0),
+    /** The environment the running function was declared in */
+    CLOSURE(0),
+    /** One operand for every predecessor of the block, in the same order */
+    PHI(0),
+    /** Native function in global slot {@code slot} */
+    GLOBAL(0),
+    /** Stores operand 0 into global slot {@code slot} */
+    SET_GLOBAL(Op.EFFECTS),
+    /** New environment of {@code slot} slots enclosed by operand 0 */
+    NEW_ENVIRONMENT(0),
+    /** Slot {@code slot} of the environment {@code depth} levels up from operand 0 */
+    LOAD(0),
+    /** Stores operand 1 the same way {@link #LOAD} reads */
+    STORE(Op.EFFECTS),
+    /** Closure of the function in {@code constant} over the environment in operand 0 */
+    FUNCTION(0),
+    /** Operand 0, or an error if it is not a number */
+    CHECK_NUMBER(Op.PURE | Op.THROWS),
+    /** Operand 0, or an error if it is not an array */
+    CHECK_ARRAY(Op.PURE | Op.THROWS),
+    /** Operand 0, or an error if it can not be called */
+    CHECK_CALLABLE(Op.PURE | Op.THROWS),
+    NOT(Op.PURE),
+    /** Operand 0 if it is truthy, false otherwise, the value of a logical operator */
+    OR_FALSE(Op.PURE),
+    /** Adds numbers or concatenates strings */
+    ADD(Op.PURE | Op.THROWS),
+    EQUAL(Op.PURE),
+    NOT_EQUAL(Op.PURE),
+    /*
+     * Arithmetic and comparisons on operands known to be numbers, which always
+     * went through a check
+     */
+    NEGATE(Op.PURE),
+    NUMBER_ADD(Op.PURE),
+    SUBTRACT(Op.PURE),
+    MULTIPLY(Op.PURE),
+    DIVIDE(Op.PURE),
+    LESS(Op.PURE),
+    LESS_EQUAL(Op.PURE),
+    GREATER(Op.PURE),
+    GREATER_EQUAL(Op.PURE),
+    /** Concatenates its stringified operands */
+    TEMPLATE(Op.PURE),
+    /** Element of the array in operand 0 at the index in operand 1 */
+    INDEX(Op.PURE | Op.THROWS),
+    /** Calls operand 0 with the remaining operands */
+    CALL(Op.EFFECTS | Op.THROWS),
+    PRINT(Op.EFFECTS),
+    JUMP(Op.TERMINATOR),
+    /** Goes to the first target if operand 0 is truthy, the second otherwise */
+    BRANCH(Op.TERMINATOR),
+    RETURN(Op.TERMINATOR),
+    /** Makes a call like {@link #CALL} in place of the running function */
+    TAIL_CALL(Op.TERMINATOR | Op.THROWS),
+    /** Throws a runtime error with the message in {@code constant} */
+    THROW(Op.TERMINATOR | Op.THROWS);
+
+    private static final int PURE = 1;
+    private static final int THROWS = 2;
+    private static final int EFFECTS = 4;
+    private static final int TERMINATOR = 8;
+
+    /**
+     * Whether the value only depends on the operands. Running a pure
+     * instruction again with the same operands gives an equal value, or the same
+     * error.
+     */
+    public final boolean is_pure;
+    public final boolean can_throw;
+    /** Whether it has effects other than throwing */
+    public final boolean has_effects;
+    /** Whether it ends a block */
+    public final boolean is_terminator;
+
+    Op(int flags) {
+        this.is_pure = (flags & PURE) != 0;
+        this.can_throw = (flags & THROWS) != 0;
+        this.has_effects = (flags & (EFFECTS | TERMINATOR)) != 0;
+        this.is_terminator = (flags & TERMINATOR) != 0;
+    }
+
+    /**
+     * Whether an unused value of this operation can be removed.
+     */
+    public boolean isRemovable() {
+        return !can_throw && !has_effects;
+    }
+}
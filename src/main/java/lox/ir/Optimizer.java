@@ -0,0 +1,30 @@
+package lox.ir;
+
+import java.lang.System.Logger;
+import java.util.function.Consumer;
+
+/**
+ * Runs the optimization passes over a function and the functions nested in it.
+ * The IR after every pass is logged at debug level.
+ */
+public class Optimizer {
+    private static final Logger logger = System.getLogger(Optimizer.class.getName());
+
+    public IrFunction optimize(IrFunction function) {
+        for (IrFunction nested : function.functions)
+            optimize(nested);
+
+        run(function, "constant propagation", ConstantPropagation::run);
+        run(function, "check elimination", CheckElimination::run);
+        run(function, "common subexpression elimination", CommonSubexpressions::run);
+        run(function, "loop invariant code motion", LoopInvariantMotion::run);
+        run(function, "dead code elimination", DeadCodeElimination::run);
+        return function;
+    }
+
+    private static void run(IrFunction function, String name, Consumer<IrFunction> pass) {
+        pass.accept(function);
+        logger.log(Logger.Level.DEBUG, () -> String.format("IR of %s after %s:\n%s", function.name, name,
+                new IrPrinter().print(function)));
+    }
+}
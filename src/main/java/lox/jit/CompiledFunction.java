@@ -0,0 +1,37 @@
+package lox.jit;
+
+import lox.interpreter.Interpreter;
+
+/**
+ * The body of a Lox function compiled to JVM bytecode by {@link JitCompiler}.
+ * Only the entry point for the function's arity is generated, the others
+ * dispatch to it like those of {@link lox.interpreter.LoxCallable}.
+ * <br/>
+ * Each entry point returns the function's return value, or a {@link TailCall}
+ * for the caller to make. The closure is the function's array of
+ * {@link lox.interpreter.Upvalue}s in the interpreter, and the
+ * {@link lox.interpreter.Environment} it was declared in in a program compiled
+ * ahead of time.
+ */
+public abstract class CompiledFunction {
+    public Object invoke0(Interpreter interpreter, Object closure) {
+        return invokeN(interpreter, closure, new Object[0]);
+    }
+
+    public Object invoke1(Interpreter interpreter, Object closure, Object argument) {
+        return invokeN(interpreter, closure, new Object[] { argument });
+    }
+
+    public Object invoke2(Interpreter interpreter, Object closure, Object first, Object second) {
+        return invokeN(interpreter, closure, new Object[] { first, second });
+    }
+
+    public Object invokeN(Interpreter interpreter, Object closure, Object[] arguments) {
+        return switch (arguments.length) {
+            case 0 -> invoke0(interpreter, closure);
+            case 1 -> invoke1(interpreter, closure, arguments[0]);
+            case 2 -> invoke2(interpreter, closure, arguments[0], arguments[1]);
+            default -> throw new IllegalStateException("No entry point for " + arguments.length + " arguments");
+        };
+    }
+}
@@ -0,0 +1,24 @@
+package lox.jit;
+
+import lox.interpreter.Environment;
+import lox.interpreter.Interpreter;
+
+/**
+ * A while loop compiled to JVM bytecode by {@link JitCompiler} while the
+ * interpreter was running it. Variables declared outside the loop stay in the
+ * interpreter's environments, so the interpreter can switch to the compiled
+ * loop between any two iterations.
+ */
+public abstract class CompiledLoop {
+    /** Returned by {@link #run} when the loop finished or was exited by a break */
+    public static final Object COMPLETED = new Object();
+
+    /**
+     * Runs the loop from its condition.
+     * 
+     * @param environment The environment the interpreter was running the loop in
+     * @return {@link #COMPLETED}, or the value of a return statement in the loop,
+     *         which may be a {@link TailCall}
+     */
+    public abstract Object run(Interpreter interpreter, Environment environment);
+}
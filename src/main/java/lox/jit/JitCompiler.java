@@ -0,0 +1,1179 @@
+package lox.jit;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.System.Logger;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassTooLargeException;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import lox.Token;
+import lox.TokenType;
+import lox.ast.Expr;
+import lox.ast.Expr.*;
+import lox.ast.Stmt;
+import lox.ast.Stmt.*;
+import lox.aot.CompiledProgram;
+import lox.aot.LoxClosure;
+import lox.interpreter.Environment;
+import lox.interpreter.Interpreter;
+import lox.interpreter.InterpreterUtil;
+import lox.interpreter.RuntimeError;
+import lox.interpreter.Upvalue;
+import lox.scanner.Location;
+
+/**
+ * Compiles hot functions and loops of the tree walking interpreter to JVM
+ * bytecode, which is loaded as a hidden class and left to the JVM's own
+ * compilers from there.
+ * <br/>
+ * Variables declared inside the compiled code live in JVM locals, one per
+ * resolver slot of every scope, since nothing else can see them: functions
+ * declaring nested functions, which could capture them, are not compiled.
+ * Variables of enclosing functions are read through the function's
+ * {@link Upvalue}s, other variables declared outside from the interpreter's
+ * environments by depth and slot like the interpreter does. Operands of numeric operators are
+ * passed as unboxed doubles, like {@link Interpreter} does for numeric
+ * expressions.
+ * <br/>
+ * Code that can't be compiled keeps running in the interpreter,
+ * {@link #UNSUPPORTED} is stored in place of its compiled code.
+ * <br/>
+ * {@link #compileProgram} compiles a whole program ahead of time instead, into
+ * named classes that only need the runtime classes they refer to. There,
+ * scopes that declare functions, or enclose a scope that does, keep their
+ * variables in an {@link Environment} the functions can capture.
+ */
+public class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    /** Number of calls of a function before its body is compiled */
+    public static final int CALL_THRESHOLD = 1000;
+    /** Number of iterations of a loop before it is compiled while it runs */
+    public static final int LOOP_THRESHOLD = 10000;
+    /** Stored in place of the compiled code of functions and loops that can't be compiled */
+    public static final Object UNSUPPORTED = new Object();
+
+    private static final Logger logger = System.getLogger(JitCompiler.class.getName());
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OBJECT_DESCRIPTOR = "Ljava/lang/Object;";
+    private static final String OBJECTS_DESCRIPTOR = "[Ljava/lang/Object;";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String TOKEN = Type.getInternalName(Token.class);
+    private static final String RUNTIME = Type.getInternalName(JitRuntime.class);
+    private static final String UTIL = Type.getInternalName(InterpreterUtil.class);
+    private static final String ENVIRONMENT = Type.getInternalName(Environment.class);
+    private static final String UPVALUE = Type.getInternalName(Upvalue.class);
+    private static final String UPVALUES_DESCRIPTOR = "[L" + UPVALUE + ";";
+    private static final String INTERPRETER = Type.getInternalName(Interpreter.class);
+    private static final String LOCATION = Type.getInternalName(Location.class);
+    private static final String RUNTIME_ERROR = Type.getInternalName(RuntimeError.class);
+    private static final String PROGRAM = Type.getInternalName(CompiledProgram.class);
+    private static final String CLOSURE = Type.getInternalName(LoxClosure.class);
+    private static final String ENTRY_PREFIX = "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";";
+    /** Functions get their closure as an object, see {@link CompiledFunction} */
+    private static final String FUNCTION_ENTRY_PREFIX = "(L" + INTERPRETER + ";" + OBJECT_DESCRIPTOR;
+
+    /** JVM locals every compiled method starts with */
+    private static final int THIS_LOCAL = 0;
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int ENVIRONMENT_LOCAL = 2;
+
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /** Continue statements go to {@code next}, break statements to {@code end} */
+    private record Loop(Label next, Label end) {
+    }
+
+    /**
+     * A scope inside the compiled code. Its variables are the JVM locals from
+     * {@code local} on, or the slots of the environment in {@code local}.
+     */
+    private record Scope(int local, boolean is_environment) {
+    }
+
+    private final String class_name;
+    private final ClassWriter writer;
+    /** Classes of a program compiled ahead of time by name, null when compiling at runtime */
+    private final Map<String, byte[]> classes;
+    /**
+     * Values the compiled code refers to, passed to the constructor, or created
+     * by the static initializer of classes compiled ahead of time
+     */
+    private final List<Object> constants = new ArrayList<>();
+    private MethodVisitor method;
+    /** Scopes inside the compiled code, innermost last */
+    private final List<Scope> scopes = new ArrayList<>();
+    private final Deque<Loop> loops = new ArrayDeque<>();
+    private int next_local;
+    private int globals_local;
+    /** The upvalues of the function the code belongs to, unused in standalone classes */
+    private int upvalues_local;
+
+    private JitCompiler(String class_name, Class<?> superclass, Map<String, byte[]> classes) {
+        this.class_name = class_name;
+        this.classes = classes;
+        writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            // Values are only ever used as objects where control flow merges
+            @Override
+            protected String getCommonSuperClass(String first, String second) {
+                return OBJECT;
+            }
+        };
+        writer.visit(V17, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, class_name, null, Type.getInternalName(superclass),
+                null);
+
+        int access = isStandalone() ? ACC_PRIVATE | ACC_STATIC | ACC_FINAL : ACC_PRIVATE | ACC_FINAL;
+        writer.visitField(access, "constants", OBJECTS_DESCRIPTOR, null, null).visitEnd();
+
+        String descriptor = isStandalone() ? "()V" : "(" + OBJECTS_DESCRIPTOR + ")V";
+        MethodVisitor constructor = writer.visitMethod(ACC_PUBLIC, "<init>", descriptor, null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(ALOAD, 0);
+        constructor.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(superclass), "<init>", "()V", false);
+        if (!isStandalone()) {
+            constructor.visitVarInsn(ALOAD, 0);
+            constructor.visitVarInsn(ALOAD, 1);
+            constructor.visitFieldInsn(PUTFIELD, class_name, "constants", OBJECTS_DESCRIPTOR);
+        }
+        constructor.visitInsn(RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+    }
+
+    private JitCompiler(String name, Class<?> superclass) {
+        this(Type.getInternalName(JitCompiler.class).replace("JitCompiler", name), superclass, null);
+    }
+
+    private boolean isStandalone() {
+        return classes != null;
+    }
+
+    /**
+     * @return The {@link CompiledFunction} for the body of {@code function}, or
+     *         {@link #UNSUPPORTED}
+     */
+    public static Object compileFunction(Stmt.Function function) {
+        try {
+            JitCompiler compiler = new JitCompiler("Function$" + function.name.lexeme, CompiledFunction.class);
+            compiler.function(function);
+            Object code = compiler.load();
+            logger.log(Logger.Level.DEBUG, () -> "Compiled function " + function.name.lexeme);
+            return code;
+        } catch (Unsupported | MethodTooLargeException | ClassTooLargeException e) {
+            logger.log(Logger.Level.DEBUG,
+                    () -> "Not compiling function " + function.name.lexeme + ": " + e.getMessage());
+            return UNSUPPORTED;
+        }
+    }
+
+    /**
+     * @return The {@link CompiledLoop} for {@code loop}, a while or for loop, or
+     *         {@link #UNSUPPORTED}
+     */
+    public static Object compileLoop(Stmt loop) {
+        try {
+            JitCompiler compiler = new JitCompiler("Loop", CompiledLoop.class);
+            compiler.loop(loop);
+            Object code = compiler.load();
+            logger.log(Logger.Level.DEBUG, () -> "Compiled loop");
+            return code;
+        } catch (Unsupported | MethodTooLargeException | ClassTooLargeException e) {
+            logger.log(Logger.Level.DEBUG, () -> "Not compiling loop: " + e.getMessage());
+            return UNSUPPORTED;
+        }
+    }
+
+    /**
+     * Compiles a resolved program ahead of time. The main class runs the
+     * program through {@link lox.aot.CompiledProgram#launch}.
+     * 
+     * @return The class files of the program by internal class name
+     */
+    public static Map<String, byte[]> compileProgram(List<Stmt> statements, String main_class) {
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        JitCompiler compiler = new JitCompiler(main_class, CompiledProgram.class, classes);
+        compiler.program(statements);
+        compiler.finish();
+        return classes;
+    }
+
+    /** Adds a class compiled ahead of time to the program's classes */
+    private void finish() {
+        MethodVisitor initializer = writer.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        initializer.visitCode();
+        method = initializer;
+        push(constants.size());
+        method.visitTypeInsn(ANEWARRAY, OBJECT);
+        for (int i = 0; i < constants.size(); i++) {
+            method.visitInsn(DUP);
+            push(i);
+            create(constants.get(i));
+            method.visitInsn(AASTORE);
+        }
+        method.visitFieldInsn(PUTSTATIC, class_name, "constants", OBJECTS_DESCRIPTOR);
+        method.visitInsn(RETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+
+        writer.visitEnd();
+        classes.put(class_name, writer.toByteArray());
+    }
+
+    /** Pushes a new copy of a constant, a number or a token */
+    private void create(Object value) {
+        if (value instanceof Double) {
+            method.visitLdcInsn(value);
+            box();
+            return;
+        }
+
+        Token token = (Token) value;
+        method.visitTypeInsn(NEW, TOKEN);
+        method.visitInsn(DUP);
+        method.visitFieldInsn(GETSTATIC, Type.getInternalName(TokenType.class), token.type.name(),
+                Type.getDescriptor(TokenType.class));
+        if (token.lexeme == null)
+            method.visitInsn(ACONST_NULL);
+        else
+            method.visitLdcInsn(token.lexeme);
+        method.visitInsn(ACONST_NULL);
+        method.visitTypeInsn(NEW, LOCATION);
+        method.visitInsn(DUP);
+        push(token.loc.offset());
+        push(token.loc.line());
+        push(token.loc.col());
+        method.visitMethodInsn(INVOKESPECIAL, LOCATION, "<init>", "(III)V", false);
+        method.visitMethodInsn(INVOKESPECIAL, TOKEN, "<init>", "(" + Type.getDescriptor(TokenType.class)
+                + "Ljava/lang/String;" + OBJECT_DESCRIPTOR + "L" + LOCATION + ";)V", false);
+    }
+
+    private Object load() {
+        writer.visitEnd();
+        byte[] bytes = writer.toByteArray();
+        try {
+            MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes, true);
+            return hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class, Object[].class))
+                    .invoke(constants.toArray());
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to load compiled code " + class_name, e);
+        }
+    }
+
+    /**
+     * Compiles the entry point for the function's arity. Parameters take the
+     * first slots of the function's scope.
+     */
+    private void function(Stmt.Function function) {
+        boolean is_environment = isStandalone() && declaresFunction(function.body);
+        int arity = function.params.size();
+        int first_slot;
+        if (arity <= 2) {
+            method = writer.visitMethod(ACC_PUBLIC, "invoke" + arity,
+                    FUNCTION_ENTRY_PREFIX + OBJECT_DESCRIPTOR.repeat(arity) + ")" + OBJECT_DESCRIPTOR, null, null);
+            method.visitCode();
+            first_slot = 3;
+        } else {
+            method = writer.visitMethod(ACC_PUBLIC, "invokeN",
+                    FUNCTION_ENTRY_PREFIX + OBJECTS_DESCRIPTOR + ")" + OBJECT_DESCRIPTOR, null, null);
+            method.visitCode();
+            first_slot = 4;
+            for (int i = 0; i < arity; i++) {
+                method.visitVarInsn(ALOAD, 3);
+                push(i);
+                method.visitInsn(AALOAD);
+                method.visitVarInsn(ASTORE, first_slot + i);
+            }
+        }
+
+        next_local = first_slot + function.slot_count;
+        clearLocals(first_slot + arity, next_local);
+        loadGlobals();
+        method.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+        if (isStandalone()) {
+            method.visitTypeInsn(CHECKCAST, ENVIRONMENT);
+            method.visitVarInsn(ASTORE, ENVIRONMENT_LOCAL);
+        } else {
+            method.visitTypeInsn(CHECKCAST, UPVALUES_DESCRIPTOR);
+            upvalues_local = next_local++;
+            method.visitVarInsn(ASTORE, upvalues_local);
+        }
+
+        if (is_environment) {
+            // The arguments move into the function's environment
+            int frame = newEnvironment(function.slot_count);
+            for (int i = 0; i < arity; i++) {
+                method.visitVarInsn(ALOAD, frame);
+                push(i);
+                method.visitVarInsn(ALOAD, first_slot + i);
+                define();
+            }
+            scopes.add(new Scope(frame, true));
+        } else {
+            scopes.add(new Scope(first_slot, false));
+        }
+        compileAll(function.body);
+        method.visitInsn(ACONST_NULL);
+        method.visitInsn(ARETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+    }
+
+    /**
+     * Compiles the program's entry points. The top level is a scope like any
+     * other, every declaration at the top level takes its next slot.
+     */
+    private void program(List<Stmt> statements) {
+        MethodVisitor main = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V", null,
+                null);
+        main.visitCode();
+        main.visitTypeInsn(NEW, class_name);
+        main.visitInsn(DUP);
+        main.visitMethodInsn(INVOKESPECIAL, class_name, "<init>", "()V", false);
+        main.visitMethodInsn(INVOKESTATIC, PROGRAM, "launch", "(L" + PROGRAM + ";)V", false);
+        main.visitInsn(RETURN);
+        main.visitMaxs(0, 0);
+        main.visitEnd();
+
+        // Without an interpreter or enclosing environment
+        method = writer.visitMethod(ACC_PUBLIC, "run", "()" + OBJECT_DESCRIPTOR, null, null);
+        method.visitCode();
+        clearLocals(INTERPRETER_LOCAL, ENVIRONMENT_LOCAL + 1);
+        next_local = 3;
+        loadGlobals();
+
+        int slot_count = 0;
+        for (Stmt statement : statements) {
+            if (statement instanceof Var || statement instanceof Function)
+                slot_count++;
+        }
+        beginScope(statements, slot_count);
+        compileAll(statements);
+        method.visitInsn(ACONST_NULL);
+        method.visitInsn(ARETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+    }
+
+    /**
+     * Compiles a loop that is entered at its condition, a for loop after its
+     * initializer ran.
+     */
+    private void loop(Stmt loop) {
+        method = writer.visitMethod(ACC_PUBLIC, "run", ENTRY_PREFIX + ")" + OBJECT_DESCRIPTOR, null, null);
+        method.visitCode();
+        next_local = 3;
+        loadGlobals();
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        method.visitFieldInsn(GETFIELD, INTERPRETER, "upvalues", UPVALUES_DESCRIPTOR);
+        upvalues_local = next_local++;
+        method.visitVarInsn(ASTORE, upvalues_local);
+
+        if (loop instanceof For)
+            forLoop((For) loop);
+        else
+            compile(loop);
+        method.visitFieldInsn(GETSTATIC, Type.getInternalName(CompiledLoop.class), "COMPLETED", OBJECT_DESCRIPTOR);
+        method.visitInsn(ARETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+    }
+
+    private void loadGlobals() {
+        globals_local = next_local++;
+        if (isStandalone()) {
+            method.visitFieldInsn(GETSTATIC, PROGRAM, "globals", OBJECTS_DESCRIPTOR);
+        } else {
+            method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+            method.visitFieldInsn(GETFIELD, INTERPRETER, "globals", OBJECTS_DESCRIPTOR);
+        }
+        method.visitVarInsn(ASTORE, globals_local);
+    }
+
+    /**
+     * Whether {@code statements} declare a function, which may capture the
+     * variables of every scope around it
+     */
+    private static boolean declaresFunction(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (declaresFunction(statement))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean declaresFunction(Stmt stmt) {
+        if (stmt instanceof Function)
+            return true;
+        if (stmt instanceof Block)
+            return declaresFunction(((Block) stmt).statements);
+        if (stmt instanceof If) {
+            If conditional = (If) stmt;
+            return declaresFunction(conditional.consequent)
+                    || conditional.alternate != null && declaresFunction(conditional.alternate);
+        }
+        if (stmt instanceof While)
+            return declaresFunction(((While) stmt).body);
+        if (stmt instanceof For)
+            return declaresFunction(((For) stmt).body);
+        return false;
+    }
+
+    /**
+     * Creates the environment of a new scope, enclosed by the innermost scope
+     * with an environment.
+     * 
+     * @return The JVM local holding the environment
+     */
+    private int newEnvironment(int slot_count) {
+        int enclosing = ENVIRONMENT_LOCAL;
+        for (Scope scope : scopes) {
+            if (scope.is_environment())
+                enclosing = scope.local();
+        }
+
+        int local = next_local++;
+        method.visitTypeInsn(NEW, ENVIRONMENT);
+        method.visitInsn(DUP);
+        method.visitVarInsn(ALOAD, enclosing);
+        push(slot_count);
+        method.visitMethodInsn(INVOKESPECIAL, ENVIRONMENT, "<init>", "(L" + ENVIRONMENT + ";I)V", false);
+        method.visitVarInsn(ASTORE, local);
+        return local;
+    }
+
+    /**
+     * Enters the scope of a block, every execution of the block starts with fresh
+     * variables.
+     */
+    private void beginScope(List<Stmt> statements, int slot_count) {
+        if (isStandalone() && declaresFunction(statements)) {
+            scopes.add(new Scope(newEnvironment(slot_count), true));
+            return;
+        }
+
+        int first_slot = next_local;
+        next_local += slot_count;
+        clearLocals(first_slot, next_local);
+        scopes.add(new Scope(first_slot, false));
+    }
+
+    /** Calls {@link Environment#define} with the environment, slot and value pushed */
+    private void define() {
+        method.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "define", "(I" + OBJECT_DESCRIPTOR + ")V", false);
+    }
+
+    private void clearLocals(int from, int to) {
+        for (int local = from; local < to; local++) {
+            method.visitInsn(ACONST_NULL);
+            method.visitVarInsn(ASTORE, local);
+        }
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compileAll(List<Stmt> statements) {
+        for (Stmt statement : statements)
+            compile(statement);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void push(int value) {
+        if (value >= -1 && value <= 5)
+            method.visitInsn(ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            method.visitIntInsn(BIPUSH, value);
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            method.visitIntInsn(SIPUSH, value);
+        else
+            method.visitLdcInsn(value);
+    }
+
+    private void constant(Object value) {
+        if (isStandalone()) {
+            method.visitFieldInsn(GETSTATIC, class_name, "constants", OBJECTS_DESCRIPTOR);
+        } else {
+            method.visitVarInsn(ALOAD, THIS_LOCAL);
+            method.visitFieldInsn(GETFIELD, class_name, "constants", OBJECTS_DESCRIPTOR);
+        }
+        push(constants.size());
+        method.visitInsn(AALOAD);
+        constants.add(value);
+    }
+
+    private void token(Token token) {
+        constant(token);
+        method.visitTypeInsn(CHECKCAST, TOKEN);
+    }
+
+    private void bool(boolean value) {
+        method.visitFieldInsn(GETSTATIC, BOOLEAN, value ? "TRUE" : "FALSE", "L" + BOOLEAN + ";");
+    }
+
+    private void box() {
+        method.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", false);
+    }
+
+    private void runtime(String name, String descriptor) {
+        method.visitMethodInsn(INVOKESTATIC, RUNTIME, name, descriptor, false);
+    }
+
+    private void isTruthy() {
+        method.visitMethodInsn(INVOKESTATIC, UTIL, "isTruthy", "(" + OBJECT_DESCRIPTOR + ")Z", false);
+    }
+
+    /** Pushes the elements of {@code expressions} as an object array */
+    private void array(List<Expr> expressions) {
+        push(expressions.size());
+        method.visitTypeInsn(ANEWARRAY, OBJECT);
+        for (int i = 0; i < expressions.size(); i++) {
+            method.visitInsn(DUP);
+            push(i);
+            compile(expressions.get(i));
+            method.visitInsn(AASTORE);
+        }
+    }
+
+    /** Scope inside the compiled code that declares a variable */
+    private Scope scope(int depth) {
+        return scopes.get(scopes.size() - 1 - depth);
+    }
+
+    /**
+     * Whether {@code expr} always evaluates to a number, or fails with a runtime
+     * error, so it can be compiled by {@link #compileDouble}.
+     */
+    private static boolean isNumeric(Expr expr) {
+        if (expr instanceof Binary) {
+            Binary binary = (Binary) expr;
+            return switch (binary.operator.type) {
+                case MINUS, SLASH, STAR -> true;
+                case PLUS -> isNumeric(binary.left) && isNumeric(binary.right);
+                default -> false;
+            };
+        }
+        if (expr instanceof Literal)
+            return ((Literal) expr).value instanceof Double;
+        if (expr instanceof Unary)
+            return ((Unary) expr).operator.type == TokenType.MINUS;
+        if (expr instanceof Grouping)
+            return isNumeric(((Grouping) expr).expression);
+        return false;
+    }
+
+    /** Pushes the value of a numeric expression as a double */
+    private void compileDouble(Expr expr) {
+        if (expr instanceof Grouping) {
+            compileDouble(((Grouping) expr).expression);
+        } else if (expr instanceof Literal) {
+            method.visitLdcInsn((double) ((Literal) expr).value);
+        } else if (expr instanceof Unary) {
+            Unary unary = (Unary) expr;
+            compileNumber(unary.right, unary.operator);
+            method.visitInsn(DNEG);
+        } else {
+            Binary binary = (Binary) expr;
+            compileNumbers(binary);
+            switch (binary.operator.type) {
+                case PLUS -> method.visitInsn(DADD);
+                case MINUS -> method.visitInsn(DSUB);
+                case SLASH -> method.visitInsn(DDIV);
+                case STAR -> method.visitInsn(DMUL);
+                default -> throw new IllegalStateException("Unexpected numeric operator " + binary.operator.type);
+            }
+        }
+    }
+
+    /** Pushes an operand that {@code operator} requires to be a number */
+    private void compileNumber(Expr expr, Token operator) {
+        if (isNumeric(expr)) {
+            compileDouble(expr);
+            return;
+        }
+        compile(expr);
+        compileToNumber(operator);
+    }
+
+    /**
+     * Pushes both operands of an operator that requires numbers. Both are
+     * evaluated before either is checked, like the interpreter does.
+     */
+    private void compileNumbers(Binary expr) {
+        if (isNumeric(expr.left)) {
+            compileDouble(expr.left);
+            compileNumber(expr.right, expr.operator);
+            return;
+        }
+
+        compile(expr.left);
+        int right = next_local;
+        next_local += 2;
+        if (isNumeric(expr.right)) {
+            compileDouble(expr.right);
+            method.visitVarInsn(DSTORE, right);
+            compileToNumber(expr.operator);
+            method.visitVarInsn(DLOAD, right);
+        } else {
+            compile(expr.right);
+            method.visitVarInsn(ASTORE, right);
+            compileToNumber(expr.operator);
+            method.visitVarInsn(ALOAD, right);
+            compileToNumber(expr.operator);
+        }
+    }
+
+    private void compileToNumber(Token operator) {
+        token(operator);
+        runtime("toNumber", "(" + OBJECT_DESCRIPTOR + "L" + TOKEN + ";)D");
+    }
+
+    /**
+     * Jumps to {@code target} if the truthiness of {@code expr} is
+     * {@code when}, without producing its value where possible.
+     */
+    private void branch(Expr expr, boolean when, Label target) {
+        if (expr instanceof Grouping) {
+            branch(((Grouping) expr).expression, when, target);
+            return;
+        }
+
+        if (expr instanceof Literal) {
+            if (InterpreterUtil.isTruthy(((Literal) expr).value) == when)
+                method.visitJumpInsn(GOTO, target);
+            return;
+        }
+
+        if (expr instanceof Unary && ((Unary) expr).operator.type == TokenType.BANG) {
+            branch(((Unary) expr).right, !when, target);
+            return;
+        }
+
+        if (expr instanceof Logical) {
+            Logical logical = (Logical) expr;
+            boolean is_or = logical.operator.type == TokenType.OR;
+            if (is_or == when) {
+                // Either operand decides
+                branch(logical.left, when, target);
+                branch(logical.right, when, target);
+            } else {
+                Label skip = new Label();
+                branch(logical.left, !when, skip);
+                branch(logical.right, when, target);
+                method.visitLabel(skip);
+            }
+            return;
+        }
+
+        if (expr instanceof Binary) {
+            Binary binary = (Binary) expr;
+            switch (binary.operator.type) {
+                case LESS:
+                    compileNumbers(binary);
+                    method.visitInsn(DCMPG);
+                    method.visitJumpInsn(when ? IFLT : IFGE, target);
+                    return;
+                case LESS_EQUAL:
+                    compileNumbers(binary);
+                    method.visitInsn(DCMPG);
+                    method.visitJumpInsn(when ? IFLE : IFGT, target);
+                    return;
+                case GREATER:
+                    compileNumbers(binary);
+                    method.visitInsn(DCMPL);
+                    method.visitJumpInsn(when ? IFGT : IFLE, target);
+                    return;
+                case GREATER_EQUAL:
+                    compileNumbers(binary);
+                    method.visitInsn(DCMPL);
+                    method.visitJumpInsn(when ? IFGE : IFLT, target);
+                    return;
+                case EQUAL_EQUAL:
+                case BANG_EQUAL:
+                    boolean is_equal = when == (binary.operator.type == TokenType.EQUAL_EQUAL);
+                    if (isNumeric(binary.left) && isNumeric(binary.right)) {
+                        compileDouble(binary.left);
+                        compileDouble(binary.right);
+                        // Same semantics as Double.equals
+                        method.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "compare", "(DD)I", false);
+                        method.visitJumpInsn(is_equal ? IFEQ : IFNE, target);
+                    } else {
+                        compile(binary.left);
+                        compile(binary.right);
+                        method.visitMethodInsn(INVOKESTATIC, UTIL, "isEqual",
+                                "(" + OBJECT_DESCRIPTOR + OBJECT_DESCRIPTOR + ")Z", false);
+                        method.visitJumpInsn(is_equal ? IFNE : IFEQ, target);
+                    }
+                    return;
+                default:
+                    break;
+            }
+        }
+
+        compile(expr);
+        isTruthy();
+        method.visitJumpInsn(when ? IFNE : IFEQ, target);
+    }
+
+    /** Pushes the value of a condition as a boolean */
+    private void compileCondition(Expr expr) {
+        Label is_false = new Label();
+        Label end = new Label();
+        branch(expr, false, is_false);
+        bool(true);
+        method.visitJumpInsn(GOTO, end);
+        method.visitLabel(is_false);
+        bool(false);
+        method.visitLabel(end);
+    }
+
+    /**
+     * Pushes the environment to reach a variable from, and the number of
+     * environments to walk up from there.
+     */
+    private void loadEnvironment(int depth) {
+        if (depth < scopes.size()) {
+            method.visitVarInsn(ALOAD, scope(depth).local());
+            push(0);
+            return;
+        }
+
+        // Scopes with an environment form a prefix of the scopes
+        int environments = 0;
+        for (Scope scope : scopes) {
+            if (scope.is_environment())
+                environments++;
+        }
+        if (environments == 0) {
+            method.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+            push(depth - scopes.size());
+        } else {
+            method.visitVarInsn(ALOAD, scopes.get(environments - 1).local());
+            push(depth - scopes.size() + environments);
+        }
+    }
+
+    @Override
+    public Void visitAssignExpr(Assign expr) {
+        compile(expr.value);
+
+        if (expr.depth == -1) {
+            method.visitVarInsn(ALOAD, globals_local);
+            push(expr.slot);
+            runtime("assignGlobal", "(" + OBJECT_DESCRIPTOR + OBJECTS_DESCRIPTOR + "I)" + OBJECT_DESCRIPTOR);
+        } else if (!isStandalone() && expr.upvalue != -1) {
+            method.visitVarInsn(ALOAD, upvalues_local);
+            push(expr.upvalue);
+            token(expr.identifier);
+            runtime("assignUpvalue",
+                    "(" + OBJECT_DESCRIPTOR + UPVALUES_DESCRIPTOR + "IL" + TOKEN + ";)" + OBJECT_DESCRIPTOR);
+        } else if (expr.depth < scopes.size() && !scope(expr.depth).is_environment()) {
+            method.visitInsn(DUP);
+            method.visitVarInsn(ASTORE, scope(expr.depth).local() + expr.slot);
+        } else {
+            loadEnvironment(expr.depth);
+            push(expr.slot);
+            token(expr.identifier);
+            runtime("assignEnclosing",
+                    "(" + OBJECT_DESCRIPTOR + "L" + ENVIRONMENT + ";IIL" + TOKEN + ";)" + OBJECT_DESCRIPTOR);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Variable expr) {
+        if (expr.depth == -1) {
+            method.visitVarInsn(ALOAD, globals_local);
+            push(expr.slot);
+            method.visitInsn(AALOAD);
+        } else if (!isStandalone() && expr.upvalue != -1) {
+            method.visitVarInsn(ALOAD, upvalues_local);
+            push(expr.upvalue);
+            method.visitInsn(AALOAD);
+            token(expr.name);
+            method.visitMethodInsn(INVOKEVIRTUAL, UPVALUE, "get", "(L" + TOKEN + ";)" + OBJECT_DESCRIPTOR, false);
+        } else if (expr.depth < scopes.size() && !scope(expr.depth).is_environment()) {
+            method.visitVarInsn(ALOAD, scope(expr.depth).local() + expr.slot);
+        } else {
+            loadEnvironment(expr.depth);
+            push(expr.slot);
+            token(expr.name);
+            method.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(IIL" + TOKEN + ";)" + OBJECT_DESCRIPTOR,
+                    false);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Ternary expr) {
+        Label alternate = new Label();
+        Label end = new Label();
+        branch(expr.condition, false, alternate);
+        compile(expr.consequent);
+        method.visitJumpInsn(GOTO, end);
+        method.visitLabel(alternate);
+        compile(expr.alternate);
+        method.visitLabel(end);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Binary expr) {
+        switch (expr.operator.type) {
+            case COMMA:
+                compile(expr.left);
+                method.visitInsn(POP);
+                compile(expr.right);
+                break;
+            case PLUS:
+                if (isNumeric(expr)) {
+                    compileDouble(expr);
+                    box();
+                } else {
+                    compile(expr.left);
+                    compile(expr.right);
+                    token(expr.operator);
+                    runtime("add",
+                            "(" + OBJECT_DESCRIPTOR + OBJECT_DESCRIPTOR + "L" + TOKEN + ";)" + OBJECT_DESCRIPTOR);
+                }
+                break;
+            case MINUS:
+            case SLASH:
+            case STAR:
+                compileDouble(expr);
+                box();
+                break;
+            default:
+                compileCondition(expr);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Call expr) {
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        compile(expr.callee);
+        token(expr.paren);
+        runtime("checkCallable", "(" + OBJECT_DESCRIPTOR + "L" + TOKEN + ";)" + OBJECT_DESCRIPTOR);
+
+        int count = expr.arguments.size();
+        if (count <= 2) {
+            for (Expr argument : expr.arguments)
+                compile(argument);
+            token(expr.paren);
+            runtime("call" + count, "(L" + INTERPRETER + ";" + OBJECT_DESCRIPTOR.repeat(count + 1) + "L" + TOKEN
+                    + ";)" + OBJECT_DESCRIPTOR);
+        } else {
+            array(expr.arguments);
+            token(expr.paren);
+            runtime("callN", "(L" + INTERPRETER + ";" + OBJECT_DESCRIPTOR + OBJECTS_DESCRIPTOR + "L" + TOKEN + ";)"
+                    + OBJECT_DESCRIPTOR);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitArrayAccessExpr(ArrayAccess expr) {
+        compile(expr.array);
+        token(expr.square);
+        runtime("checkIndexable", "(" + OBJECT_DESCRIPTOR + "L" + TOKEN + ";)" + OBJECT_DESCRIPTOR);
+        compile(expr.index);
+        token(expr.square);
+        runtime("index", "(" + OBJECT_DESCRIPTOR + OBJECT_DESCRIPTOR + "L" + TOKEN + ";)" + OBJECT_DESCRIPTOR);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Logical expr) {
+        Label end = new Label();
+        if (expr.operator.type == TokenType.OR) {
+            compile(expr.left);
+            method.visitInsn(DUP);
+            isTruthy();
+            method.visitJumpInsn(IFNE, end);
+            method.visitInsn(POP);
+            compile(expr.right);
+            method.visitInsn(DUP);
+            isTruthy();
+            method.visitJumpInsn(IFNE, end);
+            method.visitInsn(POP);
+            bool(false);
+        } else {
+            Label is_false = new Label();
+            branch(expr.left, false, is_false);
+            compile(expr.right);
+            method.visitInsn(DUP);
+            isTruthy();
+            method.visitJumpInsn(IFNE, end);
+            method.visitInsn(POP);
+            method.visitLabel(is_false);
+            bool(false);
+        }
+        method.visitLabel(end);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Literal expr) {
+        Object value = expr.value;
+        if (value == null)
+            method.visitInsn(ACONST_NULL);
+        else if (value instanceof Boolean)
+            bool((boolean) value);
+        else if (value instanceof String)
+            method.visitLdcInsn(value);
+        else
+            constant(value);
+        return null;
+    }
+
+    @Override
+    public Void visitTemplateLiteralExpr(TemplateLiteral expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitTemplateStringExpr(TemplateString expr) {
+        method.visitTypeInsn(NEW, "java/lang/StringBuilder");
+        method.visitInsn(DUP);
+        method.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
+        for (Expr template : expr.templates) {
+            compile(template);
+            method.visitMethodInsn(INVOKESTATIC, UTIL, "stringify", "(" + OBJECT_DESCRIPTOR + ")Ljava/lang/String;",
+                    false);
+            method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                    "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+        }
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            compileDouble(expr);
+            box();
+        } else {
+            compileCondition(expr);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Block stmt) {
+        if (stmt.slot_count == 0) {
+            compileAll(stmt.statements);
+            return null;
+        }
+
+        beginScope(stmt.statements, stmt.slot_count);
+        compileAll(stmt.statements);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(If stmt) {
+        Label alternate = new Label();
+        branch(stmt.condition, false, alternate);
+        compile(stmt.consequent);
+        if (stmt.alternate == null) {
+            method.visitLabel(alternate);
+        } else {
+            Label end = new Label();
+            method.visitJumpInsn(GOTO, end);
+            method.visitLabel(alternate);
+            compile(stmt.alternate);
+            method.visitLabel(end);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Expression stmt) {
+        compile(stmt.expression);
+        method.visitInsn(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Function stmt) {
+        if (!isStandalone())
+            throw new Unsupported("declares function " + stmt.name.lexeme);
+
+        String function_class = class_name + "$" + stmt.name.lexeme + "$" + classes.size();
+        JitCompiler compiler = new JitCompiler(function_class, CompiledFunction.class, classes);
+        compiler.function(stmt);
+        compiler.finish();
+
+        Scope scope = scope(0);
+        method.visitVarInsn(ALOAD, scope.local());
+        push(stmt.slot);
+        method.visitTypeInsn(NEW, CLOSURE);
+        method.visitInsn(DUP);
+        method.visitTypeInsn(NEW, function_class);
+        method.visitInsn(DUP);
+        method.visitMethodInsn(INVOKESPECIAL, function_class, "<init>", "()V", false);
+        method.visitVarInsn(ALOAD, scope.local());
+        push(stmt.params.size());
+        method.visitLdcInsn(stmt.name.lexeme);
+        method.visitMethodInsn(INVOKESPECIAL, CLOSURE, "<init>", "(L" + Type.getInternalName(CompiledFunction.class)
+                + ";L" + ENVIRONMENT + ";ILjava/lang/String;)V", false);
+        define();
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Return stmt) {
+        if (stmt.is_tail_call) {
+            Call call = (Call) stmt.value;
+            method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+            compile(call.callee);
+            token(call.paren);
+            runtime("checkCallable", "(" + OBJECT_DESCRIPTOR + "L" + TOKEN + ";)" + OBJECT_DESCRIPTOR);
+            array(call.arguments);
+            token(call.paren);
+            runtime("tailCall", "(L" + INTERPRETER + ";" + OBJECT_DESCRIPTOR + OBJECTS_DESCRIPTOR + "L" + TOKEN
+                    + ";)" + OBJECT_DESCRIPTOR);
+        } else if (stmt.value == null) {
+            method.visitInsn(ACONST_NULL);
+        } else {
+            compile(stmt.value);
+        }
+        method.visitInsn(ARETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Print stmt) {
+        compile(stmt.expression);
+        runtime("print", "(" + OBJECT_DESCRIPTOR + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(While stmt) {
+        Loop loop = new Loop(new Label(), new Label());
+        loops.push(loop);
+        method.visitLabel(loop.next());
+        branch(stmt.condition, false, loop.end());
+        compile(stmt.body);
+        method.visitJumpInsn(GOTO, loop.next());
+        method.visitLabel(loop.end());
+        loops.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(For stmt) {
+        if (stmt.slot_count == 0) {
+            if (stmt.initializer != null)
+                compile(stmt.initializer);
+            forLoop(stmt);
+            return null;
+        }
+
+        beginScope(List.of(stmt.initializer, stmt.body), stmt.slot_count);
+        compile(stmt.initializer);
+        forLoop(stmt);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    /** Compiles a for loop from its condition, continue statements run the increment */
+    private void forLoop(For stmt) {
+        Label start = new Label();
+        Loop loop = new Loop(new Label(), new Label());
+        loops.push(loop);
+        method.visitLabel(start);
+        branch(stmt.condition, false, loop.end());
+        compile(stmt.body);
+        method.visitLabel(loop.next());
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            method.visitInsn(POP);
+        }
+        method.visitJumpInsn(GOTO, start);
+        method.visitLabel(loop.end());
+        loops.pop();
+    }
+
+    @Override
+    public Void visitBreakStmt(Break stmt) {
+        if (loops.isEmpty())
+            error(stmt.keyword, "break not allowed outside of loop.");
+        else
+            method.visitJumpInsn(GOTO, loops.peek().end());
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Continue stmt) {
+        if (loops.isEmpty())
+            error(stmt.keyword, "continue not allowed outside of loop.");
+        else
+            method.visitJumpInsn(GOTO, loops.peek().next());
+        return null;
+    }
+
+    /** Throws a runtime error when reached, like the interpreter does */
+    private void error(Token token, String message) {
+        method.visitTypeInsn(NEW, RUNTIME_ERROR);
+        method.visitInsn(DUP);
+        token(token);
+        method.visitLdcInsn(message);
+        method.visitMethodInsn(INVOKESPECIAL, RUNTIME_ERROR, "<init>", "(L" + TOKEN + ";Ljava/lang/String;)V",
+                false);
+        method.visitInsn(ATHROW);
+    }
+
+    @Override
+    public Void visitVarStmt(Var stmt) {
+        Scope scope = scope(0);
+        if (scope.is_environment()) {
+            method.visitVarInsn(ALOAD, scope.local());
+            push(stmt.slot);
+        }
+
+        if (stmt.initializer == null)
+            method.visitInsn(ACONST_NULL);
+        else
+            compile(stmt.initializer);
+
+        if (scope.is_environment())
+            define();
+        else
+            method.visitVarInsn(ASTORE, scope.local() + stmt.slot);
+        return null;
+    }
+}
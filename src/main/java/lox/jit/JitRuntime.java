@@ -0,0 +1,132 @@
+package lox.jit;
+
+import static lox.interpreter.InterpreterUtil.*;
+
+import lox.Token;
+import lox.interpreter.Environment;
+import lox.interpreter.Interpreter;
+import lox.interpreter.LoxCallable;
+import lox.interpreter.LoxType;
+import lox.interpreter.RuntimeError;
+import lox.interpreter.Upvalue;
+
+/**
+ * Operations called from compiled code. They follow the interpreter exactly,
+ * including the order of checks and the runtime errors they report.
+ */
+public final class JitRuntime {
+    private JitRuntime() {
+    }
+
+    public static double toNumber(Object value, Token operator) {
+        if (!(value instanceof Double))
+            throw new RuntimeError(operator, "Operand must be a number.");
+        return (double) value;
+    }
+
+    public static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double)
+            return (double) left + (double) right;
+        if (left instanceof Double && right instanceof String)
+            return stringify(left) + (String) right;
+        if (left instanceof String && right instanceof Double)
+            return (String) left + stringify(right);
+        if (left instanceof String && right instanceof String)
+            return (String) left + (String) right;
+
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    public static void print(Object value) {
+        System.out.println(stringify(value));
+    }
+
+    public static Object assignEnclosing(Object value, Environment environment, int depth, int slot, Token name) {
+        environment.assignAt(depth, slot, name, value);
+        return value;
+    }
+
+    public static Object assignUpvalue(Object value, Upvalue[] upvalues, int index, Token name) {
+        upvalues[index].set(name, value);
+        return value;
+    }
+
+    public static Object assignGlobal(Object value, Object[] globals, int slot) {
+        globals[slot] = value;
+        return value;
+    }
+
+    public static Object checkIndexable(Object array, Token square) {
+        if (!(array instanceof Object[]))
+            throw new RuntimeError(square, "Expression is not indexable.");
+        return array;
+    }
+
+    public static Object index(Object array, Object index, Token square) {
+        if (!(index instanceof Double))
+            throw new RuntimeError(square, "Array index must be a number.");
+        if ((double) index % 1 != 0)
+            throw new RuntimeError(square, "Array index must be a whole number.");
+
+        return ((Object[]) array)[(int) Math.round((double) index)];
+    }
+
+    public static Object checkCallable(Object callee, Token paren) {
+        if (!(callee instanceof LoxCallable))
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        return callee;
+    }
+
+    private static LoxCallable checkArity(Object callee, int count, Token paren) {
+        LoxCallable function = (LoxCallable) callee;
+        if (count != function.arity)
+            throw new RuntimeError(paren,
+                    String.format("Expected %d arguments but got %d.", function.arity, count));
+        return function;
+    }
+
+    private static void checkArgument(LoxCallable function, int index, Object argument, Token paren) {
+        LoxType type = function.argumentTypes[index];
+        if (!matchesType(argument, type))
+            throw new RuntimeError(paren, String.format("Expected %s for argument %d, got %s instead.",
+                    type.name().toLowerCase(), index + 1, getTypeName(argument)));
+    }
+
+    public static Object call0(Interpreter interpreter, Object callee, Token paren) {
+        return checkArity(callee, 0, paren).call0(interpreter);
+    }
+
+    public static Object call1(Interpreter interpreter, Object callee, Object argument, Token paren) {
+        LoxCallable function = checkArity(callee, 1, paren);
+        if (function.is_typed)
+            checkArgument(function, 0, argument, paren);
+        return function.call1(interpreter, argument);
+    }
+
+    public static Object call2(Interpreter interpreter, Object callee, Object first, Object second, Token paren) {
+        LoxCallable function = checkArity(callee, 2, paren);
+        if (function.is_typed) {
+            checkArgument(function, 0, first, paren);
+            checkArgument(function, 1, second, paren);
+        }
+        return function.call2(interpreter, first, second);
+    }
+
+    public static Object callN(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+        LoxCallable function = checkArity(callee, arguments.length, paren);
+        for (int i = 0; i < arguments.length; i++)
+            checkArgument(function, i, arguments[i], paren);
+        return function.callN(interpreter, arguments);
+    }
+
+    /**
+     * Checks a call in tail position, then leaves it to the callee, see
+     * {@link LoxCallable#tailCall}.
+     */
+    public static Object tailCall(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+        LoxCallable function = checkArity(callee, arguments.length, paren);
+        for (int i = 0; i < arguments.length; i++)
+            checkArgument(function, i, arguments[i], paren);
+        return function.tailCall(interpreter, arguments);
+    }
+}
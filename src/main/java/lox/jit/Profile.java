@@ -0,0 +1,35 @@
+package lox.jit;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import lox.ast.Stmt;
+
+/**
+ * How often a function declaration was called or a loop iterated, and its
+ * compiled code once it is hot. Profiles are kept in a {@link Table} instead
+ * of on the AST, so a resolved program can be shared by several interpreters.
+ */
+public final class Profile {
+    /** Calls of the function or iterations of the loop so far */
+    public int count;
+    /** The compiled code, {@link JitCompiler#UNSUPPORTED}, or null until it is hot */
+    public Object code;
+
+    /**
+     * The profiles of one interpreter, keyed by the declaration of the function
+     * or the loop statement. Not thread safe.
+     */
+    public static final class Table {
+        private final Map<Stmt, Profile> profiles = new IdentityHashMap<>();
+
+        public Profile get(Stmt stmt) {
+            Profile profile = profiles.get(stmt);
+            if (profile == null) {
+                profile = new Profile();
+                profiles.put(stmt, profile);
+            }
+            return profile;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package lox.jit;
+
+import lox.interpreter.LoxCallable;
+
+/**
+ * Returned by compiled code in place of making a tail call to a Lox function,
+ * see {@link LoxCallable#tailCall}.
+ * The caller makes the call instead, so tail recursion doesn't grow the Java
+ * stack.
+ */
+public record TailCall(LoxCallable function, Object[] arguments) {
+}
@@ -0,0 +1,799 @@
+package lox.nodes;
+
+import lox.Token;
+import lox.interpreter.LoxCallable;
+import lox.interpreter.RuntimeError;
+
+import static lox.interpreter.InterpreterUtil.*;
+
+/**
+ * Executable expression. Every node type implements {@link #execute} itself,
+ * with the operator, the variable slot and the scope depth fixed when the tree
+ * is built, so evaluating a node never has to look anything up.
+ * <br/>
+ * Operators that accept several operand types start out uninitialized and
+ * rewrite themselves into a form specialized for the types they first see,
+ * falling back to a generic form if the types change later. Operators that only
+ * accept numbers are built in their number form directly.
+ */
+abstract class ExprNode extends Node {
+    abstract Object execute(Frame frame);
+
+    static RuntimeError numberOperandsError(Token operator) {
+        return new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    static final class LiteralNode extends ExprNode {
+        private final Object value;
+
+        LiteralNode(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return value;
+        }
+    }
+
+    /** Variable declared in the current frame */
+    static final class LocalNode extends ExprNode {
+        private final int slot;
+
+        LocalNode(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return frame.slots[slot];
+        }
+    }
+
+    /** Variable declared in an enclosing frame */
+    static final class EnclosingLocalNode extends ExprNode {
+        private final int depth;
+        private final int slot;
+
+        EnclosingLocalNode(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return frame.ancestor(depth).slots[slot];
+        }
+    }
+
+    static final class GlobalNode extends ExprNode {
+        private final Object[] globals;
+        private final int index;
+
+        GlobalNode(Object[] globals, int index) {
+            this.globals = globals;
+            this.index = index;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return globals[index];
+        }
+    }
+
+    static final class AssignLocalNode extends ExprNode {
+        private final int slot;
+        private ExprNode value;
+
+        AssignLocalNode(int slot, ExprNode value) {
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object result = value.execute(frame);
+            frame.slots[slot] = result;
+            return result;
+        }
+    }
+
+    static final class AssignEnclosingLocalNode extends ExprNode {
+        private final int depth;
+        private final int slot;
+        private ExprNode value;
+
+        AssignEnclosingLocalNode(int depth, int slot, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object result = value.execute(frame);
+            frame.ancestor(depth).slots[slot] = result;
+            return result;
+        }
+    }
+
+    static final class AssignGlobalNode extends ExprNode {
+        private final Object[] globals;
+        private final int index;
+        private ExprNode value;
+
+        AssignGlobalNode(Object[] globals, int index, ExprNode value) {
+            this.globals = globals;
+            this.index = index;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object result = value.execute(frame);
+            globals[index] = result;
+            return result;
+        }
+    }
+
+    static final class CommaNode extends ExprNode {
+        private ExprNode left;
+        private ExprNode right;
+
+        CommaNode(ExprNode left, ExprNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            left.execute(frame);
+            return right.execute(frame);
+        }
+    }
+
+    /**
+     * Uninitialized {@code ==} or {@code !=}, rewrites itself once it has seen
+     * its operands.
+     */
+    static final class EqualNode extends ExprNode {
+        private ExprNode left;
+        private ExprNode right;
+        private final boolean is_negated;
+
+        EqualNode(ExprNode left, ExprNode right, boolean is_negated) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+            this.is_negated = is_negated;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof Double && rhs instanceof Double)
+                replace(new NumberEqualNode(left, right, is_negated));
+            else
+                replace(new GenericEqualNode(left, right, is_negated));
+            return isEqual(lhs, rhs) != is_negated;
+        }
+    }
+
+    static final class NumberEqualNode extends ExprNode {
+        private ExprNode left;
+        private ExprNode right;
+        private final boolean is_negated;
+
+        NumberEqualNode(ExprNode left, ExprNode right, boolean is_negated) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+            this.is_negated = is_negated;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof Double && rhs instanceof Double)
+                return ((Double) lhs).equals(rhs) != is_negated;
+
+            replace(new GenericEqualNode(left, right, is_negated));
+            return isEqual(lhs, rhs) != is_negated;
+        }
+    }
+
+    static final class GenericEqualNode extends ExprNode {
+        private ExprNode left;
+        private ExprNode right;
+        private final boolean is_negated;
+
+        GenericEqualNode(ExprNode left, ExprNode right, boolean is_negated) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+            this.is_negated = is_negated;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return isEqual(left.execute(frame), right.execute(frame)) != is_negated;
+        }
+    }
+
+    static final class GreaterNode extends ExprNode {
+        private ExprNode left;
+        private final Token operator;
+        private ExprNode right;
+
+        GreaterNode(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof Double && rhs instanceof Double)
+                return (double) lhs > (double) rhs;
+            throw numberOperandsError(operator);
+        }
+    }
+
+    static final class GreaterEqualNode extends ExprNode {
+        private ExprNode left;
+        private final Token operator;
+        private ExprNode right;
+
+        GreaterEqualNode(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof Double && rhs instanceof Double)
+                return (double) lhs >= (double) rhs;
+            throw numberOperandsError(operator);
+        }
+    }
+
+    static final class LessNode extends ExprNode {
+        private ExprNode left;
+        private final Token operator;
+        private ExprNode right;
+
+        LessNode(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof Double && rhs instanceof Double)
+                return (double) lhs < (double) rhs;
+            throw numberOperandsError(operator);
+        }
+    }
+
+    static final class LessEqualNode extends ExprNode {
+        private ExprNode left;
+        private final Token operator;
+        private ExprNode right;
+
+        LessEqualNode(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof Double && rhs instanceof Double)
+                return (double) lhs <= (double) rhs;
+            throw numberOperandsError(operator);
+        }
+    }
+
+    static Object add(Token operator, Object lhs, Object rhs) {
+        if (lhs instanceof Double && rhs instanceof Double)
+            return (double) lhs + (double) rhs;
+        if (lhs instanceof Double && rhs instanceof String)
+            return stringify(lhs) + (String) rhs;
+        if (lhs instanceof String && rhs instanceof Double)
+            return (String) lhs + stringify(rhs);
+        if (lhs instanceof String && rhs instanceof String)
+            return (String) lhs + (String) rhs;
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    /**
+     * Uninitialized {@code +}, rewrites itself into a number addition, a string
+     * concatenation or the generic form depending on the first operands it sees.
+     */
+    static final class AddNode extends ExprNode {
+        private ExprNode left;
+        private final Token operator;
+        private ExprNode right;
+
+        AddNode(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof Double && rhs instanceof Double)
+                replace(new NumberAddNode(left, operator, right));
+            else if (lhs instanceof String && rhs instanceof String)
+                replace(new StringAddNode(left, operator, right));
+            else
+                replace(new GenericAddNode(left, operator, right));
+            return add(operator, lhs, rhs);
+        }
+    }
+
+    static final class NumberAddNode extends ExprNode {
+        private ExprNode left;
+        private final Token operator;
+        private ExprNode right;
+
+        NumberAddNode(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof Double && rhs instanceof Double)
+                return (double) lhs + (double) rhs;
+
+            replace(new GenericAddNode(left, operator, right));
+            return add(operator, lhs, rhs);
+        }
+    }
+
+    static final class StringAddNode extends ExprNode {
+        private ExprNode left;
+        private final Token operator;
+        private ExprNode right;
+
+        StringAddNode(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof String && rhs instanceof String)
+                return (String) lhs + (String) rhs;
+
+            replace(new GenericAddNode(left, operator, right));
+            return add(operator, lhs, rhs);
+        }
+    }
+
+    static final class GenericAddNode extends ExprNode {
+        private ExprNode left;
+        private final Token operator;
+        private ExprNode right;
+
+        GenericAddNode(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return add(operator, left.execute(frame), right.execute(frame));
+        }
+    }
+
+    static final class SubtractNode extends ExprNode {
+        private ExprNode left;
+        private final Token operator;
+        private ExprNode right;
+
+        SubtractNode(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof Double && rhs instanceof Double)
+                return (double) lhs - (double) rhs;
+            throw numberOperandsError(operator);
+        }
+    }
+
+    static final class MultiplyNode extends ExprNode {
+        private ExprNode left;
+        private final Token operator;
+        private ExprNode right;
+
+        MultiplyNode(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof Double && rhs instanceof Double)
+                return (double) lhs * (double) rhs;
+            throw numberOperandsError(operator);
+        }
+    }
+
+    static final class DivideNode extends ExprNode {
+        private ExprNode left;
+        private final Token operator;
+        private ExprNode right;
+
+        DivideNode(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            Object rhs = right.execute(frame);
+            if (lhs instanceof Double && rhs instanceof Double)
+                return (double) lhs / (double) rhs;
+            throw numberOperandsError(operator);
+        }
+    }
+
+    static final class NegateNode extends ExprNode {
+        private final Token operator;
+        private ExprNode right;
+
+        NegateNode(Token operator, ExprNode right) {
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object value = right.execute(frame);
+            if (value instanceof Double)
+                return -(double) value;
+            throw numberOperandsError(operator);
+        }
+    }
+
+    /**
+     * Uninitialized {@code !}, specializes on boolean operands.
+     */
+    static final class NotNode extends ExprNode {
+        private ExprNode right;
+
+        NotNode(ExprNode right) {
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object value = right.execute(frame);
+            if (value instanceof Boolean)
+                replace(new BooleanNotNode(right));
+            else
+                replace(new GenericNotNode(right));
+            return !isTruthy(value);
+        }
+    }
+
+    static final class BooleanNotNode extends ExprNode {
+        private ExprNode right;
+
+        BooleanNotNode(ExprNode right) {
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object value = right.execute(frame);
+            if (value instanceof Boolean)
+                return !(boolean) value;
+
+            replace(new GenericNotNode(right));
+            return !isTruthy(value);
+        }
+    }
+
+    static final class GenericNotNode extends ExprNode {
+        private ExprNode right;
+
+        GenericNotNode(ExprNode right) {
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return !isTruthy(right.execute(frame));
+        }
+    }
+
+    /**
+     * Lisp style {@code and}/{@code or}: the deciding operand is returned as is,
+     * a falsy result becomes false. Uninitialized, specializes on a boolean left
+     * operand.
+     */
+    static final class LogicalNode extends ExprNode {
+        private ExprNode left;
+        private ExprNode right;
+        private final boolean is_or;
+
+        LogicalNode(ExprNode left, ExprNode right, boolean is_or) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+            this.is_or = is_or;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            if (lhs instanceof Boolean)
+                replace(new BooleanLogicalNode(left, right, is_or));
+            else
+                replace(new GenericLogicalNode(left, right, is_or));
+            return evaluateRight(frame, right, is_or, isTruthy(lhs), lhs);
+        }
+    }
+
+    static Object evaluateRight(Frame frame, ExprNode right, boolean is_or, boolean is_left_truthy, Object lhs) {
+        if (is_or && is_left_truthy)
+            return lhs;
+        if (!is_or && !is_left_truthy)
+            return false;
+
+        Object rhs = right.execute(frame);
+        return isTruthy(rhs) ? rhs : false;
+    }
+
+    static final class BooleanLogicalNode extends ExprNode {
+        private ExprNode left;
+        private ExprNode right;
+        private final boolean is_or;
+
+        BooleanLogicalNode(ExprNode left, ExprNode right, boolean is_or) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+            this.is_or = is_or;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            if (lhs instanceof Boolean)
+                return evaluateRight(frame, right, is_or, (boolean) lhs, lhs);
+
+            replace(new GenericLogicalNode(left, right, is_or));
+            return evaluateRight(frame, right, is_or, isTruthy(lhs), lhs);
+        }
+    }
+
+    static final class GenericLogicalNode extends ExprNode {
+        private ExprNode left;
+        private ExprNode right;
+        private final boolean is_or;
+
+        GenericLogicalNode(ExprNode left, ExprNode right, boolean is_or) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+            this.is_or = is_or;
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object lhs = left.execute(frame);
+            return evaluateRight(frame, right, is_or, isTruthy(lhs), lhs);
+        }
+    }
+
+    /**
+     * Uninitialized ternary, specializes on a boolean condition.
+     */
+    static final class TernaryNode extends ExprNode {
+        private ExprNode condition;
+        private ExprNode consequent;
+        private ExprNode alternate;
+
+        TernaryNode(ExprNode condition, ExprNode consequent, ExprNode alternate) {
+            this.condition = adopt(condition);
+            this.consequent = adopt(consequent);
+            this.alternate = adopt(alternate);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object value = condition.execute(frame);
+            if (value instanceof Boolean)
+                replace(new BooleanTernaryNode(condition, consequent, alternate));
+            else
+                replace(new GenericTernaryNode(condition, consequent, alternate));
+            return isTruthy(value) ? consequent.execute(frame) : alternate.execute(frame);
+        }
+    }
+
+    static final class BooleanTernaryNode extends ExprNode {
+        private ExprNode condition;
+        private ExprNode consequent;
+        private ExprNode alternate;
+
+        BooleanTernaryNode(ExprNode condition, ExprNode consequent, ExprNode alternate) {
+            this.condition = adopt(condition);
+            this.consequent = adopt(consequent);
+            this.alternate = adopt(alternate);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object value = condition.execute(frame);
+            if (!(value instanceof Boolean)) {
+                replace(new GenericTernaryNode(condition, consequent, alternate));
+                return isTruthy(value) ? consequent.execute(frame) : alternate.execute(frame);
+            }
+
+            return (boolean) value ? consequent.execute(frame) : alternate.execute(frame);
+        }
+    }
+
+    static final class GenericTernaryNode extends ExprNode {
+        private ExprNode condition;
+        private ExprNode consequent;
+        private ExprNode alternate;
+
+        GenericTernaryNode(ExprNode condition, ExprNode consequent, ExprNode alternate) {
+            this.condition = adopt(condition);
+            this.consequent = adopt(consequent);
+            this.alternate = adopt(alternate);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return isTruthy(condition.execute(frame)) ? consequent.execute(frame) : alternate.execute(frame);
+        }
+    }
+
+    static final class TemplateNode extends ExprNode {
+        private ExprNode[] templates;
+
+        TemplateNode(ExprNode[] templates) {
+            this.templates = adopt(templates);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            StringBuilder sb = new StringBuilder();
+            for (ExprNode template : templates)
+                sb.append(stringify(template.execute(frame)));
+            return sb.toString();
+        }
+    }
+
+    static final class IndexNode extends ExprNode {
+        private ExprNode array;
+        private final Token square;
+        private ExprNode index;
+
+        IndexNode(ExprNode array, Token square, ExprNode index) {
+            this.array = adopt(array);
+            this.square = square;
+            this.index = adopt(index);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object value = array.execute(frame);
+            if (!(value instanceof Object[]))
+                throw new RuntimeError(square, "Expression is not indexable.");
+
+            Object position = index.execute(frame);
+            if (!(position instanceof Double))
+                throw new RuntimeError(square, "Array index must be a number.");
+            if ((double) position % 1 != 0)
+                throw new RuntimeError(square, "Array index must be a whole number.");
+
+            return ((Object[]) value)[(int) Math.round((double) position)];
+        }
+    }
+
+    static final class CallNode extends ExprNode {
+        private ExprNode callee;
+        private final Token paren;
+        private ExprNode[] arguments;
+
+        CallNode(ExprNode callee, Token paren, ExprNode[] arguments) {
+            this.callee = adopt(callee);
+            this.paren = paren;
+            this.arguments = adopt(arguments);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            Object function = callee.execute(frame);
+            if (function instanceof NodeFunction)
+                return ((NodeFunction) function).invoke(bind((NodeFunction) function, frame));
+            return callOther(function, frame);
+        }
+
+        Object callee(Frame frame) {
+            return callee.execute(frame);
+        }
+
+        /**
+         * @return The frame of a call to {@code function}, with the arguments
+         *         evaluated straight into its first slots
+         */
+        Frame bind(NodeFunction function, Frame frame) {
+            if (arguments.length != function.arity)
+                throw arityError(function, evaluateArguments(frame));
+
+            Frame callee_frame = new Frame(function.declaration.frame_size, function.closure);
+            for (int i = 0; i < arguments.length; i++)
+                callee_frame.slots[i] = arguments[i].execute(frame);
+            return callee_frame;
+        }
+
+        /**
+         * Calls a callee that is not a function of the node engine, like a
+         * native function.
+         */
+        Object callOther(Object function, Frame frame) {
+            if (!(function instanceof LoxCallable))
+                throw new RuntimeError(paren, "Can only call functions and classes.");
+
+            LoxCallable callable = (LoxCallable) function;
+            Object[] values = evaluateArguments(frame);
+            if (values.length != callable.arity)
+                throw arityError(callable, values);
+
+            for (int i = 0; i < values.length; i++) {
+                if (!matchesType(values[i], callable.argumentTypes[i]))
+                    throw new RuntimeError(paren, String.format("Expected %s for argument %d, got %s instead.",
+                            callable.argumentTypes[i].name().toLowerCase(), i + 1, getTypeName(values[i])));
+            }
+
+            return callable.callN(null, values);
+        }
+
+        private Object[] evaluateArguments(Frame frame) {
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; i++)
+                values[i] = arguments[i].execute(frame);
+            return values;
+        }
+
+        private RuntimeError arityError(LoxCallable callable, Object[] values) {
+            return new RuntimeError(paren,
+                    String.format("Expected %d arguments but got %d.", callable.arity, values.length));
+        }
+    }
+}
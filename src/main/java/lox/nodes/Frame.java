@@ -0,0 +1,24 @@
+package lox.nodes;
+
+/**
+ * Storage for the variables of one scope. The number of slots is known when the
+ * node tree is built, so frames never grow.
+ */
+final class Frame {
+    final Object[] slots;
+    final Frame parent;
+    /** Value of the last executed return statement in this frame */
+    Object result;
+
+    Frame(int size, Frame parent) {
+        this.slots = new Object[size];
+        this.parent = parent;
+    }
+
+    Frame ancestor(int depth) {
+        Frame frame = this;
+        for (int i = 0; i < depth; i++)
+            frame = frame.parent;
+        return frame;
+    }
+}
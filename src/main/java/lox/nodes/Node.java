@@ -0,0 +1,111 @@
+package lox.nodes;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base of all executable nodes. Nodes know their parent so a node can rewrite
+ * itself into a more specialized one once it has seen the types it operates
+ * on, see {@link #replace}.
+ * <br/>
+ * Child nodes must be stored in non-final fields, either directly or in an
+ * array, and passed through {@link #adopt} when the parent is constructed.
+ */
+abstract class Node {
+    private static final ClassValue<Field[]> CHILD_FIELDS = new ClassValue<>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> c = type; c != Node.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    Class<?> field_type = field.getType();
+                    boolean is_child = Node.class.isAssignableFrom(field_type)
+                            || (field_type.isArray() && Node.class.isAssignableFrom(field_type.getComponentType()));
+                    if (is_child && !Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                }
+            }
+            return fields.toArray(new Field[0]);
+        }
+    };
+
+    Node parent;
+    /** The node this one was rewritten into, if any */
+    private Node replaced_by;
+
+    <T extends Node> T adopt(T child) {
+        if (child != null)
+            child.parent = this;
+        return child;
+    }
+
+    <T extends Node> T[] adopt(T[] children) {
+        for (T child : children)
+            adopt(child);
+        return children;
+    }
+
+    /**
+     * Replaces this node with {@code replacement} in its parent. Rewrites only
+     * happen when a node's type feedback changes, which is at most a couple of
+     * times per node, so looking up the parent's field reflectively is fine.
+     * <br/>
+     * A recursive call can reach the same node while it is still executing and
+     * rewrite it first. The later rewrite is then dropped, and the children,
+     * which the dropped replacement adopted when it was constructed, are handed
+     * back to the node that is actually in the tree.
+     */
+    void replace(Node replacement) {
+        if (replaced_by != null) {
+            Node current = replaced_by;
+            while (current.replaced_by != null)
+                current = current.replaced_by;
+            current.adoptChildren();
+            return;
+        }
+
+        replacement.parent = parent;
+        replaced_by = replacement;
+        try {
+            for (Field field : CHILD_FIELDS.get(parent.getClass())) {
+                Object value = field.get(parent);
+                if (value == this) {
+                    field.set(parent, replacement);
+                    return;
+                }
+
+                if (value instanceof Node[]) {
+                    Node[] children = (Node[]) value;
+                    for (int i = 0; i < children.length; i++) {
+                        if (children[i] == this) {
+                            children[i] = replacement;
+                            return;
+                        }
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+
+        throw new IllegalStateException("Node is not a child of its parent");
+    }
+
+    private void adoptChildren() {
+        try {
+            for (Field field : CHILD_FIELDS.get(getClass())) {
+                Object value = field.get(this);
+                if (value instanceof Node)
+                    adopt((Node) value);
+                else if (value instanceof Node[])
+                    adopt((Node[]) value);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
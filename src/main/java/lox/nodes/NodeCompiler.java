@@ -0,0 +1,232 @@
+package lox.nodes;
+
+import java.util.List;
+
+import lox.Token;
+import lox.TokenType;
+import lox.ast.Expr;
+import lox.ast.Expr.*;
+import lox.ast.Stmt;
+import lox.ast.Stmt.*;
+import lox.interpreter.NativeFunction;
+import lox.nodes.ExprNode.*;
+import lox.nodes.StmtNode.*;
+
+/**
+ * Turns a resolved program into a tree of executable nodes in a single pass.
+ * <br/>
+ * Scoping comes from {@link lox.analysis.Resolver}: every function and every
+ * block that declares variables gets a {@link Frame}, variables are addressed by
+ * the number of frames to walk up and their slot in that frame, and identifiers
+ * that are not declared anywhere refer to a native function's slot. Blocks that
+ * declare nothing reuse the frame of their enclosing scope.
+ */
+public class NodeCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private final Object[] globals = NativeFunction.createAll();
+    /** Number of loops enclosing the current statement in the current function */
+    private int loop_depth = 0;
+
+    public NodeProgram compile(List<Stmt> statements) {
+        // Every top level declaration takes the next slot of the program's frame
+        int frame_size = 0;
+        for (Stmt statement : statements) {
+            if (statement instanceof Var || statement instanceof Function)
+                frame_size++;
+        }
+        return new NodeProgram(compileAll(statements), frame_size);
+    }
+
+    private StmtNode compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private ExprNode compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private StmtNode[] compileAll(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i] = compile(statements.get(i));
+        return nodes;
+    }
+
+    private ExprNode[] compileAllExpr(List<Expr> expressions) {
+        ExprNode[] nodes = new ExprNode[expressions.size()];
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i] = compile(expressions.get(i));
+        return nodes;
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Block stmt) {
+        if (stmt.slot_count == 0)
+            return new SequenceNode(compileAll(stmt.statements));
+        return new BlockNode(compileAll(stmt.statements), stmt.slot_count);
+    }
+
+    @Override
+    public StmtNode visitIfStmt(If stmt) {
+        return new IfNode(compile(stmt.condition), compile(stmt.consequent),
+                stmt.alternate == null ? null : compile(stmt.alternate));
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Expression stmt) {
+        return new ExpressionNode(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Function stmt) {
+        FunctionNode function = new FunctionNode(stmt.name.lexeme, stmt.params.size(), stmt.slot);
+
+        int enclosing_loop_depth = loop_depth;
+        loop_depth = 0;
+        function.body = function.adopt(compileAll(stmt.body));
+        loop_depth = enclosing_loop_depth;
+
+        function.frame_size = stmt.slot_count;
+        return function;
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(lox.ast.Stmt.Return stmt) {
+        if (stmt.is_tail_call)
+            return new TailCallNode((CallNode) compile(stmt.value));
+        return new ReturnNode(stmt.value == null ? null : compile(stmt.value));
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Print stmt) {
+        return new PrintNode(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(While stmt) {
+        ExprNode condition = compile(stmt.condition);
+        loop_depth += 1;
+        StmtNode body = compile(stmt.body);
+        loop_depth -= 1;
+        return new WhileNode(condition, body);
+    }
+
+    @Override
+    public StmtNode visitForStmt(For stmt) {
+        StmtNode initializer = stmt.initializer == null ? null : compile(stmt.initializer);
+        ExprNode condition = compile(stmt.condition);
+        ExprNode increment = stmt.increment == null ? null : compile(stmt.increment);
+        loop_depth += 1;
+        StmtNode body = compile(stmt.body);
+        loop_depth -= 1;
+        return new ForNode(initializer, condition, increment, body, stmt.slot_count);
+    }
+
+    @Override
+    public StmtNode visitBreakStmt(Break stmt) {
+        if (loop_depth == 0)
+            return new ErrorNode(stmt.keyword, "break not allowed outside of loop.");
+        return new BreakNode();
+    }
+
+    @Override
+    public StmtNode visitContinueStmt(Continue stmt) {
+        if (loop_depth == 0)
+            return new ErrorNode(stmt.keyword, "continue not allowed outside of loop.");
+        return new ContinueNode();
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Var stmt) {
+        ExprNode initializer = stmt.initializer == null ? null : compile(stmt.initializer);
+        return new VarNode(stmt.slot, initializer);
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Assign expr) {
+        ExprNode value = compile(expr.value);
+
+        if (expr.depth == 0)
+            return new AssignLocalNode(expr.slot, value);
+        if (expr.depth != -1)
+            return new AssignEnclosingLocalNode(expr.depth, expr.slot, value);
+        return new AssignGlobalNode(globals, expr.slot, value);
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Variable expr) {
+        if (expr.depth == 0)
+            return new LocalNode(expr.slot);
+        if (expr.depth != -1)
+            return new EnclosingLocalNode(expr.depth, expr.slot);
+        return new GlobalNode(globals, expr.slot);
+    }
+
+    @Override
+    public ExprNode visitTernaryExpr(Ternary expr) {
+        return new TernaryNode(compile(expr.condition), compile(expr.consequent), compile(expr.alternate));
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Binary expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        Token operator = expr.operator;
+
+        return switch (operator.type) {
+            case COMMA -> new CommaNode(left, right);
+            case BANG_EQUAL -> new EqualNode(left, right, true);
+            case EQUAL_EQUAL -> new EqualNode(left, right, false);
+            case GREATER -> new GreaterNode(left, operator, right);
+            case GREATER_EQUAL -> new GreaterEqualNode(left, operator, right);
+            case LESS -> new LessNode(left, operator, right);
+            case LESS_EQUAL -> new LessEqualNode(left, operator, right);
+            case PLUS -> new AddNode(left, operator, right);
+            case MINUS -> new SubtractNode(left, operator, right);
+            case SLASH -> new DivideNode(left, operator, right);
+            case STAR -> new MultiplyNode(left, operator, right);
+            default -> throw new IllegalStateException("Unexpected binary operator " + operator.type);
+        };
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Call expr) {
+        return new CallNode(compile(expr.callee), expr.paren, compileAllExpr(expr.arguments));
+    }
+
+    @Override
+    public ExprNode visitArrayAccessExpr(ArrayAccess expr) {
+        return new IndexNode(compile(expr.array), expr.square, compile(expr.index));
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Logical expr) {
+        return new LogicalNode(compile(expr.left), compile(expr.right), expr.operator.type == TokenType.OR);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Literal expr) {
+        return new LiteralNode(expr.value);
+    }
+
+    @Override
+    public ExprNode visitTemplateLiteralExpr(TemplateLiteral expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitTemplateStringExpr(TemplateString expr) {
+        return new TemplateNode(compileAllExpr(expr.templates));
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Unary expr) {
+        if (expr.operator.type == TokenType.MINUS)
+            return new NegateNode(expr.operator, compile(expr.right));
+        return new NotNode(compile(expr.right));
+    }
+}
@@ -0,0 +1,56 @@
+package lox.nodes;
+
+import lox.interpreter.Interpreter;
+import lox.interpreter.LoxCallable;
+
+/**
+ * A Lox function created by the node engine, the compiled body together with
+ * the frame it was declared in.
+ */
+final class NodeFunction extends LoxCallable {
+    final StmtNode.FunctionNode declaration;
+    final Frame closure;
+
+    NodeFunction(StmtNode.FunctionNode declaration, Frame closure) {
+        super(declaration.arity);
+        this.declaration = declaration;
+        this.closure = closure;
+    }
+
+    /** A call to {@code function} left by a return in tail position */
+    record TailCall(NodeFunction function, Frame frame) {
+    }
+
+    /**
+     * Runs the body in a frame whose first slots already hold the arguments.
+     * A tail call in the body replaces the function and frame, and the loop
+     * runs the callee next.
+     */
+    Object invoke(Frame frame) {
+        NodeFunction function = this;
+        for (;;) {
+            int completion = StmtNode.executeAll(function.declaration.body, frame);
+            if (completion == StmtNode.RETURN)
+                return frame.result;
+            if (completion != StmtNode.TAIL_CALL)
+                return null;
+
+            TailCall call = (TailCall) frame.result;
+            function = call.function();
+            frame = call.frame();
+        }
+    }
+
+    @Override
+    public Object callN(Interpreter interpreter, Object[] arguments) {
+        Frame frame = new Frame(declaration.frame_size, closure);
+        for (int i = 0; i < arity; i++)
+            frame.slots[i] = arguments[i];
+        return invoke(frame);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<fn %s>", declaration.name);
+    }
+}
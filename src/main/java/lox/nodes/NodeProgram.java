@@ -0,0 +1,29 @@
+package lox.nodes;
+
+import lox.Lox;
+import lox.interpreter.RuntimeError;
+
+/**
+ * The top level statements of a program compiled by {@link NodeCompiler}.
+ */
+public class NodeProgram {
+    private final StmtNode[] statements;
+    private final int frame_size;
+
+    NodeProgram(StmtNode[] statements, int frame_size) {
+        this.statements = statements;
+        this.frame_size = frame_size;
+    }
+
+    /**
+     * Runs the program, reporting runtime errors the same way the tree-walking
+     * interpreter does.
+     */
+    public void interpret() {
+        try {
+            StmtNode.executeAll(statements, new Frame(frame_size, null));
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package lox.nodes;
+
+import lox.Token;
+import lox.interpreter.RuntimeError;
+
+import static lox.interpreter.InterpreterUtil.*;
+
+/**
+ * Executable statement. Instead of throwing for control flow, every statement
+ * returns how it completed, and a return statement leaves its value in
+ * {@link Frame#result}. A return of a call to a Lox function leaves the call
+ * there instead, see {@link TailCallNode}.
+ */
+abstract class StmtNode extends Node {
+    static final int NORMAL = 0;
+    static final int BREAK = 1;
+    static final int CONTINUE = 2;
+    static final int RETURN = 3;
+    static final int TAIL_CALL = 4;
+
+    abstract int execute(Frame frame);
+
+    static int executeAll(StmtNode[] statements, Frame frame) {
+        for (StmtNode statement : statements) {
+            int completion = statement.execute(frame);
+            if (completion != NORMAL)
+                return completion;
+        }
+        return NORMAL;
+    }
+
+    static final class ExpressionNode extends StmtNode {
+        private ExprNode expression;
+
+        ExpressionNode(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            expression.execute(frame);
+            return NORMAL;
+        }
+    }
+
+    static final class PrintNode extends StmtNode {
+        private ExprNode expression;
+
+        PrintNode(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            System.out.println(stringify(expression.execute(frame)));
+            return NORMAL;
+        }
+    }
+
+    static final class VarNode extends StmtNode {
+        private final int slot;
+        private ExprNode initializer;
+
+        VarNode(int slot, ExprNode initializer) {
+            this.slot = slot;
+            this.initializer = adopt(initializer);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            frame.slots[slot] = initializer == null ? null : initializer.execute(frame);
+            return NORMAL;
+        }
+    }
+
+    /**
+     * Block that declares variables and therefore needs a frame of its own.
+     */
+    static final class BlockNode extends StmtNode {
+        private StmtNode[] statements;
+        private final int frame_size;
+
+        BlockNode(StmtNode[] statements, int frame_size) {
+            this.statements = adopt(statements);
+            this.frame_size = frame_size;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            Frame inner = new Frame(frame_size, frame);
+            int completion = executeAll(statements, inner);
+            if (completion == RETURN || completion == TAIL_CALL)
+                frame.result = inner.result;
+            return completion;
+        }
+    }
+
+    /**
+     * Block without declarations, runs in the frame of the enclosing scope.
+     */
+    static final class SequenceNode extends StmtNode {
+        private StmtNode[] statements;
+
+        SequenceNode(StmtNode[] statements) {
+            this.statements = adopt(statements);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return executeAll(statements, frame);
+        }
+    }
+
+    static final class IfNode extends StmtNode {
+        private ExprNode condition;
+        private StmtNode consequent;
+        private StmtNode alternate;
+
+        IfNode(ExprNode condition, StmtNode consequent, StmtNode alternate) {
+            this.condition = adopt(condition);
+            this.consequent = adopt(consequent);
+            this.alternate = adopt(alternate);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            if (isTruthy(condition.execute(frame)))
+                return consequent.execute(frame);
+            if (alternate != null)
+                return alternate.execute(frame);
+            return NORMAL;
+        }
+    }
+
+    static final class WhileNode extends StmtNode {
+        private ExprNode condition;
+        private StmtNode body;
+
+        WhileNode(ExprNode condition, StmtNode body) {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            while (isTruthy(condition.execute(frame))) {
+                int completion = body.execute(frame);
+                if (completion == BREAK)
+                    break;
+                if (completion == RETURN || completion == TAIL_CALL)
+                    return completion;
+            }
+            return NORMAL;
+        }
+    }
+
+    /**
+     * A for loop, with a frame of its own if the initializer declares the loop
+     * variable. Continue statements run the increment.
+     */
+    static final class ForNode extends StmtNode {
+        private StmtNode initializer;
+        private ExprNode condition;
+        private ExprNode increment;
+        private StmtNode body;
+        private final int frame_size;
+
+        ForNode(StmtNode initializer, ExprNode condition, ExprNode increment, StmtNode body, int frame_size) {
+            this.initializer = adopt(initializer);
+            this.condition = adopt(condition);
+            this.increment = adopt(increment);
+            this.body = adopt(body);
+            this.frame_size = frame_size;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            Frame inner = frame_size == 0 ? frame : new Frame(frame_size, frame);
+            if (initializer != null)
+                initializer.execute(inner);
+            while (isTruthy(condition.execute(inner))) {
+                int completion = body.execute(inner);
+                if (completion == BREAK)
+                    break;
+                if (completion == RETURN || completion == TAIL_CALL) {
+                    frame.result = inner.result;
+                    return completion;
+                }
+                if (increment != null)
+                    increment.execute(inner);
+            }
+            return NORMAL;
+        }
+    }
+
+    static final class BreakNode extends StmtNode {
+        @Override
+        int execute(Frame frame) {
+            return BREAK;
+        }
+    }
+
+    static final class ContinueNode extends StmtNode {
+        @Override
+        int execute(Frame frame) {
+            return CONTINUE;
+        }
+    }
+
+    /**
+     * Statement that always fails, used for constructs that are rejected when
+     * executed, like a break outside of a loop.
+     */
+    static final class ErrorNode extends StmtNode {
+        private final Token token;
+        private final String message;
+
+        ErrorNode(Token token, String message) {
+            this.token = token;
+            this.message = message;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            throw new RuntimeError(token, message);
+        }
+    }
+
+    static final class ReturnNode extends StmtNode {
+        private ExprNode value;
+
+        ReturnNode(ExprNode value) {
+            this.value = adopt(value);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            frame.result = value == null ? null : value.execute(frame);
+            return RETURN;
+        }
+    }
+
+    /**
+     * Return of a call in tail position. A Lox function is not called from
+     * here, the call is left in {@link Frame#result} for
+     * {@link NodeFunction#invoke} to run in place of the returning function, so
+     * tail recursion doesn't grow the Java stack.
+     */
+    static final class TailCallNode extends StmtNode {
+        private ExprNode.CallNode call;
+
+        TailCallNode(ExprNode.CallNode call) {
+            this.call = adopt(call);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            Object function = call.callee(frame);
+            if (function instanceof NodeFunction) {
+                NodeFunction lox_function = (NodeFunction) function;
+                frame.result = new NodeFunction.TailCall(lox_function, call.bind(lox_function, frame));
+                return TAIL_CALL;
+            }
+
+            frame.result = call.callOther(function, frame);
+            return RETURN;
+        }
+    }
+
+    static final class FunctionNode extends StmtNode {
+        final String name;
+        final int arity;
+        final int slot;
+        StmtNode[] body;
+        int frame_size;
+
+        FunctionNode(String name, int arity, int slot) {
+            this.name = name;
+            this.arity = arity;
+            this.slot = slot;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            frame.slots[slot] = new NodeFunction(this, frame);
+            return NORMAL;
+        }
+    }
+}
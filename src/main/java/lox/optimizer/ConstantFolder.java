@@ -0,0 +1,291 @@
+package lox.optimizer;
+
+import static lox.interpreter.InterpreterUtil.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lox.TokenType;
+import lox.ast.Expr;
+import lox.ast.Expr.*;
+import lox.ast.Stmt;
+import lox.ast.Stmt.*;
+
+/**
+ * Rewrites the parsed program, replacing expressions whose operands are all
+ * literals with the literal they evaluate to, and conditionals whose condition
+ * is a literal with the branch that is taken. The nodes it builds carry no
+ * resolution, so the folded program has to be resolved again.
+ * <br/>
+ * Only operations that succeed are folded, an expression that fails at runtime,
+ * like {@code 1 - "a"}, is left for the interpreter to report. Results follow
+ * the interpreter exactly, numbers are concatenated to strings through
+ * {@link lox.interpreter.InterpreterUtil#stringify}.
+ * <br/>
+ * Folding runs after the program as written was resolved, so resolver errors
+ * inside branches that can never run, like unknown identifiers, are reported
+ * whether or not the branches are dropped.
+ */
+public class ConstantFolder implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    public List<Stmt> fold(List<Stmt> statements) {
+        List<Stmt> folded = new ArrayList<>(statements.size());
+        for (Stmt statement : statements)
+            folded.add(fold(statement));
+        return folded;
+    }
+
+    private Stmt fold(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr fold(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Literal;
+    }
+
+    private static Object valueOf(Expr expr) {
+        return ((Literal) expr).value;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Assign expr) {
+        return new Assign(expr.identifier, fold(expr.value));
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Ternary expr) {
+        Expr condition = fold(expr.condition);
+        Expr consequent = fold(expr.consequent);
+        Expr alternate = fold(expr.alternate);
+
+        if (isLiteral(condition))
+            return isTruthy(valueOf(condition)) ? consequent : alternate;
+        return new Ternary(condition, consequent, alternate);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Binary expr) {
+        Expr left = fold(expr.left);
+        Expr right = fold(expr.right);
+
+        if (expr.operator.type == TokenType.COMMA && isLiteral(left))
+            return right;
+
+        if (isLiteral(left) && isLiteral(right)) {
+            Object value = evaluate(expr.operator.type, valueOf(left), valueOf(right));
+            if (value != null)
+                return new Literal(value);
+        }
+
+        return new Binary(left, expr.operator, right);
+    }
+
+    /**
+     * @return The value of the binary operation, or null if it fails at runtime
+     *         and therefore can't be folded
+     */
+    private static Object evaluate(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case BANG_EQUAL:
+                return !isEqual(left, right);
+            case EQUAL_EQUAL:
+                return isEqual(left, right);
+            case PLUS:
+                if (left instanceof Double && right instanceof Double)
+                    return (double) left + (double) right;
+                if (left instanceof Double && right instanceof String)
+                    return stringify(left) + (String) right;
+                if (left instanceof String && right instanceof Double)
+                    return (String) left + stringify(right);
+                if (left instanceof String && right instanceof String)
+                    return (String) left + (String) right;
+                return null;
+            default:
+                break;
+        }
+
+        if (!(left instanceof Double && right instanceof Double))
+            return null;
+
+        double lhs = (double) left;
+        double rhs = (double) right;
+        return switch (operator) {
+            case GREATER -> lhs > rhs;
+            case GREATER_EQUAL -> lhs >= rhs;
+            case LESS -> lhs < rhs;
+            case LESS_EQUAL -> lhs <= rhs;
+            case MINUS -> lhs - rhs;
+            case SLASH -> lhs / rhs;
+            case STAR -> lhs * rhs;
+            default -> null;
+        };
+    }
+
+    @Override
+    public Expr visitCallExpr(Call expr) {
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments)
+            arguments.add(fold(argument));
+        return new Call(fold(expr.callee), expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitArrayAccessExpr(ArrayAccess expr) {
+        return new ArrayAccess(fold(expr.array), expr.square, fold(expr.index));
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Logical expr) {
+        Expr left = fold(expr.left);
+        Expr right = fold(expr.right);
+
+        if (isLiteral(left)) {
+            boolean is_truthy = isTruthy(valueOf(left));
+            // The left operand decides
+            if (expr.operator.type == TokenType.OR && is_truthy)
+                return left;
+            if (expr.operator.type == TokenType.AND && !is_truthy)
+                return new Literal(false);
+
+            // Otherwise the right operand is the result, with falsy values as false
+            if (isLiteral(right))
+                return isTruthy(valueOf(right)) ? right : new Literal(false);
+        }
+
+        return new Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Grouping expr) {
+        Expr expression = fold(expr.expression);
+        if (isLiteral(expression))
+            return expression;
+        return new Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitTemplateLiteralExpr(TemplateLiteral expr) {
+        Expr expression = fold(expr.expression);
+        if (isLiteral(expression))
+            return expression;
+        return new TemplateLiteral(expression);
+    }
+
+    @Override
+    public Expr visitTemplateStringExpr(TemplateString expr) {
+        List<Expr> templates = new ArrayList<>(expr.templates.size());
+        boolean is_constant = true;
+        for (Expr template : expr.templates) {
+            Expr folded = fold(template);
+            is_constant &= isLiteral(folded);
+            templates.add(folded);
+        }
+
+        if (!is_constant)
+            return new TemplateString(templates);
+
+        StringBuilder sb = new StringBuilder();
+        for (Expr template : templates)
+            sb.append(stringify(valueOf(template)));
+        return new Literal(sb.toString());
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Unary expr) {
+        Expr right = fold(expr.right);
+
+        if (isLiteral(right)) {
+            Object value = valueOf(right);
+            if (expr.operator.type == TokenType.BANG)
+                return new Literal(!isTruthy(value));
+            if (value instanceof Double)
+                return new Literal(-(double) value);
+        }
+
+        return new Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Block stmt) {
+        return new Block(fold(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitIfStmt(If stmt) {
+        Expr condition = fold(stmt.condition);
+        Stmt consequent = fold(stmt.consequent);
+        Stmt alternate = stmt.alternate == null ? null : fold(stmt.alternate);
+
+        if (isLiteral(condition)) {
+            if (isTruthy(valueOf(condition)))
+                return consequent;
+            return alternate == null ? new Block(List.of()) : alternate;
+        }
+        return new If(condition, consequent, alternate);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Expression stmt) {
+        return new Expression(fold(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Function stmt) {
+        return new Function(stmt.name, stmt.params, fold(stmt.body));
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Return stmt) {
+        return new Return(stmt.keyword, fold(stmt.value));
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Print stmt) {
+        return new Print(fold(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(While stmt) {
+        Expr condition = fold(stmt.condition);
+        if (isLiteral(condition) && !isTruthy(valueOf(condition)))
+            return new Block(List.of());
+        return new While(condition, fold(stmt.body));
+    }
+
+    @Override
+    public Stmt visitForStmt(For stmt) {
+        Stmt initializer = stmt.initializer == null ? null : fold(stmt.initializer);
+        Expr condition = fold(stmt.condition);
+        if (isLiteral(condition) && !isTruthy(valueOf(condition)))
+            return new Block(initializer == null ? List.of() : List.of(initializer));
+        return new For(initializer, condition, fold(stmt.increment), fold(stmt.body));
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Continue stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Var stmt) {
+        return new Var(stmt.name, fold(stmt.initializer));
+    }
+}
@@ -0,0 +1,479 @@
+package lox.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lox.Token;
+import lox.TokenType;
+import lox.ast.Expr;
+import lox.ast.Expr.*;
+import lox.ast.Stmt;
+import lox.ast.Stmt.*;
+
+/**
+ * Replaces calls of small functions with the value the function returns, its
+ * parameters replaced by the arguments. Runs on a resolved program: the
+ * resolver's depths and slots tell which declaration a name refers to. The
+ * rewritten program has to be resolved again.
+ * <br/>
+ * A function is inlined if its body is a single return statement whose value
+ * has at most {@link #MAX_SIZE} nodes and neither calls nor assigns, so it
+ * can't recurse, and if its name is never assigned, so every call through the
+ * name is a call of the declaration. The declaration itself stays, calls that
+ * are not inlined and functions it escapes to still call it.
+ * <br/>
+ * A call is inlined if it passes every parameter, and every variable the
+ * returned value reads besides the parameters refers to the same declaration
+ * at the call. Arguments that are literals or variables can be used any number
+ * of times. Other arguments must neither call nor assign, and must be used
+ * exactly once, unconditionally and in parameter order, before any operation
+ * of the function that can fail, so they are evaluated and fail exactly as
+ * they would before the call.
+ */
+public class Inliner implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    /** Maximum number of nodes in the value of an inlined function */
+    public static final int MAX_SIZE = 16;
+
+    /** A declaration, by the scope it is in and its slot there, natives have no scope */
+    private record Binding(Object scope, int slot) {
+    }
+
+    private static final Binding NATIVE = new Binding(null, -1);
+
+    /** A scope of the resolver, with the names declared in it so far */
+    private static final class Scope {
+        final Object key;
+        final Map<String, Integer> names = new HashMap<>();
+
+        Scope(Object key) {
+            this.key = key;
+        }
+    }
+
+    /** A function that can be inlined */
+    private record Candidate(Function declaration, Expr value, Map<String, Binding> free_variables) {
+    }
+
+    /**
+     * Scopes enclosing the current statement, identified like in
+     * {@link lox.ir.CaptureAnalysis}
+     */
+    private final List<Scope> scopes = new ArrayList<>();
+    /** Declarations assigned anywhere in the program */
+    private final Set<Binding> assigned = new HashSet<>();
+    private final Map<Binding, Candidate> candidates = new HashMap<>();
+    /** False while the first pass finds the assigned declarations */
+    private boolean is_inlining = false;
+    /** Arguments replacing the parameters while an inlined value is copied */
+    private List<Expr> arguments = null;
+
+    /**
+     * @return The program with calls inlined, made of new nodes that are not
+     *         resolved yet
+     */
+    public List<Stmt> inline(List<Stmt> program) {
+        scopes.add(new Scope(program));
+        rewrite(program);
+        scopes.clear();
+
+        is_inlining = true;
+        scopes.add(new Scope(program));
+        List<Stmt> inlined = rewrite(program);
+        scopes.clear();
+        return inlined;
+    }
+
+    private List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> rewritten = new ArrayList<>(statements.size());
+        for (Stmt statement : statements)
+            rewritten.add(rewrite(statement));
+        return rewritten;
+    }
+
+    private Stmt rewrite(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    private Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    private void beginScope(Object key) {
+        scopes.add(new Scope(key));
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private void declare(Token name, int slot) {
+        scopes.get(scopes.size() - 1).names.put(name.lexeme, slot);
+    }
+
+    /** @return The declaration a resolved variable refers to */
+    private Binding binding(int depth, int slot) {
+        if (depth == -1)
+            return NATIVE;
+        return new Binding(scopes.get(scopes.size() - 1 - depth).key, slot);
+    }
+
+    /** @return The declaration {@code name} refers to at the current statement */
+    private Binding lookup(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).names.get(name);
+            if (slot != null)
+                return new Binding(scopes.get(i).key, slot);
+        }
+        return NATIVE;
+    }
+
+    /**
+     * @return The function as a candidate for inlining, or null if it can't be
+     *         inlined. Called in the function's scope.
+     */
+    private Candidate candidate(Function function) {
+        if (function.body.size() != 1 || !(function.body.get(0) instanceof Return))
+            return null;
+        Expr value = ((Return) function.body.get(0)).value;
+        if (value == null)
+            return null;
+        int size = size(value);
+        if (size == -1 || size > MAX_SIZE)
+            return null;
+
+        Map<String, Binding> free_variables = new HashMap<>();
+        addFreeVariables(value, free_variables);
+        return new Candidate(function, value, free_variables);
+    }
+
+    /**
+     * @return The number of nodes in {@code expr}, or -1 if it calls or assigns
+     */
+    private static int size(Expr expr) {
+        if (expr instanceof Call || expr instanceof Assign)
+            return -1;
+        int size = 1;
+        for (Expr operand : operands(expr)) {
+            int operand_size = size(operand);
+            if (operand_size == -1)
+                return -1;
+            size += operand_size;
+        }
+        return size;
+    }
+
+    /** @return The operands of an expression that neither calls nor assigns, in evaluation order */
+    private static List<Expr> operands(Expr expr) {
+        if (expr instanceof Ternary)
+            return List.of(((Ternary) expr).condition, ((Ternary) expr).consequent, ((Ternary) expr).alternate);
+        if (expr instanceof Binary)
+            return List.of(((Binary) expr).left, ((Binary) expr).right);
+        if (expr instanceof ArrayAccess)
+            return List.of(((ArrayAccess) expr).array, ((ArrayAccess) expr).index);
+        if (expr instanceof Logical)
+            return List.of(((Logical) expr).left, ((Logical) expr).right);
+        if (expr instanceof Grouping)
+            return List.of(((Grouping) expr).expression);
+        if (expr instanceof TemplateLiteral)
+            return List.of(((TemplateLiteral) expr).expression);
+        if (expr instanceof TemplateString)
+            return ((TemplateString) expr).templates;
+        if (expr instanceof Unary)
+            return List.of(((Unary) expr).right);
+        return List.of();
+    }
+
+    /** Adds the variables {@code expr} reads besides the parameters, which are at depth 0 */
+    private void addFreeVariables(Expr expr, Map<String, Binding> free_variables) {
+        if (expr instanceof Variable) {
+            Variable variable = (Variable) expr;
+            if (variable.depth != 0)
+                free_variables.put(variable.name.lexeme, binding(variable.depth, variable.slot));
+            return;
+        }
+        for (Expr operand : operands(expr))
+            addFreeVariables(operand, free_variables);
+    }
+
+    private static boolean isSimple(Expr argument) {
+        return argument instanceof Literal || argument instanceof Variable;
+    }
+
+    /**
+     * The uses of the arguments that are not simple, in evaluation order, see
+     * {@link Inliner}.
+     */
+    private static final class Order {
+        final boolean[] is_simple;
+        /** The argument that must be used next, arguments before it are used */
+        int next = 0;
+        boolean is_preserved = true;
+
+        Order(boolean[] is_simple) {
+            this.is_simple = is_simple;
+            skipSimple();
+        }
+
+        void skipSimple() {
+            while (next < is_simple.length && is_simple[next])
+                next++;
+        }
+
+        void use(int parameter, boolean is_conditional) {
+            if (is_simple[parameter])
+                return;
+            if (is_conditional || parameter != next)
+                is_preserved = false;
+            next++;
+            skipSimple();
+        }
+
+        /** An operation that can fail runs */
+        void check() {
+            if (next < is_simple.length)
+                is_preserved = false;
+        }
+
+        void walk(Expr expr, boolean is_conditional) {
+            if (expr instanceof Variable) {
+                if (((Variable) expr).depth == 0)
+                    use(((Variable) expr).slot, is_conditional);
+            } else if (expr instanceof Ternary) {
+                Ternary ternary = (Ternary) expr;
+                walk(ternary.condition, is_conditional);
+                walk(ternary.consequent, true);
+                walk(ternary.alternate, true);
+            } else if (expr instanceof Logical) {
+                walk(((Logical) expr).left, is_conditional);
+                walk(((Logical) expr).right, true);
+            } else if (expr instanceof ArrayAccess) {
+                // The array is checked before the index is evaluated
+                walk(((ArrayAccess) expr).array, is_conditional);
+                check();
+                walk(((ArrayAccess) expr).index, is_conditional);
+                check();
+            } else {
+                for (Expr operand : operands(expr))
+                    walk(operand, is_conditional);
+                if (canFail(expr))
+                    check();
+            }
+        }
+
+        private static boolean canFail(Expr expr) {
+            if (expr instanceof Binary) {
+                TokenType type = ((Binary) expr).operator.type;
+                return type != TokenType.EQUAL_EQUAL && type != TokenType.BANG_EQUAL && type != TokenType.COMMA;
+            }
+            return expr instanceof Unary && ((Unary) expr).operator.type == TokenType.MINUS;
+        }
+    }
+
+    /**
+     * @return The inlined value of the call, or null if the call has to stay
+     */
+    private Expr inline(Candidate candidate, List<Expr> arguments) {
+        if (arguments.size() != candidate.declaration().params.size())
+            return null;
+        for (Map.Entry<String, Binding> entry : candidate.free_variables().entrySet()) {
+            if (!lookup(entry.getKey()).equals(entry.getValue()))
+                return null;
+        }
+
+        boolean[] is_simple = new boolean[arguments.size()];
+        for (int i = 0; i < is_simple.length; i++) {
+            is_simple[i] = isSimple(arguments.get(i));
+            if (!is_simple[i] && size(arguments.get(i)) == -1)
+                return null;
+        }
+        Order order = new Order(is_simple);
+        order.walk(candidate.value(), false);
+        order.check();
+        if (!order.is_preserved)
+            return null;
+
+        this.arguments = arguments;
+        Expr inlined = new Grouping(rewrite(candidate.value()));
+        this.arguments = null;
+        return inlined;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Assign expr) {
+        if (!is_inlining)
+            assigned.add(binding(expr.depth, expr.slot));
+        return new Assign(expr.identifier, rewrite(expr.value));
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Ternary expr) {
+        return new Ternary(rewrite(expr.condition), rewrite(expr.consequent), rewrite(expr.alternate));
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Binary expr) {
+        return new Binary(rewrite(expr.left), expr.operator, rewrite(expr.right));
+    }
+
+    @Override
+    public Expr visitCallExpr(Call expr) {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments)
+            arguments.add(rewrite(argument));
+
+        if (is_inlining && expr.callee instanceof Variable) {
+            Variable name = (Variable) expr.callee;
+            Binding binding = binding(name.depth, name.slot);
+            Candidate candidate = candidates.get(binding);
+            if (candidate != null && !assigned.contains(binding)) {
+                Expr inlined = inline(candidate, arguments);
+                if (inlined != null)
+                    return inlined;
+            }
+        }
+        return new Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitArrayAccessExpr(ArrayAccess expr) {
+        return new ArrayAccess(rewrite(expr.array), expr.square, rewrite(expr.index));
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Logical expr) {
+        return new Logical(rewrite(expr.left), expr.operator, rewrite(expr.right));
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Grouping expr) {
+        return new Grouping(rewrite(expr.expression));
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Literal expr) {
+        return new Literal(expr.value);
+    }
+
+    @Override
+    public Expr visitTemplateLiteralExpr(TemplateLiteral expr) {
+        return new TemplateLiteral(rewrite(expr.expression));
+    }
+
+    @Override
+    public Expr visitTemplateStringExpr(TemplateString expr) {
+        List<Expr> templates = new ArrayList<>(expr.templates.size());
+        for (Expr template : expr.templates)
+            templates.add(rewrite(template));
+        return new TemplateString(templates);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Unary expr) {
+        return new Unary(expr.operator, rewrite(expr.right));
+    }
+
+    /**
+     * While an inlined value is copied, its parameters are replaced by the
+     * arguments. Arguments used more than once are literals and variables,
+     * copied for every use.
+     */
+    @Override
+    public Expr visitVariableExpr(Variable expr) {
+        if (arguments == null || expr.depth != 0)
+            return new Variable(expr.name);
+
+        Expr argument = arguments.get(expr.slot);
+        if (argument instanceof Variable)
+            return new Variable(((Variable) argument).name);
+        if (argument instanceof Literal)
+            return new Literal(((Literal) argument).value);
+        return argument;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Block stmt) {
+        if (stmt.slot_count == 0)
+            return new Block(rewrite(stmt.statements));
+
+        beginScope(stmt);
+        Block block = new Block(rewrite(stmt.statements));
+        endScope();
+        return block;
+    }
+
+    @Override
+    public Stmt visitIfStmt(If stmt) {
+        return new If(rewrite(stmt.condition), rewrite(stmt.consequent), rewrite(stmt.alternate));
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Expression stmt) {
+        return new Expression(rewrite(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Function stmt) {
+        declare(stmt.name, stmt.slot);
+        Binding binding = new Binding(scopes.get(scopes.size() - 1).key, stmt.slot);
+
+        beginScope(stmt);
+        for (int i = 0; i < stmt.params.size(); i++)
+            declare(stmt.params.get(i), i);
+        if (is_inlining) {
+            Candidate candidate = candidate(stmt);
+            if (candidate != null)
+                candidates.put(binding, candidate);
+        }
+        List<Stmt> body = rewrite(stmt.body);
+        endScope();
+        return new Function(stmt.name, stmt.params, body);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Return stmt) {
+        return new Return(stmt.keyword, rewrite(stmt.value));
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Print stmt) {
+        return new Print(rewrite(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(While stmt) {
+        return new While(rewrite(stmt.condition), rewrite(stmt.body));
+    }
+
+    @Override
+    public Stmt visitForStmt(For stmt) {
+        if (stmt.slot_count != 0)
+            beginScope(stmt);
+        Stmt initializer = rewrite(stmt.initializer);
+        For loop = new For(initializer, rewrite(stmt.condition), rewrite(stmt.increment), rewrite(stmt.body));
+        if (stmt.slot_count != 0)
+            endScope();
+        return loop;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Continue stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Var stmt) {
+        // Declared before the initializer, like the resolver does
+        declare(stmt.name, stmt.slot);
+        return new Var(stmt.name, rewrite(stmt.initializer));
+    }
+}
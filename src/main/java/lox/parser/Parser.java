@@ -1,7 +1,6 @@
 package lox.parser;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -10,6 +9,7 @@ import lox.Lox;
 import lox.TokenType;
 import lox.ast.Expr;
 import lox.ast.Stmt;
+import lox.scanner.Scanner;
 
 import static lox.TokenType.*;
 
@@ -22,7 +22,8 @@ public class Parser {
         }
     }
 
-    private final List<Token> tokens;
+    private final Scanner scanner;
+    /** Number of the current token in the scanner */
     private int current = 0;
 
     static {
@@ -40,8 +41,13 @@ public class Parser {
         OPERATOR_REGISTRY.registerPostfixOperator(LEFT_PAREN);
     }
 
-    public Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    /**
+     * Parses the tokens as the scanner scans them. Tokens are read by number
+     * and only made into {@link Token}s when the AST keeps them or an error
+     * reports them, the scanner drops the tokens before the previous one.
+     */
+    public Parser(Scanner scanner) {
+        this.scanner = scanner;
     }
 
     public List<Stmt> parse() throws ParseError {
@@ -56,7 +62,7 @@ public class Parser {
     private Stmt declaration() {
         try {
             if (match(VAR, FUN)) {
-                TokenType prev_type = previous().type;
+                TokenType prev_type = previousType();
                 switch (prev_type) {
                     case VAR:
                         return varDeclaration();
@@ -76,7 +82,7 @@ public class Parser {
 
     private Stmt statement() {
         if (match(PRINT, LEFT_BRACE, IF, WHILE, FOR, BREAK, CONTINUE, RETURN)) {
-            switch (previous().type) {
+            switch (previousType()) {
                 case PRINT:
                     return printStatement();
                 case LEFT_BRACE:
@@ -119,15 +125,7 @@ public class Parser {
 
         Stmt body = statement();
 
-        if (update != null)
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(update)));
-
-        body = new Stmt.While(condition, body);
-
-        if (init != null)
-            body = new Stmt.Block(Arrays.asList(init, body));
-
-        return body;
+        return new Stmt.For(init, condition, update, body);
     }
 
     private Stmt.While whileStatement() {
@@ -244,12 +242,13 @@ public class Parser {
      * @return
      */
     private Expr expr(int min_bp) {
-        Token next = advance();
-        Expr lhs = switch (next.type) {
+        // Tokens are made before parsing further, which releases them
+        int next = advance();
+        Expr lhs = switch (scanner.type(next)) {
             case NUMBER, STRING ->
-                new Expr.Literal(next.literal);
+                new Expr.Literal(scanner.literal(next));
             case IDENTIFIER ->
-                new Expr.Variable(next);
+                new Expr.Variable(scanner.token(next));
             case INTERP_START -> {
                 Expr next_lhs = expr();
                 expect(INTERP_END);
@@ -285,26 +284,27 @@ public class Parser {
             }
             case MINUS, BANG -> {
                 // We know it must be in the registry
-                Operator op = OPERATOR_REGISTRY.getPrefixOperator(next.type).get();
+                Token operator = scanner.token(next);
+                Operator op = OPERATOR_REGISTRY.getPrefixOperator(operator.type).get();
                 Expr rhs = expr(op.rbp);
-                yield new Expr.Unary(next, rhs);
+                yield new Expr.Unary(operator, rhs);
             }
-            default -> throw error(next, "Unexpected token, got " + next.lexeme);
+            default -> throw error(scanner.token(next), "Unexpected token, got " + scanner.token(next).lexeme);
         };
 
         while (true) {
             if (isAtEnd())
                 break;
 
-            Optional<Operator.PostfixOperator> postOp = OPERATOR_REGISTRY.getPostfixOperator(peek().type);
+            Optional<Operator.PostfixOperator> postOp = OPERATOR_REGISTRY.getPostfixOperator(peekType());
             if ((postOp).isPresent()) {
                 Operator.PostfixOperator op = postOp.get();
                 if (op.lbp < min_bp)
                     break;
 
-                Token op_token = advance();
+                int op_token = advance();
 
-                switch (op_token.type) {
+                switch (scanner.type(op_token)) {
                     case LEFT_PAREN:
                         List<Expr> arguments = new ArrayList<>();
                         if (!check(RIGHT_PAREN)) {
@@ -324,18 +324,19 @@ public class Parser {
                         lhs = new Expr.ArrayAccess(lhs, square, index);
                         continue;
                     default:
-                        throw error(op_token, "Unexpected postfix operator, got " + next.lexeme);
+                        throw error(scanner.token(op_token),
+                                "Unexpected postfix operator, got " + scanner.token(op_token).lexeme);
                 }
             }
 
-            Optional<Operator.InfixOperator> infixOp = OPERATOR_REGISTRY.getInfixOperator(peek().type);
+            Optional<Operator.InfixOperator> infixOp = OPERATOR_REGISTRY.getInfixOperator(peekType());
             if (infixOp.isPresent()) {
                 Operator.InfixOperator op = infixOp.get();
                 if (op.lbp < min_bp) {
                     break;
                 }
 
-                Token op_token = advance();
+                Token op_token = scanner.token(advance());
                 Expr rhs = null;
 
                 switch (op.operator) {
@@ -353,6 +354,11 @@ public class Parser {
                         rhs = expr(op.rbp);
                         lhs = new Expr.Assign(((Expr.Variable) lhs).name, rhs);
                         continue;
+                    case AND:
+                    case OR:
+                        rhs = expr(op.rbp);
+                        lhs = new Expr.Logical(lhs, op_token, rhs);
+                        continue;
                     default:
                         rhs = expr(op.rbp);
                         lhs = new Expr.Binary(lhs, op_token, rhs);
@@ -385,31 +391,44 @@ public class Parser {
     private boolean check(TokenType type) {
         if (isAtEnd())
             return false;
-        return peek().type == type;
+        return peekType() == type;
     }
 
-    private Token advance() {
+    /**
+     * @return The number of the token advanced over, or of EOF at the end
+     */
+    private int advance() {
         if (isAtEnd())
-            return peek();
-        current++;
-        return previous();
+            return current;
+        scanner.release(current);
+        return current++;
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return peekType() == EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return scanner.token(current);
+    }
+
+    private TokenType peekType() {
+        return scanner.type(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return scanner.token(current - 1);
+    }
+
+    private TokenType previousType() {
+        return scanner.type(current - 1);
     }
 
     private Token consume(TokenType type, String message) {
-        if (check(type))
-            return advance();
+        if (check(type)) {
+            advance();
+            return previous();
+        }
 
         throw error(peek(), message);
     }
@@ -423,10 +442,10 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON)
+            if (previousType() == SEMICOLON)
                 return;
 
-            switch (peek().type) {
+            switch (peekType()) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -0,0 +1,56 @@
+package lox.scanner;
+
+import java.util.Arrays;
+
+/**
+ * Offsets at which the lines of a source start, from which the line and column
+ * of an offset are found when a location is needed. Lines before the ones
+ * still needed are dropped as the source is scanned.
+ */
+final class LineTable {
+    /** Start offsets of the lines from {@code first_line} on */
+    private int[] starts = new int[256];
+    private int count = 1;
+    private int first_line = 1;
+
+    /**
+     * Adds a line starting at {@code offset}, dropping the lines that end
+     * before {@code needed} when the table is full.
+     */
+    void add(int offset, int needed) {
+        if (count == starts.length) {
+            int dropped = index(needed);
+            if (dropped > 0) {
+                System.arraycopy(starts, dropped, starts, 0, count - dropped);
+                count -= dropped;
+                first_line += dropped;
+            }
+            if (count == starts.length)
+                starts = Arrays.copyOf(starts, count * 2);
+        }
+        starts[count++] = offset;
+    }
+
+    Location location(int offset) {
+        int index = index(offset);
+        return new Location(offset, first_line + index, offset - starts[index]);
+    }
+
+    /** @return The index in {@code starts} of the line containing {@code offset} */
+    private int index(int offset) {
+        // Locations are mostly asked for on the last lines
+        if (offset >= starts[count - 1])
+            return count - 1;
+
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= offset)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+}
@@ -29,41 +29,6 @@ public class Location implements Cloneable {
         return col;
     }
 
-    /**
-     * Increments the location to the next character
-     *
-     * @param s Source code
-     * @return Character at offset before incrementing
-     */
-    public char increment(String s) {
-        char curr = s.charAt(offset++);
-        col += 1;
-        if (curr == '\n') {
-            line += 1;
-            col = 0;
-        }
-
-        return curr;
-    }
-
-    /**
-     * Increments the location to the next character
-     *
-     * @param c The current character the location is at
-     */
-    public void increment(char c) {
-        offset += 1;
-        col += 1;
-        if (c == '\n') {
-            line += 1;
-            col = 0;
-        }
-    }
-
-    public char charAt(String s) {
-        return s.charAt(offset);
-    }
-
     /**
      * Copies the values of {@code loc} into this object
      */
@@ -0,0 +1,127 @@
+package lox.scanner;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a UTF-8, ASCII or Latin-1 source file through a memory mapping instead
+ * of copying it through stream buffers. Lox source is mostly ASCII, ASCII bytes
+ * are widened straight into the scanner's buffer and only runs of other bytes,
+ * which can only be in strings and comments, go through the charset's decoder.
+ */
+public final class MappedReader extends Reader {
+    private final MappedByteBuffer bytes;
+    /** Decoder of runs of non ASCII bytes, null for Latin-1 */
+    private final CharsetDecoder decoder;
+    /** A surrogate pair decoded when only one character fitted */
+    private final char[] pair = new char[2];
+    /** The second half of {@code pair} still to be read, or -1 */
+    private int pending = -1;
+
+    private MappedReader(MappedByteBuffer bytes, CharsetDecoder decoder) {
+        this.bytes = bytes;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Opens a source file, mapped if it is in UTF-8, ASCII or Latin-1, read
+     * through a stream otherwise. Malformed input is replaced like
+     * {@link InputStreamReader} does.
+     */
+    public static Reader open(Path path, Charset charset) throws IOException {
+        boolean is_latin1 = charset.equals(StandardCharsets.ISO_8859_1);
+        if (!is_latin1 && !charset.equals(StandardCharsets.UTF_8)
+                && !charset.equals(StandardCharsets.US_ASCII))
+            return new InputStreamReader(Files.newInputStream(path), charset);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                return new InputStreamReader(Files.newInputStream(path), charset);
+
+            // The mapping stays valid once the channel is closed
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CharsetDecoder decoder = is_latin1 ? null : charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            return new MappedReader(bytes, decoder);
+        }
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) {
+        if (length == 0)
+            return 0;
+        int i = offset;
+        if (pending >= 0) {
+            chars[i++] = (char) pending;
+            pending = -1;
+        } else if (!bytes.hasRemaining()) {
+            return -1;
+        }
+
+        int position = bytes.position();
+        int limit = bytes.limit();
+        int end = offset + length;
+        while (i < end && position < limit) {
+            byte b = bytes.get(position);
+            if (b >= 0) {
+                chars[i++] = (char) b;
+                position++;
+            } else if (decoder == null) {
+                chars[i++] = (char) (b & 0xff);
+                position++;
+            } else {
+                bytes.position(position);
+                int decoded = decode(chars, i, end);
+                if (decoded == i) {
+                    // Only half of a surrogate pair fits
+                    if (decode(pair, 0, 2) == 2)
+                        pending = pair[1];
+                    chars[i++] = pair[0];
+                } else {
+                    i = decoded;
+                }
+                position = bytes.position();
+            }
+        }
+        bytes.position(position);
+        return i - offset;
+    }
+
+    /**
+     * Decodes the run of non ASCII bytes at the position into
+     * {@code chars[offset:end]}, as far as it fits.
+     *
+     * @return The index after the decoded characters
+     */
+    private int decode(char[] chars, int offset, int end) {
+        int run_end = bytes.position();
+        while (run_end < bytes.limit() && bytes.get(run_end) < 0)
+            run_end++;
+
+        int limit = bytes.limit();
+        bytes.limit(run_end);
+        CharBuffer out = CharBuffer.wrap(chars, offset, end - offset);
+        decoder.reset();
+        decoder.decode(bytes, out, true);
+        if (!bytes.hasRemaining())
+            decoder.flush(out);
+        bytes.limit(limit);
+        return out.position();
+    }
+
+    @Override
+    public void close() {
+    }
+}
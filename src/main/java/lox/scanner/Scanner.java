@@ -1,7 +1,11 @@
 package lox.scanner;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -12,59 +16,121 @@ import lox.Lox;
 import static lox.TokenType.*;
 import static lox.scanner.ScannerUtil.*;
 
+/**
+ * Scans tokens on demand from a {@link Reader}. The source is read in chunks
+ * into a buffer that only keeps the characters of the lexeme being scanned, so
+ * scanning a script doesn't hold the whole script nor all of its tokens.
+ * <br/>
+ * Tokens are numbered from 0 and asked for by number, scanning as far as
+ * needed. Positions are plain offsets, their lines and columns come from a
+ * {@link LineTable} when a {@link Location} is needed.
+ */
 public class Scanner {
-
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
-
-    private Location start;
-    private Location current;
+    /** Characters read from the source at once */
+    private static final int CHUNK_SIZE = 8192;
+    /** Characters that end a run skipped in a line comment */
+    private static final boolean[] LINE_COMMENT_STOPS = stops("\n");
+    /** Characters that end a run skipped in a block comment */
+    private static final boolean[] BLOCK_COMMENT_STOPS = stops("*/\n");
+    /** Characters that end a run copied from the body of a string */
+    private static final boolean[] STRING_STOPS = stops("\"\\$\n");
+
+    private final Reader reader;
+    /** Characters of the source from {@code buffer_offset} on */
+    private char[] buffer = new char[CHUNK_SIZE];
+    private int buffer_offset = 0;
+    private int buffer_length = 0;
+    private boolean is_reader_done = false;
+    private final TokenBuffer tokens = new TokenBuffer();
+    private final LineTable lines = new LineTable();
+    private final SymbolTable symbols;
+    private boolean is_scanned = false;
+
+    /** Offset of the current lexeme */
+    private int start = 0;
+    /** Offset of the next character */
+    private int current = 0;
     private boolean is_interpolated = false;
     private boolean is_execution_stopped = false;
 
     public Scanner(String source) {
-        this.source = source;
-        this.start = new Location();
-        this.current = new Location();
+        this(source, new SymbolTable());
     }
 
-    public Scanner(String source, Location start) {
-        this(source);
-        this.start.bringTo(start);
-        this.current.bringTo(start);
+    public Scanner(Reader reader) {
+        this(reader, new SymbolTable());
     }
 
     /**
-     * Instantiate a new {@link Scanner} and set it to interpolation mode
-     * 
-     * @param source The original source code
-     * @param start  The starting location of the expression in the interpolation
-     *               template
-     * @return The new instantiated {@link Scanner}
+     * @param symbols Table the names are interned in, shared by the scanners
+     *                whose tokens are resolved together
      */
-    public static Scanner interpolateString(String source, Location start) {
-        Scanner sc = new Scanner(source, new Location().bringTo(start));
-        sc.is_interpolated = true;
+    public Scanner(String source, SymbolTable symbols) {
+        this(new StringReader(source), symbols);
+    }
 
-        return sc;
+    /**
+     * @param symbols Table the names are interned in, shared by the scanners
+     *                whose tokens are resolved together
+     */
+    public Scanner(Reader reader, SymbolTable symbols) {
+        this.reader = reader;
+        this.symbols = symbols;
     }
 
     /**
      * Scans tokens in the source code
      * 
-     * @return List of tokens, including an EOF token at the end if not in
-     *         interpolation mode
+     * @return List of tokens, including an EOF token at the end
      */
     public List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        List<Token> scanned = new ArrayList<>();
+        for (int number = 0; type(number) != EOF; number++)
+            scanned.add(token(number));
+        scanned.add(token(scanned.size()));
+        return scanned;
+    }
+
+    /**
+     * @return The type of token {@code number}, EOF for the last token
+     */
+    public TokenType type(int number) {
+        scan(number);
+        return tokens.type(number);
+    }
+
+    /** @return The literal of token {@code number} */
+    public Object literal(int number) {
+        scan(number);
+        return tokens.literal(number);
+    }
+
+    /** @return Token {@code number}, made once */
+    public Token token(int number) {
+        scan(number);
+        return tokens.token(number, lines);
+    }
+
+    /**
+     * Lets the scanner drop the tokens before {@code number}, they won't be
+     * asked for anymore
+     */
+    public void release(int number) {
+        tokens.release(number);
+    }
+
+    /** Scans up to token {@code number}, or to EOF */
+    private void scan(int number) {
+        while (tokens.size() <= number && !is_scanned) {
+            if (isAtEnd()) {
+                tokens.add(EOF, current, "", null, -1);
+                is_scanned = true;
+                break;
+            }
             // We are at the beginning of the next lexeme.
-            start.bringTo(current);
+            start = current;
             scanToken();
         }
-
-        if (!is_interpolated)
-            tokens.add(new Token(EOF, "", null, current));
-        return tokens;
     }
 
     private void scanToken() {
@@ -105,14 +171,19 @@ public class Scanner {
             case '/':
                 if (match('/')) {
                     // A comment goes until the end of the line.
-                    while (peek() != '\n' && !isAtEnd())
-                        advance();
+                    while (peek() != '\n' && !isAtEnd()) {
+                        start = current;
+                        skip(LINE_COMMENT_STOPS);
+                    }
                 } else if (match('*')) {
                     // A block comment goes until it finds its corresponding ending block comment
                     // marker. We allow nested comments for the challenge.
                     int nest_level = 1;
 
                     while (nest_level != 0 && !isAtEnd()) {
+                        start = current;
+                        if (skip(BLOCK_COMMENT_STOPS))
+                            continue;
                         char current_char = advance();
                         if (current_char == '/' && match('*'))
                             nest_level += 1;
@@ -122,7 +193,7 @@ public class Scanner {
                     }
 
                     if (isAtEnd())
-                        Lox.error(current, "Expected end comment marker but reached end of file.");
+                        Lox.error(lines.location(current), "Expected end comment marker but reached end of file.");
                 } else {
                     addToken(SLASH);
                 }
@@ -160,6 +231,8 @@ public class Scanner {
             case ' ':
             case '\r':
             case '\t':
+                skipBlanks();
+                break;
             case '\n':
                 break;
 
@@ -169,7 +242,7 @@ public class Scanner {
                 else if (isAlpha(c))
                     identifier();
                 else
-                    Lox.error(start, "Unexpected character: " + c + '.');
+                    Lox.error(lines.location(start), "Unexpected character: " + c + '.');
                 break;
         }
     }
@@ -178,9 +251,9 @@ public class Scanner {
         while (isAlphaNumeric(peek()))
             advance();
 
-        String text = source.substring(start.offset(), current.offset());
-        TokenType type = getIdentifierOrKeyword(text);
-        addToken(type, text, text);
+        int symbol = symbols.intern(buffer, start - buffer_offset, current - start);
+        String name = symbols.name(symbol);
+        tokens.add(symbols.type(symbol), start, name, name, symbol);
     }
 
     private void number() {
@@ -195,17 +268,23 @@ public class Scanner {
                 advance();
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start.offset(), current.offset())));
+        addToken(NUMBER, parseNumber(buffer, start - buffer_offset, current - start));
     }
 
     private void string() {
         addToken(STRING_START);
-        start.bringTo(current);
+        start = current;
 
         boolean is_escaping = false;
         StringBuilder sb = new StringBuilder();
 
         while ((peek() != '"' || is_escaping) && !isAtEnd()) {
+            int from = current;
+            if (!is_escaping && skip(STRING_STOPS)) {
+                sb.append(buffer, from - buffer_offset, current - from);
+                continue;
+            }
+
             char c = advance();
 
             if (is_escaping) {
@@ -214,7 +293,7 @@ public class Scanner {
                     sb.append(escaped.get());
                     is_escaping = false;
                 } else
-                    Lox.error(current, "Invalid escape sequence");
+                    Lox.error(lines.location(current), "Invalid escape sequence");
             } else {
                 switch (c) {
                     case '\\':
@@ -222,19 +301,16 @@ public class Scanner {
                         break;
                     case '$':
                         if (match('{')) {
-                            addToken(STRING, sb.toString(), sb.toString());
+                            String text = sb.toString();
+                            addToken(STRING, text, text);
                             sb.setLength(0);
-                            // This is safe since the previous 2 characters must be on the same line and
-                            // must be ${
-                            start.bringTo(new Location(current.offset() - 2, current.line(), current.col()));
+                            // The previous 2 characters must be ${
+                            start = current - 2;
                             addToken(INTERP_START);
-                            start.bringTo(current);
+                            start = current;
 
-                            Scanner sub_sc = Scanner.interpolateString(source, start);
-                            List<Token> new_tokens = sub_sc.scanTokens();
-                            addTokens(new_tokens);
-                            current.bringTo(sub_sc.current);
-                            start.bringTo(current);
+                            interpolation();
+                            start = current;
                         } else
                             sb.append(c);
                         break;
@@ -245,54 +321,153 @@ public class Scanner {
             }
         }
 
-        addToken(STRING, sb.toString(), sb.toString());
+        String text = sb.toString();
+        addToken(STRING, text, text);
+
+        if (isAtEnd()) {
+            Lox.error(lines.location(current), "Unterminated string.");
+            return;
+        }
 
         // Consume the ending "
-        start.bringTo(current);
+        start = current;
         advance();
         addToken(STRING_END);
     }
 
-    private void addTokens(Collection<Token> tokens) {
-        this.tokens.addAll(tokens);
+    /**
+     * Scans the expression of a string interpolation, up to the } ending it
+     */
+    private void interpolation() {
+        boolean was_interpolated = is_interpolated;
+        is_interpolated = true;
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+        is_interpolated = was_interpolated;
+        is_execution_stopped = false;
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
+        addToken(type, getLexeme(type), null);
     }
 
     private void addToken(TokenType type, String lexeme, Object literal) {
-        tokens.add(new Token(type, lexeme, literal, new Location().bringTo(start)));
+        tokens.add(type, start, lexeme, literal, -1);
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start.offset(), current.offset());
+        String text = lexeme();
         addToken(type, text, literal);
     }
 
-    // Advance should be the only function that increments current. This is to keep
-    // track of line and col
+    /** @return The text from the start of the current lexeme */
+    private String lexeme() {
+        return new String(buffer, start - buffer_offset, current - start);
+    }
+
+    /**
+     * Makes the character at {@code offset} available in the buffer, reading
+     * more of the source if needed. Characters before the current lexeme are
+     * dropped to make room.
+     * 
+     * @return Whether the source has a character at {@code offset}
+     */
+    private boolean fill(int offset) {
+        while (offset - buffer_offset >= buffer_length) {
+            if (is_reader_done)
+                return false;
+
+            int kept = start - buffer_offset;
+            if (kept > 0) {
+                System.arraycopy(buffer, kept, buffer, 0, buffer_length - kept);
+                buffer_offset += kept;
+                buffer_length -= kept;
+            }
+            if (buffer_length == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+            try {
+                int read = reader.read(buffer, buffer_length, buffer.length - buffer_length);
+                if (read == -1)
+                    is_reader_done = true;
+                else
+                    buffer_length += read;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves past the buffered characters up to the first one in {@code stops},
+     * a run at a time instead of a character at a time. Stops must include
+     * '\n', so lines are still added by {@link #advance()}.
+     * 
+     * @return Whether any character was skipped
+     */
+    private boolean skip(boolean[] stops) {
+        char[] chars = buffer;
+        int i = current - buffer_offset;
+        int end = buffer_length;
+        while (i < end) {
+            char c = chars[i];
+            if (c < stops.length && stops[c])
+                break;
+            i++;
+        }
+
+        int skipped = buffer_offset + i - current;
+        current += skipped;
+        return skipped > 0;
+    }
+
+    /** Moves past the buffered spaces, tabs and carriage returns */
+    private void skipBlanks() {
+        char[] chars = buffer;
+        int i = current - buffer_offset;
+        int end = buffer_length;
+        while (i < end && (chars[i] == ' ' || chars[i] == '\t' || chars[i] == '\r'))
+            i++;
+        current = buffer_offset + i;
+    }
+
+    private static boolean[] stops(String chars) {
+        boolean[] stops = new boolean[128];
+        for (int i = 0; i < chars.length(); i++)
+            stops[chars.charAt(i)] = true;
+        return stops;
+    }
+
+    // Advance should be the only function that increments current past a new line.
+    // This is to keep track of the lines
     private char advance() {
-        return current.increment(source);
+        char c = peek();
+        current++;
+        if (c == '\n')
+            lines.add(current, tokens.keptOffset(start));
+        return c;
     }
 
     private char peek() {
         if (isAtEnd())
             return '\0';
-        return current.charAt(source);
+        return buffer[current - buffer_offset];
     }
 
     private char peekNext() {
-        if (current.offset() + 1 >= source.length())
+        if (!fill(current + 1))
             return '\0';
 
-        return source.charAt(current.offset() + 1);
+        return buffer[current + 1 - buffer_offset];
     }
 
     private boolean match(char expected) {
         if (isAtEnd())
             return false;
-        if (current.charAt(source) != expected)
+        if (peek() != expected)
             return false;
 
         advance();
@@ -300,10 +475,10 @@ public class Scanner {
     }
 
     private boolean isAtEnd() {
-        return is_execution_stopped || current.offset() >= source.length();
+        return is_execution_stopped || !fill(current);
     }
 
     public Location getCurrent() {
-        return current;
+        return lines.location(current);
     }
 }
@@ -1,5 +1,6 @@
 package lox.scanner;
 
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -9,8 +10,12 @@ import lox.TokenType;
 import static lox.TokenType.*;
 
 class ScannerUtil {
-    private static final Map<String, TokenType> KEYWORDS;
+    static final Map<String, TokenType> KEYWORDS;
     private static final Map<Character, Character> ESCAPE_CHARACTERS = new HashMap<>();
+    /** Lexemes of the tokens that are always spelled the same */
+    private static final Map<TokenType, String> LEXEMES = new EnumMap<>(TokenType.class);
+    /** Powers of ten that are exact doubles */
+    private static final double[] POWERS_OF_TEN = new double[23];
     static {
         KEYWORDS = new HashMap<>();
         KEYWORDS.put("and", AND);
@@ -37,10 +42,69 @@ class ScannerUtil {
         ESCAPE_CHARACTERS.put('\\', '\\');
         ESCAPE_CHARACTERS.put('n', '\n');
         ESCAPE_CHARACTERS.put('t', '\t');
+
+        LEXEMES.put(LEFT_PAREN, "(");
+        LEXEMES.put(RIGHT_PAREN, ")");
+        LEXEMES.put(LEFT_BRACE, "{");
+        LEXEMES.put(RIGHT_BRACE, "}");
+        LEXEMES.put(COMMA, ",");
+        LEXEMES.put(DOT, ".");
+        LEXEMES.put(MINUS, "-");
+        LEXEMES.put(PLUS, "+");
+        LEXEMES.put(SEMICOLON, ";");
+        LEXEMES.put(SLASH, "/");
+        LEXEMES.put(STAR, "*");
+        LEXEMES.put(QUESTION_MARK, "?");
+        LEXEMES.put(COLON, ":");
+        LEXEMES.put(STRING_START, "\"");
+        LEXEMES.put(STRING_END, "\"");
+        LEXEMES.put(INTERP_END, "}");
+        LEXEMES.put(LEFT_SQUARE, "[");
+        LEXEMES.put(RIGHT_SQUARE, "]");
+        LEXEMES.put(BANG, "!");
+        LEXEMES.put(BANG_EQUAL, "!=");
+        LEXEMES.put(EQUAL, "=");
+        LEXEMES.put(EQUAL_EQUAL, "==");
+        LEXEMES.put(GREATER, ">");
+        LEXEMES.put(GREATER_EQUAL, ">=");
+        LEXEMES.put(LESS, "<");
+        LEXEMES.put(LESS_EQUAL, "<=");
+        LEXEMES.put(INTERP_START, "${");
+
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
     }
 
-    static TokenType getIdentifierOrKeyword(String text) {
-        return KEYWORDS.getOrDefault(text, IDENTIFIER);
+    static String getLexeme(TokenType type) {
+        return LEXEMES.get(type);
+    }
+
+    /**
+     * Parses a number literal, digits with at most one dot between digits.
+     * Numbers of up to 15 digits with up to 22 of them after the dot are exact
+     * as a long divided by a power of ten, which rounds like
+     * {@link Double#parseDouble}, longer ones fall back to it.
+     */
+    static double parseNumber(char[] chars, int offset, int length) {
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (int i = offset; i < offset + length; i++) {
+            char c = chars[i];
+            if (c == '.') {
+                decimals = 0;
+                continue;
+            }
+            mantissa = mantissa * 10 + (c - '0');
+            digits++;
+            if (decimals != -1)
+                decimals++;
+        }
+
+        if (digits > 15 || decimals >= POWERS_OF_TEN.length)
+            return Double.parseDouble(new String(chars, offset, length));
+        return decimals <= 0 ? mantissa : mantissa / POWERS_OF_TEN[decimals];
     }
 
     static boolean isDigit(char c) {
@@ -0,0 +1,102 @@
+package lox.scanner;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import lox.TokenType;
+
+import static lox.TokenType.*;
+
+/**
+ * Interns the names of identifiers and keywords. Every distinct name gets one
+ * String and a symbol id, which tokens carry so later passes compare ids
+ * instead of hashing names. Names are looked up straight from the characters
+ * being scanned, so scanning a name seen before allocates nothing.
+ * <br/>
+ * Ids are only comparable between tokens of scanners sharing a table, like
+ * the lines of a REPL session. A table is not thread safe.
+ */
+public final class SymbolTable {
+    private String[] names = new String[256];
+    private int[] hashes = new int[256];
+    private TokenType[] types = new TokenType[256];
+    private int count = 0;
+    /** Open addressing table of symbol ids plus one, 0 marks an empty entry */
+    private int[] table = new int[512];
+
+    public SymbolTable() {
+        for (Map.Entry<String, TokenType> keyword : ScannerUtil.KEYWORDS.entrySet()) {
+            char[] chars = keyword.getKey().toCharArray();
+            types[intern(chars, 0, chars.length)] = keyword.getValue();
+        }
+    }
+
+    /**
+     * @return The id of the name made of {@code length} characters of
+     *         {@code chars} from {@code offset}, added if it is new
+     */
+    int intern(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++)
+            hash = 31 * hash + chars[i];
+
+        int mask = table.length - 1;
+        int entry = hash & mask;
+        for (; table[entry] != 0; entry = (entry + 1) & mask) {
+            int symbol = table[entry] - 1;
+            if (hashes[symbol] == hash && matches(names[symbol], chars, offset, length))
+                return symbol;
+        }
+        return add(new String(chars, offset, length), hash, entry);
+    }
+
+    private static boolean matches(String name, char[] chars, int offset, int length) {
+        if (name.length() != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    private int add(String name, int hash, int entry) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+            types = Arrays.copyOf(types, count * 2);
+        }
+        int symbol = count++;
+        names[symbol] = name;
+        hashes[symbol] = hash;
+        types[symbol] = IDENTIFIER;
+        table[entry] = symbol + 1;
+
+        // Keep the table at most half full
+        if (count * 2 > table.length) {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for (int i = 0; i < count; i++) {
+                int slot = hashes[i] & mask;
+                while (table[slot] != 0)
+                    slot = (slot + 1) & mask;
+                table[slot] = i + 1;
+            }
+        }
+        return symbol;
+    }
+
+    public String name(int symbol) {
+        return names[symbol];
+    }
+
+    /** @return The keyword the symbol is, or IDENTIFIER */
+    public TokenType type(int symbol) {
+        return types[symbol];
+    }
+
+    /** @return The number of symbols, every id is lower */
+    public int size() {
+        return count;
+    }
+}
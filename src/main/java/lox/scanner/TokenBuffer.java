@@ -0,0 +1,107 @@
+package lox.scanner;
+
+import java.util.Arrays;
+
+import lox.Token;
+import lox.TokenType;
+
+/**
+ * Tokens scanned but not released yet, kept in parallel arrays instead of one
+ * object per token. {@link Token}s are only made for the tokens asked for, the
+ * parser only needs them for the tokens it keeps in the AST.
+ * <br/>
+ * Tokens are numbered from the start of the source, released tokens are
+ * dropped when the arrays are full.
+ */
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    /** Number of the token at index 0 of the arrays */
+    private int base = 0;
+    private int count = 0;
+    /** Tokens before this number are not asked for anymore */
+    private int released = 0;
+
+    private int[] types = new int[256];
+    private int[] offsets = new int[256];
+    private int[] symbols = new int[256];
+    /** Lexemes are constants, interned names or the text of literals */
+    private String[] lexemes = new String[256];
+    private Object[] literals = new Object[256];
+    /** Tokens made so far, so a token is made at most once */
+    private Token[] tokens = new Token[256];
+
+    /** @return The number of tokens scanned so far */
+    int size() {
+        return base + count;
+    }
+
+    void add(TokenType type, int offset, String lexeme, Object literal, int symbol) {
+        if (count == types.length)
+            makeRoom();
+        types[count] = type.ordinal();
+        offsets[count] = offset;
+        symbols[count] = symbol;
+        lexemes[count] = lexeme;
+        literals[count] = literal;
+        tokens[count] = null;
+        count++;
+    }
+
+    private void makeRoom() {
+        int dropped = released - base;
+        if (dropped > 0) {
+            int kept = count - dropped;
+            System.arraycopy(types, dropped, types, 0, kept);
+            System.arraycopy(offsets, dropped, offsets, 0, kept);
+            System.arraycopy(symbols, dropped, symbols, 0, kept);
+            System.arraycopy(lexemes, dropped, lexemes, 0, kept);
+            System.arraycopy(literals, dropped, literals, 0, kept);
+            System.arraycopy(tokens, dropped, tokens, 0, kept);
+            Arrays.fill(lexemes, kept, count, null);
+            Arrays.fill(literals, kept, count, null);
+            Arrays.fill(tokens, kept, count, null);
+            base = released;
+            count = kept;
+        }
+
+        if (count == types.length) {
+            int length = count * 2;
+            types = Arrays.copyOf(types, length);
+            offsets = Arrays.copyOf(offsets, length);
+            symbols = Arrays.copyOf(symbols, length);
+            lexemes = Arrays.copyOf(lexemes, length);
+            literals = Arrays.copyOf(literals, length);
+            tokens = Arrays.copyOf(tokens, length);
+        }
+    }
+
+    TokenType type(int number) {
+        return TYPES[types[number - base]];
+    }
+
+    Object literal(int number) {
+        return literals[number - base];
+    }
+
+    Token token(int number, LineTable lines) {
+        int index = number - base;
+        if (tokens[index] == null)
+            tokens[index] = new Token(TYPES[types[index]], lexemes[index], literals[index],
+                    lines.location(offsets[index]), symbols[index]);
+        return tokens[index];
+    }
+
+    /** Tokens before {@code number} won't be asked for anymore */
+    void release(int number) {
+        released = Math.max(released, Math.min(number, size()));
+    }
+
+    /**
+     * @return The offset of the first token that wasn't released, or
+     *         {@code offset} if there is none
+     */
+    int keptOffset(int offset) {
+        return released < size() ? Math.min(offset, offsets[released - base]) : offset;
+    }
+}
@@ -0,0 +1,71 @@
+package lox.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lox.Token;
+
+/**
+ * A sequence of bytecode along with its constant pool. Every byte of code also
+ * remembers the token it was compiled from so runtime errors can be reported at
+ * the same location as the tree-walking interpreter.
+ */
+class Chunk {
+    byte[] code = new byte[64];
+    Token[] tokens = new Token[64];
+    int count = 0;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constant_indices = new HashMap<>();
+    private Object[] constant_array;
+
+    void write(byte b, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+
+        code[count] = b;
+        tokens[count] = token;
+        count++;
+    }
+
+    /**
+     * Adds a value to the constant pool, reusing the existing slot of an equal
+     * number or string.
+     *
+     * @return The index of the constant
+     */
+    int addConstant(Object value) {
+        boolean is_shareable = value instanceof Double || value instanceof String;
+        if (is_shareable && constant_indices.containsKey(value))
+            return constant_indices.get(value);
+
+        constants.add(value);
+        constant_array = null;
+        if (is_shareable)
+            constant_indices.put(value, constants.size() - 1);
+        return constants.size() - 1;
+    }
+
+    Object[] constants() {
+        if (constant_array == null)
+            constant_array = constants.toArray();
+        return constant_array;
+    }
+
+    int readShort(int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    /**
+     * Shrinks the code arrays once compilation of the chunk is done.
+     */
+    void trim() {
+        code = Arrays.copyOf(code, count);
+        tokens = Arrays.copyOf(tokens, count);
+    }
+}
@@ -0,0 +1,20 @@
+package lox.vm;
+
+/**
+ * Runtime representation of a Lox function in the {@link VM}, a
+ * {@link VMFunction} along with the variables it captured.
+ */
+class Closure {
+    final VMFunction function;
+    final Upvalue[] upvalues;
+
+    Closure(VMFunction function) {
+        this.function = function;
+        this.upvalues = new Upvalue[function.upvalue_count];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
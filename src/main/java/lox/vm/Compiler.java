@@ -0,0 +1,592 @@
+package lox.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lox.Lox;
+import lox.Token;
+import lox.TokenType;
+import lox.ast.Expr;
+import lox.ast.Expr.*;
+import lox.ast.Stmt;
+import lox.ast.Stmt.*;
+
+import static lox.vm.OpCode.*;
+
+/**
+ * Compiles a resolved program into bytecode for the {@link VM}.
+ * <br/>
+ * Locals live on the VM stack and are addressed by their slot relative to the
+ * frame of the function they are declared in. Variables of enclosing functions
+ * are reached through upvalues, and identifiers that are not declared anywhere
+ * refer to the native functions, mirroring the scoping rules of
+ * {@link lox.analysis.Resolver}.
+ */
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_SHORT = 0xffff;
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean is_captured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private record UpvalueRef(int index, boolean is_local) {
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        /** Where continue statements jump back to, or -1 if it follows the body */
+        final int start;
+        final int scope_depth;
+        final List<Integer> break_jumps = new ArrayList<>();
+        /** Forward jumps of continue statements, when {@code start} is -1 */
+        final List<Integer> continue_jumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int start, int scope_depth) {
+            this.enclosing = enclosing;
+            this.start = start;
+            this.scope_depth = scope_depth;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VMFunction function;
+        final List<Local> locals = new ArrayList<>();
+        final List<UpvalueRef> upvalues = new ArrayList<>();
+        int scope_depth = 0;
+        int stack_height = 1;
+        Loop loop;
+
+        FunctionState(FunctionState enclosing, VMFunction function) {
+            this.enclosing = enclosing;
+            this.function = function;
+            // Slot 0 holds the closure being called
+            locals.add(new Local("", 0));
+        }
+    }
+
+    private FunctionState current;
+
+    /**
+     * Compiles the top level statements of a program into a function that runs
+     * them.
+     *
+     * @param statements The resolved program
+     * @return The compiled top level function
+     */
+    public VMFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VMFunction("script"));
+        for (Stmt statement : statements)
+            compile(statement);
+
+        return endFunction(null);
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private VMFunction endFunction(Token token) {
+        emit(NIL, token, 1);
+        emit(RETURN, token, -1);
+
+        VMFunction function = current.function;
+        function.upvalue_count = current.upvalues.size();
+        function.chunk.trim();
+        return function;
+    }
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void adjustStack(int delta) {
+        current.stack_height += delta;
+        if (current.stack_height > current.function.max_stack)
+            current.function.max_stack = current.stack_height;
+    }
+
+    private void emit(byte op, Token token, int stack_effect) {
+        chunk().write(op, token);
+        adjustStack(stack_effect);
+    }
+
+    private void emitShort(int value, Token token) {
+        if (value > MAX_SHORT)
+            Lox.error(token, "Too many constants, locals or upvalues in one function.");
+        chunk().write((byte) ((value >> 8) & 0xff), token);
+        chunk().write((byte) (value & 0xff), token);
+    }
+
+    private void emitConstant(Object value, Token token) {
+        emit(CONSTANT, token, 1);
+        emitShort(chunk().addConstant(value), token);
+    }
+
+    private void emitError(String message, Token token) {
+        emit(ERROR, token, 0);
+        emitShort(chunk().addConstant(message), token);
+    }
+
+    private int emitJump(byte op, Token token, int stack_effect) {
+        emit(op, token, stack_effect);
+        emitShort(0, token);
+        return chunk().count - 2;
+    }
+
+    private void patchJump(int offset, Token token) {
+        int jump = chunk().count - offset - 2;
+        if (jump > MAX_SHORT)
+            Lox.error(token, "Too much code to jump over.");
+
+        chunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    /**
+     * Compiles a condition and a jump over what follows when it is falsy. A
+     * comparison is compiled into one instruction with the jump, which doesn't
+     * push a boolean.
+     *
+     * @return The offset of the jump to patch
+     */
+    private int emitJumpIfFalse(Expr condition) {
+        if (condition instanceof Binary) {
+            Binary binary = (Binary) condition;
+            byte op = switch (binary.operator.type) {
+                case LESS -> JUMP_IF_NOT_LESS;
+                case LESS_EQUAL -> JUMP_IF_NOT_LESS_EQUAL;
+                case GREATER -> JUMP_IF_NOT_GREATER;
+                case GREATER_EQUAL -> JUMP_IF_NOT_GREATER_EQUAL;
+                default -> JUMP_IF_FALSE;
+            };
+            if (op != JUMP_IF_FALSE) {
+                compile(binary.left);
+                compile(binary.right);
+                return emitJump(op, binary.operator, -2);
+            }
+        }
+
+        compile(condition);
+        return emitJump(JUMP_IF_FALSE, null, -1);
+    }
+
+    /**
+     * Compiles an expression whose value is not used. An assignment to a local
+     * stores the value without leaving it on the stack to be popped.
+     */
+    private void compileDiscarded(Expr expr) {
+        if (expr instanceof Assign) {
+            Assign assign = (Assign) expr;
+            int slot = resolveLocal(current, assign.identifier.lexeme);
+            if (slot != -1) {
+                compile(assign.value);
+                emit(STORE_LOCAL, assign.identifier, -1);
+                emitShort(slot, assign.identifier);
+                return;
+            }
+        }
+
+        compile(expr);
+        emit(POP, null, -1);
+    }
+
+    private void emitLoop(int start, Token token) {
+        emit(LOOP, token, 0);
+        int offset = chunk().count - start + 2;
+        if (offset > MAX_SHORT)
+            Lox.error(token, "Loop body too large.");
+        emitShort(offset, token);
+    }
+
+    private void beginScope() {
+        current.scope_depth += 1;
+    }
+
+    private void endScope() {
+        current.scope_depth -= 1;
+
+        List<Local> locals = current.locals;
+        while (locals.get(locals.size() - 1).depth > current.scope_depth) {
+            discardLocal(locals.remove(locals.size() - 1));
+        }
+    }
+
+    private void discardLocal(Local local) {
+        emit(local.is_captured ? CLOSE_UPVALUE : POP, null, -1);
+    }
+
+    /**
+     * Emits the instructions to leave every scope nested inside {@code loop},
+     * without forgetting the locals as the code after the jump still uses them.
+     */
+    private void exitLoopScopes(Loop loop) {
+        int height = current.stack_height;
+        List<Local> locals = current.locals;
+        for (int i = locals.size() - 1; i >= 0 && locals.get(i).depth > loop.scope_depth; i--)
+            discardLocal(locals.get(i));
+        current.stack_height = height;
+    }
+
+    private void addLocal(Token name) {
+        current.locals.add(new Local(name.lexeme, current.scope_depth));
+    }
+
+    private static int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name))
+                return i;
+        }
+
+        return -1;
+    }
+
+    private static int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null)
+            return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).is_captured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1)
+            return addUpvalue(state, upvalue, false);
+
+        return -1;
+    }
+
+    private static int addUpvalue(FunctionState state, int index, boolean is_local) {
+        UpvalueRef upvalue = new UpvalueRef(index, is_local);
+        int existing = state.upvalues.indexOf(upvalue);
+        if (existing != -1)
+            return existing;
+
+        state.upvalues.add(upvalue);
+        return state.upvalues.size() - 1;
+    }
+
+    /**
+     * @param global_slot The slot the resolver assigned if {@code name} is a
+     *                    global
+     */
+    private void emitVariable(Token name, int global_slot, boolean is_assignment) {
+        byte op;
+        int operand = resolveLocal(current, name.lexeme);
+        if (operand != -1) {
+            op = is_assignment ? SET_LOCAL : GET_LOCAL;
+        } else if ((operand = resolveUpvalue(current, name.lexeme)) != -1) {
+            op = is_assignment ? SET_UPVALUE : GET_UPVALUE;
+        } else {
+            operand = global_slot;
+            op = is_assignment ? SET_GLOBAL : GET_GLOBAL;
+        }
+
+        emit(op, name, is_assignment ? 0 : 1);
+        emitShort(operand, name);
+    }
+
+    @Override
+    public Void visitBlockStmt(Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements)
+            compile(statement);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(If stmt) {
+        int else_jump = emitJumpIfFalse(stmt.condition);
+        compile(stmt.consequent);
+
+        if (stmt.alternate == null) {
+            patchJump(else_jump, null);
+            return null;
+        }
+
+        int end_jump = emitJump(JUMP, null, 0);
+        patchJump(else_jump, null);
+        compile(stmt.alternate);
+        patchJump(end_jump, null);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Expression stmt) {
+        compileDiscarded(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Function stmt) {
+        // Declared before the body is compiled so the function can recurse
+        addLocal(stmt.name);
+
+        current = new FunctionState(current, new VMFunction(stmt.name.lexeme));
+        current.function.arity = stmt.params.size();
+        for (Token param : stmt.params) {
+            addLocal(param);
+            adjustStack(1);
+        }
+        for (Stmt statement : stmt.body)
+            compile(statement);
+
+        FunctionState state = current;
+        VMFunction function = endFunction(stmt.name);
+        current = state.enclosing;
+
+        emit(CLOSURE, stmt.name, 1);
+        emitShort(chunk().addConstant(function), stmt.name);
+        for (UpvalueRef upvalue : state.upvalues) {
+            chunk().write((byte) (upvalue.is_local ? 1 : 0), stmt.name);
+            emitShort(upvalue.index, stmt.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(lox.ast.Stmt.Return stmt) {
+        if (stmt.value == null)
+            emit(NIL, stmt.keyword, 1);
+        else
+            compile(stmt.value);
+
+        emit(RETURN, stmt.keyword, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Print stmt) {
+        compile(stmt.expression);
+        emit(PRINT, null, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(While stmt) {
+        Loop loop = new Loop(current.loop, chunk().count, current.scope_depth);
+        current.loop = loop;
+
+        int exit_jump = emitJumpIfFalse(stmt.condition);
+        compile(stmt.body);
+        emitLoop(loop.start, null);
+
+        patchJump(exit_jump, null);
+        for (int jump : loop.break_jumps)
+            patchJump(jump, null);
+
+        current.loop = loop.enclosing;
+        return null;
+    }
+
+    /**
+     * The increment is placed after the body, so an iteration only jumps back
+     * once. Continue statements jump forward to the increment, they are
+     * patched once the body is compiled.
+     */
+    @Override
+    public Void visitForStmt(For stmt) {
+        beginScope();
+        if (stmt.initializer != null)
+            compile(stmt.initializer);
+
+        int condition_start = chunk().count;
+        int exit_jump = emitJumpIfFalse(stmt.condition);
+
+        Loop loop = new Loop(current.loop, stmt.increment == null ? condition_start : -1, current.scope_depth);
+        current.loop = loop;
+        compile(stmt.body);
+
+        for (int jump : loop.continue_jumps)
+            patchJump(jump, null);
+        if (stmt.increment != null)
+            compileDiscarded(stmt.increment);
+        emitLoop(condition_start, null);
+
+        patchJump(exit_jump, null);
+        for (int jump : loop.break_jumps)
+            patchJump(jump, null);
+
+        current.loop = loop.enclosing;
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Break stmt) {
+        if (current.loop == null) {
+            emitError("break not allowed outside of loop.", stmt.keyword);
+            return null;
+        }
+
+        exitLoopScopes(current.loop);
+        current.loop.break_jumps.add(emitJump(JUMP, stmt.keyword, 0));
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Continue stmt) {
+        if (current.loop == null) {
+            emitError("continue not allowed outside of loop.", stmt.keyword);
+            return null;
+        }
+
+        exitLoopScopes(current.loop);
+        if (current.loop.start == -1)
+            current.loop.continue_jumps.add(emitJump(JUMP, stmt.keyword, 0));
+        else
+            emitLoop(current.loop.start, stmt.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Var stmt) {
+        if (stmt.initializer == null)
+            emit(NIL, stmt.name, 1);
+        else
+            compile(stmt.initializer);
+
+        // The value of the initializer is left on the stack and becomes the local
+        addLocal(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Assign expr) {
+        compile(expr.value);
+        emitVariable(expr.identifier, expr.slot, true);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Ternary expr) {
+        compile(expr.condition);
+        int else_jump = emitJump(JUMP_IF_FALSE, null, -1);
+        compile(expr.consequent);
+        int end_jump = emitJump(JUMP, null, 0);
+
+        // Only one of the branches leaves a value behind
+        adjustStack(-1);
+        patchJump(else_jump, null);
+        compile(expr.alternate);
+        patchJump(end_jump, null);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Binary expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.COMMA) {
+            emit(POP, expr.operator, -1);
+            compile(expr.right);
+            return null;
+        }
+
+        compile(expr.right);
+
+        byte op = switch (expr.operator.type) {
+            case BANG_EQUAL -> NOT_EQUAL;
+            case EQUAL_EQUAL -> EQUAL;
+            case GREATER -> GREATER;
+            case GREATER_EQUAL -> GREATER_EQUAL;
+            case LESS -> LESS;
+            case LESS_EQUAL -> LESS_EQUAL;
+            case PLUS -> ADD;
+            case MINUS -> SUBTRACT;
+            case SLASH -> DIVIDE;
+            case STAR -> MULTIPLY;
+            default -> throw new IllegalStateException("Unexpected binary operator " + expr.operator.type);
+        };
+        emit(op, expr.operator, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Call expr) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments)
+            compile(argument);
+
+        emit(CALL, expr.paren, -expr.arguments.size());
+        chunk().write((byte) expr.arguments.size(), expr.paren);
+        return null;
+    }
+
+    @Override
+    public Void visitArrayAccessExpr(ArrayAccess expr) {
+        compile(expr.array);
+        compile(expr.index);
+        emit(INDEX, expr.square, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Logical expr) {
+        compile(expr.left);
+        int end_jump = emitJump(expr.operator.type == TokenType.OR ? OR : AND, expr.operator, -1);
+        compile(expr.right);
+        emit(FALSIFY, expr.operator, 0);
+        patchJump(end_jump, expr.operator);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Literal expr) {
+        if (expr.value == null)
+            emit(NIL, null, 1);
+        else if (expr.value instanceof Boolean)
+            emit((Boolean) expr.value ? TRUE : FALSE, null, 1);
+        else
+            emitConstant(expr.value, null);
+        return null;
+    }
+
+    @Override
+    public Void visitTemplateLiteralExpr(TemplateLiteral expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitTemplateStringExpr(TemplateString expr) {
+        for (Expr template : expr.templates)
+            compile(template);
+
+        emit(TEMPLATE, null, 1 - expr.templates.size());
+        emitShort(expr.templates.size(), null);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Unary expr) {
+        compile(expr.right);
+        emit(expr.operator.type == TokenType.MINUS ? NEGATE : NOT, expr.operator, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Variable expr) {
+        emitVariable(expr.name, expr.slot, false);
+        return null;
+    }
+}
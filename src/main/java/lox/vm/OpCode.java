@@ -0,0 +1,99 @@
+package lox.vm;
+
+/**
+ * Instruction set of the {@link VM}. Every instruction is a single opcode byte
+ * followed by its operands. Unless stated otherwise operands are unsigned 16 bit
+ * big endian integers.
+ * <br/>
+ * The opcodes are plain byte constants rather than an enum so the dispatch loop
+ * can switch directly on the byte it reads.
+ */
+final class OpCode {
+    /** [constant] Pushes {@code constants[constant]} */
+    static final byte CONSTANT = 0;
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    /** [slot] Pushes the local at {@code base + slot} */
+    static final byte GET_LOCAL = 5;
+    /** [slot] Stores the top of the stack into a local without popping it */
+    static final byte SET_LOCAL = 6;
+    /** [index] Pushes the value of the closure's upvalue at {@code index} */
+    static final byte GET_UPVALUE = 7;
+    static final byte SET_UPVALUE = 8;
+    /** [index] Pushes the native global at {@code index} */
+    static final byte GET_GLOBAL = 9;
+    static final byte SET_GLOBAL = 10;
+    static final byte EQUAL = 11;
+    static final byte NOT_EQUAL = 12;
+    static final byte GREATER = 13;
+    static final byte GREATER_EQUAL = 14;
+    static final byte LESS = 15;
+    static final byte LESS_EQUAL = 16;
+    static final byte ADD = 17;
+    static final byte SUBTRACT = 18;
+    static final byte MULTIPLY = 19;
+    static final byte DIVIDE = 20;
+    static final byte NOT = 21;
+    static final byte NEGATE = 22;
+    static final byte PRINT = 23;
+    /** [offset] Jumps forward by {@code offset} */
+    static final byte JUMP = 24;
+    /** [offset] Pops the condition and jumps forward if it is falsy */
+    static final byte JUMP_IF_FALSE = 25;
+    /** [offset] Jumps backwards by {@code offset} */
+    static final byte LOOP = 26;
+    /**
+     * [offset] Lisp style {@code or}: keeps a truthy left operand and jumps,
+     * otherwise pops it
+     */
+    static final byte OR = 27;
+    /**
+     * [offset] Lisp style {@code and}: replaces a falsy left operand with false
+     * and jumps, otherwise pops it
+     */
+    static final byte AND = 28;
+    /** Replaces the top of the stack with false if it is falsy */
+    static final byte FALSIFY = 29;
+    /** [argc] (single byte) Calls the value below the {@code argc} arguments */
+    static final byte CALL = 30;
+    /**
+     * [constant] followed by (is_local byte, index) for every upvalue of the
+     * function
+     */
+    static final byte CLOSURE = 31;
+    static final byte CLOSE_UPVALUE = 32;
+    static final byte RETURN = 33;
+    /** Pops an index and an array and pushes the element */
+    static final byte INDEX = 34;
+    /** [count] Pops {@code count} values and pushes their concatenation */
+    static final byte TEMPLATE = 35;
+    /** [constant] Throws a runtime error with the message at {@code constant} */
+    static final byte ERROR = 36;
+    /** [slot] Pops the top of the stack into a local */
+    static final byte STORE_LOCAL = 37;
+    /**
+     * [offset] Pops two numbers and jumps forward unless the first is less than
+     * the second, the comparison and jump of a loop or if condition in one
+     */
+    static final byte JUMP_IF_NOT_LESS = 38;
+    static final byte JUMP_IF_NOT_LESS_EQUAL = 39;
+    static final byte JUMP_IF_NOT_GREATER = 40;
+    static final byte JUMP_IF_NOT_GREATER_EQUAL = 41;
+
+    private static final String[] NAMES = {
+            "CONSTANT", "NIL", "TRUE", "FALSE", "POP", "GET_LOCAL", "SET_LOCAL", "GET_UPVALUE", "SET_UPVALUE",
+            "GET_GLOBAL", "SET_GLOBAL", "EQUAL", "NOT_EQUAL", "GREATER", "GREATER_EQUAL", "LESS", "LESS_EQUAL",
+            "ADD", "SUBTRACT", "MULTIPLY", "DIVIDE", "NOT", "NEGATE", "PRINT", "JUMP", "JUMP_IF_FALSE", "LOOP",
+            "OR", "AND", "FALSIFY", "CALL", "CLOSURE", "CLOSE_UPVALUE", "RETURN", "INDEX", "TEMPLATE", "ERROR",
+            "STORE_LOCAL", "JUMP_IF_NOT_LESS", "JUMP_IF_NOT_LESS_EQUAL", "JUMP_IF_NOT_GREATER",
+            "JUMP_IF_NOT_GREATER_EQUAL" };
+
+    private OpCode() {
+    }
+
+    static String name(byte op) {
+        return op >= 0 && op < NAMES.length ? NAMES[op] : "UNKNOWN(" + op + ")";
+    }
+}
@@ -0,0 +1,20 @@
+package lox.vm;
+
+/**
+ * A variable captured by a {@link Closure}. While the variable's scope is alive
+ * the upvalue points into the VM stack, once the scope ends the value is moved
+ * into the upvalue itself.
+ */
+class Upvalue {
+    /** Stack slot of the variable while the upvalue is open */
+    final int location;
+    Object closed;
+    boolean is_open = true;
+    /** Next open upvalue, the open upvalues are sorted by decreasing location */
+    Upvalue next;
+
+    Upvalue(int location, Upvalue next) {
+        this.location = location;
+        this.next = next;
+    }
+}
@@ -0,0 +1,537 @@
+package lox.vm;
+
+import java.util.Arrays;
+
+import lox.Lox;
+import lox.Token;
+import lox.interpreter.InterpreterUtil;
+import lox.interpreter.LoxCallable;
+import lox.interpreter.NativeFunction;
+import lox.interpreter.RuntimeError;
+
+import static lox.interpreter.InterpreterUtil.*;
+import static lox.interpreter.LoxType.*;
+
+/**
+ * A stack based virtual machine executing the bytecode produced by
+ * {@link Compiler}. Lox calls do not recurse on the Java stack, every call
+ * pushes a {@link CallFrame} and the dispatch loop carries on with the callee.
+ * Frames and the value stack are arrays on the heap that grow with the call
+ * depth, so recursion is only limited by the heap and the maximum call depth.
+ * <br/>
+ * Numbers on the stack are not boxed: their slot of the stack holds
+ * {@link #UNBOXED} and the value is in the same slot of a parallel array of
+ * doubles, so arithmetic and comparisons don't allocate. Numbers are boxed
+ * when they leave the stack, into a global, a closed upvalue, an array or a
+ * native function.
+ */
+public class VM {
+    /** Calls that may be active at once unless the VM is given another limit */
+    public static final int DEFAULT_MAX_CALL_DEPTH = 1 << 20;
+    /** Stands on the stack for the number in the same slot of {@link #numbers} */
+    private static final Object UNBOXED = new Object();
+
+    private static class CallFrame {
+        Closure closure;
+        int ip;
+        /** Stack index of slot 0 of the frame */
+        int base;
+    }
+
+    private final int max_call_depth;
+    /** Frames are allocated on first use and kept for the following calls */
+    private CallFrame[] frames = new CallFrame[64];
+    private int frame_count = 0;
+    private Object[] stack = new Object[256];
+    private double[] numbers = new double[256];
+    private int sp = 0;
+    private Upvalue open_upvalues = null;
+    private final Object[] globals = NativeFunction.createAll();
+
+    public VM() {
+        this(DEFAULT_MAX_CALL_DEPTH);
+    }
+
+    /**
+     * @param max_call_depth Calls that may be active at once, a call beyond is
+     *                       a stack overflow runtime error
+     */
+    public VM(int max_call_depth) {
+        this.max_call_depth = max_call_depth;
+    }
+
+    /**
+     * Runs a compiled program, reporting runtime errors the same way the
+     * tree-walking interpreter does.
+     *
+     * @param script The function returned by {@link Compiler#compile}
+     */
+    public void interpret(VMFunction script) {
+        try {
+            Closure closure = new Closure(script);
+            push(closure);
+            call(closure, 0, null);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+            frame_count = 0;
+            sp = 0;
+            open_upvalues = null;
+        }
+    }
+
+    private void push(Object value) {
+        stack[sp++] = value;
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+            numbers = Arrays.copyOf(numbers, stack.length);
+        }
+    }
+
+    /** @return The value in a slot of the stack, with a number boxed */
+    private static Object box(Object[] stack, double[] numbers, int slot) {
+        Object value = stack[slot];
+        return value == UNBOXED ? (Object) numbers[slot] : value;
+    }
+
+    /** Stores a value into a slot of the stack, unboxing a number */
+    private static void unbox(Object[] stack, double[] numbers, int slot, Object value) {
+        if (value instanceof Double) {
+            stack[slot] = UNBOXED;
+            numbers[slot] = (double) value;
+        } else {
+            stack[slot] = value;
+        }
+    }
+
+    private void call(Closure closure, int argc, Token paren) {
+        VMFunction function = closure.function;
+        if (argc != function.arity)
+            throw new RuntimeError(paren,
+                    String.format("Expected %d arguments but got %d.", function.arity, argc));
+
+        if (frame_count == max_call_depth)
+            throw new RuntimeError(paren, "Stack overflow.");
+        if (frame_count == frames.length)
+            frames = Arrays.copyOf(frames, (int) Math.min(max_call_depth, frames.length * 2L));
+
+        CallFrame frame = frames[frame_count];
+        if (frame == null)
+            frame = frames[frame_count] = new CallFrame();
+        frame_count++;
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argc - 1;
+        ensureStack(frame.base + function.max_stack);
+    }
+
+    private Object callNative(LoxCallable function, int argc, Token paren) {
+        if (argc != function.arity)
+            throw new RuntimeError(paren,
+                    String.format("Expected %d arguments but got %d.", function.arity, argc));
+
+        Object[] arguments = new Object[argc];
+        for (int i = 0; i < argc; i++) {
+            arguments[i] = box(stack, numbers, sp - argc + i);
+            if (!matchesType(arguments[i], function.argumentTypes[i]))
+                throw new RuntimeError(paren, String.format("Expected %s for argument %d, got %s instead.",
+                        function.argumentTypes[i].name().toLowerCase(), i + 1, typeName(arguments[i])));
+        }
+
+        return function.callN(null, arguments);
+    }
+
+    private static String typeName(Object value) {
+        return value instanceof Closure ? "function" : getTypeName(value);
+    }
+
+    private Upvalue captureUpvalue(int location) {
+        Upvalue previous = null;
+        Upvalue upvalue = open_upvalues;
+        while (upvalue != null && upvalue.location > location) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.location == location)
+            return upvalue;
+
+        Upvalue created = new Upvalue(location, upvalue);
+        if (previous == null)
+            open_upvalues = created;
+        else
+            previous.next = created;
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (open_upvalues != null && open_upvalues.location >= last) {
+            Upvalue upvalue = open_upvalues;
+            upvalue.closed = box(stack, numbers, upvalue.location);
+            upvalue.is_open = false;
+            open_upvalues = upvalue.next;
+        }
+    }
+
+    /**
+     * Compares two slots of the stack like {@link lox.interpreter.InterpreterUtil#isEqual},
+     * without boxing numbers.
+     */
+    private static boolean isEqual(Object[] stack, double[] numbers, int left, int right) {
+        if (stack[left] == UNBOXED && stack[right] == UNBOXED)
+            return Double.doubleToLongBits(numbers[left]) == Double.doubleToLongBits(numbers[right]);
+        return InterpreterUtil.isEqual(box(stack, numbers, left), box(stack, numbers, right));
+    }
+
+    private static RuntimeError numberOperandsError(Token operator) {
+        return new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    private void run() {
+        CallFrame frame = frames[frame_count - 1];
+        Chunk chunk = frame.closure.function.chunk;
+        byte[] code = chunk.code;
+        Object[] constants = chunk.constants();
+        Object[] stack = this.stack;
+        double[] numbers = this.numbers;
+        int ip = frame.ip;
+        int base = frame.base;
+        int sp = this.sp;
+
+        for (;;) {
+            int start = ip;
+            switch (code[ip++]) {
+                case OpCode.CONSTANT: {
+                    unbox(stack, numbers, sp++, constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.NIL:
+                    stack[sp++] = null;
+                    break;
+                case OpCode.TRUE:
+                    stack[sp++] = true;
+                    break;
+                case OpCode.FALSE:
+                    stack[sp++] = false;
+                    break;
+                case OpCode.POP:
+                    sp--;
+                    break;
+                case OpCode.GET_LOCAL: {
+                    int slot = base + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    stack[sp] = stack[slot];
+                    numbers[sp++] = numbers[slot];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int slot = base + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    stack[slot] = stack[sp - 1];
+                    numbers[slot] = numbers[sp - 1];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.STORE_LOCAL: {
+                    int slot = base + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    sp--;
+                    stack[slot] = stack[sp];
+                    numbers[slot] = numbers[sp];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    if (upvalue.is_open) {
+                        stack[sp] = stack[upvalue.location];
+                        numbers[sp++] = numbers[upvalue.location];
+                    } else {
+                        unbox(stack, numbers, sp++, upvalue.closed);
+                    }
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    if (upvalue.is_open) {
+                        stack[upvalue.location] = stack[sp - 1];
+                        numbers[upvalue.location] = numbers[sp - 1];
+                    } else {
+                        upvalue.closed = box(stack, numbers, sp - 1);
+                    }
+                    ip += 2;
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    unbox(stack, numbers, sp++, globals[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    globals[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)] = box(stack, numbers, sp - 1);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    sp--;
+                    stack[sp - 1] = isEqual(stack, numbers, sp - 1, sp);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    sp--;
+                    stack[sp - 1] = !isEqual(stack, numbers, sp - 1, sp);
+                    break;
+                }
+                case OpCode.GREATER: {
+                    sp--;
+                    if (stack[sp - 1] != UNBOXED || stack[sp] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    stack[sp - 1] = numbers[sp - 1] > numbers[sp];
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    sp--;
+                    if (stack[sp - 1] != UNBOXED || stack[sp] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    stack[sp - 1] = numbers[sp - 1] >= numbers[sp];
+                    break;
+                }
+                case OpCode.LESS: {
+                    sp--;
+                    if (stack[sp - 1] != UNBOXED || stack[sp] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    stack[sp - 1] = numbers[sp - 1] < numbers[sp];
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    sp--;
+                    if (stack[sp - 1] != UNBOXED || stack[sp] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    stack[sp - 1] = numbers[sp - 1] <= numbers[sp];
+                    break;
+                }
+                case OpCode.ADD: {
+                    sp--;
+                    if (stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        numbers[sp - 1] += numbers[sp];
+                        break;
+                    }
+
+                    Object right = box(stack, numbers, sp);
+                    Object left = box(stack, numbers, sp - 1);
+                    if (left instanceof Double && right instanceof String)
+                        stack[sp - 1] = stringify(left) + (String) right;
+                    else if (left instanceof String && right instanceof Double)
+                        stack[sp - 1] = (String) left + stringify(right);
+                    else if (left instanceof String && right instanceof String)
+                        stack[sp - 1] = (String) left + (String) right;
+                    else
+                        throw new RuntimeError(chunk.tokens[start], "Operands must be two numbers or two strings.");
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    sp--;
+                    if (stack[sp - 1] != UNBOXED || stack[sp] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    numbers[sp - 1] -= numbers[sp];
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    sp--;
+                    if (stack[sp - 1] != UNBOXED || stack[sp] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    numbers[sp - 1] *= numbers[sp];
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    sp--;
+                    if (stack[sp - 1] != UNBOXED || stack[sp] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    numbers[sp - 1] /= numbers[sp];
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE: {
+                    if (stack[sp - 1] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    numbers[sp - 1] = -numbers[sp - 1];
+                    break;
+                }
+                case OpCode.PRINT:
+                    sp--;
+                    System.out.println(stringify(box(stack, numbers, sp)));
+                    break;
+                case OpCode.JUMP:
+                    ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (isTruthy(stack[--sp]))
+                        ip += 2;
+                    else
+                        ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                case OpCode.JUMP_IF_NOT_LESS:
+                    sp -= 2;
+                    if (stack[sp] != UNBOXED || stack[sp + 1] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    if (numbers[sp] < numbers[sp + 1])
+                        ip += 2;
+                    else
+                        ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                case OpCode.JUMP_IF_NOT_LESS_EQUAL:
+                    sp -= 2;
+                    if (stack[sp] != UNBOXED || stack[sp + 1] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    if (numbers[sp] <= numbers[sp + 1])
+                        ip += 2;
+                    else
+                        ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                case OpCode.JUMP_IF_NOT_GREATER:
+                    sp -= 2;
+                    if (stack[sp] != UNBOXED || stack[sp + 1] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    if (numbers[sp] > numbers[sp + 1])
+                        ip += 2;
+                    else
+                        ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                case OpCode.JUMP_IF_NOT_GREATER_EQUAL:
+                    sp -= 2;
+                    if (stack[sp] != UNBOXED || stack[sp + 1] != UNBOXED)
+                        throw numberOperandsError(chunk.tokens[start]);
+                    if (numbers[sp] >= numbers[sp + 1])
+                        ip += 2;
+                    else
+                        ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                case OpCode.LOOP:
+                    ip = ip + 2 - (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                case OpCode.OR:
+                    if (isTruthy(stack[sp - 1])) {
+                        ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    } else {
+                        sp--;
+                        ip += 2;
+                    }
+                    break;
+                case OpCode.AND:
+                    if (!isTruthy(stack[sp - 1])) {
+                        stack[sp - 1] = false;
+                        ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    } else {
+                        sp--;
+                        ip += 2;
+                    }
+                    break;
+                case OpCode.FALSIFY:
+                    if (!isTruthy(stack[sp - 1]))
+                        stack[sp - 1] = false;
+                    break;
+                case OpCode.CALL: {
+                    int argc = code[ip++] & 0xff;
+                    Object callee = stack[sp - argc - 1];
+                    if (callee instanceof Closure) {
+                        frame.ip = ip;
+                        this.sp = sp;
+                        call((Closure) callee, argc, chunk.tokens[start]);
+
+                        frame = frames[frame_count - 1];
+                        chunk = frame.closure.function.chunk;
+                        code = chunk.code;
+                        constants = chunk.constants();
+                        stack = this.stack;
+                        numbers = this.numbers;
+                        ip = 0;
+                        base = frame.base;
+                    } else if (callee instanceof LoxCallable) {
+                        this.sp = sp;
+                        Object result = callNative((LoxCallable) callee, argc, chunk.tokens[start]);
+                        sp -= argc;
+                        unbox(stack, numbers, sp - 1, result);
+                    } else {
+                        throw new RuntimeError(chunk.tokens[start], "Can only call functions and classes.");
+                    }
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    VMFunction function = (VMFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Closure closure = new Closure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean is_local = code[ip++] == 1;
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        closure.upvalues[i] = is_local ? captureUpvalue(base + index)
+                                : frame.closure.upvalues[index];
+                    }
+                    stack[sp++] = closure;
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    double number = numbers[sp];
+                    closeUpvalues(base);
+                    frame_count--;
+                    frame.closure = null;
+                    sp = base;
+
+                    if (frame_count == 0) {
+                        this.sp = sp;
+                        return;
+                    }
+
+                    stack[sp] = result;
+                    numbers[sp++] = number;
+                    frame = frames[frame_count - 1];
+                    chunk = frame.closure.function.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants();
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.INDEX: {
+                    Object index = box(stack, numbers, --sp);
+                    Object array = stack[sp - 1];
+                    Token square = chunk.tokens[start];
+                    if (!matchesType(array, ARRAY))
+                        throw new RuntimeError(square, "Expression is not indexable.");
+                    if (!matchesType(index, NUMBER))
+                        throw new RuntimeError(square, "Array index must be a number.");
+                    if ((double) index % 1 != 0)
+                        throw new RuntimeError(square, "Array index must be a whole number.");
+
+                    unbox(stack, numbers, sp - 1, ((Object[]) array)[(int) Math.round((double) index)]);
+                    break;
+                }
+                case OpCode.TEMPLATE: {
+                    int count = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    StringBuilder sb = new StringBuilder();
+                    for (int i = sp - count; i < sp; i++)
+                        sb.append(stringify(box(stack, numbers, i)));
+                    sp -= count;
+                    stack[sp++] = sb.toString();
+                    break;
+                }
+                case OpCode.ERROR:
+                    throw new RuntimeError(chunk.tokens[start],
+                            (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                default:
+                    throw new IllegalStateException("Unknown opcode " + OpCode.name(code[start]));
+            }
+        }
+    }
+}
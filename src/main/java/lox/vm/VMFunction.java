@@ -0,0 +1,23 @@
+package lox.vm;
+
+/**
+ * A compiled Lox function. Closures over it are created at runtime by the
+ * {@link OpCode#CLOSURE} instruction.
+ */
+public class VMFunction {
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalue_count = 0;
+    /** Number of stack slots the function needs, including the callee slot */
+    int max_stack = 1;
+
+    VMFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<fn %s>", name);
+    }
+}
@@ -10,8 +10,8 @@ public class GenerateAst {
     public static final String OUTPUT_DIR = "lox/ast";
 
     public static void main(String[] args) throws IOException {
-        defineAst(OUTPUT_DIR, "Expr", Arrays.asList(
-                "Assign         : Token identifier, Expr value",
+        defineAst(OUTPUT_DIR, "Expr", "LoxType type = LoxType.ANY", Arrays.asList(
+                "Assign         : Token identifier, Expr value | int depth = -1, int slot, int upvalue = -1",
                 "Ternary        : Expr condition, Expr consequent, Expr alternate",
                 "Binary         : Expr left, Token operator, Expr right",
                 "Call           : Expr callee, Token paren, List<Expr> arguments",
@@ -22,23 +22,27 @@ public class GenerateAst {
                 "TemplateLiteral: Expr expression",
                 "TemplateString : List<Expr> templates",
                 "Unary          : Token operator, Expr right",
-                "Variable       : Token name"));
+                "Variable       : Token name | int depth = -1, int slot, int upvalue = -1"));
 
-        defineAst(OUTPUT_DIR, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
+        defineAst(OUTPUT_DIR, "Stmt", "", Arrays.asList(
+                "Block      : List<Stmt> statements | int slot_count",
                 "If         : Expr condition, Stmt consequent, Stmt alternate",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
-                "Return     : Token keyword, Expr value",
+                "Function   : Token name, List<Token> params, List<Stmt> body | int slot, int slot_count, int[] upvalue_depths, int[] upvalue_slots",
+                "Return     : Token keyword, Expr value | boolean is_tail_call",
                 "Print      : Expr expression",
                 "While      : Expr condition, Stmt body",
+                "For        : Stmt initializer, Expr condition, Expr increment, Stmt body | int slot_count, boolean is_counting, double step",
                 "Break      : Token keyword",
                 "Continue   : Token keyword",
-                "Var        : Token name, Expr initializer"));
+                "Var        : Token name, Expr initializer | int slot"));
     }
 
+    /**
+     * @param baseFields Mutable fields every type has, filled in after parsing
+     */
     private static void defineAst(
-            String outputDir, String baseName, List<String> types)
+            String outputDir, String baseName, String baseFields, List<String> types)
             throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
@@ -48,16 +52,27 @@ public class GenerateAst {
         writer.println("import java.util.List;");
         writer.println();
         writer.println("import lox.Token;");
+        if (baseFields.length() != 0)
+            writer.println("import lox.interpreter.LoxType;");
         writer.println();
         writer.println("public abstract class " + baseName + " {");
         writer.println("  private static final AstPrinter PRINTER = new AstPrinter();");
 
+        if (baseFields.length() != 0) {
+            writer.println();
+            writer.println("  // Set after parsing");
+            for (String field : baseFields.split(", "))
+                writer.println("  public " + field + ";");
+            writer.println();
+        }
+
         defineVisitor(writer, baseName, types);
 
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fields = type.split(":")[1].split("\\|");
+            String resolutionFields = fields.length > 1 ? fields[1].trim() : "";
+            defineType(writer, baseName, className, fields[0].trim(), resolutionFields);
         }
 
         // The base accept() method.
@@ -74,9 +89,13 @@ public class GenerateAst {
         writer.close();
     }
 
+    /**
+     * @param resolutionFields Mutable fields that are not set by the parser but
+     *                         filled in later, by the resolver or at runtime
+     */
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String resolutionFields) {
         writer.println("  public static class " + className + " extends " +
                 baseName + " {");
 
@@ -109,6 +128,13 @@ public class GenerateAst {
                 writer.println("    public final " + field + ";");
         }
 
+        if (resolutionFields.length() != 0) {
+            writer.println();
+            writer.println("    // Set after parsing");
+            for (String field : resolutionFields.split(", "))
+                writer.println("    public " + field + ";");
+        }
+
         writer.println("  }");
     }
 
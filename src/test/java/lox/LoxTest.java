@@ -0,0 +1,169 @@
+package lox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs scripts through {@link Lox#main} in a new JVM, with the default thread
+ * stack size and the options given on the command line.
+ */
+public class LoxTest {
+
+    /** What a script printed to the standard output and the status {@code lox.Lox} exited with */
+    private static final class Result {
+        final int status;
+        final String output;
+
+        Result(int status, String output) {
+            this.status = status;
+            this.output = output;
+        }
+    }
+
+    private Result run(String source, String... options) throws IOException, InterruptedException {
+        Path script = script(source);
+        try {
+            List<String> command = java("-cp", System.getProperty("java.class.path"), "lox.Lox");
+            command.addAll(Arrays.asList(options));
+            command.add(script.toString());
+            return exec(command);
+        } finally {
+            Files.delete(script);
+        }
+    }
+
+    private static Path script(String source) throws IOException {
+        Path script = Files.createTempFile("lox", ".lox");
+        Files.write(script, source.getBytes(StandardCharsets.UTF_8));
+        return script;
+    }
+
+    /** @return A command running {@code java} with {@code arguments} */
+    private static List<String> java(String... arguments) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(Arrays.asList(arguments));
+        return command;
+    }
+
+    private static Result exec(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        return new Result(process.waitFor(), output);
+    }
+
+    // ========== RECURSION ==========
+
+    /** As deep as the interpreter recursed before numbers were evaluated unboxed */
+    private static final int BASELINE_DEPTH = 722;
+
+    @Test
+    public void testRecursionAsDeepAsBoxedArithmetic() throws Exception {
+        String source = "fun f(n) { if (n == 0) return 0; return f(n - 1) + 1; } print f(" + BASELINE_DEPTH + ");";
+        Result result = run(source);
+        assertEquals(result.output, 0, result.status);
+        assertEquals(BASELINE_DEPTH + "\n", result.output);
+    }
+
+    @Test
+    public void testVmRecursesDeeperThanJavaStack() throws Exception {
+        Result result = run("fun f(n) { if (n == 0) return 0; return f(n - 1) + 1; } print f(100000);", "--engine=vm");
+        assertEquals(0, result.status);
+        assertEquals("100000\n", result.output);
+    }
+
+    @Test
+    public void testVmStopsAtMaxCallDepth() throws Exception {
+        String source = "fun f(n) { if (n == 0) return 0; return f(n - 1) + 1; } print f(98); print f(99);";
+        Result result = run(source, "--engine=vm", "--max-call-depth=100");
+        assertEquals(70, result.status);
+        assertEquals("98\n", result.output);
+    }
+
+    @Test
+    public void testMaxCallDepthMustBePositive() throws Exception {
+        assertEquals(64, run("print 1;", "--max-call-depth=0").status);
+        assertEquals(64, run("print 1;", "--max-call-depth=deep").status);
+    }
+
+    // ========== CONTROL FLOW ==========
+
+    @Test
+    public void testBreakInFunctionCalledFromLoop() throws Exception {
+        // Loops of the caller don't extend into the function body
+        Result result = run("fun f() { break; } while (true) { f(); }");
+        assertEquals(70, result.status);
+    }
+
+    // ========== OPTIMIZATIONS ==========
+
+    @Test
+    public void testDeadBranchIsResolvedWhetherOrNotFolded() throws Exception {
+        String source = "if (false) print undefinedName; print 1;";
+        assertEquals(65, run(source).status);
+        assertEquals(65, run(source, "--no-fold").status);
+        assertEquals(65, run(source, "--no-inline").status);
+    }
+
+    @Test
+    public void testDumpIrPrintsOptimizedIrInsteadOfRunning() throws Exception {
+        Result result = run("var a = 2; print a * 3;", "--dump-ir");
+        assertEquals(0, result.status);
+        assertTrue(result.output, result.output.startsWith("function script/0\n"));
+        assertTrue(result.output, result.output.contains("constant 6"));
+        assertTrue(result.output, !result.output.contains("multiply"));
+    }
+
+    // ========== JLOXC ==========
+
+    /**
+     * Compiles {@code source} with {@code lox.Jloxc}, then runs the jar by
+     * itself, without the class path of the compiler.
+     * @return What the jar printed, or what the compiler did if it failed
+     */
+    private Result compileAndRun(String source) throws IOException, InterruptedException {
+        Path script = script(source);
+        Path jar = Paths.get(script.toString().replaceFirst("\\.lox$", ".jar"));
+        try {
+            Result compiled = exec(java("-cp", System.getProperty("java.class.path"), "lox.Jloxc",
+                    "-o", jar.toString(), script.toString()));
+            if (compiled.status != 0)
+                return compiled;
+            return exec(java("-jar", jar.toString()));
+        } finally {
+            Files.delete(script);
+            Files.deleteIfExists(jar);
+        }
+    }
+
+    @Test
+    public void testCompiledJarRunsScript() throws Exception {
+        Result result = compileAndRun("fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }"
+                + " var parts = stringSplit(\"a,b\", \",\"); print fib(15); print parts[1] + floor(2.5);"
+                + " fun count(n) { if (n == 0) return \"done\"; return count(n - 1); } print count(100000);");
+        assertEquals(result.output, 0, result.status);
+        assertEquals("610\nb2\ndone\n", result.output);
+    }
+
+    @Test
+    public void testCompiledJarReportsRuntimeErrors() throws Exception {
+        Result result = compileAndRun("print 1; print -nil; print 2;");
+        assertEquals(70, result.status);
+        assertEquals("1\n", result.output);
+    }
+
+    @Test
+    public void testCompileErrorExitsWith65() throws Exception {
+        Result result = compileAndRun("print undefinedName;");
+        assertEquals(65, result.status);
+    }
+}
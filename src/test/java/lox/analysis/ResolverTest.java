@@ -0,0 +1,187 @@
+package lox.analysis;
+
+import java.util.Arrays;
+import java.util.List;
+
+import lox.ast.Expr;
+import lox.ast.Stmt;
+import lox.interpreter.NativeFunction;
+import lox.parser.Parser;
+import lox.scanner.Scanner;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResolverTest {
+
+    private List<Stmt> resolve(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source)).parse();
+        new Resolver().resolveProgram(statements);
+        return statements;
+    }
+
+    /** @return The variable printed by the last statement of {@code statements} */
+    private static Expr.Variable lastPrinted(List<Stmt> statements) {
+        return (Expr.Variable) ((Stmt.Print) statements.get(statements.size() - 1)).expression;
+    }
+
+    // ========== SLOTS ==========
+
+    @Test
+    public void testBlockSlotCount() {
+        Stmt.Block block = (Stmt.Block) resolve("{ var a = 1; var b = 2; fun f() {} }").get(0);
+        assertEquals(3, block.slot_count);
+    }
+
+    @Test
+    public void testRedeclarationTakesNewSlot() {
+        Stmt.Block block = (Stmt.Block) resolve("{ var a = 1; var a = 2; print a; }").get(0);
+        assertEquals(2, block.slot_count);
+        Expr.Variable a = lastPrinted(block.statements);
+        assertEquals(0, a.depth);
+        assertEquals(1, a.slot);
+    }
+
+    @Test
+    public void testBlockWithoutDeclarationsHasNoFrame() {
+        Stmt.Block outer = (Stmt.Block) resolve("{ var a = 1; var b = 2; { print b; } }").get(0);
+        Stmt.Block inner = (Stmt.Block) outer.statements.get(2);
+        assertEquals(0, inner.slot_count);
+        Expr.Variable b = lastPrinted(inner.statements);
+        assertEquals(0, b.depth);
+        assertEquals(1, b.slot);
+    }
+
+    @Test
+    public void testVariableOfEnclosingBlock() {
+        Stmt.Block outer = (Stmt.Block) resolve("{ var a = 1; { var b = 2; print a; } }").get(0);
+        Stmt.Block inner = (Stmt.Block) outer.statements.get(1);
+        assertEquals(1, inner.slot_count);
+        Expr.Variable a = lastPrinted(inner.statements);
+        assertEquals(1, a.depth);
+        assertEquals(0, a.slot);
+    }
+
+    @Test
+    public void testFunctionSlotsHoldParametersThenLocals() {
+        Stmt.Function f = (Stmt.Function) resolve("fun f(a, b) { var c = a; print b; }").get(0);
+        assertEquals(3, f.slot_count);
+        Expr.Variable b = lastPrinted(f.body);
+        assertEquals(0, b.depth);
+        assertEquals(1, b.slot);
+    }
+
+    @Test
+    public void testTopLevelVariablesHaveSlots() {
+        Expr.Variable b = lastPrinted(resolve("var a = 1; var b = 2; print b;"));
+        assertEquals(0, b.depth);
+        assertEquals(1, b.slot);
+    }
+
+    @Test
+    public void testNativesAreGlobals() {
+        Expr.Variable floor = lastPrinted(resolve("print floor;"));
+        assertEquals(-1, floor.depth);
+        assertEquals(NativeFunction.lookup("floor"), floor.slot);
+    }
+
+    // ========== UPVALUES ==========
+
+    /** @return The function declared by statement {@code index} of {@code body} */
+    private static Stmt.Function function(List<Stmt> body, int index) {
+        return (Stmt.Function) body.get(index);
+    }
+
+    private static void assertUpvalues(Stmt.Function function, int[] depths, int[] slots) {
+        assertEquals(Arrays.toString(depths), Arrays.toString(function.upvalue_depths));
+        assertEquals(Arrays.toString(slots), Arrays.toString(function.upvalue_slots));
+    }
+
+    @Test
+    public void testOnlyUsedVariablesAreCaptured() {
+        Stmt.Function outer = function(resolve("fun outer(a, b, c) { fun inner() { return c + a + c; } }"), 0);
+        assertUpvalues(outer, new int[] {}, new int[] {});
+        assertUpvalues(function(outer.body, 0), new int[] { 0, 0 }, new int[] { 2, 0 });
+    }
+
+    @Test
+    public void testUpvalueDepthIsFromDeclaringScope() {
+        Stmt.Function outer = function(resolve("fun outer() { var a; { var b; fun inner() { return a + b; } } }"), 0);
+        Stmt.Block block = (Stmt.Block) outer.body.get(1);
+        assertUpvalues(function(block.statements, 1), new int[] { 1, 0 }, new int[] { 0, 0 });
+    }
+
+    @Test
+    public void testVariableOfOuterFunctionIsCapturedThroughMiddle() {
+        Stmt.Function outer = function(resolve("fun outer() { var a; fun middle() { fun inner() { return a; } } }"), 0);
+        Stmt.Function middle = function(outer.body, 1);
+        assertUpvalues(middle, new int[] { 0 }, new int[] { 0 });
+        assertUpvalues(function(middle.body, 0), new int[] { -1 }, new int[] { 0 });
+    }
+
+    @Test
+    public void testOwnVariablesAreNotUpvalues() {
+        Stmt.Function outer = function(resolve("fun outer(a) { var b; fun inner(c) { print c; print b; } }"), 0);
+        Stmt.Function inner = function(outer.body, 1);
+        assertEquals(-1, ((Expr.Variable) ((Stmt.Print) inner.body.get(0)).expression).upvalue);
+        assertEquals(0, lastPrinted(inner.body).upvalue);
+        assertUpvalues(inner, new int[] { 0 }, new int[] { 1 });
+    }
+
+    // ========== COUNTING LOOPS ==========
+
+    /** @return The loop ending {@code source} */
+    private Stmt.For loop(String source) {
+        List<Stmt> statements = resolve(source);
+        return (Stmt.For) statements.get(statements.size() - 1);
+    }
+
+    @Test
+    public void testLoopSteppedByLiteralIsCounting() {
+        Stmt.For up = loop("for (var i = 0; i < 10; i = i + 1) print i;");
+        assertTrue(up.is_counting);
+        assertEquals(1.0, up.step, 0);
+        Stmt.For down = loop("for (var i = 10; i >= 0; i = i - 2) print i;");
+        assertTrue(down.is_counting);
+        assertEquals(-2.0, down.step, 0);
+        assertTrue(loop("for (var i = 0; i <= 1; i = i + 0.25) {}").is_counting);
+        assertTrue(loop("for (var i = 9; i > 0; i = i - 1) {}").is_counting);
+    }
+
+    @Test
+    public void testCounterAssignedInBodyIsNotCounting() {
+        assertTrue(!loop("for (var i = 0; i < 10; i = i + 1) { i = i + 1; }").is_counting);
+        assertTrue(!loop("for (var i = 0; i < 10; i = i + 1) { fun f() { i = 0; } }").is_counting);
+        assertTrue(loop("for (var i = 0; i < 10; i = i + 1) { var j = 0; j = i; }").is_counting);
+    }
+
+    @Test
+    public void testOtherShapesAreNotCounting() {
+        assertTrue(!loop("for (var i = 0; i < 10; i = i * 2) {}").is_counting);
+        assertTrue(!loop("for (var i = 0; i < 10; i = i + \"1\") {}").is_counting);
+        assertTrue(!loop("var s = 1; for (var i = 0; i < 10; i = i + s) {}").is_counting);
+        assertTrue(!loop("for (var i = 0; i != 10; i = i + 1) {}").is_counting);
+        assertTrue(!loop("var n = 0; for (var i = 0; n < 10; i = i + 1) {}").is_counting);
+        assertTrue(!loop("for (var i = 0; i < 10; i + 1) {}").is_counting);
+        assertTrue(!loop("var i = 0; for (i = 0; i < 10; i = i + 1) {}").is_counting);
+    }
+
+    // ========== TAIL CALLS ==========
+
+    /** @return The return statement ending the body of the first function */
+    private Stmt.Return returnOf(String source) {
+        Stmt.Function f = (Stmt.Function) resolve(source).get(0);
+        return (Stmt.Return) f.body.get(f.body.size() - 1);
+    }
+
+    @Test
+    public void testReturnedCallIsTailCall() {
+        assertTrue(returnOf("fun f(n) { return f(n - 1); }").is_tail_call);
+    }
+
+    @Test
+    public void testCallInReturnedExpressionIsNotTailCall() {
+        assertTrue(!returnOf("fun f(n) { return f(n - 1) + 1; }").is_tail_call);
+        assertTrue(!returnOf("fun f(n) { return n; }").is_tail_call);
+    }
+}
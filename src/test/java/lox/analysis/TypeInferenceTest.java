@@ -0,0 +1,124 @@
+package lox.analysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import lox.ast.Stmt;
+import lox.interpreter.Interpreter;
+import lox.interpreter.LoxType;
+import lox.parser.Parser;
+import lox.scanner.Scanner;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TypeInferenceTest {
+    /** Printed to System.err by the last {@link #infer} */
+    private String warnings;
+
+    /** @return The resolved program, typed by {@link TypeInference#infer} */
+    private List<Stmt> infer(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source)).parse();
+        new Resolver().resolveProgram(statements);
+
+        PrintStream err = System.err;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(printed, true));
+        try {
+            new TypeInference().infer(statements);
+        } finally {
+            System.setErr(err);
+        }
+        warnings = printed.toString();
+        return statements;
+    }
+
+    /** @return What the typed program printed when interpreted */
+    private String run(List<Stmt> statements) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            new Interpreter().interpret(statements);
+        } finally {
+            System.setOut(out);
+        }
+        return printed.toString();
+    }
+
+    private LoxType printedType(List<Stmt> statements, int index) {
+        return ((Stmt.Print) statements.get(index)).expression.type;
+    }
+
+    // ========== TYPES ==========
+
+    @Test
+    public void testLocalTypes() {
+        List<Stmt> statements = infer("var a = 1; var s = \"s\"; print a + 2; print s + a; print a < 3; print a;");
+
+        assertEquals(LoxType.NUMBER, printedType(statements, 2));
+        assertEquals(LoxType.STRING, printedType(statements, 3));
+        assertEquals(LoxType.BOOLEAN, printedType(statements, 4));
+        assertEquals("", warnings);
+    }
+
+    @Test
+    public void testJoinedBranchesAreAnyType() {
+        List<Stmt> statements = infer("var a = 1; if (clock() > 0) a = \"a\"; print a;");
+
+        assertEquals(LoxType.ANY, printedType(statements, 2));
+    }
+
+    // ========== WARNINGS ==========
+
+    @Test
+    public void testDefiniteTypeErrorWarns() {
+        infer("var s = \"a\";\nprint s - 1;");
+
+        assertEquals("[line: 2, col: 8] Warning at '-': Operand must be a number.\n", warnings);
+    }
+
+    @Test
+    public void testNegatedStringWarns() {
+        infer("var s = \"a\"; var n = -s;");
+
+        assertTrue(warnings, warnings.contains("Warning at '-': Operand must be a number."));
+    }
+
+    @Test
+    public void testPossibleTypeErrorDoesNotWarn() {
+        infer("var a = 1; if (clock() > 0) a = \"a\"; print a - 1;");
+
+        assertEquals("", warnings);
+    }
+
+    @Test
+    public void testClosureReassigningOuterVariableDoesNotWarn() {
+        String source = "fun f() { var x = \"a\"; fun g() { x = 1; } g(); return x - 1; } print f();";
+        List<Stmt> statements = infer(source);
+
+        assertEquals("", warnings);
+        assertEquals("0\n", run(statements));
+    }
+
+    @Test
+    public void testClosureReassigningAfterUseDoesNotWarn() {
+        // The closure is declared after the use, the analysis runs again once it is found
+        String source = "fun f() { var x = \"a\"; var y = 0; while (y < 2) { y = y + 1; if (y == 2) print x - 1; "
+                + "fun g() { x = 1; } g(); } } f();";
+        List<Stmt> statements = infer(source);
+
+        assertEquals("", warnings);
+        assertEquals("0\n", run(statements));
+    }
+
+    @Test
+    public void testWarningsDoNotStopExecution() {
+        String source = "fun never() { var s = \"a\"; return s - 1; } print \"ran\"; var t = true; print t ? 1 : -t;";
+        List<Stmt> statements = infer(source);
+
+        assertTrue(warnings, warnings.contains("Warning at '-'"));
+        assertEquals("ran\n1\n", run(statements));
+    }
+}
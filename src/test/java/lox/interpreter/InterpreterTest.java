@@ -0,0 +1,320 @@
+package lox.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import lox.analysis.Resolver;
+import lox.ast.Stmt;
+import lox.parser.Parser;
+import lox.scanner.Scanner;
+import lox.scanner.SymbolTable;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InterpreterTest {
+
+    /** @return What the script printed when run by the interpreter */
+    private String run(String source, boolean is_jit_enabled) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.is_jit_enabled = is_jit_enabled;
+        return capture(() -> {
+            List<Stmt> statements = new Parser(new Scanner(source)).parse();
+            new Resolver().resolveProgram(statements);
+            interpreter.interpret(statements);
+        });
+    }
+
+    /** @return What the lines printed when run one by one like the REPL does */
+    private String runRepl(String... lines) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.is_repl = true;
+        Resolver resolver = new Resolver();
+        SymbolTable symbols = new SymbolTable();
+        resolver.beginScope();
+        return capture(() -> {
+            for (String line : lines) {
+                List<Stmt> statements = new Parser(new Scanner(line, symbols)).parse();
+                resolver.resolve(statements);
+                interpreter.interpret(statements);
+            }
+        });
+    }
+
+    private String capture(Runnable action) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            action.run();
+        } finally {
+            System.setOut(out);
+        }
+        return printed.toString();
+    }
+
+    // ========== REPL ==========
+
+    @Test
+    public void testReplLinesShareNames() {
+        assertEquals("3\n", runRepl("var a = 1;", "var b = 2;", "print a + b;"));
+    }
+
+    // ========== COMPLETIONS ==========
+
+    @Test
+    public void testReturnFromNestedLoopsAndBlocks() {
+        String source = "fun f() { for (var i = 0; i < 10; i = i + 1) {"
+                + " while (true) { { if (i == 3) return i; } break; } } return -1; } print f();";
+        assertEquals("3\n", run(source, false));
+        assertEquals("3\n", run(source, true));
+    }
+
+    @Test
+    public void testReturnWithoutValue() {
+        assertEquals("nil\nnil\n", run("fun f() { return; } fun g() {} print f(); print g();", false));
+    }
+
+    @Test
+    public void testBreakLeavesInnermostLoop() {
+        assertEquals("0 0\n1 0\n", run("for (var i = 0; i < 2; i = i + 1) {"
+                + " for (var j = 0; j < 5; j = j + 1) { if (j == 1) break; print \"${i} ${j}\"; } }", false));
+    }
+
+    @Test
+    public void testContinueInWhile() {
+        assertEquals("1\n3\n", run("var i = 0; while (i < 4) { i = i + 1; if (i == 2 or i == 4) continue; print i; }", false));
+    }
+
+    @Test
+    public void testReturnInsideLoopOfCaller() {
+        assertEquals("0\n1\n", run("fun f(i) { while (true) return i; }"
+                + " for (var i = 0; i < 5; i = i + 1) { if (f(i) == 2) break; print i; }", false));
+    }
+
+    // ========== TAIL CALLS ==========
+
+    @Test
+    public void testDeepTailRecursion() {
+        String source = "fun count(n, acc) { if (n == 0) return acc; return count(n - 1, acc + 1); }"
+                + " print count(100000, 0);";
+        assertEquals("100000\n", run(source, false));
+        assertEquals("100000\n", run(source, true));
+    }
+
+    @Test
+    public void testDeepMutualTailRecursion() {
+        String source = "var other;"
+                + " fun even(n) { if (n == 0) return true; return other(n - 1); }"
+                + " fun odd(n) { if (n == 0) return false; { var m = n - 1; return even(m); } }"
+                + " other = odd; print even(100001);";
+        assertEquals("false\n", run(source, false));
+        assertEquals("false\n", run(source, true));
+    }
+
+    @Test
+    public void testTailCallsFromLoops() {
+        assertEquals("done\n", run("fun f(n) { while (true) { if (n == 0) return \"done\"; return f(n - 1); } }"
+                + " print f(100000);", false));
+        assertEquals("0\n", run("fun f(n) { for (var i = 0; i < 1; i = i + 1) { if (n == 0) return i; return f(n - 1); } }"
+                + " print f(100000);", false));
+    }
+
+    @Test
+    public void testTailCallOfNativeAndClosure() {
+        assertEquals("3\n", run("fun f(x) { return floor(x); } print f(3.7);", false));
+        assertEquals("5\n", run("fun make(n) { fun get() { return n; } return get; }"
+                + " fun f() { return make(5)(); } print f();", false));
+    }
+
+    // ========== COUNTING LOOPS ==========
+
+    @Test
+    public void testCountingLoopWithContinueAndBreak() {
+        String source = "var s = 0; for (var i = 0; i < 20000; i = i + 1) { if (i == 3) continue; if (i == 19000) break; s = s + 1; }"
+                + " print s; for (var i = 5; i > 0; i = i - 2) { if (i == 3) continue; print i; }";
+        assertEquals("18999\n5\n1\n", run(source, false));
+        assertEquals("18999\n5\n1\n", run(source, true));
+    }
+
+    @Test
+    public void testCountingLoopWithFractionalStep() {
+        String source = "for (var i = 0; i <= 1; i = i + 0.25) print i; for (var i = 1; i >= 0; i = i - 0.5) print i;";
+        assertEquals("0\n0.25\n0.5\n0.75\n1\n1\n0.5\n0\n", run(source, false));
+    }
+
+    @Test
+    public void testCountingLoopBoundChangedInBody() {
+        assertEquals("5\n", run("var n = 10; var c = 0; for (var i = 0; i < n; i = i + 1) { n = n - 1; c = c + 1; } print c;", false));
+    }
+
+    @Test
+    public void testClosureCapturesCountingLoopVariable() {
+        // The variable of the initializer is shared by all iterations
+        String source = "var get; for (var i = 0; i < 3; i = i + 1) { if (i == 1) { fun g() { return i; } get = g; } }"
+                + " print get();";
+        assertEquals("3\n", run(source, false));
+        assertEquals("3\n", run(source, true));
+    }
+
+    // ========== FRAMES ==========
+
+    @Test
+    public void testNestedBlockScopes() {
+        assertEquals("inner\nouter\nglobal\n", run("var a = \"global\";"
+                + " { var a = \"outer\"; { var a = \"inner\"; print a; } print a; } print a;", false));
+    }
+
+    @Test
+    public void testBlockWithoutDeclarationsUsesEnclosingFrame() {
+        assertEquals("2\n", run("{ var a = 1; { a = a + 1; } print a; }", false));
+    }
+
+    @Test
+    public void testRedeclarationInBlock() {
+        assertEquals("1\n3\n", run("{ var a = 1; var b = a; var a = 3; print b; print a; }", false));
+    }
+
+    @Test
+    public void testFunctionFrameHoldsParametersAndLocals() {
+        assertEquals("6\n", run("fun f(a, b) { var c = a + b; { var d = c * 2; return d; } } print f(1, 2);", false));
+    }
+
+    @Test
+    public void testReplGrowsTopLevelFrame() {
+        String[] lines = new String[21];
+        for (int i = 0; i < 20; i++)
+            lines[i] = "var v" + i + " = " + i + ";";
+        lines[20] = "print v0 + v10 + v19;";
+        assertEquals("29\n", runRepl(lines));
+    }
+
+    @Test
+    public void testClearedFrameClosesUpvaluesWithLastValues() {
+        Environment frame = new Environment(2);
+        frame.define(0, 1.0);
+        frame.define(1, "kept");
+        Upvalue upvalue = frame.capture(1);
+        upvalue.set(null, "last");
+        assertEquals("last", frame.get(null, 1));
+
+        frame.clear();
+        assertEquals("last", upvalue.get(null));
+        assertEquals(null, frame.get(null, 0));
+        assertEquals(null, frame.get(null, 1));
+        upvalue.set(null, "moved");
+        assertEquals(null, frame.get(null, 1));
+        assertEquals("moved", upvalue.get(null));
+    }
+
+    @Test
+    public void testCapturedSlotSharesOneUpvalue() {
+        Environment frame = new Environment(1);
+        assertTrue(frame.capture(0) == frame.capture(0));
+    }
+
+    @Test
+    public void testReusedFrameStartsEmpty() {
+        assertEquals("1\nnil\nnil\n", run("fun f(x) { var a; if (x) a = 1; print a; }"
+                + " f(true); f(false); { var b; print b; }", false));
+    }
+
+    @Test
+    public void testClosuresOutliveReusedFrames() {
+        assertEquals("1\n2\n1\n", run("fun make(v) { fun get() { return v; } return get; }"
+                + " var a = make(1); var b = make(2); print a(); print b(); print a();", false));
+    }
+
+    @Test
+    public void testClosuresOfLoopIterationsKeepOwnValues() {
+        assertEquals("0\n1\n", run("var a; var b; for (var i = 0; i < 2; i = i + 1) {"
+                + " var j = i; fun get() { return j; } if (i == 0) a = get; else b = get; }"
+                + " print a(); print b();", false));
+    }
+
+    @Test
+    public void testClosureWritesFrameWhileScopeRuns() {
+        assertEquals("3\n", run("fun f() { var x = 1; fun inc() { x = x + 1; } inc(); inc(); return x; }"
+                + " print f();", false));
+    }
+
+    // ========== UPVALUES ==========
+
+    @Test
+    public void testCountersKeepOwnVariables() {
+        assertEquals("1\n2\n1\n3\n", run("fun counter() { var n = 0; fun next() { n = n + 1; return n; } return next; }"
+                + " var a = counter(); var b = counter(); print a(); print a(); print b(); print a();", false));
+    }
+
+    @Test
+    public void testClosuresShareCapturedVariable() {
+        assertEquals("2\n2\n", run("var inc; var get;"
+                + " fun make() { var n = 0; fun i() { n = n + 1; } fun g() { return n; } inc = i; get = g; }"
+                + " make(); inc(); inc(); print get(); { print get(); }", false));
+    }
+
+    @Test
+    public void testNestedClosuresReachOuterFunction() {
+        assertEquals("6\n7\n", run("fun outer(a) { var b = 2; fun middle() { fun inner(c) { b = b + 1; return a + b + c; } return inner; }"
+                + " return middle(); } var f = outer(1); print f(2); print f(2);", false));
+    }
+
+    @Test
+    public void testAssignmentAfterCaptureIsSeen() {
+        assertEquals("late\n", run("fun f() { var x = \"early\"; fun get() { return x; } x = \"late\"; return get; }"
+                + " print f()();", false));
+    }
+
+    @Test
+    public void testCompiledClosureUsesUpvalues() {
+        assertEquals("2000\n2000\n", run("fun counter() { var n = 0; fun next() { n = n + 1; return n; } return next; }"
+                + " var a = counter(); var last; for (var i = 0; i < 2000; i = i + 1) last = a(); print last;"
+                + " var b = counter(); for (var i = 0; i < 1999; i = i + 1) b(); print b();", true));
+    }
+
+    // ========== JIT ==========
+
+    @Test
+    public void testProgramSharedByInterpreters() {
+        // Hot enough for the function and the loop to be compiled
+        String source = "fun add(a, b) { return a + b; }"
+                + " var sum = 0;"
+                + " for (var i = 0; i < 20000; i = i + 1) { sum = add(sum, 2); }"
+                + " print sum;";
+        List<Stmt> statements = new Parser(new Scanner(source)).parse();
+        new Resolver().resolveProgram(statements);
+
+        Interpreter jit = new Interpreter();
+        Interpreter tree = new Interpreter();
+        tree.is_jit_enabled = false;
+        assertEquals("40000\n", capture(() -> jit.interpret(statements)));
+        assertEquals("40000\n", capture(() -> tree.interpret(statements)));
+        assertEquals("40000\n", capture(() -> jit.interpret(statements)));
+    }
+
+    // ========== GLOBALS ==========
+
+    @Test
+    public void testAssignToNativeName() {
+        assertEquals("1\n", run("clock = 1; print clock;", true));
+    }
+
+    @Test
+    public void testAssignToNativeNameInFunction() {
+        assertEquals("x\n", run("fun f() { floor = \"x\"; return floor; } print f();", false));
+    }
+
+    @Test
+    public void testAssignToNativeNameInCompiledLoop() {
+        // Enough iterations for the loop to be compiled
+        String source = "for (var i = 0; i < 20000; i = i + 1) { read = i; } print read;";
+        assertEquals("19999\n", run(source, true));
+        assertEquals("19999\n", run(source, false));
+    }
+
+    @Test
+    public void testAssignToNativeNameInRepl() {
+        assertEquals("1\n1\n2\n", runRepl("clock = 1;", "clock;", "clock = clock + 1;"));
+    }
+}
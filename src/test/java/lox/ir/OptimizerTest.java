@@ -0,0 +1,112 @@
+package lox.ir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import lox.analysis.Resolver;
+import lox.ast.Stmt;
+import lox.parser.Parser;
+import lox.scanner.Scanner;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OptimizerTest {
+
+    private IrFunction build(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source)).parse();
+        new Resolver().resolveProgram(statements);
+        return new IrBuilder().build(statements);
+    }
+
+    /** @return What the program printed when its IR was interpreted */
+    private String run(IrFunction script) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            new IrInterpreter().interpret(script);
+        } finally {
+            System.setOut(out);
+        }
+        return printed.toString();
+    }
+
+    /**
+     * @return The optimized IR of the first function declared by the program,
+     *         after checking the program prints {@code expected} with and
+     *         without optimizing it
+     */
+    private String optimize(String source, String expected) {
+        assertEquals(expected, run(build(source)));
+        IrFunction script = new Optimizer().optimize(build(source));
+        assertEquals(expected, run(script));
+        return new IrPrinter().print(script.functions.isEmpty() ? script : script.functions.get(0));
+    }
+
+    private static int count(String ir, String op) {
+        return ir.split(" = " + op + " ", -1).length - 1;
+    }
+
+    // ========== CONSTANT PROPAGATION ==========
+
+    @Test
+    public void testConstantsPropagateThroughVariables() {
+        String ir = optimize("var a = 2; var b = a * 3; print b + 1;", "7\n");
+        assertTrue(ir, ir.contains("constant 7"));
+        assertEquals(0, count(ir, "multiply"));
+    }
+
+    @Test
+    public void testConstantBranchIsRemoved() {
+        String ir = optimize("fun f(x) { if (true) return x; return x * 100; } print f(1);", "1\n");
+        assertTrue(ir, !ir.contains("branch"));
+        assertEquals(0, count(ir, "multiply"));
+    }
+
+    // ========== CHECK ELIMINATION ==========
+
+    @Test
+    public void testValueIsCheckedOnce() {
+        String ir = optimize("fun f(x) { var y = x * 2; return y + x; } print f(3);", "9\n");
+        assertEquals(1, count(ir, "check_number"));
+        assertEquals(1, count(ir, "number_add"));
+        assertEquals(0, count(ir, "add"));
+    }
+
+    // ========== COMMON SUBEXPRESSIONS ==========
+
+    @Test
+    public void testRepeatedExpressionIsComputedOnce() {
+        String ir = optimize("fun f(x) { var y = x * 2; var z = x * 2; return y + z; } print f(3);", "12\n");
+        assertEquals(1, count(ir, "multiply"));
+    }
+
+    // ========== LOOP INVARIANTS ==========
+
+    @Test
+    public void testInvariantIsHoistedOutOfLoop() {
+        String ir = optimize("fun f(n) { var s = 0; for (var i = 0; i < n; i = i + 1) { s = s + n * 2; } return s; }"
+                + " print f(3);", "18\n");
+        assertEquals(1, count(ir, "multiply"));
+        assertTrue(ir, ir.indexOf("multiply") < ir.indexOf("b1:"));
+    }
+
+    // ========== DEAD CODE ==========
+
+    @Test
+    public void testUnusedValuesAreRemoved() {
+        String ir = optimize("fun f(a) { var u = a == 1; var w = nil; return a; } print f(1);", "1\n");
+        assertEquals(0, count(ir, "equal"));
+        assertEquals(0, count(ir, "constant"));
+    }
+
+    @Test
+    public void testUnusedArithmeticKeepsItsCheck() {
+        // The multiplication is dropped, but a non-number still has to fail
+        String ir = optimize("fun f(a) { var u = a * 3; return a; } print f(1);", "1\n");
+        assertEquals(0, count(ir, "multiply"));
+        assertEquals(1, count(ir, "check_number"));
+    }
+}
@@ -0,0 +1,132 @@
+package lox.nodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import lox.analysis.Resolver;
+import lox.ast.Stmt;
+import lox.parser.Parser;
+import lox.scanner.Scanner;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NodeCompilerTest {
+
+    /** @return What the program printed when run as a tree of nodes */
+    private String run(String source) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            List<Stmt> statements = new Parser(new Scanner(source)).parse();
+            new Resolver().resolveProgram(statements);
+            new NodeCompiler().compile(statements).interpret();
+        } finally {
+            System.setOut(out);
+        }
+        return printed.toString();
+    }
+
+    // ========== EXPRESSIONS ==========
+
+    @Test
+    public void testArithmeticAndComparisons() {
+        assertEquals("7\n-1\n2.5\ntrue\nfalse\ntrue\n",
+                run("print 1 + 2 * 3; print -(3 - 2); print 5 / 2; print 1 < 2; print 2 <= 1; print 3 >= 3;"));
+        assertEquals("true\nfalse\ntrue\n", run("print 1 == 1; print nil == false; print \"a\" != \"b\";"));
+    }
+
+    @Test
+    public void testStringsAndTemplates() {
+        assertEquals("ab\na1\n2b\n", run("print \"a\" + \"b\"; print \"a\" + 1; print 2 + \"b\";"));
+        assertEquals("x is 3, twice 6\n", run("var x = 3; print \"x is ${x}, twice ${x * 2}\";"));
+    }
+
+    @Test
+    public void testCommaTernaryAndLogical() {
+        assertEquals("2\n", run("var a = 0; print (a = 1, a + 1);"));
+        assertEquals("yes\nno\n", run("print 1 < 2 ? \"yes\" : \"no\"; print nil ? \"yes\" : \"no\";"));
+        assertEquals("false\n2\nfalse\n", run("print nil and 1; print nil or 2; print !true;"));
+    }
+
+    @Test
+    public void testArraysFromNatives() {
+        assertEquals("b\n3\n", run("var parts = stringSplit(\"a,b,c\", \",\"); print parts[1]; print arrayLength(parts);"));
+    }
+
+    // ========== STATEMENTS ==========
+
+    @Test
+    public void testScopesAndShadowing() {
+        assertEquals("inner\nouter\n", run("var a = \"outer\"; { var a = \"inner\"; print a; } print a;"));
+    }
+
+    @Test
+    public void testLoopsWithBreakAndContinue() {
+        assertEquals("0\n1\n3\n", run("for (var i = 0; i < 10; i = i + 1) {"
+                + " if (i == 2) continue; if (i == 4) break; print i; }"));
+        assertEquals("3\n", run("var i = 0; while (true) { i = i + 1; if (i < 3) continue; break; } print i;"));
+    }
+
+    // ========== FUNCTIONS ==========
+
+    @Test
+    public void testRecursionAndReturns() {
+        assertEquals("55\nnil\n", run("fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }"
+                + " fun nothing() {} print fib(10); print nothing();"));
+    }
+
+    @Test
+    public void testClosures() {
+        assertEquals("1\n2\n1\n", run("fun counter() { var n = 0; fun next() { n = n + 1; return n; } return next; }"
+                + " var a = counter(); var b = counter(); print a(); print a(); print b();"));
+    }
+
+    @Test
+    public void testAssignToNativeName() {
+        assertEquals("1\n3\n", run("clock = 1; print clock; print floor(3.7);"));
+    }
+
+    // ========== SPECIALIZATION ==========
+
+    @Test
+    public void testOperatorsFollowChangingTypes() {
+        assertEquals("3\nab\n1a\n", run("fun add(a, b) { return a + b; } print add(1, 2); print add(\"a\", \"b\"); print add(1, \"a\");"));
+        assertEquals("true\nfalse\n", run("fun same(a, b) { return a == b; } print same(1, 1); print same(1, \"1\");"));
+    }
+
+    @Test
+    public void testRecursiveCallRewritesNodeFirst() {
+        // The innermost call rewrites the addition while the outer ones are still evaluating it
+        assertEquals("s123\n", run("fun f(n) { if (n == 0) return \"s\"; return f(n - 1) + n; } print f(3);"));
+        assertEquals("6\ns12\n6\n", run("var base = 0; fun f(n) { if (n == 0) return base; return f(n - 1) + n; }"
+                + " print f(3); base = \"s\"; print f(2); base = 0; print f(3);"));
+    }
+
+    // ========== TAIL CALLS ==========
+
+    @Test
+    public void testDeepTailRecursion() {
+        assertEquals("100000\n", run("fun count(n, acc) { if (n == 0) return acc; return count(n - 1, acc + 1); }"
+                + " print count(100000, 0);"));
+    }
+
+    @Test
+    public void testTailCallsFromBlocksAndLoops() {
+        assertEquals("false\n", run("var other;"
+                + " fun even(n) { if (n == 0) return true; return other(n - 1); }"
+                + " fun odd(n) { if (n == 0) return false; { var m = n - 1; return even(m); } }"
+                + " other = odd; print even(100001);"));
+        assertEquals("done\n", run("fun f(n) { while (true) { if (n == 0) return \"done\"; return f(n - 1); } }"
+                + " print f(100000);"));
+        assertEquals("0\n", run("fun f(n) { for (var i = 0; i < 1; i = i + 1) { if (n == 0) return i; return f(n - 1); } }"
+                + " print f(100000);"));
+    }
+
+    @Test
+    public void testTailCallOfNative() {
+        assertEquals("3\n", run("fun f(x) { return floor(x); } print f(3.7);"));
+    }
+}
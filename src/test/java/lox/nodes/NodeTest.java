@@ -0,0 +1,105 @@
+package lox.nodes;
+
+import lox.Token;
+import lox.TokenType;
+import lox.nodes.ExprNode.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NodeTest {
+
+    /** Parent of the node under test, giving it a field to be replaced in */
+    private static final class Holder extends ExprNode {
+        private ExprNode child;
+
+        Holder(ExprNode child) {
+            this.child = adopt(child);
+        }
+
+        @Override
+        Object execute(Frame frame) {
+            return child.execute(frame);
+        }
+    }
+
+    private static final Token PLUS = new Token(TokenType.PLUS, "+", null, null);
+
+    /** @return A frame whose slots hold {@code values} */
+    private static Frame frame(Object... values) {
+        Frame frame = new Frame(values.length, null);
+        System.arraycopy(values, 0, frame.slots, 0, values.length);
+        return frame;
+    }
+
+    private static Holder add(ExprNode left, ExprNode right) {
+        return new Holder(new AddNode(left, PLUS, right));
+    }
+
+    // ========== ADDITION ==========
+
+    @Test
+    public void testAddSpecializesToNumbers() {
+        Holder holder = add(new LocalNode(0), new LocalNode(1));
+        assertEquals(3.0, holder.execute(frame(1.0, 2.0)));
+        assertTrue(holder.child instanceof NumberAddNode);
+        assertEquals(5.0, holder.execute(frame(2.0, 3.0)));
+        assertTrue(holder.child instanceof NumberAddNode);
+    }
+
+    @Test
+    public void testAddSpecializesToStrings() {
+        Holder holder = add(new LocalNode(0), new LocalNode(1));
+        assertEquals("ab", holder.execute(frame("a", "b")));
+        assertTrue(holder.child instanceof StringAddNode);
+    }
+
+    @Test
+    public void testAddOfMixedOperandsIsGeneric() {
+        Holder holder = add(new LocalNode(0), new LocalNode(1));
+        assertEquals("1a", holder.execute(frame(1.0, "a")));
+        assertTrue(holder.child instanceof GenericAddNode);
+    }
+
+    @Test
+    public void testSpecializedAddFallsBackToGeneric() {
+        Holder holder = add(new LocalNode(0), new LocalNode(1));
+        holder.execute(frame(1.0, 2.0));
+        assertEquals("ab", holder.execute(frame("a", "b")));
+        assertTrue(holder.child instanceof GenericAddNode);
+        assertEquals(3.0, holder.execute(frame(1.0, 2.0)));
+        assertTrue(holder.child instanceof GenericAddNode);
+    }
+
+    @Test
+    public void testRewrittenNodeAdoptsChildren() {
+        LocalNode left = new LocalNode(0);
+        LocalNode right = new LocalNode(1);
+        Holder holder = add(left, right);
+        holder.execute(frame(1.0, 2.0));
+        holder.execute(frame("a", "b"));
+        assertTrue(holder.child.parent == holder);
+        assertTrue(left.parent == holder.child);
+        assertTrue(right.parent == holder.child);
+    }
+
+    // ========== LOGICAL AND TERNARY ==========
+
+    @Test
+    public void testLogicalSpecializesToBooleans() {
+        Holder holder = new Holder(new LogicalNode(new LocalNode(0), new LocalNode(1), false));
+        assertEquals(false, holder.execute(frame(true, false)));
+        assertTrue(holder.child instanceof BooleanLogicalNode);
+        assertEquals(false, holder.execute(frame(null, true)));
+        assertTrue(holder.child instanceof GenericLogicalNode);
+    }
+
+    @Test
+    public void testTernarySpecializesToBooleans() {
+        Holder holder = new Holder(new TernaryNode(new LocalNode(0), new LiteralNode(1.0), new LiteralNode(2.0)));
+        assertEquals(2.0, holder.execute(frame(false)));
+        assertTrue(holder.child instanceof BooleanTernaryNode);
+        assertEquals(1.0, holder.execute(frame("")));
+        assertTrue(holder.child instanceof GenericTernaryNode);
+    }
+}
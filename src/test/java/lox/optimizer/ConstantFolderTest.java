@@ -0,0 +1,168 @@
+package lox.optimizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import lox.analysis.Resolver;
+import lox.ast.Expr;
+import lox.ast.Stmt;
+import lox.interpreter.Interpreter;
+import lox.parser.Parser;
+import lox.scanner.Scanner;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ConstantFolderTest {
+
+    private List<Stmt> fold(String source) {
+        return new ConstantFolder().fold(new Parser(new Scanner(source)).parse());
+    }
+
+    /** @return The folded expression of a print statement */
+    private Expr foldPrinted(String source) {
+        return ((Stmt.Print) fold("print " + source + ";").get(0)).expression;
+    }
+
+    private void assertFoldsTo(Object value, String source) {
+        Expr expr = foldPrinted(source);
+        assertTrue(source + " is not folded", expr instanceof Expr.Literal);
+        assertEquals(source, value, ((Expr.Literal) expr).value);
+    }
+
+    /** @return What the script printed, with or without folding */
+    private String run(String source, boolean is_folding) {
+        List<Stmt> statements = new Parser(new Scanner(source)).parse();
+        new Resolver().resolveProgram(statements);
+        if (is_folding) {
+            statements = new ConstantFolder().fold(statements);
+            new Resolver().resolveProgram(statements);
+        }
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            new Interpreter().interpret(statements);
+        } finally {
+            System.setOut(out);
+        }
+        return printed.toString();
+    }
+
+    private void assertSameOutput(String source) {
+        assertEquals(run(source, false), run(source, true));
+    }
+
+    // ========== ARITHMETIC ==========
+
+    @Test
+    public void testArithmetic() {
+        assertFoldsTo(7.0, "1 + 2 * 3");
+        assertFoldsTo(-0.5, "(1 - 2) / 2");
+        assertFoldsTo(-4.0, "-(2 + 2)");
+        assertFoldsTo(true, "1 < 2 == !nil");
+    }
+
+    @Test
+    public void testConcatenationStringifiesNumbers() {
+        assertFoldsTo("n1", "\"n\" + 1");
+        assertFoldsTo("2.5x", "2.5 + \"x\"");
+        assertFoldsTo("-3ab", "-3 + \"a\" + \"b\"");
+        assertFoldsTo("1 and 2.25", "\"${1} and ${2 + 0.25}\"");
+        assertSameOutput("print \"n\" + 1; print 2.5 + \"x\"; print 10 / 4 + \"\"; print \"${3 * 1}\";");
+    }
+
+    // ========== LOGICAL OPERATORS ==========
+
+    @Test
+    public void testLogicalFalsyRightOperandIsFalse() {
+        assertFoldsTo(false, "true and nil");
+        assertFoldsTo(false, "true and false");
+        assertFoldsTo(false, "false or nil");
+        assertFoldsTo(false, "nil or false");
+        assertSameOutput("print true and nil; print false or nil; print nil or false;");
+    }
+
+    @Test
+    public void testLogicalTruthyOperands() {
+        assertFoldsTo("a", "true and \"a\"");
+        assertFoldsTo(0.0, "nil or 0");
+        assertFoldsTo("s", "\"s\" or x");
+        assertFoldsTo(false, "nil and x");
+        assertSameOutput("print true and \"a\"; print nil or 0; print 1 and 2;");
+    }
+
+    @Test
+    public void testLogicalWithUnknownRightOperand() {
+        assertTrue(foldPrinted("true and x") instanceof Expr.Logical);
+        assertTrue(foldPrinted("false or x") instanceof Expr.Logical);
+    }
+
+    // ========== FAILING OPERATIONS ==========
+
+    @Test
+    public void testFailingOperationsAreNotFolded() {
+        assertTrue(foldPrinted("1 - \"a\"") instanceof Expr.Binary);
+        assertTrue(foldPrinted("\"a\" + nil") instanceof Expr.Binary);
+        assertTrue(foldPrinted("true + 1") instanceof Expr.Binary);
+        assertTrue(foldPrinted("1 < \"b\"") instanceof Expr.Binary);
+        assertTrue(foldPrinted("-\"a\"") instanceof Expr.Unary);
+    }
+
+    @Test
+    public void testFailingOperandIsStillFolded() {
+        Expr expr = foldPrinted("(1 + 2) - \"a\"");
+        assertTrue(expr instanceof Expr.Binary);
+        assertEquals(3.0, ((Expr.Literal) ((Expr.Binary) expr).left).value);
+    }
+
+    // ========== DEAD CODE ==========
+
+    @Test
+    public void testDeadIfBranches() {
+        Stmt taken = fold("if (1 < 2) print 1; else print 2;").get(0);
+        assertTrue(taken instanceof Stmt.Print);
+        assertEquals(1.0, ((Expr.Literal) ((Stmt.Print) taken).expression).value);
+
+        Stmt alternate = fold("if (nil) print 1; else print 2;").get(0);
+        assertEquals(2.0, ((Expr.Literal) ((Stmt.Print) alternate).expression).value);
+
+        Stmt removed = fold("if (false) print 1;").get(0);
+        assertTrue(removed instanceof Stmt.Block);
+        assertEquals(0, ((Stmt.Block) removed).statements.size());
+    }
+
+    @Test
+    public void testDeadWhile() {
+        Stmt removed = fold("while (1 > 2) print 1;").get(0);
+        assertTrue(removed instanceof Stmt.Block);
+        assertEquals(0, ((Stmt.Block) removed).statements.size());
+
+        assertTrue(fold("while (true) print 1;").get(0) instanceof Stmt.While);
+    }
+
+    @Test
+    public void testDeadForKeepsInitializer() {
+        Stmt removed = fold("for (var i = 1 + 1; false; i = i + 1) print i;").get(0);
+        assertTrue(removed instanceof Stmt.Block);
+        List<Stmt> statements = ((Stmt.Block) removed).statements;
+        assertEquals(1, statements.size());
+        Stmt.Var initializer = (Stmt.Var) statements.get(0);
+        assertEquals("i", initializer.name.lexeme);
+        assertEquals(2.0, ((Expr.Literal) initializer.initializer).value);
+
+        Stmt empty = fold("for (; nil; x = x + 1) print 1;").get(0);
+        assertEquals(0, ((Stmt.Block) empty).statements.size());
+
+        // The initializer's side effects still happen
+        assertSameOutput("var n = 0; for (n = n + 5; false; n = n + 1) print n; print n;");
+    }
+
+    @Test
+    public void testDeadBranchesKeepOutput() {
+        assertSameOutput("if (false) print 1; else print 2; while (nil) print 3; "
+                + "for (var i = 0; i < 2; i = i + 1) if (\"\") print i; print true ? \"t\" : \"f\";");
+    }
+}
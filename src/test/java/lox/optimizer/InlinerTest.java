@@ -0,0 +1,215 @@
+package lox.optimizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import lox.analysis.Resolver;
+import lox.ast.Expr;
+import lox.ast.Stmt;
+import lox.interpreter.Interpreter;
+import lox.parser.Parser;
+import lox.scanner.Scanner;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InlinerTest {
+
+    /** @return The program resolved like Lox does before inlining */
+    private List<Stmt> resolve(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source)).parse();
+        new Resolver().resolveProgram(statements);
+        return statements;
+    }
+
+    private List<Stmt> inline(String source) {
+        return new Inliner().inline(resolve(source));
+    }
+
+    /** @return The expression of the last print statement of the inlined program */
+    private Expr lastPrinted(String source) {
+        List<Stmt> statements = inline(source);
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            if (statements.get(i) instanceof Stmt.Print)
+                return ((Stmt.Print) statements.get(i)).expression;
+        }
+        throw new AssertionError("No print statement");
+    }
+
+    private void assertInlined(String source) {
+        assertTrue(lastPrinted(source) instanceof Expr.Grouping);
+    }
+
+    private void assertNotInlined(String source) {
+        assertTrue(lastPrinted(source) instanceof Expr.Call);
+    }
+
+    /** @return What the script printed, with or without inlining */
+    private String run(String source, boolean is_inlining) {
+        List<Stmt> statements = resolve(source);
+        if (is_inlining) {
+            statements = new ConstantFolder().fold(new Inliner().inline(statements));
+            new Resolver().resolveProgram(statements);
+        }
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            new Interpreter().interpret(statements);
+        } finally {
+            System.setOut(out);
+        }
+        return printed.toString();
+    }
+
+    private void assertOutput(String expected, String source) {
+        assertEquals(expected, run(source, false));
+        assertEquals(expected, run(source, true));
+    }
+
+    // ========== INLINED CALLS ==========
+
+    @Test
+    public void testSmallFunctionInlined() {
+        String source = "fun add(a, b) { return a + b; } var x = 1; print add(x, 2);";
+        assertInlined(source);
+        assertOutput("3\n", source);
+    }
+
+    @Test
+    public void testInlinedValueKeepsPrecedence() {
+        String source = "fun add(a, b) { return a + b; } print add(1, 2) * 3 + add(3, 1);";
+        Expr.Binary sum = (Expr.Binary) lastPrinted(source);
+        Expr.Binary product = (Expr.Binary) sum.left;
+        assertTrue(product.left instanceof Expr.Grouping);
+        assertTrue(sum.right instanceof Expr.Grouping);
+        assertOutput("13\n", source);
+    }
+
+    // ========== ARGUMENTS ==========
+
+    @Test
+    public void testArgumentSideEffectsInOrder() {
+        String functions = "var log = \"\"; fun t(s) { log = log + s; return 1; } "
+                + "fun add(a, b) { return a + b; } fun sub(a, b) { return b - a; } ";
+
+        // Arguments that call are never copied into the function's value
+        assertNotInlined(functions + "print add(t(\"a\"), t(\"b\"));");
+        assertNotInlined(functions + "print sub(t(\"c\"), t(\"d\"));");
+        assertOutput("2\n0\nabcd\n",
+                functions + "print add(t(\"a\"), t(\"b\")); print sub(t(\"c\"), t(\"d\")); print log;");
+    }
+
+    @Test
+    public void testArgumentsUsedInParameterOrder() {
+        String functions = "var x = 1; var y = 2; fun add(a, b) { return a + b; } fun sub(a, b) { return b - a; } ";
+
+        assertInlined(functions + "print add(x + 1, y * 2);");
+        // b - a would evaluate y * 2 before x + 1
+        assertNotInlined(functions + "print sub(x + 1, y * 2);");
+        // Simple arguments can be used in any order
+        assertInlined(functions + "print sub(x, y);");
+        assertOutput("6\n2\n1\n", functions + "print add(x + 1, y * 2); print sub(x + 1, y * 2); print sub(x, y);");
+    }
+
+    @Test
+    public void testArgumentsEvaluatedOnce() {
+        String functions = "var n = 0; fun next() { n = n + 1; return n; } fun sq(x) { return x * x; } ";
+
+        assertNotInlined(functions + "print sq(next());");
+        // A copied argument that isn't a literal or variable would be evaluated twice
+        assertNotInlined(functions + "print sq(n + 1);");
+        assertInlined(functions + "print sq(n);");
+        assertInlined(functions + "print sq(3);");
+        assertOutput("1\n1\n4\n4\n", functions + "print sq(next()); print n; print sq(n + 1); print sq(2);");
+    }
+
+    @Test
+    public void testConditionalArgumentNotInlined() {
+        String functions = "var x = 1; fun pick(c, a) { return c ? a : 0; } ";
+
+        assertNotInlined(functions + "print pick(true, x + 1);");
+        assertInlined(functions + "print pick(true, x);");
+        assertOutput("2\n0\n", functions + "print pick(true, x + 1); print pick(nil, x);");
+    }
+
+    // ========== FUNCTIONS LEFT ALONE ==========
+
+    @Test
+    public void testRecursiveFunctionNotInlined() {
+        String source = "fun down(n) { return n < 1 ? 0 : down(n - 1); } print down(3);";
+        assertNotInlined(source);
+        assertOutput("0\n", source);
+    }
+
+    @Test
+    public void testFunctionOverMaxSizeNotInlined() {
+        // a + 1 + 2 + ... has one node for a and two per addition
+        int additions = (Inliner.MAX_SIZE - 1) / 2;
+        StringBuilder fits = new StringBuilder("a");
+        for (int i = 1; i <= additions; i++)
+            fits.append(" + ").append(i);
+        String too_big = fits + " + " + (additions + 1);
+
+        assertInlined("fun f(a) { return " + fits + "; } print f(1);");
+        assertNotInlined("fun f(a) { return " + too_big + "; } print f(1);");
+        assertOutput("29\n37\n", "fun f(a) { return " + fits + "; } fun g(a) { return " + too_big + "; } "
+                + "print f(1); print g(1);");
+    }
+
+    @Test
+    public void testFunctionWithStatementsNotInlined() {
+        String source = "fun f(a) { var b = a; return b; } print f(1);";
+        assertNotInlined(source);
+        assertOutput("1\n", source);
+    }
+
+    @Test
+    public void testAssignedFunctionNotInlined() {
+        String source = "fun id(a) { return a; } print id(1.5); id = floor; print id(2.5);";
+        assertNotInlined(source);
+        assertOutput("1.5\n2\n", source);
+    }
+
+    // ========== CLOSURES ==========
+
+    @Test
+    public void testClosureCapturingOuterVariable() {
+        String source = "fun make() { var base = 10; fun add(a) { return a + base; } base = 20; "
+                + "print add(1); return add; } var add = make(); print add(2);";
+        assertOutput("21\n22\n", source);
+
+        // The call in make is inlined, the one through the returned closure can't be
+        List<Stmt> make = ((Stmt.Function) inline(source).get(0)).body;
+        assertTrue(((Stmt.Print) make.get(3)).expression instanceof Expr.Grouping);
+        assertNotInlined(source);
+    }
+
+    @Test
+    public void testShadowedFreeVariableNotInlined() {
+        String source = "var k = 1; fun addk(a) { return a + k; } { var k = 100; print addk(1); }";
+        List<Stmt> block = ((Stmt.Block) inline(source).get(2)).statements;
+        assertTrue(((Stmt.Print) block.get(1)).expression instanceof Expr.Call);
+        assertOutput("2\n", source);
+    }
+
+    @Test
+    public void testCapturedLoopVariable() {
+        assertOutput("0\n2\n4\n",
+                "for (var i = 0; i < 3; i = i + 1) { fun twice(a) { return a + i; } print twice(i); }");
+    }
+
+    // ========== SAME OUTPUT ==========
+
+    @Test
+    public void testSameOutputWithoutInlining() {
+        String source = "fun sq(x) { return x * x; } fun avg(a, b) { return (a + b) / 2; } "
+                + "fun name(s) { return \"<${s}>\"; } fun both(a, b) { return a and b; } "
+                + "var total = 0; for (var i = 0; i < 10; i = i + 1) total = total + sq(i) - avg(i, total); "
+                + "print total; print name(sq(3)); print both(1, nil); print both(true, \"x\"); "
+                + "print avg(sq(2), 1) == 2.5; print name(\"a\" + 1);";
+        assertEquals(run(source, false), run(source, true));
+    }
+}
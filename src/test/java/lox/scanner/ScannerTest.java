@@ -5,7 +5,15 @@ import lox.TokenType;
 
 import org.checkerframework.checker.units.qual.N;
 import org.junit.Test;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Random;
 import static org.junit.Assert.*;
 import static lox.TokenType.*;
 
@@ -231,6 +239,62 @@ public class ScannerTest {
         assertEquals(123.0, tokens.get(0).literal);
     }
 
+    // ========== NUMBER PARSING ==========
+
+    private void assertParsedLikeJava(String text) {
+        char[] chars = ("  " + text + " ").toCharArray();
+        assertEquals(text, Double.valueOf(Double.parseDouble(text)),
+                Double.valueOf(ScannerUtil.parseNumber(chars, 2, text.length())));
+    }
+
+    @Test
+    public void testParseNumberFastPath() {
+        assertParsedLikeJava("0");
+        assertParsedLikeJava("0.1");
+        assertParsedLikeJava("0.3");
+        assertParsedLikeJava("123.456");
+        assertParsedLikeJava("999999999999999");
+        assertParsedLikeJava("99999999999999.9");
+        assertParsedLikeJava("1.00000000000001");
+        assertParsedLikeJava("0.0000000000000000000001");
+    }
+
+    @Test
+    public void testParseNumberAboveFifteenDigits() {
+        assertParsedLikeJava("1234567890123456");
+        assertParsedLikeJava("9007199254740993");
+        assertParsedLikeJava("99999999999999999999");
+        assertParsedLikeJava("123456789012345.6");
+        assertParsedLikeJava("0.12345678901234567");
+    }
+
+    @Test
+    public void testParseNumberAroundPowersOfTen() {
+        assertParsedLikeJava("1000000000000000000000");
+        assertParsedLikeJava("10000000000000000000000");
+        assertParsedLikeJava("100000000000000000000000");
+        assertParsedLikeJava("1.0000000000000000000000");
+        assertParsedLikeJava("1.00000000000000000000000");
+        assertParsedLikeJava("5.0000000000000000000000001");
+        assertParsedLikeJava("0.00000000000000000000001");
+    }
+
+    @Test
+    public void testParseNumberRandom() {
+        Random random = new Random(22);
+        for (int i = 0; i < 100000; i++) {
+            StringBuilder text = new StringBuilder();
+            int digits = 1 + random.nextInt(i % 2 == 0 ? 15 : 30);
+            int dot = random.nextInt(digits + 1);
+            for (int d = 0; d < digits; d++) {
+                if (d == dot && d > 0)
+                    text.append('.');
+                text.append((char) ('0' + random.nextInt(10)));
+            }
+            assertParsedLikeJava(text.toString());
+        }
+    }
+
     // ========== IDENTIFIERS ==========
 
     @Test
@@ -728,6 +792,247 @@ public class ScannerTest {
         assertEquals(2, tokens.get(1).loc.line());
     }
 
+    // ========== SKIPPED RUNS ==========
+
+    private void assertLocation(Token token, int line, int col) {
+        assertEquals(line, token.loc.line());
+        assertEquals(col, token.loc.col());
+    }
+
+    @Test
+    public void testBlanksAfterCarriageReturns() {
+        Scanner scanner = new Scanner("a \r\n\t  b\r\n\r\n   \t c");
+        List<Token> tokens = scanner.scanTokens();
+
+        assertTokenTypesEqual(tokens, IDENTIFIER, IDENTIFIER, IDENTIFIER);
+        assertLocation(tokens.get(0), 1, 0);
+        assertLocation(tokens.get(1), 2, 3);
+        assertLocation(tokens.get(2), 4, 5);
+    }
+
+    @Test
+    public void testLineCommentsWithCarriageReturns() {
+        Scanner scanner = new Scanner("// one\r\n  d // two /* \"\r\ne");
+        List<Token> tokens = scanner.scanTokens();
+
+        assertTokenTypesEqual(tokens, IDENTIFIER, IDENTIFIER);
+        assertLocation(tokens.get(0), 2, 2);
+        assertLocation(tokens.get(1), 3, 0);
+    }
+
+    @Test
+    public void testNestedCommentLocations() {
+        Scanner scanner = new Scanner("/* x /* y\r\n * / \u00e9 */ z\r\n */  c /**/ d /*/**/*/e");
+        List<Token> tokens = scanner.scanTokens();
+
+        assertTokenTypesEqual(tokens, IDENTIFIER, IDENTIFIER, IDENTIFIER);
+        assertLocation(tokens.get(0), 3, 5);
+        assertLocation(tokens.get(1), 3, 12);
+        assertLocation(tokens.get(2), 3, 22);
+    }
+
+    @Test
+    public void testStringRunLocations() {
+        Scanner scanner = new Scanner("\"ab\r\ncd \\\" $ e${x}f\r\n\" g");
+        List<Token> tokens = scanner.scanTokens();
+
+        assertTokenTypesEqual(tokens, STRING_START, STRING, INTERP_START, IDENTIFIER, INTERP_END, STRING,
+                STRING_END, IDENTIFIER);
+        assertEquals("ab\r\ncd \" $ e", tokens.get(1).literal);
+        assertLocation(tokens.get(3), 2, 11);
+        assertEquals("f\r\n", tokens.get(5).literal);
+        assertLocation(tokens.get(6), 3, 0);
+        assertLocation(tokens.get(7), 3, 2);
+    }
+
+    @Test
+    public void testBlanksLongerThanChunk() {
+        Scanner scanner = new Scanner(" \t".repeat(CHUNK_SIZE) + "h\n" + "\r ".repeat(CHUNK_SIZE) + "i");
+        List<Token> tokens = scanner.scanTokens();
+
+        assertTokenTypesEqual(tokens, IDENTIFIER, IDENTIFIER);
+        assertLocation(tokens.get(0), 1, CHUNK_SIZE * 2);
+        assertLocation(tokens.get(1), 2, CHUNK_SIZE * 2);
+    }
+
+    // ========== CHUNK BOUNDARIES ==========
+
+    /** Characters the scanner reads from its reader at once */
+    private static final int CHUNK_SIZE = 8192;
+
+    /** Reads at most {@code limit} characters at a time */
+    private static class TrickleReader extends Reader {
+        private final Reader reader;
+        private final int limit;
+
+        TrickleReader(String source, int limit) {
+            this.reader = new StringReader(source);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) throws IOException {
+            return reader.read(chars, offset, Math.min(length, limit));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private void assertSameTokens(List<Token> expected, List<Token> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Token e = expected.get(i);
+            Token a = actual.get(i);
+            assertEquals(e.type, a.type);
+            assertEquals(e.lexeme, a.lexeme);
+            assertEquals(e.literal, a.literal);
+            assertEquals(e.loc.offset(), a.loc.offset());
+            assertEquals(e.loc.line(), a.loc.line());
+            assertEquals(e.loc.col(), a.loc.col());
+        }
+    }
+
+    @Test
+    public void testIdentifierAcrossChunks() {
+        Scanner scanner = new Scanner(" ".repeat(CHUNK_SIZE - 3) + "abcdefghij");
+        List<Token> tokens = scanner.scanTokens();
+
+        assertTokenTypesEqual(tokens, IDENTIFIER);
+        assertEquals("abcdefghij", tokens.get(0).lexeme);
+        assertEquals(CHUNK_SIZE - 3, tokens.get(0).loc.offset());
+        assertEquals(CHUNK_SIZE - 3, tokens.get(0).loc.col());
+    }
+
+    @Test
+    public void testNumberAcrossChunks() {
+        Scanner scanner = new Scanner(" ".repeat(CHUNK_SIZE - 4) + "123.456");
+        List<Token> tokens = scanner.scanTokens();
+
+        assertTokenTypesEqual(tokens, NUMBER);
+        assertEquals(123.456, tokens.get(0).literal);
+    }
+
+    @Test
+    public void testStringLongerThanChunk() {
+        String text = "x".repeat(CHUNK_SIZE * 2 + 100);
+        Scanner scanner = new Scanner(" ".repeat(CHUNK_SIZE - 5) + "\"" + text + "\" 1");
+        List<Token> tokens = scanner.scanTokens();
+
+        assertTokenTypesEqual(tokens, STRING_START, STRING, STRING_END, NUMBER);
+        assertEquals(text, tokens.get(1).literal);
+        assertEquals(CHUNK_SIZE - 4, tokens.get(1).loc.offset());
+        assertEquals(CHUNK_SIZE - 4 + text.length(), tokens.get(2).loc.offset());
+    }
+
+    @Test
+    public void testInterpolationAcrossChunks() {
+        Scanner scanner = new Scanner(" ".repeat(CHUNK_SIZE - 3) + "\"a${b}c\"");
+        List<Token> tokens = scanner.scanTokens();
+
+        assertTokenTypesEqual(tokens, STRING_START, STRING, INTERP_START, IDENTIFIER, INTERP_END, STRING,
+                STRING_END);
+        assertEquals("a", tokens.get(1).literal);
+        assertEquals("b", tokens.get(3).lexeme);
+        assertEquals("c", tokens.get(5).literal);
+    }
+
+    @Test
+    public void testBlockCommentAcrossChunks() {
+        Scanner scanner = new Scanner("/*" + "comment\n".repeat(CHUNK_SIZE / 4) + "*/ 42");
+        List<Token> tokens = scanner.scanTokens();
+
+        assertTokenTypesEqual(tokens, NUMBER);
+        assertEquals(CHUNK_SIZE / 4 + 1, tokens.get(0).loc.line());
+        assertEquals(3, tokens.get(0).loc.col());
+    }
+
+    @Test
+    public void testSmallReads() {
+        String source = "var s = \"a ${x + 1} b\"; /* c /* d */\n */ // e\r\nprint 12.5 >= foo_1;\n";
+        List<Token> expected = new Scanner(source).scanTokens();
+
+        for (int limit = 1; limit <= 8; limit++)
+            assertSameTokens(expected, new Scanner(new TrickleReader(source, limit)).scanTokens());
+    }
+
+    // ========== MAPPED FILES ==========
+
+    /** @return The text read from a temporary file of {@code bytes} */
+    private String readMapped(byte[] bytes, Charset charset, int length) throws IOException {
+        Path path = Files.createTempFile("lox", ".lox");
+        try {
+            Files.write(path, bytes);
+            try (Reader reader = MappedReader.open(path, charset)) {
+                StringBuilder text = new StringBuilder();
+                char[] chars = new char[length];
+                for (int read; (read = reader.read(chars, 0, length)) != -1;)
+                    text.append(chars, 0, read);
+                return text.toString();
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /** @return The tokens of a temporary file of {@code source} in UTF-8 */
+    private List<Token> scanMapped(String source) throws IOException {
+        Path path = Files.createTempFile("lox", ".lox");
+        try {
+            Files.write(path, source.getBytes(StandardCharsets.UTF_8));
+            try (Reader reader = MappedReader.open(path, StandardCharsets.UTF_8)) {
+                return new Scanner(reader).scanTokens();
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testMappedMultiByteCharacters() throws IOException {
+        String text = "print \"h\u00e9llo \u20ac \ud83d\ude00\";\n\ud83d\ude00\ud83d\ude00x\u00e9";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        // Reads of one character split the surrogate pairs
+        for (int length = 1; length <= 5; length++)
+            assertEquals(text, readMapped(bytes, StandardCharsets.UTF_8, length));
+        assertEquals(text, readMapped(bytes, StandardCharsets.UTF_8, CHUNK_SIZE));
+    }
+
+    @Test
+    public void testMappedMalformedLikeStream() throws IOException {
+        byte[] bytes = { 'a', (byte) 0xe2, (byte) 0x82, 'b', (byte) 0xff, (byte) 0xc3, (byte) 0xa9, (byte) 0xf0 };
+
+        for (Charset charset : new Charset[] { StandardCharsets.UTF_8, StandardCharsets.US_ASCII,
+                StandardCharsets.ISO_8859_1 }) {
+            String expected = new String(bytes, charset);
+            for (int length = 1; length <= 3; length++)
+                assertEquals(expected, readMapped(bytes, charset, length));
+        }
+    }
+
+    @Test
+    public void testMappedSurrogatePairAcrossChunks() throws IOException {
+        // The high surrogate is the last character of the first chunk
+        String text = "\ud83d\ude00\u00e9";
+        List<Token> tokens = scanMapped(" ".repeat(CHUNK_SIZE - 2) + "\"" + text + "\"");
+
+        assertTokenTypesEqual(tokens, STRING_START, STRING, STRING_END);
+        assertEquals(text, tokens.get(1).literal);
+        assertEquals(CHUNK_SIZE + 2, tokens.get(2).loc.offset());
+    }
+
+    @Test
+    public void testMappedMultiByteSequenceAcrossChunks() throws IOException {
+        // The run of multi-byte characters is decoded into two chunks
+        String text = "x".repeat(CHUNK_SIZE - 10) + "\u00e9\u20ac".repeat(10) + "y";
+        List<Token> tokens = scanMapped("\"" + text + "\"");
+
+        assertTokenTypesEqual(tokens, STRING_START, STRING, STRING_END);
+        assertEquals(text, tokens.get(1).literal);
+    }
+
     // ========== EDGE CASES ==========
 
     @Test
@@ -0,0 +1,100 @@
+package lox.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import lox.analysis.Resolver;
+import lox.ast.Stmt;
+import lox.parser.Parser;
+import lox.scanner.Scanner;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class VMTest {
+
+    /** @return What the program printed when run on the VM */
+    private String run(String source) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            List<Stmt> statements = new Parser(new Scanner(source)).parse();
+            new Resolver().resolveProgram(statements);
+            new VM().interpret(new Compiler().compile(statements));
+        } finally {
+            System.setOut(out);
+        }
+        return printed.toString();
+    }
+
+    // ========== GLOBALS ==========
+
+    @Test
+    public void testAssignToNativeName() {
+        assertEquals("1\n", run("clock = 1; print clock;"));
+    }
+
+    @Test
+    public void testAssignToNativeNameInFunction() {
+        assertEquals("x\nx\n", run("fun f() { floor = \"x\"; return floor; } print f(); print floor;"));
+    }
+
+    @Test
+    public void testNativesStillCallable() {
+        assertEquals("3\n", run("print floor(3.7);"));
+    }
+
+    // ========== LOOPS ==========
+
+    @Test
+    public void testContinueRunsIncrement() {
+        String source = "for (var i = 0; i < 5; i = i + 1) { if (i == 1) continue; { var t = i; if (t == 3) continue; print t; } }";
+        assertEquals("0\n2\n4\n", run(source));
+    }
+
+    @Test
+    public void testContinueInNestedLoops() {
+        String source = "for (var a = 0; a < 2; a = a + 1) for (var b = 0; b < 3; b = b + 1) { if (b == 1) continue; print a * 10 + b; }";
+        assertEquals("0\n2\n10\n12\n", run(source));
+    }
+
+    @Test
+    public void testComparisonConditionWithNaN() {
+        String source = "var n = 0 / 0; if (n < 1) print 1; else print 2; if (n >= 1) print 3; else print 4;";
+        assertEquals("2\n4\n", run(source));
+    }
+
+    // ========== NUMBERS ==========
+
+    @Test
+    public void testNumbersThroughClosedUpvalues() {
+        String source = "fun counter() { var n = 0; fun next() { n = n + 1; return n; } return next; }"
+                + " var next = counter(); next(); print next() * 2;";
+        assertEquals("4\n", run(source));
+    }
+
+    @Test
+    public void testNumberEquality() {
+        assertEquals("true\nfalse\ntrue\nfalse\n", run("print 1 == 1; print 1 == \"1\"; print 0 / 0 == 0 / 0; print 0 == -0;"));
+    }
+
+    @Test
+    public void testNumbersInStrings() {
+        assertEquals("a1\n2b\n", run("print \"a\" + 1; print 2 + \"b\";"));
+    }
+
+    // ========== CALL DEPTH ==========
+
+    @Test
+    public void testDeepRecursionOnHeapFrames() {
+        assertEquals("100000\n", run("fun f(n) { if (n == 0) return 0; return f(n - 1) + 1; } print f(100000);"));
+    }
+
+    @Test
+    public void testDeepRecursionThroughClosures() {
+        assertEquals("50000\n", run("fun make() { var step = 1;"
+                + " fun f(n) { if (n == 0) return 0; return f(n - step) + step; } return f; } print make()(50000);"));
+    }
+}